@@ -0,0 +1,123 @@
+package freesmelly.s3backup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Just enough of the S3 API on loopback for multipart uploads: create, upload part, complete,
+ * abort, and plain puts. Bodies are read and thrown away. Every request waits {@code latencyMs}
+ * before it is answered, and all request bodies together are read no faster than
+ * {@code bandwidthMBps}, so part size and parallelism can be compared under a slow link.
+ */
+final class FakeS3 implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService pool;
+    private final long latencyMs;
+    private final Bandwidth link;
+    private final AtomicLong received = new AtomicLong();
+
+    /** @param bandwidthMBps {@code 0} for no limit */
+    FakeS3(long latencyMs, double bandwidthMBps) throws IOException {
+        this.latencyMs = latencyMs;
+        this.link = new Bandwidth(bandwidthMBps, List.of());
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        this.pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "FakeS3");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(pool);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    String endpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /** Body bytes received so far, over all requests. */
+    long receivedBytes() {
+        return received.get();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            String query = ex.getRequestURI().getRawQuery() == null ? "" : ex.getRequestURI().getRawQuery();
+            String path = ex.getRequestURI().getPath();
+            int slash = path.indexOf('/', 1);
+            String bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+            String key = slash < 0 ? "" : path.substring(slash + 1);
+            drain(ex.getRequestBody());
+            if (latencyMs > 0) Thread.sleep(latencyMs);
+
+            switch (ex.getRequestMethod()) {
+                case "POST" -> {
+                    if (hasParam(query, "uploads")) {
+                        xml(ex, "<InitiateMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + key
+                                + "</Key><UploadId>" + UUID.randomUUID() + "</UploadId></InitiateMultipartUploadResult>");
+                    } else {
+                        xml(ex, "<CompleteMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + key
+                                + "</Key><ETag>\"done\"</ETag></CompleteMultipartUploadResult>");
+                    }
+                }
+                case "PUT" -> {
+                    // Echo any checksum the client declared, as S3 does, so verification passes.
+                    for (Map.Entry<String, List<String>> h : ex.getRequestHeaders().entrySet()) {
+                        if (h.getKey().toLowerCase().startsWith("x-amz-checksum-") && !h.getKey().equalsIgnoreCase("x-amz-checksum-algorithm")) {
+                            ex.getResponseHeaders().put(h.getKey(), h.getValue());
+                        }
+                    }
+                    ex.getResponseHeaders().add("ETag", "\"" + UUID.randomUUID() + "\"");
+                    ex.sendResponseHeaders(200, -1);
+                }
+                case "DELETE" -> ex.sendResponseHeaders(204, -1);
+                default -> ex.sendResponseHeaders(405, -1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain(InputStream in) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            link.acquire(n);
+            received.addAndGet(n);
+        }
+    }
+
+    private static boolean hasParam(String query, String name) {
+        for (String p : query.split("&")) {
+            if (p.equals(name) || p.startsWith(name + "=")) return true;
+        }
+        return false;
+    }
+
+    private static void xml(HttpExchange ex, String body) throws IOException {
+        byte[] b = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + body).getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().add("Content-Type", "application/xml");
+        ex.sendResponseHeaders(200, b.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(b);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        pool.shutdownNow();
+    }
+}
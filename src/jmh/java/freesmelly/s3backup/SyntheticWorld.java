@@ -0,0 +1,144 @@
+package freesmelly.s3backup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Builds a world folder that looks like a real one to the archiver: a few hundred small files
+ * (gzipped {@code .dat}, plain {@code .json}) next to a handful of large region files whose chunks
+ * are already zlib-compressed and sector-padded, so deflating them again gains little. Seeded, so
+ * every fork archives the same bytes.
+ */
+final class SyntheticWorld {
+    private SyntheticWorld() {}
+
+    private static final int SECTOR = 4096;
+
+    /**
+     * @param smallFiles number of {@code .dat}/{@code .json} files, spread over playerdata, stats,
+     *                   advancements and data
+     * @param regionFiles number of {@code .mca} files
+     * @param regionMB approximate size of each region file
+     */
+    static Path create(Path dir, int smallFiles, int regionFiles, int regionMB, long seed) throws IOException {
+        Random rnd = new Random(seed);
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("level.dat"), gzip(nbtLike(rnd, 2048)));
+        Files.write(dir.resolve("session.lock"), new byte[]{(byte) 0xE2, (byte) 0x98, (byte) 0x83});
+
+        for (int i = 0; i < smallFiles; i++) {
+            String id = new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+            switch (i % 4) {
+                case 0 -> write(dir.resolve("playerdata").resolve(id + ".dat"), gzip(nbtLike(rnd, 4096 + rnd.nextInt(8192))));
+                case 1 -> write(dir.resolve("stats").resolve(id + ".json"), json(rnd, 40 + rnd.nextInt(200)));
+                case 2 -> write(dir.resolve("advancements").resolve(id + ".json"), json(rnd, 20 + rnd.nextInt(80)));
+                default -> write(dir.resolve("data").resolve("map_" + i + ".dat"), gzip(nbtLike(rnd, 1024 + rnd.nextInt(16384))));
+            }
+        }
+
+        for (int i = 0; i < regionFiles; i++) {
+            int x = i % 8 - 4;
+            int z = i / 8 - 4;
+            write(dir.resolve("region").resolve("r." + x + "." + z + ".mca"), region(rnd, regionMB * 1024L * 1024L));
+        }
+        return dir;
+    }
+
+    static void delete(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    /**
+     * Anvil layout: two header sectors, then each chunk as a length, a compression byte (2 = zlib)
+     * and the deflated payload, padded to whole sectors. Chunks are added until the file would go
+     * past {@code target} or all 1024 slots are used.
+     */
+    private static byte[] region(Random rnd, long target) {
+        ByteBuffer header = ByteBuffer.allocate(2 * SECTOR);
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) Math.min(target, Integer.MAX_VALUE - 16));
+        Deflater d = new Deflater(6);
+        byte[] out = new byte[64 * 1024];
+        int sector = 2;
+        for (int slot = 0; slot < 1024; slot++) {
+            byte[] raw = nbtLike(rnd, 16 * 1024 + rnd.nextInt(48 * 1024));
+            d.reset();
+            d.setInput(raw);
+            d.finish();
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(raw.length / 2);
+            while (!d.finished()) {
+                int n = d.deflate(out);
+                chunk.write(out, 0, n);
+            }
+            int length = chunk.size() + 1;
+            int sectors = (length + 4 + SECTOR - 1) / SECTOR;
+            if ((long) (sector + sectors) * SECTOR > target) break;
+
+            header.putInt(slot * 4, (sector << 8) | sectors);
+            header.putInt(SECTOR + slot * 4, 1_750_000_000 + slot);
+            body.writeBytes(ByteBuffer.allocate(5).putInt(length).put((byte) 2).array());
+            body.writeBytes(chunk.toByteArray());
+            body.writeBytes(new byte[sectors * SECTOR - length - 4]);
+            sector += sectors;
+        }
+        d.end();
+        byte[] file = new byte[2 * SECTOR + body.size()];
+        System.arraycopy(header.array(), 0, file, 0, 2 * SECTOR);
+        System.arraycopy(body.toByteArray(), 0, file, 2 * SECTOR, body.size());
+        return file;
+    }
+
+    /**
+     * Stand-in for uncompressed NBT: runs of repeated values from a small palette with some noise,
+     * which deflates about as well as real block and entity data.
+     */
+    private static byte[] nbtLike(Random rnd, int size) {
+        byte[] b = new byte[size];
+        int i = 0;
+        while (i < size) {
+            int run = 1 + rnd.nextInt(rnd.nextInt(8) == 0 ? 64 : 6);
+            byte v = (byte) (rnd.nextInt(10) == 0 ? rnd.nextInt(256) : rnd.nextInt(12));
+            for (int k = 0; k < run && i < size; k++) b[i++] = v;
+        }
+        return b;
+    }
+
+    private static byte[] json(Random rnd, int entries) {
+        StringBuilder sb = new StringBuilder("{\n  \"stats\": {\n");
+        for (int i = 0; i < entries; i++) {
+            sb.append("    \"minecraft:").append(WORDS[rnd.nextInt(WORDS.length)]).append('_').append(i)
+                    .append("\": ").append(rnd.nextInt(100_000)).append(i + 1 < entries ? ",\n" : "\n");
+        }
+        return sb.append("  },\n  \"DataVersion\": 4440\n}\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static final String[] WORDS = {"stone", "dirt", "oak_log", "walk_one_cm", "jump", "play_time", "deaths", "mob_kills", "diamond_ore", "crafting_table"};
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 3);
+        try (OutputStream gz = new GZIPOutputStream(bos)) {
+            gz.write(data);
+        }
+        return bos.toByteArray();
+    }
+
+    private static void write(Path p, byte[] data) throws IOException {
+        Files.createDirectories(p.getParent());
+        Files.write(p, data);
+    }
+}
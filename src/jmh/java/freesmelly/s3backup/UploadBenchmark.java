@@ -0,0 +1,82 @@
+package freesmelly.s3backup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sequential against parallel multipart upload of one file to a {@link FakeS3} on loopback. The
+ * fake's per-request latency and bandwidth cap stand in for the real link; the mod's own upload
+ * limit is switched off so only the fake throttles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadBenchmark {
+    @Param({"0", "30"})
+    public long latencyMs;
+
+    /** {@code 0} = unlimited. */
+    @Param({"0", "50"})
+    public double bandwidthMBps;
+
+    @Param({"64"})
+    public int fileMB;
+
+    @Param({"8"})
+    public int partSizeMB;
+
+    @Param({"4"})
+    public int parallelism;
+
+    @Param({"NONE"})
+    public String checksum;
+
+    private FakeS3 s3;
+    private Path file;
+    private int run;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        s3 = new FakeS3(latencyMs, bandwidthMBps);
+        file = Files.createTempFile("s3backup-jmh-upload", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        Random rnd = new Random(42);
+        try (var out = Files.newOutputStream(file)) {
+            for (int i = 0; i < fileMB; i++) {
+                rnd.nextBytes(block);
+                out.write(block);
+            }
+        }
+        System.setProperty("aws.accessKeyId", "benchmark");
+        System.setProperty("aws.secretAccessKey", "benchmark");
+        Bandwidth.configure(0, List.of());
+        S3ClientHolder.rebuild(new S3ClientHolder.Settings("us-east-1", s3.endpoint(), true, "apache", Math.max(16, parallelism), 60, 0));
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        s3.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public void upload() throws IOException {
+        S3Multipart.upload(S3ClientHolder.client(), file, "bench", "upload-" + run++ + ".zip",
+                partSizeMB * 1024L * 1024L, PartRetry.none(), PartChecksum.parse(checksum));
+    }
+
+    @Benchmark
+    public void uploadParallel() throws IOException {
+        S3Multipart.uploadParallel(S3ClientHolder.client(), file, "bench", "parallel-" + run++ + ".zip",
+                partSizeMB * 1024L * 1024L, parallelism, PartRetry.none(), PartChecksum.parse(checksum));
+    }
+}
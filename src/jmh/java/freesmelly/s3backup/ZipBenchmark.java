@@ -0,0 +1,68 @@
+package freesmelly.s3backup;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ZipUtil#zipDirectory} over a synthetic world, written to a sink that only counts bytes,
+ * so the score is deflate and file reading rather than the output disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipBenchmark {
+    @Param({"1", "4", "0"})
+    public int threads;
+
+    @Param({"400"})
+    public int smallFiles;
+
+    @Param({"8"})
+    public int regionFiles;
+
+    @Param({"8"})
+    public int regionMB;
+
+    private Path world;
+
+    @Setup(Level.Trial)
+    public void createWorld() throws IOException {
+        world = SyntheticWorld.create(Files.createTempDirectory("s3backup-jmh-world"), smallFiles, regionFiles, regionMB, 42);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorld() throws IOException {
+        SyntheticWorld.delete(world);
+    }
+
+    /** Returns the archive size so the work cannot be optimised away. */
+    @Benchmark
+    public long zipDirectory() throws IOException {
+        CountingSink out = new CountingSink();
+        ZipUtil.zipDirectory(world, out, List.of("session.lock"), threads);
+        return out.count;
+    }
+
+    private static final class CountingSink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
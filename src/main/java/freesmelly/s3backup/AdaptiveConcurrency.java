@@ -0,0 +1,121 @@
+package freesmelly.s3backup;
+
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Additive-increase/multiplicative-decrease limit on the number of parts in flight, between 1 and
+ * the configured parallelism. Each part that comes back at normal speed raises the limit by about
+ * one per round of parts; throttling, network errors or a part that took more than twice the best
+ * observed time per byte (a sign the uplink queue is filling, which is what players feel as ping)
+ * halve it. At most one decrease per round: parts that started before the last cut do not count.
+ */
+final class AdaptiveConcurrency {
+    private static volatile boolean enabled = true;
+
+    /** A part this much slower per byte than the baseline counts as congestion. */
+    private static final double SLOW_FACTOR = 2.0;
+    /** Baseline creep per sample, so it follows a path that really got slower. */
+    private static final double BASELINE_DRIFT = 1.02;
+
+    private final int max;
+    private double limit;
+    private int inFlight;
+    private double baselineNsPerByte;
+    private long lastDecreaseNs = Long.MIN_VALUE;
+    private int lowest;
+
+    AdaptiveConcurrency(int max) {
+        this.max = Math.max(1, max);
+        this.limit = enabled ? Math.max(1, (this.max + 1) / 2) : this.max;
+        this.lowest = (int) limit;
+    }
+
+    static void configure(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Waits for a free slot.
+     *
+     * @return the start time to hand back to {@link #done} or {@link #failed}
+     */
+    synchronized long acquire() throws InterruptedIOException {
+        while (inFlight >= (int) limit) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an upload slot");
+            }
+        }
+        inFlight++;
+        return System.nanoTime();
+    }
+
+    /**
+     * A part finished.
+     *
+     * @param networkNs time spent sending, without any wait for the bandwidth limiter; negative if
+     *                  unknown, in which case only the increase applies
+     */
+    synchronized void done(long startNs, long networkNs, long bytes) {
+        inFlight--;
+        notifyAll();
+        if (!enabled) return;
+        if (networkNs < 0 || bytes <= 0) {
+            increase();
+            return;
+        }
+        double nsPerByte = (double) Math.max(1, networkNs) / bytes;
+        if (baselineNsPerByte == 0 || nsPerByte < baselineNsPerByte) {
+            baselineNsPerByte = nsPerByte;
+        } else {
+            baselineNsPerByte *= BASELINE_DRIFT;
+        }
+        if (nsPerByte > baselineNsPerByte * SLOW_FACTOR) {
+            decrease(startNs, "slow part");
+        } else {
+            increase();
+        }
+    }
+
+    /** A part attempt failed and gives up its slot. */
+    synchronized void failed(long startNs, Throwable t) {
+        inFlight--;
+        notifyAll();
+        signal(startNs, t);
+    }
+
+    /** Reports a failed attempt of a part that keeps its slot for a retry; congestion-type failures cut the limit. */
+    synchronized void signal(long startNs, Throwable t) {
+        if (enabled && congestion(t)) decrease(startNs, t instanceof S3Exception s3 ? "HTTP " + s3.statusCode() : t.getClass().getSimpleName());
+    }
+
+    private void increase() {
+        if (limit >= max) return;
+        int before = (int) limit;
+        limit = Math.min(max, limit + 1.0 / limit);
+        if ((int) limit != before) System.out.println("[S3Backup] Upload concurrency " + before + " -> " + (int) limit);
+    }
+
+    private void decrease(long startNs, String why) {
+        if (startNs < lastDecreaseNs) return;
+        int before = (int) limit;
+        limit = Math.max(1, limit / 2);
+        lastDecreaseNs = System.nanoTime();
+        lowest = Math.min(lowest, (int) limit);
+        if ((int) limit != before) System.out.println("[S3Backup] Upload concurrency " + before + " -> " + (int) limit + " (" + why + ")");
+    }
+
+    /** Throttling and transport trouble mean the path is overloaded; a bad checksum or a 4xx does not. */
+    private static boolean congestion(Throwable t) {
+        if (t instanceof PartChecksum.MismatchException) return false;
+        return PartRetry.retryable(t);
+    }
+
+    synchronized String summary() {
+        return (int) limit + "/" + max + " (lowest " + lowest + ")";
+    }
+}
@@ -0,0 +1,165 @@
+package freesmelly.s3backup;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * How a backup's files are packed into the single object that gets uploaded. Implementations
+ * write to a stream and flush it without closing it, so the same code serves the local-file and
+ * the streaming-upload paths.
+ */
+interface ArchiveFormat {
+    /** File extension including the dot, e.g. {@code .zip}. */
+    String extension();
+
+    /** Writes exactly {@code files}, in order; unreadable files are left out. {@code listener} may be null. */
+    void write(List<ZipUtil.SourceFile> files, OutputStream out, ZipUtil.EntryListener listener) throws IOException;
+
+    /** Names accepted by {@link #of}. */
+    List<String> NAMES = List.of("zip", "tar.zst", "tar.zst-seekable");
+
+    /**
+     * Every extension a backup object can have, for listing and pruning; a sharded backup is its
+     * {@link Shards} manifest, a chunk backup its {@link ChunkStore} snapshot.
+     */
+    List<String> EXTENSIONS = List.of(".zip", ".tar.zst", Shards.EXTENSION, ChunkStore.SNAPSHOT_EXTENSION);
+
+    /** Seekable frames hold this much uncompressed data each. */
+    int SEEKABLE_FRAME_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * @param threads     deflate threads for zip
+     * @param zstdWorkers zstd worker threads; {@code <= 0} uses {@code threads}
+     * @throws IllegalArgumentException for an unknown name
+     */
+    static ArchiveFormat of(String name, int threads, CompressionPolicy policy, int zstdLevel, int zstdWorkers) {
+        int workers = zstdWorkers > 0 ? zstdWorkers : Math.max(1, threads);
+        return switch (name == null ? "zip" : name.trim().toLowerCase(Locale.ROOT)) {
+            case "zip" -> new Zip(threads, policy);
+            case "tar.zst" -> new TarZstd(zstdLevel, workers);
+            case "tar.zst-seekable" -> new SeekableTarZstd(zstdLevel, workers);
+            default -> throw new IllegalArgumentException("Unknown archive format '" + name + "', use " + String.join("|", NAMES));
+        };
+    }
+
+    static boolean isArchiveKey(String key) {
+        return EXTENSIONS.stream().anyMatch(key::endsWith);
+    }
+
+    /** {@code key} without its archive extension, or unchanged if it has none. */
+    static String stripExtension(String key) {
+        for (String ext : EXTENSIONS) {
+            if (key.endsWith(ext)) return key.substring(0, key.length() - ext.length());
+        }
+        return key;
+    }
+
+    record Zip(int threads, CompressionPolicy policy) implements ArchiveFormat {
+        @Override
+        public String extension() {
+            return ".zip";
+        }
+
+        @Override
+        public void write(List<ZipUtil.SourceFile> files, OutputStream out, ZipUtil.EntryListener listener) throws IOException {
+            ZipUtil.zipFiles(files, out, threads, policy, listener);
+        }
+    }
+
+    /** One zstd stream over a tar; zstd splits the work across its own worker threads. */
+    record TarZstd(int level, int workers) implements ArchiveFormat {
+        @Override
+        public String extension() {
+            return ".tar.zst";
+        }
+
+        @Override
+        public void write(List<ZipUtil.SourceFile> files, OutputStream out, ZipUtil.EntryListener listener) throws IOException {
+            // Closed on failure too: the stream holds a native zstd context until then.
+            try (ZstdOutputStream zstd = new ZstdOutputStream(new NonClosing(out), level)) {
+                zstd.setChecksum(true);
+                if (workers > 1) zstd.setWorkers(workers);
+                writeTar(files, zstd, listener);
+            }
+        }
+    }
+
+    /**
+     * Independent frames plus a seek table, so a reader can start at any frame. Compresses a little
+     * worse than {@link TarZstd} because no frame can refer back into the previous one.
+     */
+    record SeekableTarZstd(int level, int workers) implements ArchiveFormat {
+        @Override
+        public String extension() {
+            return ".tar.zst";
+        }
+
+        @Override
+        public void write(List<ZipUtil.SourceFile> files, OutputStream out, ZipUtil.EntryListener listener) throws IOException {
+            try (SeekableZstdOutputStream zstd = new SeekableZstdOutputStream(out, SEEKABLE_FRAME_SIZE, level, workers)) {
+                writeTar(files, zstd, listener);
+                zstd.finish();
+            }
+        }
+    }
+
+    private static void writeTar(List<ZipUtil.SourceFile> files, OutputStream out, ZipUtil.EntryListener listener) throws IOException {
+        if (listener == null) listener = ZipUtil.EntryListener.WARN;
+        TarWriter tar = new TarWriter(out);
+        for (ZipUtil.SourceFile f : files) {
+            BackupJob.checkpoint();
+            TickHealth.yieldIfLagging();
+            InputStream in;
+            long size;
+            try {
+                in = Files.newInputStream(f.path());
+            } catch (IOException e) {
+                // Same as zip: a file that cannot be opened is left out, and reported.
+                listener.onSkipped(f, e);
+                continue;
+            }
+            long crc;
+            try (in) {
+                try {
+                    size = Files.size(f.path());
+                } catch (IOException e) {
+                    listener.onSkipped(f, e);
+                    continue;
+                }
+                try {
+                    crc = tar.writeFile(f, in, size);
+                } catch (TarWriter.ShortFileException e) {
+                    // Its entry is padding, not the file, so it counts as left out.
+                    listener.onSkipped(f, e);
+                    continue;
+                }
+            }
+            listener.onEntry(f, crc, size, -1);
+        }
+        tar.finish();
+    }
+
+    /** Lets a compressor write its end of stream without closing the caller's stream. */
+    final class NonClosing extends FilterOutputStream {
+        NonClosing(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
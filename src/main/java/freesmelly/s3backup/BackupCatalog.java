@@ -0,0 +1,312 @@
+package freesmelly.s3backup;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Every archive this server has in the bucket, newest first, with what is known about it: size,
+ * file count, checksums, how long it took, and the world it came from. The catalog lives in
+ * {@code config/s3-backup-mod/catalog-<name>.json} and is mirrored to {@code <prefix>catalog-<name>.json}
+ * in the bucket after every change, so listing and pruning cost no requests, and a new install
+ * (or a restore tool) gets the whole picture with one GET.
+ *
+ * <p>Without either copy, or after the bucket or prefix changed, the catalog is rebuilt from a
+ * listing. A rebuild only knows what the listing says: key, size, date and ETag. It only picks up
+ * archives whose names start with this server's {@code zipBaseName}, and {@link ChunkStore}
+ * snapshots only from their own folder, {@code <prefix>chunks/snapshots/}.
+ */
+final class BackupCatalog {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final int VERSION = 1;
+    /** Start of the timestamp that follows the base name in an archive name. */
+    private static final Pattern STAMP = Pattern.compile("\\d{4}-\\d{2}-\\d{2}T");
+    private static final Metrics.Counter MIRROR_FAILURES = Metrics.counter("s3backup_catalog_mirror_failures_total", "Failed uploads of the backup catalog to the bucket");
+
+    static final class Entry {
+        /** The archive name without prefix or extension, e.g. {@code world-backup-2025-06-01T03-00-00.1-full}. */
+        String id;
+        String key;
+        long createdAt;
+        long sizeBytes;
+        /** Files in the archive and their uncompressed total; 0 when the entry came from a listing. */
+        int fileCount;
+        long sourceBytes;
+        String etag;
+        /** Full-object checksum as S3 reports it, e.g. {@code CRC32C:AAAAAA==-12} for a multipart upload, or null. */
+        String checksum;
+        long durationMillis;
+        Long worldSeed;
+        String gameVersion;
+        /** Files left out and other problems the backup survived; see the job history for details. */
+        int warnings;
+        /** When {@link Verifier} last checked this backup, 0 if never, and what it found wrong (null if nothing). */
+        long verifiedAt;
+        String verifyProblem;
+        /** For a sharded backup, whose key is its {@link Shards} manifest: the shard archives. */
+        List<String> shards;
+        /** The extra targets that got a full copy, as {@link BackupTarget#describe()} names them. */
+        List<String> copies;
+
+        Entry(String key, long createdAt) {
+            this.key = key;
+            this.id = idOf(key);
+            this.createdAt = createdAt;
+        }
+
+        /** Part of an incremental chain that needs the archives before it, back to its full one. */
+        boolean incremental() {
+            return ArchiveFormat.stripExtension(key).endsWith("-incr");
+        }
+
+        /** The archive and anything stored alongside it. A snapshot leaves its packs to {@link ChunkStore#sweep}. */
+        List<String> keys() {
+            if (ChunkStore.isSnapshotKey(key)) return List.of(key);
+            List<String> keys = new ArrayList<>(List.of(key, EntryList.keyFor(key)));
+            if (IncrementalPlan.isChainKey(key)) keys.add(IncrementalPlan.manifestKey(key));
+            if (shards != null) {
+                for (String s : shards) {
+                    keys.add(s);
+                    keys.add(EntryList.keyFor(s));
+                }
+            }
+            return keys;
+        }
+    }
+
+    int version = VERSION;
+    String bucket;
+    String prefix;
+    String zipBaseName;
+    long updatedAt;
+    List<Entry> backups = new ArrayList<>();
+    private transient Path path;
+    private transient S3Client s3;
+
+    private static BackupCatalog open;
+
+    static Path path(String zipBaseName) {
+        return Paths.get("config", "s3-backup-mod", "catalog-" + zipBaseName + ".json");
+    }
+
+    static String mirrorKey(String keyPrefix, String zipBaseName) {
+        return keyPrefix + "catalog-" + zipBaseName + ".json";
+    }
+
+    static String idOf(String key) {
+        String stem = ArchiveFormat.stripExtension(key);
+        return stem.substring(stem.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * The catalog for {@code zipBaseName} in {@code bucket} under {@code keyPrefix}: the local file,
+     * else the bucket's copy (one GET), else a rebuild from a listing. Loaded once and then shared,
+     * so the backup, the pruner and the commands see the same list.
+     */
+    static synchronized BackupCatalog open(S3Client s3, String bucket, String keyPrefix, String zipBaseName) {
+        Path p = path(zipBaseName);
+        if (open != null && open.path.equals(p) && open.matches(bucket, keyPrefix)) {
+            open.s3 = s3;
+            return open;
+        }
+        BackupCatalog c = null;
+        if (Files.isRegularFile(p)) {
+            try {
+                c = GSON.fromJson(Files.readString(p), BackupCatalog.class);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[S3Backup] Ignoring unreadable backup catalog " + p + ": " + e.getMessage());
+            }
+        }
+        if (c == null || !c.matches(bucket, keyPrefix)) c = fromMirror(s3, bucket, keyPrefix, zipBaseName);
+        c.path = p;
+        c.s3 = s3;
+        c.zipBaseName = zipBaseName;
+        if (c.backups == null) {
+            c.backups = fromListing(s3, bucket, keyPrefix, zipBaseName);
+            c.save();
+            System.out.println("[S3Backup] Backup catalog rebuilt from bucket listing: " + c.backups.size() + " archives");
+        }
+        c.backups.sort(Comparator.comparingLong((Entry e) -> e.createdAt).reversed());
+        open = c;
+        return c;
+    }
+
+    private boolean matches(String bucket, String keyPrefix) {
+        return backups != null && bucket.equals(this.bucket) && keyPrefix.equals(this.prefix);
+    }
+
+    /** The bucket's copy, or a catalog with no backups list yet if there is none (or it is not ours). */
+    private static BackupCatalog fromMirror(S3Client s3, String bucket, String keyPrefix, String zipBaseName) {
+        try {
+            String json = s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(mirrorKey(keyPrefix, zipBaseName)).build()).asUtf8String();
+            BackupCatalog c = GSON.fromJson(json, BackupCatalog.class);
+            if (c != null && c.matches(bucket, keyPrefix)) {
+                System.out.println("[S3Backup] Backup catalog loaded from the bucket: " + c.backups.size() + " archives");
+                return c;
+            }
+        } catch (NoSuchKeyException e) {
+            // First run with a catalog: fall through to the listing. Any other error is thrown, so a
+            // flaky GET cannot replace a detailed catalog with a bare listing.
+        }
+        BackupCatalog c = new BackupCatalog();
+        c.bucket = bucket;
+        c.prefix = keyPrefix;
+        c.backups = null;
+        return c;
+    }
+
+    private static List<Entry> fromListing(S3Client s3, String bucket, String keyPrefix, String zipBaseName) {
+        List<BackupTarget.Listed> objects = new ArrayList<>();
+        String token = null;
+        do {
+            ListObjectsV2Response resp = s3.listObjectsV2(ListObjectsV2Request.builder().bucket(bucket).prefix(keyPrefix).continuationToken(token).build());
+            for (S3Object o : resp.contents()) objects.add(new BackupTarget.Listed(o.key(), o.size(), o.lastModified().toEpochMilli(), o.eTag()));
+            token = resp.isTruncated() ? resp.nextContinuationToken() : null;
+        } while (token != null);
+        return fromListed(objects, keyPrefix, zipBaseName);
+    }
+
+    /** This server's backups among {@code objects}, in listing order, with what a listing knows about them. */
+    static List<Entry> fromListed(List<BackupTarget.Listed> objects, String keyPrefix, String zipBaseName) {
+        List<Entry> out = new ArrayList<>();
+        String snapshots = ChunkStore.snapshotDir(keyPrefix);
+        for (BackupTarget.Listed o : objects) {
+            String name = o.key().substring(keyPrefix.length());
+            if (ChunkStore.isSnapshotKey(o.key())) {
+                name = o.key().startsWith(snapshots) ? o.key().substring(snapshots.length()) : "";
+            }
+            if (ArchiveFormat.isArchiveKey(o.key()) && ours(name, zipBaseName)) {
+                Entry e = new Entry(o.key(), o.modified());
+                e.sizeBytes = o.size();
+                e.etag = o.etag();
+                out.add(e);
+            }
+        }
+        foldShards(out);
+        return out;
+    }
+
+    /** Shard archives belong to the backup whose manifest is listed with them, not in the list themselves. */
+    private static void foldShards(List<Entry> listed) {
+        Map<String, Entry> sharded = new HashMap<>();
+        for (Entry e : listed) {
+            if (Shards.isManifestKey(e.key)) {
+                sharded.put(ArchiveFormat.stripExtension(e.key) + ".", e);
+                e.shards = new ArrayList<>();
+                e.sizeBytes = 0;
+                e.etag = null;
+            }
+        }
+        if (sharded.isEmpty()) return;
+        listed.removeIf(e -> {
+            if (Shards.isManifestKey(e.key)) return false;
+            Entry owner = sharded.get(ArchiveFormat.stripExtension(e.key).replaceFirst("[^.]+$", ""));
+            if (owner == null) return false;
+            owner.shards.add(e.key);
+            owner.sizeBytes += e.sizeBytes;
+            return true;
+        });
+    }
+
+    /** {@code <zipBaseName>-<yyyy-MM-ddT...>}; a base name that merely starts the same, like {@code world-2}, is someone else's. */
+    private static boolean ours(String name, String zipBaseName) {
+        return name.startsWith(zipBaseName + "-") && STAMP.matcher(name).region(zipBaseName.length() + 1, name.length()).lookingAt();
+    }
+
+    /**
+     * Replaces the list with what is actually in the bucket, keeping the details already known for
+     * archives that are still there. For when the catalog and the bucket have drifted apart.
+     *
+     * @return how many archives were added and how many dropped
+     */
+    synchronized int[] rebuild() {
+        Map<String, Entry> known = new HashMap<>();
+        for (Entry e : backups) known.put(e.key, e);
+        List<Entry> listed = fromListing(s3, bucket, prefix, zipBaseName);
+        int added = 0;
+        for (int i = 0; i < listed.size(); i++) {
+            Entry old = known.remove(listed.get(i).key);
+            if (old != null) listed.set(i, old);
+            else added++;
+        }
+        listed.sort(Comparator.comparingLong((Entry e) -> e.createdAt).reversed());
+        backups = listed;
+        save();
+        return new int[]{added, known.size()};
+    }
+
+    synchronized void add(Entry entry) {
+        backups.removeIf(e -> e.key.equals(entry.key));
+        backups.add(entry);
+        backups.sort(Comparator.comparingLong((Entry e) -> e.createdAt).reversed());
+        save();
+    }
+
+    synchronized void remove(Collection<String> keys) {
+        Set<String> gone = new HashSet<>(keys);
+        if (backups.removeIf(e -> gone.contains(e.key))) save();
+    }
+
+    /** Records a verification of {@code key}; {@code problem} is null if it passed. */
+    synchronized void verified(String key, long at, String problem) {
+        for (Entry e : backups) {
+            if (e.key.equals(key)) {
+                e.verifiedAt = at;
+                e.verifyProblem = problem;
+                save();
+                return;
+            }
+        }
+    }
+
+    /** Newest first. */
+    synchronized List<Entry> entries() {
+        return List.copyOf(backups);
+    }
+
+    /** Writes the local file through a temp file, then replaces the bucket's copy, which S3 swaps in whole. */
+    private void save() {
+        updatedAt = System.currentTimeMillis();
+        String json = GSON.toJson(this);
+        try {
+            Files.createDirectories(path.getParent());
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.writeString(tmp, json);
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("[S3Backup] Failed to save backup catalog: " + e.getMessage());
+        }
+        try {
+            s3.putObject(PutObjectRequest.builder().bucket(bucket).key(mirrorKey(prefix, zipBaseName)).contentType("application/json").build(),
+                    RequestBody.fromString(json, StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            // The local copy stays authoritative; the next change uploads it again.
+            MIRROR_FAILURES.inc();
+            System.err.println("[S3Backup] Failed to upload backup catalog: " + e.getMessage());
+        }
+    }
+}
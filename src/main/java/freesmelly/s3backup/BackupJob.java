@@ -0,0 +1,232 @@
+package freesmelly.s3backup;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * One backup run, from trigger to result. The job a thread is working for is reachable through
+ * {@link #current()}, so the archive and upload code, whichever of the job's threads it runs on,
+ * can report progress and stop at a {@link #checkpoint()} once the job is cancelled. Threads outside
+ * the job, such as a restore or a prune, see no job and are never stopped by its cancellation.
+ */
+final class BackupJob {
+    enum Phase { QUEUED, SAVING, SNAPSHOT, ARCHIVING, STREAMING, CHUNKING, UPLOADING, FINISHING, DONE }
+
+    enum Outcome { SUCCEEDED, SKIPPED, FAILED, CANCELLED }
+
+    /** Thrown at a checkpoint of a cancelled job. Not retryable, and still an {@code IOException} for the callers in between. */
+    static final class CancelledException extends InterruptedIOException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException(int id) {
+            super("Backup job #" + id + " was cancelled");
+        }
+    }
+
+    private static final Metrics.Counter UPLOADED = Metrics.counter("s3backup_uploaded_bytes_total", "Bytes of backup data uploaded, counted per finished part or object");
+    private static final Metrics.Counter WARNINGS = Metrics.counter("s3backup_warnings_total", "Problems that did not fail a backup, e.g. files left out because they could not be read");
+    /** Warnings kept word for word; any beyond this are only counted. */
+    private static final int MAX_WARNINGS = 20;
+
+    final int id;
+    final long queuedAt = System.currentTimeMillis();
+    /** Does the actual backup; returning normally means it succeeded. */
+    final Consumer<BackupJob> work;
+    private final List<String> triggers = new ArrayList<>();
+    private final Map<String, Long> phaseMillis = new LinkedHashMap<>();
+    private final List<String> warnings = new ArrayList<>();
+    private int warningCount;
+
+    private volatile Phase phase = Phase.QUEUED;
+    private volatile long phaseStartNs = System.nanoTime();
+    private volatile long totalBytes;
+    private volatile long uploadedBefore;
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong uploaded = new AtomicLong();
+    private volatile boolean cancelled;
+    private final Set<Workers.Scope> scopes = ConcurrentHashMap.newKeySet();
+    private volatile long startedAt;
+    private volatile String key;
+    private volatile String skipReason;
+
+    BackupJob(int id, String trigger, Consumer<BackupJob> work) {
+        this.id = id;
+        this.work = work;
+        triggers.add(trigger);
+    }
+
+    /**
+     * The job the current thread works for: the job's own thread, or a task forked into one of its
+     * {@link Workers.Scope}s. {@code null} anywhere else.
+     */
+    static BackupJob current() {
+        return Workers.owner();
+    }
+
+    /** Throws if this thread's job has been cancelled; a no-op outside a job. */
+    static void checkpoint() throws CancelledException {
+        BackupJob j = current();
+        if (j != null && j.cancelled) throw new CancelledException(j.id);
+    }
+
+    /** Source bytes read into the archive (or chunked) so far. */
+    static void archived(long bytes) {
+        BackupJob j = current();
+        if (j != null) j.archived.addAndGet(bytes);
+    }
+
+    /** Bytes of finished parts or objects. */
+    static void uploaded(long bytes) {
+        uploaded(current(), bytes);
+    }
+
+    /** Same, for callbacks on threads that are not the job's, such as the async client's; {@code job} may be null. */
+    static void uploaded(BackupJob job, long bytes) {
+        UPLOADED.add(bytes);
+        if (job != null) job.uploaded.addAndGet(bytes);
+    }
+
+    /**
+     * Something this thread's job had to leave out or could not do, which the backup survives but
+     * an admin should hear about. Logged right away and, inside a job, kept with the job's record.
+     */
+    static void warn(String message) {
+        System.err.println("[S3Backup] Warning: " + message);
+        WARNINGS.inc();
+        BackupJob j = current();
+        if (j == null) return;
+        synchronized (j) {
+            j.warningCount++;
+            if (j.warnings.size() < MAX_WARNINGS) j.warnings.add(message);
+        }
+    }
+
+    /** Whether this thread's job has been asked to stop; uploads use this to abort instead of keeping a journal. */
+    static boolean cancelling() {
+        BackupJob j = current();
+        return j != null && j.cancelled;
+    }
+
+    synchronized void addTrigger(String trigger) {
+        triggers.add(trigger);
+    }
+
+    synchronized List<String> triggers() {
+        return List.copyOf(triggers);
+    }
+
+    void started() {
+        startedAt = System.currentTimeMillis();
+        phaseStartNs = System.nanoTime();
+    }
+
+    long startedAt() {
+        return startedAt;
+    }
+
+    /**
+     * Enters {@code next}; {@code total} is what the phase expects to get through, or {@code 0} if
+     * unknown. Progress counts from here on; the upload total keeps running for the whole job.
+     */
+    synchronized void phase(Phase next, long total) {
+        long now = System.nanoTime();
+        if (phase != Phase.QUEUED) phaseMillis.merge(phase.name().toLowerCase(), (now - phaseStartNs) / 1_000_000, Long::sum);
+        phase = next;
+        phaseStartNs = now;
+        totalBytes = total;
+        archived.set(0);
+        uploadedBefore = uploaded.get();
+    }
+
+    Phase phase() {
+        return phase;
+    }
+
+    synchronized Map<String, Long> phaseMillis() {
+        return new LinkedHashMap<>(phaseMillis);
+    }
+
+    synchronized List<String> warnings() {
+        return List.copyOf(warnings);
+    }
+
+    /** All warnings, including those past the ones {@link #warnings()} keeps. */
+    synchronized int warningCount() {
+        return warningCount;
+    }
+
+    /** Also cancels every {@link Workers.Scope} the job has open, so its uploads and downloads stop mid-request. */
+    void cancel() {
+        cancelled = true;
+        for (Workers.Scope s : scopes) s.cancel();
+    }
+
+    void adopt(Workers.Scope scope) {
+        scopes.add(scope);
+        if (cancelled) scope.cancel();
+    }
+
+    void release(Workers.Scope scope) {
+        scopes.remove(scope);
+    }
+
+    boolean cancelled() {
+        return cancelled;
+    }
+
+    /** Nothing to do, e.g. the world did not change; the job ends as {@link Outcome#SKIPPED}. */
+    void skip(String reason) {
+        skipReason = reason;
+    }
+
+    String skipReason() {
+        return skipReason;
+    }
+
+    void key(String key) {
+        this.key = key;
+    }
+
+    String key() {
+        return key;
+    }
+
+    /** Whether triggers may still join this job: it has not read anything from the world yet. */
+    boolean acceptsTriggers() {
+        Phase p = phase;
+        return p == Phase.QUEUED || p == Phase.SAVING;
+    }
+
+    /** Progress in the current phase: uploaded bytes while uploading, source bytes otherwise. */
+    long doneBytes() {
+        return phase == Phase.UPLOADING ? uploaded.get() - uploadedBefore : archived.get();
+    }
+
+    long uploadedBytes() {
+        return uploaded.get();
+    }
+
+    long totalBytes() {
+        return totalBytes;
+    }
+
+    long phaseElapsedMillis() {
+        return (System.nanoTime() - phaseStartNs) / 1_000_000;
+    }
+
+    /** Estimated seconds left in the current phase from its rate so far, or -1 if there is nothing to go on yet. */
+    long etaSeconds() {
+        long done = doneBytes();
+        long total = totalBytes;
+        long elapsed = phaseElapsedMillis();
+        if (total <= 0 || done <= 0 || elapsed < 1000) return -1;
+        return Math.max(0, (total - done) * elapsed / done / 1000);
+    }
+}
@@ -0,0 +1,100 @@
+package freesmelly.s3backup;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides what a backup reads, in one walk of the world folder. Each file is looked at once, with
+ * the attributes the walk already has. A directory excluded as a whole ({@code <glob>/**}) is
+ * skipped without listing it. The files come back region files first, largest first, and then the
+ * rest by name. That way the big files start while every worker is free, and a long tail of small
+ * files fills in at the end.
+ */
+final class BackupPlanner {
+    private BackupPlanner() {}
+
+    /**
+     * @param totalBytes  sum of the file sizes, for progress and ETA from the first byte
+     * @param prunedDirs  directories skipped without being listed
+     */
+    record Plan(List<ZipUtil.SourceFile> files, long totalBytes, int prunedDirs, int excludedFiles, long walkNanos) {}
+
+    static Plan plan(Path root, List<String> excludeGlobs) throws IOException {
+        long start = System.nanoTime();
+        List<PathMatcher> matchers = new ArrayList<>();
+        List<PathMatcher> subtrees = new ArrayList<>();
+        for (String g : excludeGlobs == null ? List.<String>of() : excludeGlobs) {
+            matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + g));
+            // "dir/**" matches everything below any directory that "dir" matches, so there is nothing to list.
+            if (g.endsWith("/**") && g.length() > 3) subtrees.add(FileSystems.getDefault().getPathMatcher("glob:" + g.substring(0, g.length() - 3)));
+        }
+
+        List<ZipUtil.SourceFile> files = new ArrayList<>();
+        long[] total = new long[1];
+        int[] pruned = new int[1];
+        int[] excluded = new int[1];
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(root)) return FileVisitResult.CONTINUE;
+                Path rel = root.relativize(dir);
+                for (PathMatcher m : subtrees) {
+                    if (m.matches(rel)) {
+                        pruned[0]++;
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+                Path rel = root.relativize(file);
+                for (PathMatcher m : matchers) {
+                    if (m.matches(rel)) {
+                        excluded[0]++;
+                        return FileVisitResult.CONTINUE;
+                    }
+                }
+                files.add(new ZipUtil.SourceFile(file, rel.toString().replace('\\', '/'), attrs.size(), attrs.lastModifiedTime().toMillis()));
+                total[0] += attrs.size();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (file.equals(root)) throw e;
+                // Deleted while we were listing; the game does this with temp files.
+                if (!(e instanceof NoSuchFileException)) BackupJob.warn("Left out " + root.relativize(file) + ": " + ZipUtil.reason(e));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        files.sort(BackupPlanner::compare);
+        return new Plan(files, total[0], pruned[0], excluded[0], System.nanoTime() - start);
+    }
+
+    /** Region files largest first, then everything else by name; ties by name, so a plan is reproducible. */
+    private static int compare(ZipUtil.SourceFile a, ZipUtil.SourceFile b) {
+        boolean ra = isRegion(a.name());
+        boolean rb = isRegion(b.name());
+        if (ra != rb) return ra ? -1 : 1;
+        if (ra && a.size() != b.size()) return Long.compare(b.size(), a.size());
+        return a.name().compareTo(b.name());
+    }
+
+    private static boolean isRegion(String name) {
+        String n = name.toLowerCase(Locale.ROOT);
+        return n.endsWith(".mca") || n.endsWith(".mcc");
+    }
+}
@@ -11,18 +11,24 @@ import net.minecraft.server.command.CommandManager;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.text.Text;
 import net.minecraft.util.WorldSavePath;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.ChecksumMode;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
-import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
-import software.amazon.awssdk.services.s3.model.S3Object;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -42,17 +48,91 @@ public final class BackupService {
         String zipBaseName = "world-backup";
         List<String> excludeGlobs = List.of("logs/**","backups/**","crash-reports/**");
         int keepLastNS3 = 5;
+        int keepHourly = 0;
+        int keepDaily = 0;
+        int keepWeekly = 0;
+        int keepMonthly = 0;
         int multipartThresholdMB = 64;
         int multipartPartSizeMB = 256;
         int multipartParallelism = 4;
+        boolean streamUpload = false;
+        int streamPartSizeMB = 16;
+        int streamBufferedParts = 2;
+        boolean shardedArchives = false;
+        int shardParallelism = 3;
+        int compressionThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        boolean incrementalBackups = false;
+        int fullBackupEvery = 24;
+        String backupBackend = "zip";
+        int chunkPackSizeMB = 32;
+        String compressionDefault = "default";
+        List<String> compressionRules = List.of("**.mca=auto", "**.mcc=auto");
+        double autoStoreRatio = 0.9;
+        String archiveFormat = "zip";
+        int zstdLevel = 3;
+        int zstdWorkers = 0;
+        int staleUploadHours = 24;
+        String partChecksum = "crc32c";
+        int partRetries = 5;
+        int retryBudget = 20;
+        int uploadMemoryCapMB = 512;
+        String s3Endpoint = "";
+        boolean s3PathStyle = false;
+        String httpClient = "apache";
+        int maxConnections = 16;
+        int connectionIdleSeconds = 60;
+        int socketBufferKB = 0;
+        boolean asyncUpload = false;
+        double uploadLimitMBps = 0;
+        List<String> uploadLimitSchedule = List.of();
+        boolean adaptiveConcurrency = true;
+        double maxStartMspt = 40;
+        double pauseAboveMspt = 50;
+        int maxPauseSeconds = 60;
+        int quietPlayerCount = -1;
+        int maxDelayMinutes = 30;
+        String snapshotMode = "stage";
+        boolean jmxMetrics = true;
+        String metricsTextfile = "";
+        int restoreParallelism = 8;
+        int restoreChunkMB = 8;
+        int verifyIntervalHours = 24;
+        int verifySamples = 8;
+        List<String> extraTargets = List.of();
+        int targetBufferMB = 64;
     }
 
     private static volatile Config cfg;
+    /** Timers and the short housekeeping they start; backup jobs run on threads of their own (see Workers). */
     private static final ScheduledExecutorService IO = Executors.newSingleThreadScheduledExecutor(r -> {
         Thread t = new Thread(r, "S3Backup-IO"); t.setDaemon(true); return t;
     });
+    /** Retention and the catalog commands run here, so neither waits behind a backup job. */
+    private static final ExecutorService CATALOG = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "S3Backup-Catalog"); t.setDaemon(true); return t;
+    });
+    /** Restores download for minutes; they get their own thread so backups and the catalog keep going. */
+    private static final ExecutorService RESTORE = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "S3Backup-Restore"); t.setDaemon(true); return t;
+    });
+    private static final java.util.concurrent.atomic.AtomicBoolean restoring = new java.util.concurrent.atomic.AtomicBoolean();
+    private static final JobManager JOBS = new JobManager(Workers.jobs(), Paths.get("config", MODID, "history.json"), BackupService::exportMetrics);
+
+    static final Metrics.Histogram SAVE_FLUSH = Metrics.histogram("s3backup_save_flush_seconds", "World save flush before a backup");
+    static final Metrics.Histogram MAIN_THREAD_STALL = Metrics.histogram("s3backup_main_thread_stall_seconds", "Time a backup held the server thread");
+    private static final Metrics.Histogram WALK = Metrics.histogram("s3backup_walk_seconds", "Listing the world folder");
+    private static final Metrics.Histogram PRUNE = Metrics.histogram("s3backup_prune_seconds", "Applying retention and deleting old backups in S3");
+    private static final Metrics.Counter PRUNED = Metrics.counter("s3backup_pruned_objects_total", "Old backups deleted from S3");
+    private static final Metrics.Counter PRUNE_ERRORS = Metrics.counter("s3backup_prune_errors_total", "Old backups that could not be deleted, and failed pruning runs");
+    private static final Metrics.Gauge SOURCE_FILES = Metrics.gauge("s3backup_source_files", "Files in the last backup's world listing");
+    private static final Metrics.Gauge SOURCE_BYTES = Metrics.gauge("s3backup_source_bytes", "Bytes in the last backup's world listing");
+    private static final Metrics.Gauge ARCHIVE_BYTES = Metrics.gauge("s3backup_archive_bytes", "Size of the last uploaded archive");
+    private static final Metrics.Gauge ARCHIVE_RATIO = Metrics.gauge("s3backup_archive_ratio", "Archive size over archived source bytes, last backup");
+    private static final Metrics.Gauge UPLOAD_RATE = Metrics.gauge("s3backup_upload_bytes_per_second", "Upload throughput of the last backup");
+    private static final Metrics.Gauge MSPT = Metrics.gauge("s3backup_server_mspt", "Server milliseconds per tick, 5 second average");
     private static final AtomicLong ticks = new AtomicLong();
-    private static volatile long ticksPerBackup = 20L * 60L * 10L;
+    private static volatile long lastBackupMillis;
+    private static volatile String deferredFor;
 
     private static boolean originalLogAdmin = true;
     private static void setLogAdminCommands(MinecraftServer server, boolean value) {
@@ -73,7 +153,13 @@ public final class BackupService {
 
     public static void bootstrap() {
         cfg = loadOrCreateConfig();
-        S3ClientHolder.init(cfg.awsRegion);
+        // Before anything loads the world: a restore staged last run takes its place now.
+        Restore.applyPending();
+        S3ClientHolder.init(clientSettings());
+        BufferPool.configure(uploadMemoryCap());
+        applyUploadLimits();
+        TickHealth.configure(cfg.pauseAboveMspt, cfg.maxPauseSeconds);
+        Metrics.configureJmx(cfg.jmxMetrics);
 
         CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, env) -> {
             dispatcher.register(
@@ -81,13 +167,85 @@ public final class BackupService {
                             .requires(src -> src.hasPermissionLevel(3))
                             .executes(ctx -> {
                                 var server = ctx.getSource().getServer();
-                                ctx.getSource().sendFeedback(() -> Text.literal("[S3Backup] Starting backup…"), false);
-                                startBackup(server);
+                                String msg = startBackup(server, "manual: " + ctx.getSource().getName());
+                                ctx.getSource().sendFeedback(() -> Text.literal("[S3Backup] " + msg), false);
                                 return 1;
                             })
             );
         });
 
+        CommandRegistrationCallback.EVENT.register((dispatcher, ra, env) -> {
+            dispatcher.register(CommandManager.literal("s3backup")
+                    .requires(src -> src.hasPermissionLevel(3))
+                    .then(CommandManager.literal("status").executes(ctx -> {
+                        ctx.getSource().sendFeedback(() -> Text.literal(jobStatus()), false);
+                        return 1;
+                    }))
+                    .then(CommandManager.literal("cancel").executes(ctx -> {
+                        BackupJob j = JOBS.cancel();
+                        if (j == null) {
+                            ctx.getSource().sendError(Text.literal("§c[S3Backup] No backup job to cancel."));
+                        } else {
+                            ctx.getSource().sendFeedback(() -> Text.literal("§e[S3Backup] Cancelling backup job #" + j.id + "."), true);
+                        }
+                        return 1;
+                    }))
+                    .then(CommandManager.literal("history").executes(ctx -> {
+                        ctx.getSource().sendFeedback(() -> Text.literal(jobHistory(10)), false);
+                        return 1;
+                    }))
+                    .then(CommandManager.literal("list").executes(ctx -> {
+                        var src = ctx.getSource();
+                        // The first call may have to fetch or rebuild the catalog.
+                        CATALOG.execute(() -> {
+                            try {
+                                String text = backupList(15);
+                                src.getServer().execute(() -> src.sendFeedback(() -> Text.literal(text), false));
+                            } catch (RuntimeException e) {
+                                src.getServer().execute(() -> src.sendError(Text.literal("§c[S3Backup] Could not read the backup catalog: " + e.getMessage())));
+                            }
+                        });
+                        return 1;
+                    }))
+                    .then(CommandManager.literal("catalog")
+                            .then(CommandManager.literal("rebuild").executes(ctx -> {
+                                var src = ctx.getSource();
+                                src.sendFeedback(() -> Text.literal("§e[S3Backup] Rebuilding the backup catalog from a bucket listing..."), true);
+                                CATALOG.execute(() -> {
+                                    try {
+                                        int[] changes = catalog().rebuild();
+                                        src.getServer().execute(() -> src.sendFeedback(() -> Text.literal("§a[S3Backup] Catalog rebuilt: "
+                                                + changes[0] + " archives added, " + changes[1] + " no longer in the bucket."), true));
+                                    } catch (RuntimeException e) {
+                                        src.getServer().execute(() -> src.sendError(Text.literal("§c[S3Backup] Catalog rebuild failed: " + e.getMessage())));
+                                    }
+                                });
+                                return 1;
+                            })))
+                    .then(CommandManager.literal("verify").executes(ctx -> {
+                        verify(ctx.getSource(), null);
+                        return 1;
+                    }).then(CommandManager.argument("id", com.mojang.brigadier.arguments.StringArgumentType.word()).executes(ctx -> {
+                        verify(ctx.getSource(), com.mojang.brigadier.arguments.StringArgumentType.getString(ctx, "id"));
+                        return 1;
+                    })))
+                    .then(CommandManager.literal("restore")
+                            .then(CommandManager.argument("id", com.mojang.brigadier.arguments.StringArgumentType.word()).executes(ctx -> {
+                                restore(ctx.getSource(), com.mojang.brigadier.arguments.StringArgumentType.getString(ctx, "id"), null);
+                                return 1;
+                            }).then(CommandManager.argument("selectors", com.mojang.brigadier.arguments.StringArgumentType.greedyString()).executes(ctx -> {
+                                Selection only;
+                                try {
+                                    only = Selection.parse(com.mojang.brigadier.arguments.StringArgumentType.getString(ctx, "selectors"));
+                                } catch (IllegalArgumentException e) {
+                                    ctx.getSource().sendError(Text.literal("§c[S3Backup] " + e.getMessage()));
+                                    return 0;
+                                }
+                                restore(ctx.getSource(), com.mojang.brigadier.arguments.StringArgumentType.getString(ctx, "id"), only);
+                                return 1;
+                            })))));
+        });
+
         CommandRegistrationCallback.EVENT.register((dispatcher, ra, env) -> {
             var root = CommandManager.literal("s3setup")
                     .requires(src -> src.hasPermissionLevel(3))
@@ -119,16 +277,29 @@ public final class BackupService {
                                 "§bRegion:         §f" + cfg.awsRegion + "\n" +
                                         "§bBucket:         §f" + cfg.s3Bucket + "\n" +
                                         "§bPrefix:         §f" + cfg.s3Prefix + "\n" +
-                                        "§bKeep last:      §f" + cfg.keepLastNS3 + "\n" +
+                                        "§bKeep:           §f" + cfg.keepLastNS3 + " last, " + cfg.keepHourly + " hourly, " + cfg.keepDaily + " daily, " + cfg.keepWeekly + " weekly, " + cfg.keepMonthly + " monthly\n" +
                                         "§bMultipart thr.: §f" + cfg.multipartThresholdMB + " MB\n" +
                                         "§bMultipart part: §f" + cfg.multipartPartSizeMB + " MB\n" +
-                                        "§bParallelism:    §f" + cfg.multipartParallelism), false);
+                                        "§bParallelism:    §f" + cfg.multipartParallelism + "\n" +
+                                        "§bStream upload:  §f" + cfg.streamUpload + " (part " + cfg.streamPartSizeMB + " MB)\n" +
+                                        "§bSharded:        §f" + (cfg.shardedArchives ? cfg.shardParallelism + " at a time" : "off") + "\n" +
+                                        "§bZip threads:    §f" + cfg.compressionThreads + "\n" +
+                                        "§bIncremental:    §f" + cfg.incrementalBackups + " (full every " + cfg.fullBackupEvery + ")\n" +
+                                        "§bBackend:        §f" + cfg.backupBackend + "\n" +
+                                        "§bFormat:         §f" + cfg.archiveFormat + (cfg.archiveFormat.startsWith("tar.zst") ? " (level " + cfg.zstdLevel + ")" : "") + "\n" +
+                                        "§bTransport:      §f" + cfg.httpClient + " (" + cfg.maxConnections + " conns" + (cfg.asyncUpload ? ", async" : "") + ")" +
+                                        (cfg.s3Endpoint == null || cfg.s3Endpoint.isBlank() ? "" : " → " + cfg.s3Endpoint) + "\n" +
+                                        "§bUpload limit:   §f" + (cfg.uploadLimitMBps == 0 ? "unlimited" : cfg.uploadLimitMBps + " MB/s") +
+                                        (cfg.uploadLimitSchedule == null || cfg.uploadLimitSchedule.isEmpty() ? "" : " " + cfg.uploadLimitSchedule) + "\n" +
+                                        "§bVerify:         §f" + (cfg.verifyIntervalHours == 0 ? "off" : "every " + cfg.verifyIntervalHours + " h, " + cfg.verifySamples + " entries") + "\n" +
+                                        "§bExtra targets:  §f" + (cfg.extraTargets == null || cfg.extraTargets.isEmpty() ? "none" : String.join(", ", cfg.extraTargets)) + "\n" +
+                                        "§bServer tick:    §f" + String.format("%.1f mspt (%.1f TPS)", TickHealth.mspt(), TickHealth.tps())), false);
                         return 1;
                     }))
                     .then(CommandManager.literal("set")
                             .then(CommandManager.argument("field", com.mojang.brigadier.arguments.StringArgumentType.word())
                                     .suggests((c,b) -> {
-                                        for (var s : java.util.List.of("name","interval","region","bucket","prefix","keep","multipartThresholdMB","multipartPartSizeMB","multipartParallelism","accessKey","secretKey","sessionToken")) b.suggest(s);
+                                        for (var s : java.util.List.of("name","interval","region","bucket","prefix","keep","keepHourly","keepDaily","keepWeekly","keepMonthly","multipartThresholdMB","multipartPartSizeMB","multipartParallelism","streamUpload","streamPartSizeMB","sharded","shardParallelism","compressionThreads","incremental","fullEvery","backend","compression","format","zstdLevel","zstdWorkers","checksum","retries","uploadMemoryCapMB","endpoint","pathStyle","httpClient","maxConnections","asyncUpload","uploadLimitMBps","uploadSchedule","adaptiveConcurrency","maxStartMspt","pauseAboveMspt","quietPlayers","maxDelayMinutes","snapshot","jmx","metricsFile","restoreParallelism","restoreChunkMB","verifyIntervalHours","verifySamples","targets","targetBufferMB","accessKey","secretKey","sessionToken")) b.suggest(s);
                                         return b.buildFuture();
                                     })
                                     .then(CommandManager.argument("value", com.mojang.brigadier.arguments.StringArgumentType.greedyString())
@@ -141,7 +312,7 @@ public final class BackupService {
                     .then(CommandManager.literal("test").executes(ctx -> {
                         var server = ctx.getSource().getServer();
                         try {
-                            S3ClientHolder.rebuild(cfg.awsRegion);
+                            S3ClientHolder.rebuild(clientSettings());
                             String prefix = (cfg.s3Prefix == null || cfg.s3Prefix.isBlank()) ? "" : cfg.s3Prefix.replaceAll("^/+", "").replaceAll("/+$","") + "/";
                             String key = prefix + "_s3backup-test-" + System.currentTimeMillis() + ".txt";
                             Path outDir = Paths.get("config", MODID);
@@ -162,14 +333,57 @@ public final class BackupService {
 
         ServerLifecycleEvents.SERVER_STARTED.register(server -> {
             server.getPlayerManager().broadcast(Text.literal("[S3Backup] Scheduled backups every " + cfg.backupIntervalMinutes + " minutes."), false);
+            IO.execute(() -> {
+                resumePendingUploads(server);
+                sweepStaleUploads();
+            });
+            IO.scheduleWithFixedDelay(BackupService::sweepStaleUploads, 6, 6, TimeUnit.HOURS);
+            IO.scheduleWithFixedDelay(BackupService::exportMetrics, 1, 1, TimeUnit.MINUTES);
+            IO.scheduleWithFixedDelay(() -> CATALOG.execute(() -> verifyDue(server)), 10, 60, TimeUnit.MINUTES);
         });
 
-        ticksPerBackup = Math.max(1, cfg.backupIntervalMinutes) * 60L * 20L;
+        lastBackupMillis = System.currentTimeMillis();
+        ServerTickEvents.START_SERVER_TICK.register(server -> TickHealth.tickStarted());
         ServerTickEvents.END_SERVER_TICK.register(server -> {
-            if (ticksPerBackup > 0 && ticks.incrementAndGet() % ticksPerBackup == 0) startBackup(server);
+            TickHealth.tickEnded();
+            if (ticks.incrementAndGet() % 20 == 0) {
+                MSPT.set(TickHealth.mspt());
+                maybeStartScheduled(server);
+            }
         });
     }
 
+    /**
+     * Checked once a second. The interval is read from the live config, so a changed interval
+     * applies from the next check. A due backup waits while the server is over {@code maxStartMspt}
+     * or more than {@code quietPlayerCount} players are online, but never longer than
+     * {@code maxDelayMinutes}.
+     */
+    private static void maybeStartScheduled(MinecraftServer server) {
+        long now = System.currentTimeMillis();
+        long due = lastBackupMillis + Math.max(1, cfg.backupIntervalMinutes) * 60_000L;
+        if (now < due) return;
+        if (now - due < Math.max(0, cfg.maxDelayMinutes) * 60_000L) {
+            String reason = null;
+            if (cfg.maxStartMspt > 0 && TickHealth.mspt() > cfg.maxStartMspt) {
+                reason = "server busy";
+            } else if (cfg.quietPlayerCount >= 0 && server.getCurrentPlayerCount() > cfg.quietPlayerCount) {
+                reason = "players online";
+            }
+            if (reason != null) {
+                if (!reason.equals(deferredFor)) {
+                    System.out.println(String.format("[S3Backup] Scheduled backup deferred: %s (%.1f mspt, %d players)", reason, TickHealth.mspt(), server.getCurrentPlayerCount()));
+                    deferredFor = reason;
+                }
+                return;
+            }
+        } else if (deferredFor != null) {
+            System.out.println("[S3Backup] Scheduled backup deferred for " + cfg.maxDelayMinutes + " minutes, starting anyway");
+        }
+        deferredFor = null;
+        System.out.println("[S3Backup] " + startBackup(server, "schedule"));
+    }
+
     private static Config loadOrCreateConfig() {
         try {
             Path dir = Paths.get("config");
@@ -230,6 +444,21 @@ public final class BackupService {
                     src.sendError(Text.literal("§cInvalid number for keep. Example: /s3setup set keep 5"));
                 }
             }
+            case "keephourly", "keepdaily", "keepweekly", "keepmonthly" -> {
+                try {
+                    int n = Math.max(0, Integer.parseInt(value.trim()));
+                    String period = switch (field) {
+                        case "keephourly" -> { cfg.keepHourly = n; yield "hours"; }
+                        case "keepdaily" -> { cfg.keepDaily = n; yield "days"; }
+                        case "keepweekly" -> { cfg.keepWeekly = n; yield "weeks"; }
+                        default -> { cfg.keepMonthly = n; yield "months"; }
+                    };
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aKeeping the newest backup of each of the last " + n + " " + period + "."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set keepDaily 7"));
+                }
+            }
             case "multipartthresholdmb" -> {
                 try {
                     int mb = Integer.parseInt(value.trim());
@@ -260,6 +489,326 @@ public final class BackupService {
                     src.sendError(Text.literal("§cInvalid number. Example: /s3setup set multipartParallelism 4"));
                 }
             }
+            case "streamupload" -> {
+                cfg.streamUpload = Boolean.parseBoolean(value.trim());
+                saveConfig(cfg);
+                src.sendFeedback(() -> Text.literal("§aStreaming upload " + (cfg.streamUpload ? "enabled" : "disabled") + "."), false);
+            }
+            case "streampartsizemb" -> {
+                try {
+                    int mb = Integer.parseInt(value.trim());
+                    cfg.streamPartSizeMB = Math.max(5, mb);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aStreaming part size set to " + cfg.streamPartSizeMB + " MB."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set streamPartSizeMB 16"));
+                }
+            }
+            case "sharded" -> {
+                cfg.shardedArchives = Boolean.parseBoolean(value.trim());
+                saveConfig(cfg);
+                src.sendFeedback(() -> Text.literal("§aSharded archives " + (cfg.shardedArchives ? "enabled: one archive per dimension, streamed." : "disabled.")), false);
+            }
+            case "shardparallelism" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.shardParallelism = Math.max(1, n);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aUp to " + cfg.shardParallelism + " shards are written at once."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set shardParallelism 3"));
+                }
+            }
+            case "compressionthreads" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.compressionThreads = Math.max(1, n);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aCompression threads set to " + cfg.compressionThreads + "."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set compressionThreads 4"));
+                }
+            }
+            case "incremental" -> {
+                cfg.incrementalBackups = Boolean.parseBoolean(value.trim());
+                saveConfig(cfg);
+                src.sendFeedback(() -> Text.literal("§aIncremental backups " + (cfg.incrementalBackups ? "enabled" : "disabled") + "."), false);
+            }
+            case "fullevery" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.fullBackupEvery = Math.max(1, n);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aFull backup every " + cfg.fullBackupEvery + " runs."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set fullEvery 24"));
+                }
+            }
+            case "backend" -> {
+                String v = value.trim().toLowerCase();
+                if (!v.equals("zip") && !v.equals("chunks")) {
+                    src.sendError(Text.literal("§cUnknown backend. Use zip|chunks"));
+                    return;
+                }
+                cfg.backupBackend = v;
+                saveConfig(cfg);
+                src.sendFeedback(() -> Text.literal("§aBackend set to " + v + "."), false);
+            }
+            case "compression" -> {
+                try {
+                    CompressionPolicy.Mode.parse(value);
+                    cfg.compressionDefault = value.trim().toLowerCase();
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aDefault compression set to " + cfg.compressionDefault + "."), false);
+                } catch (IllegalArgumentException e) {
+                    src.sendError(Text.literal("§cUnknown mode. Use stored|fast|default|best|auto"));
+                }
+            }
+            case "format" -> {
+                String v = value.trim().toLowerCase();
+                if (!ArchiveFormat.NAMES.contains(v)) {
+                    src.sendError(Text.literal("§cUnknown format. Use " + String.join("|", ArchiveFormat.NAMES)));
+                    return;
+                }
+                cfg.archiveFormat = v;
+                saveConfig(cfg);
+                src.sendFeedback(() -> Text.literal("§aArchive format set to " + v + "."), false);
+            }
+            case "zstdlevel" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.zstdLevel = Math.max(-7, Math.min(22, n));
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aZstd level set to " + cfg.zstdLevel + "."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set zstdLevel 3"));
+                }
+            }
+            case "zstdworkers" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.zstdWorkers = Math.max(0, n);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aZstd workers set to " + (cfg.zstdWorkers == 0 ? "compressionThreads" : cfg.zstdWorkers) + "."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set zstdWorkers 4 (0 = compressionThreads)"));
+                }
+            }
+            case "checksum" -> {
+                try {
+                    PartChecksum.parse(value);
+                    cfg.partChecksum = value.trim().toLowerCase();
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aPart checksum set to " + cfg.partChecksum + "."), false);
+                } catch (IllegalArgumentException e) {
+                    src.sendError(Text.literal("§cUnknown checksum. Use crc32c|sha256|none"));
+                }
+            }
+            case "retries" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.partRetries = Math.max(1, n);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aAttempts per part set to " + cfg.partRetries + "."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set retries 5"));
+                }
+            }
+            case "uploadmemorycapmb" -> {
+                try {
+                    int mb = Integer.parseInt(value.trim());
+                    cfg.uploadMemoryCapMB = Math.max(8, mb);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aUpload memory cap set to " + cfg.uploadMemoryCapMB + " MB."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set uploadMemoryCapMB 512"));
+                }
+            }
+            case "endpoint" -> {
+                String v = value.trim();
+                cfg.s3Endpoint = v.equals("-") || v.equalsIgnoreCase("none") ? "" : v;
+                saveConfig(cfg);
+                S3ClientHolder.rebuild(clientSettings());
+                src.sendFeedback(() -> Text.literal("§aEndpoint set to " + (cfg.s3Endpoint.isEmpty() ? "AWS default" : cfg.s3Endpoint) + "."), false);
+            }
+            case "pathstyle" -> {
+                cfg.s3PathStyle = Boolean.parseBoolean(value.trim());
+                saveConfig(cfg);
+                S3ClientHolder.rebuild(clientSettings());
+                src.sendFeedback(() -> Text.literal("§aPath-style addressing " + (cfg.s3PathStyle ? "enabled" : "disabled") + "."), false);
+            }
+            case "httpclient" -> {
+                String v = value.trim().toLowerCase();
+                if (!v.equals("apache") && !v.equals("urlconnection")) {
+                    src.sendError(Text.literal("§cUnknown HTTP client. Use apache|urlconnection"));
+                    return;
+                }
+                cfg.httpClient = v;
+                saveConfig(cfg);
+                S3ClientHolder.rebuild(clientSettings());
+                src.sendFeedback(() -> Text.literal("§aHTTP client set to " + v + "."), false);
+            }
+            case "maxconnections" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.maxConnections = Math.max(1, n);
+                    saveConfig(cfg);
+                    S3ClientHolder.rebuild(clientSettings());
+                    src.sendFeedback(() -> Text.literal("§aMax connections set to " + cfg.maxConnections + "."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set maxConnections 16"));
+                }
+            }
+            case "asyncupload" -> {
+                cfg.asyncUpload = Boolean.parseBoolean(value.trim());
+                saveConfig(cfg);
+                src.sendFeedback(() -> Text.literal("§aAsync upload " + (cfg.asyncUpload ? "enabled" : "disabled") + "."), false);
+            }
+            case "uploadlimitmbps" -> {
+                try {
+                    double mbps = Double.parseDouble(value.trim());
+                    cfg.uploadLimitMBps = Math.max(0, mbps);
+                    saveConfig(cfg);
+                    applyUploadLimits();
+                    src.sendFeedback(() -> Text.literal("§aUpload limit set to " + (cfg.uploadLimitMBps == 0 ? "unlimited" : cfg.uploadLimitMBps + " MB/s") + "."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set uploadLimitMBps 4 (0 = unlimited)"));
+                }
+            }
+            case "uploadschedule" -> {
+                String v = value.trim();
+                cfg.uploadLimitSchedule = v.equalsIgnoreCase("none") ? List.of() : List.of(v.split("\\s*,\\s*"));
+                saveConfig(cfg);
+                applyUploadLimits();
+                src.sendFeedback(() -> Text.literal("§aUpload schedule set to " + (cfg.uploadLimitSchedule.isEmpty() ? "none" : String.join(", ", cfg.uploadLimitSchedule)) + "."), false);
+            }
+            case "adaptiveconcurrency" -> {
+                cfg.adaptiveConcurrency = Boolean.parseBoolean(value.trim());
+                saveConfig(cfg);
+                applyUploadLimits();
+                src.sendFeedback(() -> Text.literal("§aAdaptive concurrency " + (cfg.adaptiveConcurrency ? "enabled" : "disabled") + "."), false);
+            }
+            case "maxstartmspt", "pauseabovemspt" -> {
+                try {
+                    double ms = Math.max(0, Double.parseDouble(value.trim()));
+                    if (field.equals("maxstartmspt")) cfg.maxStartMspt = ms;
+                    else cfg.pauseAboveMspt = ms;
+                    saveConfig(cfg);
+                    TickHealth.configure(cfg.pauseAboveMspt, cfg.maxPauseSeconds);
+                    src.sendFeedback(() -> Text.literal("§a" + (field.equals("maxstartmspt") ? "Start" : "Pause") + " threshold set to " + (ms == 0 ? "off" : ms + " mspt") + "."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set " + field + " 45 (0 = off)"));
+                }
+            }
+            case "quietplayers" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.quietPlayerCount = Math.max(-1, n);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§a" + (cfg.quietPlayerCount < 0 ? "Backups no longer wait for quiet periods." : "Backups wait for " + cfg.quietPlayerCount + " or fewer players online.")), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set quietPlayers 2 (-1 = off)"));
+                }
+            }
+            case "maxdelayminutes" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.maxDelayMinutes = Math.max(0, n);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aScheduled backups wait at most " + cfg.maxDelayMinutes + " minutes."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set maxDelayMinutes 30"));
+                }
+            }
+            case "snapshot" -> {
+                String v = value.trim().toLowerCase();
+                if (!v.equals("stage") && !v.equals("live")) {
+                    src.sendError(Text.literal("§cUnknown snapshot mode. Use stage|live"));
+                    return;
+                }
+                cfg.snapshotMode = v;
+                saveConfig(cfg);
+                src.sendFeedback(() -> Text.literal("§aSnapshot mode set to " + v + "."), false);
+            }
+            case "jmx" -> {
+                cfg.jmxMetrics = Boolean.parseBoolean(value.trim());
+                Metrics.configureJmx(cfg.jmxMetrics);
+                saveConfig(cfg);
+                src.sendFeedback(() -> Text.literal("§aJMX metrics " + (cfg.jmxMetrics ? "enabled" : "disabled") + "."), false);
+            }
+            case "metricsfile" -> {
+                String v = value.trim();
+                cfg.metricsTextfile = v.equalsIgnoreCase("none") ? "" : v;
+                saveConfig(cfg);
+                exportMetrics();
+                src.sendFeedback(() -> Text.literal("§aMetrics text file " + (cfg.metricsTextfile.isEmpty() ? "disabled" : "set to " + cfg.metricsTextfile) + "."), false);
+            }
+            case "restoreparallelism" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.restoreParallelism = Math.max(1, n);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aRestores download " + cfg.restoreParallelism + " ranges at once."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set restoreParallelism 8"));
+                }
+            }
+            case "restorechunkmb" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.restoreChunkMB = Math.max(1, Math.min(256, n));
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aRestore range size set to " + cfg.restoreChunkMB + " MB."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set restoreChunkMB 8"));
+                }
+            }
+            case "verifyintervalhours" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.verifyIntervalHours = Math.max(0, n);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal(cfg.verifyIntervalHours == 0 ? "§aScheduled verification off."
+                            : "§aOne backup is verified every " + cfg.verifyIntervalHours + " hours."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set verifyIntervalHours 24 (0 = off)"));
+                }
+            }
+            case "verifysamples" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.verifySamples = Math.max(0, n);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aVerification reads back " + cfg.verifySamples + " entries per backup."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set verifySamples 8"));
+                }
+            }
+            case "targets" -> {
+                String v = value.trim();
+                List<String> specs = v.equalsIgnoreCase("none") ? List.of() : List.of(v.split("\\s*,\\s*"));
+                for (String spec : specs) {
+                    try {
+                        parseTarget(spec, partRetry()).close();
+                    } catch (RuntimeException e) {
+                        src.sendError(Text.literal("§cBad target " + spec + ": " + e.getMessage() + ". Example: /s3setup set targets s3://other-bucket?region=eu-west-1,/mnt/nas/minecraft"));
+                        return;
+                    }
+                }
+                cfg.extraTargets = specs;
+                saveConfig(cfg);
+                src.sendFeedback(() -> Text.literal("§aExtra targets set to " + (specs.isEmpty() ? "none" : String.join(", ", specs)) + "."), false);
+            }
+            case "targetbuffermb" -> {
+                try {
+                    int n = Integer.parseInt(value.trim());
+                    cfg.targetBufferMB = Math.max(1, n);
+                    saveConfig(cfg);
+                    src.sendFeedback(() -> Text.literal("§aEach extra target may fall " + cfg.targetBufferMB + " MB behind before the backup waits for it."), false);
+                } catch (NumberFormatException e) {
+                    src.sendError(Text.literal("§cInvalid number. Example: /s3setup set targetBufferMB 64"));
+                }
+            }
             case "accesskey", "secretkey", "sessiontoken" -> {
                 var s = CredentialsStore.load();
                 if (s == null) s = new CredentialsStore.Secrets();
@@ -269,27 +818,145 @@ public final class BackupService {
                 CredentialsStore.save(s);
                 src.sendFeedback(() -> Text.literal("§aCredential saved (" + field + "). Value is hidden."), false);
             }
-            default -> src.sendError(Text.literal("§cUnknown field. Use region|bucket|prefix|keep|multipartThresholdMB|multipartPartSizeMB|multipartParallelism|accessKey|secretKey|sessionToken"));
+            default -> src.sendError(Text.literal("§cUnknown field. Use region|bucket|prefix|keep|keepHourly|keepDaily|keepWeekly|keepMonthly|multipartThresholdMB|multipartPartSizeMB|multipartParallelism|streamUpload|streamPartSizeMB|sharded|shardParallelism|compressionThreads|incremental|fullEvery|backend|compression|format|zstdLevel|zstdWorkers|checksum|retries|uploadMemoryCapMB|endpoint|pathStyle|httpClient|maxConnections|asyncUpload|uploadLimitMBps|uploadSchedule|adaptiveConcurrency|maxStartMspt|pauseAboveMspt|quietPlayers|maxDelayMinutes|snapshot|jmx|metricsFile|restoreParallelism|restoreChunkMB|verifyIntervalHours|verifySamples|targets|targetBufferMB|accessKey|secretKey|sessionToken"));
         }
     }
 
-    private static void startBackup(MinecraftServer server) {
-        CompletableFuture
-                .runAsync(() -> saveWorldSync(server))
-                .thenRunAsync(() -> runBackupIO(server), IO)
-                .exceptionally(ex -> {
-                    server.sendMessage(Text.literal("[S3Backup] Backup failed: " + ex.getMessage()));
-                    ex.printStackTrace();
-                    return null;
-                });
+    /** Hands a backup to the job manager; the returned line says whether it started, joined or queued. */
+    private static String startBackup(MinecraftServer server, String trigger) {
+        lastBackupMillis = System.currentTimeMillis();
+        return JOBS.submit(trigger, job -> runJob(server, job));
+    }
+
+    /** Runs on a thread of its own, one job at a time. */
+    private static void runJob(MinecraftServer server, BackupJob job) {
+        try {
+            // In stage mode the snapshot does its own flush.
+            if (!stagedSnapshot()) {
+                job.phase(BackupJob.Phase.SAVING, 0);
+                saveWorldSync(server);
+            }
+            runBackupIO(server, job);
+        } catch (RuntimeException ex) {
+            if (job.cancelled()) {
+                server.sendMessage(Text.literal("[S3Backup] Backup job #" + job.id + " cancelled."));
+            } else {
+                server.sendMessage(Text.literal("[S3Backup] Backup failed: " + ex.getMessage()));
+                ex.printStackTrace();
+            }
+            throw ex;
+        }
+    }
+
+    private static String jobStatus() {
+        BackupJob j = JOBS.active();
+        if (j == null) return "§b[S3Backup] §fNo backup running." + lastRunLine();
+        StringBuilder sb = new StringBuilder("§b[S3Backup] Job #" + j.id + "§f (" + String.join(", ", j.triggers()) + ")\n");
+        sb.append("§bPhase:    §f").append(j.phase().name().toLowerCase()).append(j.cancelled() ? " (cancelling)" : "")
+                .append(", ").append(formatDuration(j.phaseElapsedMillis() / 1000)).append(" in phase, ")
+                .append(formatDuration((System.currentTimeMillis() - j.startedAt()) / 1000)).append(" total\n");
+        long total = j.totalBytes();
+        if (total > 0) {
+            long done = j.doneBytes();
+            long eta = j.etaSeconds();
+            sb.append(String.format("§bProgress: §f%s / %s (%.1f%%)", formatBytes(done), formatBytes(total), 100.0 * done / total))
+                    .append(eta < 0 ? "" : ", ETA " + formatDuration(eta)).append("\n");
+        }
+        sb.append("§bUploaded: §f").append(formatBytes(j.uploadedBytes()));
+        if (j.warningCount() > 0) sb.append("\n§bWarnings: §e").append(j.warningCount()).append("§f, last: ").append(j.warnings().get(j.warnings().size() - 1));
+        BackupJob q = JOBS.queued();
+        if (q != null) sb.append("\n§bQueued:   §fjob #").append(q.id).append(" (").append(String.join(", ", q.triggers())).append(")");
+        return sb.toString();
+    }
+
+    private static String lastRunLine() {
+        List<JobManager.Record> last = JOBS.history(1);
+        if (last.isEmpty()) return "";
+        JobManager.Record r = last.get(0);
+        return "\n§bLast:     §f#" + r.id + " " + r.outcome.toLowerCase() + " " + formatDuration((System.currentTimeMillis() - r.started) / 1000) + " ago";
+    }
+
+    private static String jobHistory(int max) {
+        List<JobManager.Record> recent = JOBS.history(max);
+        if (recent.isEmpty()) return "§b[S3Backup] §fNo backup jobs yet.";
+        StringBuilder sb = new StringBuilder("§b[S3Backup] Last " + recent.size() + " jobs:");
+        var fmt = java.time.format.DateTimeFormatter.ofPattern("MM-dd HH:mm");
+        for (JobManager.Record r : recent) {
+            String when = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(r.started), java.time.ZoneId.systemDefault()).format(fmt);
+            sb.append("\n§f#").append(r.id).append(" ").append(when).append(" ")
+                    .append(r.outcome.equals("SUCCEEDED") ? "§a" : r.outcome.equals("FAILED") ? "§c" : "§e").append(r.outcome.toLowerCase())
+                    .append("§f ").append(formatDuration(r.durationMillis / 1000))
+                    .append(r.uploadedBytes > 0 ? ", " + formatBytes(r.uploadedBytes) + " up" : "")
+                    .append(r.error == null ? "" : " - " + r.error);
+            if (r.warningCount > 0) {
+                sb.append("\n  §e").append(r.warningCount).append(" warning(s)");
+                if (r.warnings != null && !r.warnings.isEmpty()) sb.append(": §f").append(r.warnings.get(0));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String formatDuration(long secs) {
+        if (secs < 60) return secs + "s";
+        if (secs < 3600) return (secs / 60) + "m" + String.format("%02d", secs % 60) + "s";
+        return (secs / 3600) + "h" + String.format("%02d", secs % 3600 / 60) + "m";
+    }
+
+    private static String formatBytes(long b) {
+        if (b < 1024 * 1024) return String.format("%.1f KiB", b / 1024.0);
+        if (b < 1024L * 1024 * 1024) return String.format("%.1f MiB", b / (1024.0 * 1024));
+        return String.format("%.2f GiB", b / (1024.0 * 1024 * 1024));
+    }
+
+    private static double ratio(long archiveBytes, List<ZipUtil.SourceFile> files) {
+        long source = totalSize(files);
+        return source == 0 ? 0 : (double) archiveBytes / source;
+    }
+
+    /** Writes the Prometheus text file, if one is configured. */
+    private static void exportMetrics() {
+        String path = cfg.metricsTextfile;
+        if (path == null || path.isBlank()) return;
+        Metrics.writeTextfile(Paths.get(path));
+    }
+
+    private static long totalSize(List<ZipUtil.SourceFile> files) {
+        long n = 0;
+        for (ZipUtil.SourceFile f : files) n += f.size();
+        return n;
+    }
+
+    /**
+     * Feeds archived bytes into the job status and hands each entry on to {@code entries} and to
+     * {@code plan} if there is one. Files that could not be read become job warnings.
+     */
+    private static ZipUtil.EntryListener progress(IncrementalPlan plan, EntryList entries) {
+        return new ZipUtil.EntryListener() {
+            @Override
+            public void onEntry(ZipUtil.SourceFile f, long crc, long size, long csize) {
+                BackupJob.archived(size);
+                entries.onEntry(f, crc, size, csize);
+                if (plan != null) plan.onEntry(f, crc, size, csize);
+            }
+
+            @Override
+            public void onSkipped(ZipUtil.SourceFile f, IOException reason) {
+                entries.onSkipped(f, reason);
+                BackupJob.warn("Left out " + f.name() + ": " + ZipUtil.reason(reason));
+            }
+        };
     }
 
     private static void saveWorldSync(MinecraftServer server) {
         CompletableFuture<Void> done = new CompletableFuture<>();
         server.execute(() -> {
+            long start = System.nanoTime();
             try {
                 server.getCommandManager().executeWithPrefix(server.getCommandSource(), "save-all flush");
-                System.out.println("[S3Backup] World save flushed");
+                long took = System.nanoTime() - start;
+                SAVE_FLUSH.observeNanos(took);
+                MAIN_THREAD_STALL.observeNanos(took);
+                System.out.println(String.format("[S3Backup] World save flushed, main thread paused %.1f ms", took / 1e6));
             } finally {
                 done.complete(null);
             }
@@ -297,27 +964,97 @@ public final class BackupService {
         try { done.get(120, TimeUnit.SECONDS); } catch (Exception e) { throw new RuntimeException(e); }
     }
 
-    private static void runBackupIO(MinecraftServer server) {
+    private static void runBackupIO(MinecraftServer server, BackupJob job) {
         Path zipPath = null;
+        Snapshot snapshot = null;
+        FanOut fan = null;
         boolean uploaded = false;
         try {
             Path levelRoot = server.getSavePath(WorldSavePath.ROOT).toAbsolutePath();
             Path outDir = Paths.get("config", MODID);
             Files.createDirectories(outDir);
+            BufferPool.configure(uploadMemoryCap());
+            applyUploadLimits();
+            TickHealth.configure(cfg.pauseAboveMspt, cfg.maxPauseSeconds);
+            TickHealth.takePausedMillis();
+            resumePendingUploads(server);
+
+            BackupPlanner.Plan walk = BackupPlanner.plan(levelRoot, cfg.excludeGlobs);
+            List<ZipUtil.SourceFile> files = walk.files();
+            WALK.observeNanos(walk.walkNanos());
+            SOURCE_FILES.set(files.size());
+            SOURCE_BYTES.set(walk.totalBytes());
+            System.out.println(String.format("[S3Backup] Planned %d files, %,d bytes in %.1f ms (%d excluded, %d directories skipped)",
+                    files.size(), walk.totalBytes(), walk.walkNanos() / 1e6, walk.excludedFiles(), walk.prunedDirs()));
+            if (stagedSnapshot()) {
+                job.phase(BackupJob.Phase.SNAPSHOT, walk.totalBytes());
+                snapshot = Snapshot.take(server, files, Snapshot.stagingDir(outDir), cfg.compressionThreads);
+                files = snapshot.files();
+            }
+            if ("chunks".equalsIgnoreCase(cfg.backupBackend)) {
+                if (cfg.extraTargets != null && !cfg.extraTargets.isEmpty()) BackupJob.warn("The chunks backend writes to the main bucket only; extraTargets get no copy");
+                job.phase(BackupJob.Phase.CHUNKING, totalSize(files));
+                runChunkBackup(server, job, files);
+                return;
+            }
 
+            IncrementalPlan plan = null;
+            if (cfg.incrementalBackups) {
+                plan = IncrementalPlan.create(FileIndex.load(FileIndex.path(cfg.zipBaseName)), files, cfg.fullBackupEvery);
+                if (plan.worldUnchanged()) {
+                    System.out.println("[S3Backup] World unchanged since the last backup, skipping");
+                    server.sendMessage(Text.literal("[S3Backup] No changes since the last backup, skipped."));
+                    job.skip("world unchanged");
+                    return;
+                }
+                files = plan.filesToArchive();
+                System.out.println("[S3Backup] " + (plan.isFull() ? "Full" : "Incremental") + " backup: " + files.size() + " files to archive");
+            }
+
+            CompressionPolicy policy = compressionPolicy();
+            ArchiveFormat format = ArchiveFormat.of(cfg.archiveFormat, cfg.compressionThreads, policy, cfg.zstdLevel, cfg.zstdWorkers);
             String ts = LocalDateTime.now().toString().replace(':','-');
-            String zipName = cfg.zipBaseName + "-" + ts + ".zip";
+            String kind = (plan == null) ? "" : plan.isFull() ? "-full" : "-incr";
+            String zipName = cfg.zipBaseName + "-" + ts + kind + format.extension();
+
+            String prefix = (cfg.s3Prefix == null) ? "" : cfg.s3Prefix.replaceAll("^/+", "").replaceAll("/+$","");
+            String key = prefix.isBlank() ? zipName : prefix + "/" + zipName;
+            PartRetry retry = partRetry();
+            fan = new FanOut(new S3Target(S3ClientHolder.client(), cfg.s3Bucket, streaming(retry)), extraTargets(), cfg.targetBufferMB * 1024L * 1024L);
+            if (cfg.shardedArchives) {
+                key = Shards.manifestKey(ArchiveFormat.stripExtension(key));
+                job.key(key);
+                job.phase(BackupJob.Phase.STREAMING, totalSize(files));
+                Shards shards = runShardedBackup(files, key, policy, plan, fan, retry);
+                job.phase(BackupJob.Phase.FINISHING, 0);
+                finishBackup(server, job, key, plan, null, shards, fan, files, 0);
+                return;
+            }
+            job.key(key);
+            EntryList entries = new EntryList();
+
+            if (cfg.streamUpload) {
+                job.phase(BackupJob.Phase.STREAMING, totalSize(files));
+                long size = runStreamingBackup(files, key, format, policy, progress(plan, entries), fan, retry);
+                job.phase(BackupJob.Phase.FINISHING, 0);
+                finishBackup(server, job, key, plan, entries, null, fan, files, size);
+                return;
+            }
+
             zipPath = outDir.resolve(zipName);
 
-            System.out.println("[S3Backup] Zipping from " + levelRoot + " to " + zipPath);
+            System.out.println("[S3Backup] Archiving (" + cfg.archiveFormat + ") from " + levelRoot + " to " + zipPath);
             long zipStart = System.nanoTime();
-            ZipUtil.zipDirectory(levelRoot, zipPath, cfg.excludeGlobs);
+            job.phase(BackupJob.Phase.ARCHIVING, totalSize(files));
+            try (var out = Files.newOutputStream(zipPath)) {
+                format.write(files, out, progress(plan, entries));
+            }
+            policy.logSummary();
             long size = Files.size(zipPath);
             double zipSecs = (System.nanoTime() - zipStart) / 1_000_000_000.0;
-            System.out.println(String.format("[S3Backup] Zip complete: %,d bytes in %.2fs", size, zipSecs));
-
-            String prefix = (cfg.s3Prefix == null) ? "" : cfg.s3Prefix.replaceAll("^/+", "").replaceAll("/+$","");
-            String key = prefix.isBlank() ? zipName : prefix + "/" + zipName;
+            System.out.println(String.format("[S3Backup] Archive complete: %,d bytes in %.2fs", size, zipSecs));
+            ARCHIVE_BYTES.set(size);
+            ARCHIVE_RATIO.set(ratio(size, files));
 
             long thresholdBytes = cfg.multipartThresholdMB * 1024L * 1024L;
             boolean useMultipart = S3Multipart.needsMultipart(zipPath, thresholdBytes);
@@ -325,31 +1062,45 @@ public final class BackupService {
                     " threshold=" + thresholdBytes + " bytes partSize=" + (cfg.multipartPartSizeMB * 1024L * 1024L) +
                     " parallelism=" + cfg.multipartParallelism);
 
+            BackupJob.checkpoint();
+            job.phase(BackupJob.Phase.UPLOADING, size);
             long uploadStart = System.nanoTime();
             if (useMultipart) {
                 long partBytes = cfg.multipartPartSizeMB * 1024L * 1024L;
-                if (cfg.multipartParallelism > 1) {
-                    S3Multipart.uploadParallel(S3ClientHolder.client(), zipPath, cfg.s3Bucket, key, partBytes, cfg.multipartParallelism);
+                if (cfg.asyncUpload) {
+                    S3Multipart.uploadAsync(S3ClientHolder.asyncClient(), zipPath, cfg.s3Bucket, key, partBytes, cfg.multipartParallelism, retry, partChecksum());
+                } else if (cfg.multipartParallelism > 1) {
+                    S3Multipart.uploadParallel(S3ClientHolder.client(), zipPath, cfg.s3Bucket, key, partBytes, cfg.multipartParallelism, retry, partChecksum());
                 } else {
-                    S3Multipart.upload(S3ClientHolder.client(), zipPath, cfg.s3Bucket, key, partBytes);
+                    S3Multipart.upload(S3ClientHolder.client(), zipPath, cfg.s3Bucket, key, partBytes, retry, partChecksum());
                 }
+                if (retry.retriesUsed() > 0) System.out.println("[S3Backup] Part retries used: " + retry.retriesUsed() + "/" + cfg.retryBudget);
             } else {
                 System.out.println("[S3Backup] Single PUT starting: " + key + " (" + size + " bytes)");
                 PutObjectRequest req = PutObjectRequest.builder().bucket(cfg.s3Bucket).key(key).build();
                 S3ClientHolder.client().putObject(req, zipPath);
+                BackupJob.uploaded(size);
             }
             double uploadSecs = (System.nanoTime() - uploadStart) / 1_000_000_000.0;
             double mbps = (size / (1024.0 * 1024.0)) / Math.max(0.001, uploadSecs);
             System.out.println(String.format("[S3Backup] Upload complete: %s in %.2fs (%.2f MiB/s)", key, uploadSecs, mbps));
+            UPLOAD_RATE.set(size / Math.max(0.001, uploadSecs));
 
             uploaded = true;
-            server.sendMessage(Text.literal("[S3Backup] Uploaded to s3://" + cfg.s3Bucket + "/" + key));
-            pruneOldBackupsS3(cfg.s3Bucket, cfg.s3Prefix, cfg.zipBaseName, cfg.keepLastNS3);
+            // The archive is on disk already, so the extra targets copy that instead of the world.
+            fan.copy(key, zipPath);
+            job.phase(BackupJob.Phase.FINISHING, 0);
+            finishBackup(server, job, key, plan, entries, null, fan, files, size);
 
         } catch (Exception e) {
-            System.err.println("[S3Backup] Backup failed: " + e.getMessage());
+            System.err.println("[S3Backup] Backup " + (job.cancelled() ? "cancelled" : "failed") + ": " + e.getMessage());
+            if (fan != null) fan.abort();
             throw new RuntimeException(e);
         } finally {
+            if (fan != null) fan.close();
+            if (snapshot != null) snapshot.close();
+            long paused = TickHealth.takePausedMillis();
+            if (paused > 0) System.out.println(String.format("[S3Backup] Backup I/O paused for %.1fs in total while the server lagged", paused / 1000.0));
             if (uploaded && zipPath != null && cfg.deleteLocalAfterUpload && !cfg.keepLatestLocal) {
                 System.out.println("[S3Backup] Deleting local zip: " + zipPath);
                 deleteWithRetry(zipPath, 12, 500);
@@ -359,6 +1110,341 @@ public final class BackupService {
         }
     }
 
+    private static boolean stagedSnapshot() {
+        return !"live".equalsIgnoreCase(cfg.snapshotMode);
+    }
+
+    private static S3ClientHolder.Settings clientSettings() {
+        return new S3ClientHolder.Settings(cfg.awsRegion, cfg.s3Endpoint, cfg.s3PathStyle, cfg.httpClient,
+                cfg.maxConnections, cfg.connectionIdleSeconds, cfg.socketBufferKB);
+    }
+
+    private static void applyUploadLimits() {
+        Bandwidth.configure(cfg.uploadLimitMBps, cfg.uploadLimitSchedule);
+        AdaptiveConcurrency.configure(cfg.adaptiveConcurrency);
+    }
+
+    private static long uploadMemoryCap() {
+        return Math.max(8, cfg.uploadMemoryCapMB) * 1024L * 1024L;
+    }
+
+    /** A fresh retry budget; one per backup (or per resume pass). */
+    private static PartRetry partRetry() {
+        return new PartRetry(cfg.partRetries, cfg.retryBudget);
+    }
+
+    private static PartChecksum partChecksum() {
+        try {
+            return PartChecksum.parse(cfg.partChecksum);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[S3Backup] Unknown partChecksum '" + cfg.partChecksum + "', using crc32c");
+            return PartChecksum.CRC32C;
+        }
+    }
+
+    private static S3Target.Streaming streaming(PartRetry retry) {
+        return new S3Target.Streaming(cfg.streamPartSizeMB * 1024L * 1024L, cfg.multipartParallelism, cfg.streamBufferedParts, retry, partChecksum());
+    }
+
+    /** {@code s3://bucket[?options]} or a folder, optionally written {@code file:<folder>}. */
+    private static BackupTarget parseTarget(String spec, PartRetry retry) {
+        String s = spec.trim();
+        if (s.startsWith("s3://")) return S3Target.parse(s, clientSettings(), streaming(retry));
+        if (s.startsWith("file:")) s = s.substring("file:".length());
+        if (s.isBlank()) throw new IllegalArgumentException("empty target");
+        return new LocalTarget(Paths.get(s));
+    }
+
+    /** The extra targets, each with its own retry budget; one that cannot be set up is left out with a warning. */
+    private static List<BackupTarget> extraTargets() {
+        List<BackupTarget> out = new ArrayList<>();
+        for (String spec : cfg.extraTargets == null ? List.<String>of() : cfg.extraTargets) {
+            try {
+                out.add(parseTarget(spec, partRetry()));
+            } catch (RuntimeException e) {
+                BackupJob.warn("Skipping extra target " + spec + ": " + e.getMessage());
+            }
+        }
+        return out;
+    }
+
+    private static CompressionPolicy compressionPolicy() {
+        return CompressionPolicy.parse(cfg.compressionRules, cfg.compressionDefault, cfg.autoStoreRatio);
+    }
+
+    /** Archives straight into a multipart upload, and the extra targets; nothing is written to local disk. Returns the archive size. */
+    private static long runStreamingBackup(List<ZipUtil.SourceFile> files, String key, ArchiveFormat format, CompressionPolicy policy, ZipUtil.EntryListener listener,
+                                           FanOut fan, PartRetry retry) throws IOException {
+        System.out.println("[S3Backup] Streaming " + cfg.archiveFormat + " of " + files.size() + " files to s3://" + cfg.s3Bucket + "/" + key);
+        long start = System.nanoTime();
+        long size = fan.write(key, out -> format.write(files, out, listener));
+        if (retry.retriesUsed() > 0) System.out.println("[S3Backup] Part retries used: " + retry.retriesUsed() + "/" + cfg.retryBudget);
+        System.out.println(String.format("[S3Backup] Upload buffers peaked at %,d of %,d bytes", BufferPool.shared().peakBytes(), BufferPool.shared().capBytes()));
+        policy.logSummary();
+        double secs = (System.nanoTime() - start) / 1_000_000_000.0;
+        double mbps = (size / (1024.0 * 1024.0)) / Math.max(0.001, secs);
+        System.out.println(String.format("[S3Backup] Archive + upload complete: %,d bytes in %.2fs (%.2f MiB/s)", size, secs, mbps));
+        ARCHIVE_BYTES.set(size);
+        ARCHIVE_RATIO.set(ratio(size, files));
+        UPLOAD_RATE.set(size / Math.max(0.001, secs));
+        return size;
+    }
+
+    /**
+     * Streams one archive per {@link Shards shard}, {@code shardParallelism} at a time, biggest
+     * first, and then the manifest that makes them one backup. The compression threads are split
+     * between the shards in flight, so the CPU is not oversubscribed. The shards in flight also
+     * share the upload buffer pool, so there are never more of them than it holds two parts for,
+     * counting each extra target as an upload of its own. If one shard fails, the others are
+     * cancelled and the ones already uploaded are deleted again.
+     */
+    private static Shards runShardedBackup(List<ZipUtil.SourceFile> files, String manifestKey, CompressionPolicy policy, IncrementalPlan plan,
+                                           FanOut fan, PartRetry retry) throws IOException {
+        Map<String, List<ZipUtil.SourceFile>> split = Shards.split(files);
+        long partBytes = cfg.streamPartSizeMB * 1024L * 1024L;
+        int concurrent = (int) Math.max(1, Math.min(Math.min(cfg.shardParallelism, split.size()), uploadMemoryCap() / (2 * partBytes * fan.width())));
+        ArchiveFormat format = ArchiveFormat.of(cfg.archiveFormat, Math.max(1, cfg.compressionThreads / concurrent), policy, cfg.zstdLevel,
+                cfg.zstdWorkers > 0 ? Math.max(1, cfg.zstdWorkers / concurrent) : 0);
+        System.out.println("[S3Backup] Streaming " + split.size() + " shards (" + String.join(", ", split.keySet()) + "), " + concurrent
+                + " at a time, to s3://" + cfg.s3Bucket + "/" + manifestKey);
+
+        long start = System.nanoTime();
+        Shards manifest = new Shards(BackupCatalog.idOf(manifestKey), cfg.archiveFormat);
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        Workers.Scope pool = Workers.streams(concurrent);
+        try {
+            List<Future<Shards.Shard>> pending = new ArrayList<>();
+            for (Map.Entry<String, List<ZipUtil.SourceFile>> shard : split.entrySet()) {
+                String key = Shards.archiveKey(manifestKey, shard.getKey(), format.extension());
+                pending.add(pool.fork(() -> {
+                    EntryList entries = new EntryList();
+                    long size = fan.write(key, out -> format.write(shard.getValue(), out, progress(plan, entries)));
+                    written.add(key);
+                    storeEntryList(entries, key, fan);
+                    String etag = null;
+                    try {
+                        etag = S3ClientHolder.client().headObject(HeadObjectRequest.builder().bucket(cfg.s3Bucket).key(key).build()).eTag();
+                    } catch (RuntimeException e) {
+                        System.err.println("[S3Backup] Could not read back " + key + ": " + e.getMessage());
+                    }
+                    System.out.println(String.format("[S3Backup] Shard %s: %d files, %,d bytes", shard.getKey(), entries.entries.size(), size));
+                    return new Shards.Shard(shard.getKey(), key, entries.entries.size(), totalSize(shard.getValue()), size, etag);
+                }));
+            }
+            for (Future<Shards.Shard> f : pending) manifest.shards.add(f.get());
+            manifest.upload(S3ClientHolder.client(), cfg.s3Bucket, manifestKey);
+            fan.put(manifestKey, manifest.json().getBytes(StandardCharsets.UTF_8), "application/json");
+        } catch (Exception e) {
+            // Let the other shards abort their uploads before cleaning up after them.
+            pool.cancelAndAwait(60, TimeUnit.SECONDS);
+            deleteShards(written);
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof IOException io) throw io;
+            if (cause instanceof InterruptedException) Thread.currentThread().interrupt();
+            throw new IOException("Sharded backup failed: " + cause.getMessage(), cause);
+        } finally {
+            pool.close();
+        }
+
+        if (retry.retriesUsed() > 0) System.out.println("[S3Backup] Part retries used: " + retry.retriesUsed() + "/" + cfg.retryBudget);
+        System.out.println(String.format("[S3Backup] Upload buffers peaked at %,d of %,d bytes", BufferPool.shared().peakBytes(), BufferPool.shared().capBytes()));
+        policy.logSummary();
+        long size = manifest.shards.stream().mapToLong(Shards.Shard::sizeBytes).sum();
+        double secs = (System.nanoTime() - start) / 1_000_000_000.0;
+        double mbps = (size / (1024.0 * 1024.0)) / Math.max(0.001, secs);
+        System.out.println(String.format("[S3Backup] Sharded archive + upload complete: %,d bytes in %d shards in %.2fs (%.2f MiB/s)", size, manifest.shards.size(), secs, mbps));
+        ARCHIVE_BYTES.set(size);
+        ARCHIVE_RATIO.set(ratio(size, files));
+        UPLOAD_RATE.set(size / Math.max(0.001, secs));
+        return manifest;
+    }
+
+    /** Best-effort removal of the shards of a backup that did not complete; without a manifest nothing refers to them. */
+    private static void deleteShards(List<String> keys) {
+        for (String key : List.copyOf(keys)) {
+            for (String k : List.of(key, EntryList.keyFor(key))) {
+                try {
+                    S3ClientHolder.client().deleteObject(DeleteObjectRequest.builder().bucket(cfg.s3Bucket).key(k).build());
+                } catch (RuntimeException e) {
+                    System.err.println("[S3Backup] Could not delete " + k + " of the failed backup: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Deduplicating backend: uploads only chunks the bucket does not have yet. The snapshot is the
+     * catalog entry; its size counts the snapshot and the chunks this run added.
+     */
+    private static void runChunkBackup(MinecraftServer server, BackupJob job, List<ZipUtil.SourceFile> files) throws IOException {
+        String prefix = (cfg.s3Prefix == null) ? "" : cfg.s3Prefix.replaceAll("^/+", "").replaceAll("/+$","");
+        String keyPrefix = prefix.isBlank() ? "" : prefix + "/";
+        String name = cfg.zipBaseName + "-" + LocalDateTime.now().toString().replace(':','-');
+
+        long start = System.nanoTime();
+        ChunkStore.Result r;
+        try (ChunkStore store = new ChunkStore(S3ClientHolder.client(), cfg.s3Bucket, keyPrefix, ChunkStore.indexPath(cfg.zipBaseName, cfg.s3Endpoint, cfg.s3Bucket, keyPrefix),
+                cfg.chunkPackSizeMB * 1024L * 1024L, cfg.multipartParallelism)) {
+            System.out.println("[S3Backup] Chunk backup of " + files.size() + " files (" + store.knownChunks() + " chunks already stored)");
+            r = store.backup(files, name, cfg.compressionThreads);
+            double secs = (System.nanoTime() - start) / 1_000_000_000.0;
+            System.out.println(String.format("[S3Backup] Chunk backup complete: %,d bytes in %d files, %,d new chunks (%,d bytes uploaded, %.1f%% of source) in %.2fs",
+                    r.rawBytes(), r.files(), r.newChunks(), r.newBytes(), r.rawBytes() == 0 ? 0.0 : 100.0 * r.newBytes() / r.rawBytes(), secs));
+            server.sendMessage(Text.literal("[S3Backup] Snapshot uploaded to s3://" + cfg.s3Bucket + "/" + r.snapshotKey()));
+        }
+        // After the store is closed, so the sweep that follows the pruning is not locked out.
+        BackupCatalog.Entry entry = catalogEntry(server, r.snapshotKey(), 0);
+        entry.sizeBytes += r.newBytes();
+        recordFinished(server, job, entry, files);
+    }
+
+    /**
+     * Runs once the archive is safely in S3: stores the entry list next to it, records incremental
+     * state and the catalog entry, then prunes. A sharded backup has stored its entry lists already
+     * and passes {@code shards} instead. The extra targets get the same objects, and the catalog
+     * notes which of them ended up with a full copy.
+     */
+    private static void finishBackup(MinecraftServer server, BackupJob job, String key, IncrementalPlan plan, EntryList entries,
+                                     Shards shards, FanOut fan, List<ZipUtil.SourceFile> files, long size) throws IOException {
+        server.sendMessage(Text.literal("[S3Backup] Uploaded to s3://" + cfg.s3Bucket + "/" + key));
+        if (entries != null) storeEntryList(entries, key, fan);
+        if (plan != null) {
+            String manifestKey = IncrementalPlan.manifestKey(key);
+            String json = shards == null ? plan.commit(key) : plan.commit(key, shards::keyOf);
+            S3ClientHolder.client().putObject(PutObjectRequest.builder().bucket(cfg.s3Bucket).key(manifestKey).contentType("application/json").build(),
+                    RequestBody.fromString(json, StandardCharsets.UTF_8));
+            fan.put(manifestKey, json.getBytes(StandardCharsets.UTF_8), "application/json");
+            plan.saveIndex(FileIndex.path(cfg.zipBaseName));
+            System.out.println("[S3Backup] Manifest uploaded: " + manifestKey);
+        }
+        BackupCatalog.Entry entry = shards == null ? catalogEntry(server, key, size) : catalogEntry(server, key, shards);
+        if (fan.hasExtras()) {
+            entry.copies = fan.finish();
+            server.sendMessage(Text.literal("[S3Backup] Copied to " + entry.copies.size() + " of " + fan.extraCount() + " extra target(s)"
+                    + (entry.copies.isEmpty() ? "" : ": " + String.join(", ", entry.copies))));
+        }
+        recordFinished(server, job, entry, files);
+    }
+
+    /** Fills in what the job knows about a finished backup, adds it to the catalog and prunes. */
+    private static void recordFinished(MinecraftServer server, BackupJob job, BackupCatalog.Entry entry, List<ZipUtil.SourceFile> files) {
+        entry.fileCount = files.size();
+        entry.sourceBytes = totalSize(files);
+        entry.durationMillis = System.currentTimeMillis() - job.startedAt();
+        entry.warnings = job.warningCount();
+        record(server, entry);
+        if (entry.warnings > 0) {
+            List<String> w = job.warnings();
+            server.sendMessage(Text.literal("[S3Backup] Backup finished with " + entry.warnings + " warning(s), e.g. " + w.get(0)
+                    + ". See /s3backup history."));
+        }
+        prune(server);
+    }
+
+    /** The entry list goes everywhere the archive went; the archive is fine without it, so a failure is only a warning. */
+    private static void storeEntryList(EntryList entries, String key, FanOut fan) {
+        try {
+            entries.upload(S3ClientHolder.client(), cfg.s3Bucket, key);
+        } catch (IOException | RuntimeException e) {
+            // It just cannot be checked against what was written.
+            BackupJob.warn("Could not upload the entry list of " + key + ": " + e.getMessage());
+        }
+        if (!fan.hasExtras()) return;
+        try {
+            fan.put(EntryList.keyFor(key), entries.gzipped(key), "application/json");
+        } catch (IOException e) {
+            BackupJob.warn("Could not copy the entry list of " + key + ": " + e.getMessage());
+        }
+    }
+
+    /** What S3 says about the finished archive, plus the world it came from. */
+    private static BackupCatalog.Entry catalogEntry(MinecraftServer server, String key, long size) {
+        BackupCatalog.Entry e = new BackupCatalog.Entry(key, System.currentTimeMillis());
+        e.sizeBytes = size;
+        try {
+            HeadObjectResponse head = S3ClientHolder.client().headObject(HeadObjectRequest.builder()
+                    .bucket(cfg.s3Bucket).key(key).checksumMode(ChecksumMode.ENABLED).build());
+            e.sizeBytes = head.contentLength();
+            e.etag = head.eTag();
+            if (head.checksumCRC32C() != null) e.checksum = "CRC32C:" + head.checksumCRC32C();
+            else if (head.checksumSHA256() != null) e.checksum = "SHA256:" + head.checksumSHA256();
+            else if (head.checksumCRC32() != null) e.checksum = "CRC32:" + head.checksumCRC32();
+        } catch (RuntimeException ex) {
+            System.err.println("[S3Backup] Could not read back " + key + " for the catalog: " + ex.getMessage());
+        }
+        addWorld(server, e);
+        return e;
+    }
+
+    /** A sharded backup: the manifest is the entry, the size is that of all shards; their ETags live in the manifest. */
+    private static BackupCatalog.Entry catalogEntry(MinecraftServer server, String key, Shards shards) {
+        BackupCatalog.Entry e = new BackupCatalog.Entry(key, System.currentTimeMillis());
+        e.sizeBytes = shards.shards.stream().mapToLong(Shards.Shard::sizeBytes).sum();
+        e.shards = new ArrayList<>(shards.keys());
+        addWorld(server, e);
+        return e;
+    }
+
+    private static void addWorld(MinecraftServer server, BackupCatalog.Entry e) {
+        try {
+            e.worldSeed = server.getOverworld().getSeed();
+            e.gameVersion = server.getVersion();
+        } catch (RuntimeException ignored) {}
+    }
+
+    /**
+     * Finishes multipart uploads left behind by a crash or a failed run, using their journals.
+     * Full and incremental archives are aborted instead: their manifest and the file index update
+     * died with the run, so they could not be restored, and a stray {@code -full} in the catalog
+     * would cut the chain retention keeps for the incrementals that follow. The next incremental
+     * run simply archives those files again.
+     */
+    private static void resumePendingUploads(MinecraftServer server) {
+        PartRetry retry = partRetry();
+        for (UploadJournal j : UploadJournal.loadAll()) {
+            try {
+                if (IncrementalPlan.isChainKey(j.key)) {
+                    S3Multipart.abandon(S3ClientHolder.client(), j, "its manifest was never written");
+                    if (!j.isStreaming()) deleteWithRetry(Path.of(j.file), 12, 500);
+                    server.sendMessage(Text.literal("[S3Backup] Dropped the unfinished upload of " + j.key + "; its files go into the next backup."));
+                    continue;
+                }
+                if (!S3Multipart.resume(S3ClientHolder.client(), j, cfg.multipartParallelism, retry)) continue;
+                server.sendMessage(Text.literal("[S3Backup] Resumed upload finished: s3://" + j.bucket + "/" + j.key));
+                if (j.bucket.equals(cfg.s3Bucket)) {
+                    record(server, catalogEntry(server, j.key, j.fileSize));
+                    prune(server);
+                }
+                if (cfg.deleteLocalAfterUpload && !cfg.keepLatestLocal) deleteWithRetry(Path.of(j.file), 12, 500);
+            } catch (Exception e) {
+                System.err.println("[S3Backup] Could not resume upload of " + j.key + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Aborts multipart uploads under our prefix that nobody is going to finish. */
+    private static void sweepStaleUploads() {
+        if (cfg.s3Bucket == null || cfg.s3Bucket.isBlank() || cfg.staleUploadHours <= 0) return;
+        try {
+            Set<String> journaled = new HashSet<>();
+            for (UploadJournal j : UploadJournal.loadAll()) journaled.add(j.uploadId);
+            String prefix = (cfg.s3Prefix == null) ? "" : cfg.s3Prefix.replaceAll("^/+", "").replaceAll("/+$","");
+            int n = S3Multipart.abortStale(S3ClientHolder.client(), cfg.s3Bucket, prefix.isBlank() ? "" : prefix + "/",
+                    Duration.ofHours(cfg.staleUploadHours), journaled);
+            if (n > 0) System.out.println("[S3Backup] Aborted " + n + " stale multipart upload(s)");
+            for (BackupTarget t : extraTargets()) {
+                try (t) {
+                    int m = t.abortStale(prefix.isBlank() ? "" : prefix + "/", Duration.ofHours(cfg.staleUploadHours), journaled);
+                    if (m > 0) System.out.println("[S3Backup] Aborted " + m + " stale multipart upload(s) in " + t.describe());
+                } catch (RuntimeException e) {
+                    System.err.println("[S3Backup] Stale upload sweep of " + t.describe() + " failed: " + e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("[S3Backup] Stale upload sweep failed: " + e.getMessage());
+        }
+    }
+
     private static void deleteWithRetry(Path path, int attempts, long sleepMillis) {
         for (int i = 0; i < attempts; i++) {
             try {
@@ -374,37 +1460,216 @@ public final class BackupService {
         System.err.println("[S3Backup] Failed to delete local zip, marked deleteOnExit: " + path);
     }
 
-    private static void pruneOldBackupsS3(String bucket, String prefix, String zipBaseName, int keepN) {
-        if (keepN <= 0) return;
+    private static BackupCatalog catalog() {
+        return BackupCatalog.open(S3ClientHolder.client(), cfg.s3Bucket, keyPrefix(), cfg.zipBaseName);
+    }
+
+    /** Adds a finished backup to the catalog. The backup itself is safe either way, so a failure here is only reported. */
+    private static void record(MinecraftServer server, BackupCatalog.Entry entry) {
         try {
-            var s3 = S3ClientHolder.client();
-            String normPrefix = (prefix == null) ? "" : prefix.replaceAll("^/+", "").replaceAll("/+$", "");
-            String keyPrefix = normPrefix.isBlank() ? "" : (normPrefix + "/");
-
-            List<S3Object> all = new ArrayList<>();
-            String token = null;
-            do {
-                var req = ListObjectsV2Request.builder().bucket(bucket).prefix(keyPrefix).continuationToken(token).build();
-                ListObjectsV2Response resp = s3.listObjectsV2(req);
-                for (S3Object o : resp.contents()) {
-                    String key = o.key();
-                    if (key.endsWith(".zip")) {
-                        all.add(o);
+            catalog().add(entry);
+        } catch (RuntimeException e) {
+            System.err.println("[S3Backup] Could not add " + entry.key + " to the backup catalog: " + e.getMessage());
+            server.sendMessage(Text.literal("[S3Backup] Backup not added to the catalog (" + e.getMessage() + "); /s3backup catalog rebuild picks it up."));
+        }
+    }
+
+    /**
+     * Applies retention on the catalog thread, so a slow or failing delete never holds up the backup
+     * that triggered it. While the chunk store is in use, or the catalog still lists snapshots from
+     * it, the packs they no longer need are swept afterwards.
+     */
+    private static void prune(MinecraftServer server) {
+        Retention retention = new Retention(cfg.keepLastNS3, cfg.keepHourly, cfg.keepDaily, cfg.keepWeekly, cfg.keepMonthly);
+        CATALOG.execute(() -> {
+            // Asked before pruning: the last snapshot going still leaves its packs to sweep.
+            boolean sweep = usesChunkStore();
+            if (retention.keepsEverything()) {
+                if (sweep) sweepChunks(server);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                Retention.Result r = retention.prune(S3ClientHolder.client(), catalog());
+                PRUNED.add(r.deleted());
+                if (r.failed() > 0) {
+                    PRUNE_ERRORS.add(r.failed());
+                    server.sendMessage(Text.literal("[S3Backup] Could not delete " + r.failed() + " old backup(s), will retry after the next backup. First: " + r.firstError()));
+                }
+                // Each extra target keeps the same number of backups, going by its own listing.
+                for (BackupTarget t : extraTargets()) {
+                    try (t) {
+                        Retention.Result tr = retention.prune(t, keyPrefix(), cfg.zipBaseName);
+                        PRUNED.add(tr.deleted());
+                        if (tr.failed() > 0) {
+                            PRUNE_ERRORS.add(tr.failed());
+                            server.sendMessage(Text.literal("[S3Backup] Could not delete " + tr.failed() + " old backup(s) from " + t.describe() + ". First: " + tr.firstError()));
+                        }
                     }
                 }
-                token = resp.isTruncated() ? resp.nextContinuationToken() : null;
-            } while (token != null);
+            } catch (RuntimeException e) {
+                PRUNE_ERRORS.inc();
+                System.err.println("[S3Backup] Pruning old backups failed: " + e.getMessage());
+                server.sendMessage(Text.literal("[S3Backup] Pruning old backups failed: " + e.getMessage()));
+            } finally {
+                PRUNE.observeNanos(System.nanoTime() - start);
+            }
+            if (sweep) sweepChunks(server);
+        });
+    }
 
-            all.sort((a, b) -> b.lastModified().compareTo(a.lastModified()));
-            if (all.size() > keepN) {
-                for (int i = keepN; i < all.size(); i++) {
-                    String delKey = all.get(i).key();
-                    try {
-                        s3.deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(delKey).build());
-                        System.out.println("[S3Backup] Deleted old S3 backup: " + delKey);
-                    } catch (Exception ignored) {}
+    /** Whether the chunks backend is on or the catalog still lists snapshots it wrote. */
+    private static boolean usesChunkStore() {
+        if ("chunks".equalsIgnoreCase(cfg.backupBackend)) return true;
+        try {
+            return catalog().entries().stream().anyMatch(e -> ChunkStore.isSnapshotKey(e.key));
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /** Deletes the chunk packs no snapshot uses any more. Skipped while a chunk backup is running; the next prune catches up. */
+    private static void sweepChunks(MinecraftServer server) {
+        try {
+            ChunkStore.SweepResult r = ChunkStore.sweep(S3ClientHolder.client(), cfg.s3Bucket, keyPrefix(),
+                    ChunkStore.indexPath(cfg.zipBaseName, cfg.s3Endpoint, cfg.s3Bucket, keyPrefix()));
+            if (r == null) {
+                System.out.println("[S3Backup] A chunk backup is running, the chunk store sweep waits for the next prune");
+                return;
+            }
+            if (r.packsDeleted() > 0) {
+                System.out.println(String.format("[S3Backup] Deleted %d chunk pack(s) no snapshot uses, %,d bytes; %d snapshot(s) left",
+                        r.packsDeleted(), r.bytesDeleted(), r.snapshots()));
+            }
+            if (r.deadBytes() > 0) System.out.println(String.format("[S3Backup] %,d bytes of unused chunks remain in packs that are still in use", r.deadBytes()));
+            if (r.failed() > 0) {
+                PRUNE_ERRORS.add(r.failed());
+                server.sendMessage(Text.literal("[S3Backup] Could not delete " + r.failed() + " unused chunk store object(s), will retry after the next backup."));
+            }
+        } catch (IOException | RuntimeException e) {
+            PRUNE_ERRORS.inc();
+            System.err.println("[S3Backup] Chunk store sweep failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Downloads a catalogued backup into the staging folder next to the world and arranges for it
+     * to replace the world on the next start; with {@code only}, just the matching files, which
+     * are then copied over the world's. One restore at a time.
+     */
+    private static void restore(ServerCommandSource src, String id, Selection only) {
+        if (!restoring.compareAndSet(false, true)) {
+            src.sendError(Text.literal("§c[S3Backup] A restore is already running."));
+            return;
+        }
+        MinecraftServer server = src.getServer();
+        Path world = server.getSavePath(WorldSavePath.ROOT).toAbsolutePath().normalize();
+        src.sendFeedback(() -> Text.literal("§e[S3Backup] Restoring " + (only == null ? "" : only + " from ") + id + " into " + Restore.stagingDir(world).getFileName() + "..."), true);
+        RESTORE.execute(() -> {
+            try {
+                BackupCatalog.Entry entry = catalog().entries().stream()
+                        .filter(e -> e.id.equals(id) || e.key.equals(id))
+                        .findFirst().orElse(null);
+                if (entry == null) {
+                    server.execute(() -> src.sendError(Text.literal("§c[S3Backup] No backup " + id + " in the catalog. See /s3backup list.")));
+                    return;
+                }
+                BufferPool.configure(uploadMemoryCap());
+                Restore restore = new Restore(S3ClientHolder.client(), cfg.s3Bucket, cfg.restoreChunkMB * 1024 * 1024, cfg.restoreParallelism,
+                        partRetry(), line -> System.out.println("[S3Backup] " + line));
+                Path staging = Restore.stagingDir(world);
+                Restore.Result r = only == null ? restore.toStaging(entry.key, staging) : restore.selective(entry.key, only, staging);
+                Restore.schedule(world, staging, entry.key, only != null);
+                String msg = "§a[S3Backup] Restored " + r.files() + " files (" + formatBytes(r.bytes()) + ") of " + entry.id + " in "
+                        + formatDuration(r.millis() / 1000) + ", " + formatBytes(r.downloaded()) + " downloaded"
+                        + (r.objectChecksummed() ? ", checksums verified" : ", CRCs verified")
+                        + (only == null ? ". It replaces the world" : ". The files replace the world's") + " the next time the server starts.";
+                server.execute(() -> src.sendFeedback(() -> Text.literal(msg), true));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[S3Backup] Restore of " + id + " failed: " + e.getMessage());
+                server.execute(() -> src.sendError(Text.literal("§c[S3Backup] Restore of " + id + " failed: " + e.getMessage())));
+            } finally {
+                restoring.set(false);
+            }
+        });
+    }
+
+    /** Verifies one backup on the catalog thread: {@code id}, or the one most in need of it. */
+    private static void verify(ServerCommandSource src, String id) {
+        src.sendFeedback(() -> Text.literal("§e[S3Backup] Verifying " + (id == null ? "the backup checked longest ago" : id) + "..."), false);
+        CATALOG.execute(() -> {
+            try {
+                List<BackupCatalog.Entry> all = catalog().entries();
+                BackupCatalog.Entry entry = id == null ? Verifier.next(all)
+                        : all.stream().filter(e -> e.id.equals(id) || e.key.equals(id)).findFirst().orElse(null);
+                if (entry == null) {
+                    src.getServer().execute(() -> src.sendError(Text.literal("§c[S3Backup] " + (id == null ? "No backups to verify." : "No backup " + id + " in the catalog."))));
+                    return;
                 }
+                Verifier.Result r = runVerify(entry);
+                src.getServer().execute(() -> {
+                    if (r.ok()) src.sendFeedback(() -> Text.literal("§a[S3Backup] Verified " + Verifier.describe(r)), false);
+                    else src.sendError(Text.literal("§c[S3Backup] Verification failed for " + Verifier.describe(r)));
+                });
+            } catch (RuntimeException e) {
+                src.getServer().execute(() -> src.sendError(Text.literal("§c[S3Backup] Verification failed: " + e.getMessage())));
             }
-        } catch (Exception ignored) {}
+        });
+    }
+
+    /**
+     * Called hourly on the catalog thread; verifies the next backup once {@code verifyIntervalHours}
+     * have passed since the last verification, so the catalog is worked through over time.
+     */
+    private static void verifyDue(MinecraftServer server) {
+        if (cfg.verifyIntervalHours <= 0 || cfg.s3Bucket == null || cfg.s3Bucket.isBlank()) return;
+        try {
+            List<BackupCatalog.Entry> all = catalog().entries();
+            long last = all.stream().mapToLong(e -> e.verifiedAt).max().orElse(0);
+            if (System.currentTimeMillis() - last < cfg.verifyIntervalHours * 3_600_000L) return;
+            BackupCatalog.Entry entry = Verifier.next(all);
+            if (entry == null) return;
+            Verifier.Result r = runVerify(entry);
+            if (!r.ok()) server.sendMessage(Text.literal("[S3Backup] Backup verification failed for " + Verifier.describe(r)));
+        } catch (RuntimeException e) {
+            System.err.println("[S3Backup] Scheduled verification failed: " + e.getMessage());
+        }
+    }
+
+    private static Verifier.Result runVerify(BackupCatalog.Entry entry) {
+        Verifier.Result r = new Verifier(S3ClientHolder.client(), cfg.s3Bucket, cfg.verifySamples, partRetry(), new java.util.Random()).verify(entry);
+        if (r.ok()) System.out.println("[S3Backup] Verified " + Verifier.describe(r));
+        else System.err.println("[S3Backup] Verification failed for " + Verifier.describe(r));
+        catalog().verified(entry.key, System.currentTimeMillis(), r.ok() ? null : String.join("; ", r.problems()));
+        return r;
+    }
+
+    /** The newest {@code max} catalogued backups, one line each. */
+    private static String backupList(int max) {
+        List<BackupCatalog.Entry> all = catalog().entries();
+        if (all.isEmpty()) return "§b[S3Backup] §fNo backups in s3://" + cfg.s3Bucket + "/" + keyPrefix();
+        long total = 0;
+        for (BackupCatalog.Entry e : all) total += e.sizeBytes;
+        StringBuilder sb = new StringBuilder("§b[S3Backup] " + all.size() + " backups, " + formatBytes(total) + " in total"
+                + (all.size() > max ? ", newest " + max + ":" : ":"));
+        var fmt = java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+        for (BackupCatalog.Entry e : all.subList(0, Math.min(max, all.size()))) {
+            String when = LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(e.createdAt), java.time.ZoneId.systemDefault()).format(fmt);
+            sb.append("\n§f").append(when).append(" §7").append(e.id).append("§f ").append(formatBytes(e.sizeBytes));
+            if (e.fileCount > 0) sb.append(", ").append(e.fileCount).append(" files");
+            if (e.shards != null) sb.append(" in ").append(e.shards.size()).append(" shards");
+            if (e.copies != null && !e.copies.isEmpty()) sb.append(", +").append(e.copies.size()).append(e.copies.size() == 1 ? " copy" : " copies");
+            if (e.durationMillis > 0) sb.append(", took ").append(formatDuration(e.durationMillis / 1000));
+            if (e.warnings > 0) sb.append(", §e").append(e.warnings).append(" warning(s)§f");
+            if (e.verifyProblem != null) sb.append(", §cfailed verification§f");
+            else if (e.verifiedAt > 0) sb.append(", §averified§f");
+        }
+        return sb.toString();
+    }
+
+    /** {@code s3Prefix} without leading or trailing slashes, plus one trailing slash; empty for the bucket root. */
+    private static String keyPrefix() {
+        String prefix = (cfg.s3Prefix == null) ? "" : cfg.s3Prefix.replaceAll("^/+", "").replaceAll("/+$", "");
+        return prefix.isBlank() ? "" : prefix + "/";
     }
 }
@@ -0,0 +1,44 @@
+package freesmelly.s3backup;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Somewhere a backup is stored: the main bucket, a second bucket, or a local folder such as a NAS
+ * mount. Every target stores an object under the same key as the main bucket does, so each copy
+ * holds the same manifests and entry lists and can be restored on its own.
+ */
+interface BackupTarget extends AutoCloseable {
+    /** An object the target holds; {@code etag} is null where there is none. */
+    record Listed(String key, long size, long modified, String etag) {}
+
+    /** Where this target is, for logs and chat, e.g. {@code s3://bucket} or {@code /mnt/nas/backups}. */
+    String describe();
+
+    /**
+     * Stores what {@code body} writes under {@code key}, as it is written. Nothing shows up under
+     * {@code key} unless the whole body arrived.
+     *
+     * @return bytes stored
+     */
+    long write(String key, S3Multipart.StreamWriter body) throws IOException;
+
+    /** Stores a small object, such as a manifest or an entry list, in one go. */
+    void put(String key, byte[] data, String contentType) throws IOException;
+
+    /** Objects whose keys start with {@code keyPrefix}, which is empty or ends with a slash. */
+    List<Listed> list(String keyPrefix) throws IOException;
+
+    /** Deletes {@code keys}; keys that are already gone are not an error. */
+    void delete(List<String> keys) throws IOException;
+
+    /** Cleans up unfinished uploads older than {@code maxAge}, except {@code keepUploadIds}; returns how many. */
+    default int abortStale(String keyPrefix, Duration maxAge, Set<String> keepUploadIds) {
+        return 0;
+    }
+
+    @Override
+    default void close() {}
+}
@@ -0,0 +1,223 @@
+package freesmelly.s3backup;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.sync.RequestBody;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by every upload the mod makes, so parallel parts together stay under the
+ * configured rate and leave the rest of the uplink to players. The rate can differ by time of day:
+ * schedule entries look like {@code 01:00-07:00=0} (MB/s, {@code 0} = unlimited) and the first
+ * entry covering the current local time wins; outside all of them the base rate applies.
+ */
+final class Bandwidth {
+    private static volatile Bandwidth shared = new Bandwidth(0, List.of());
+
+    /** Unused rate the bucket may bank, in seconds' worth, so an idle gap is not followed by a long burst. */
+    private static final double MAX_BURST_SECONDS = 0.25;
+
+    private final double baseBytesPerSec;
+    private final List<Window> schedule;
+    private double tokens;
+    private long lastRefillNs = System.nanoTime();
+
+    private static final ThreadLocal<long[]> WAITED = ThreadLocal.withInitial(() -> new long[1]);
+
+    private record Window(int fromMinute, int toMinute, double bytesPerSec) {
+        /** Windows may wrap past midnight; equal ends mean the whole day. */
+        boolean covers(int minute) {
+            if (fromMinute == toMinute) return true;
+            return fromMinute < toMinute ? minute >= fromMinute && minute < toMinute
+                    : minute >= fromMinute || minute < toMinute;
+        }
+    }
+
+    Bandwidth(double baseMBps, List<String> schedule) {
+        this.baseBytesPerSec = Math.max(0, baseMBps) * 1024 * 1024;
+        this.schedule = parse(schedule);
+    }
+
+    static Bandwidth shared() {
+        return shared;
+    }
+
+    static void configure(double baseMBps, List<String> schedule) {
+        shared = new Bandwidth(baseMBps, schedule);
+    }
+
+    /** Parses {@code HH:MM-HH:MM=MBps} entries; a bad entry is reported and skipped. */
+    private static List<Window> parse(List<String> entries) {
+        List<Window> out = new ArrayList<>();
+        if (entries == null) return out;
+        for (String e : entries) {
+            try {
+                String[] kv = e.split("=", 2);
+                String[] range = kv[0].trim().split("-", 2);
+                out.add(new Window(minuteOf(range[0]), minuteOf(range[1]), Double.parseDouble(kv[1].trim()) * 1024 * 1024));
+            } catch (RuntimeException ex) {
+                System.err.println("[S3Backup] Ignoring bad uploadLimitSchedule entry '" + e + "' (expected HH:MM-HH:MM=MBps)");
+            }
+        }
+        return out;
+    }
+
+    private static int minuteOf(String hhmm) {
+        LocalTime t = LocalTime.parse(hhmm.trim().length() == 4 ? "0" + hhmm.trim() : hhmm.trim());
+        return t.getHour() * 60 + t.getMinute();
+    }
+
+    /** Rate in effect right now, in bytes per second; {@code 0} means unlimited. */
+    double currentBytesPerSec() {
+        if (!schedule.isEmpty()) {
+            LocalTime now = LocalTime.now();
+            int minute = now.getHour() * 60 + now.getMinute();
+            for (Window w : schedule) {
+                if (w.covers(minute)) return w.bytesPerSec();
+            }
+        }
+        return baseBytesPerSec;
+    }
+
+    /**
+     * Takes {@code n} bytes from the bucket, sleeping first if it is empty. Callers reserve what
+     * they need and wait off the lock, so a big request does not stall smaller ones behind it for
+     * longer than its own share.
+     */
+    void acquire(long n) throws InterruptedIOException {
+        long waitNs = reserve(n);
+        if (waitNs <= 0) return;
+        try {
+            Thread.sleep(waitNs / 1_000_000, (int) (waitNs % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upload bandwidth");
+        }
+        WAITED.get()[0] += waitNs;
+    }
+
+    /** Takes {@code n} bytes from the bucket and returns how long the caller must wait before sending them. */
+    long reserve(long n) {
+        double rate = currentBytesPerSec();
+        if (rate <= 0 || n <= 0) return 0;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate * MAX_BURST_SECONDS, tokens + (now - lastRefillNs) / 1e9 * rate);
+            lastRefillNs = now;
+            tokens -= n;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+    }
+
+    /**
+     * Total time the current thread has spent waiting in {@link #acquire}. Part latency minus this
+     * is what the network took, which is what adaptive concurrency needs to look at.
+     */
+    static long waitedNanos() {
+        return WAITED.get()[0];
+    }
+
+    /** Request body wrapper that draws from the shared bucket as the SDK reads it. */
+    static final class ThrottledInputStream extends FilterInputStream {
+        ThrottledInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            shared.acquire(1);
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // Small steps keep the sending smooth rather than a burst per buffer.
+            int n = super.read(b, off, Math.min(len, 64 * 1024));
+            if (n > 0) shared.acquire(n);
+            return n;
+        }
+    }
+
+    /**
+     * Limits an async request body without blocking: each buffer is handed on once the bucket
+     * covers it, on a timer, in the order it arrived. Returns {@code body} as is while unlimited.
+     */
+    static AsyncRequestBody throttle(AsyncRequestBody body) {
+        if (shared.currentBytesPerSec() <= 0) return body;
+        return new AsyncRequestBody() {
+            @Override
+            public Optional<Long> contentLength() {
+                return body.contentLength();
+            }
+
+            @Override
+            public String contentType() {
+                return body.contentType();
+            }
+
+            @Override
+            public void subscribe(Subscriber<? super ByteBuffer> s) {
+                body.subscribe(new Subscriber<ByteBuffer>() {
+                    private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+                    @Override
+                    public void onSubscribe(Subscription sub) {
+                        s.onSubscribe(sub);
+                    }
+
+                    @Override
+                    public synchronized void onNext(ByteBuffer b) {
+                        long at = System.nanoTime() + shared.reserve(b.remaining());
+                        tail = tail.thenCompose(x -> {
+                            long left = at - System.nanoTime();
+                            return left <= 0 ? CompletableFuture.completedFuture(null)
+                                    : CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(left, TimeUnit.NANOSECONDS));
+                        }).thenRun(() -> s.onNext(b));
+                    }
+
+                    @Override
+                    public synchronized void onError(Throwable t) {
+                        tail = tail.whenComplete((x, e) -> s.onError(t));
+                    }
+
+                    @Override
+                    public synchronized void onComplete() {
+                        tail = tail.whenComplete((x, e) -> s.onComplete());
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Applies the limit to every request body of the synchronous client: part uploads, single PUTs
+     * and chunk packs alike. Async bodies go through {@link #throttle}.
+     */
+    static final class UploadThrottle implements ExecutionInterceptor {
+        @Override
+        public Optional<RequestBody> modifyHttpContent(Context.ModifyHttpRequest context, ExecutionAttributes attributes) {
+            Optional<RequestBody> body = context.requestBody();
+            if (body.isEmpty() || shared.currentBytesPerSec() <= 0) return body;
+            RequestBody b = body.get();
+            Optional<Long> length = b.optionalContentLength();
+            return Optional.of(length.isPresent()
+                    ? RequestBody.fromContentProvider(() -> new ThrottledInputStream(b.contentStreamProvider().newStream()), length.get(), b.contentType())
+                    : RequestBody.fromContentProvider(() -> new ThrottledInputStream(b.contentStreamProvider().newStream()), b.contentType()));
+        }
+    }
+}
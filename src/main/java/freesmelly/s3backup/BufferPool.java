@@ -0,0 +1,114 @@
+package freesmelly.s3backup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Off-heap buffers for uploads, reused across parts and across backups, with a hard cap on the
+ * total. Keeping part buffers out of the heap means a 256 MB part never shows up as garbage for the
+ * server's collector; the cap keeps direct memory bounded no matter how parallelism and part size
+ * are configured. {@link #acquire} blocks while the cap is reached.
+ */
+final class BufferPool {
+    private static volatile BufferPool shared = new BufferPool(512L * 1024 * 1024);
+
+    private final long capBytes;
+    private final Map<Integer, ArrayDeque<ByteBuffer>> idle = new HashMap<>();
+    private long allocated;
+    private long idleBytes;
+    private long peak;
+
+    BufferPool(long capBytes) {
+        this.capBytes = capBytes;
+    }
+
+    static BufferPool shared() {
+        return shared;
+    }
+
+    /** Replaces the shared pool; buffers of the old one are dropped once released. */
+    static void configure(long capBytes) {
+        if (shared.capBytes != capBytes) shared = new BufferPool(capBytes);
+    }
+
+    long capBytes() {
+        return capBytes;
+    }
+
+    /** Largest number of bytes that were allocated at once, for the upload log. */
+    synchronized long peakBytes() {
+        return peak;
+    }
+
+    /**
+     * A cleared buffer of exactly {@code size} bytes.
+     *
+     * @throws IOException if {@code size} alone is over the cap, or the wait is interrupted
+     */
+    ByteBuffer acquire(int size) throws IOException {
+        return acquire(size, 0);
+    }
+
+    /**
+     * Like {@link #acquire(int)} but gives up after {@code timeoutMillis} and returns null, so a
+     * caller can check for failures elsewhere while it waits. {@code 0} waits indefinitely.
+     */
+    synchronized ByteBuffer acquire(int size, long timeoutMillis) throws IOException {
+        long deadline = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1_000_000L : 0;
+        if (size > capBytes) {
+            throw new IOException("Upload buffer of " + size + " bytes exceeds uploadMemoryCapMB (" + (capBytes >> 20) + " MB)");
+        }
+        while (true) {
+            ArrayDeque<ByteBuffer> q = idle.get(size);
+            if (q != null && !q.isEmpty()) {
+                idleBytes -= size;
+                return q.poll().clear();
+            }
+            // Idle buffers of other sizes are given up before anyone has to wait.
+            while (allocated + size > capBytes && idleBytes > 0) evictOne();
+            if (allocated + size <= capBytes) {
+                allocated += size;
+                peak = Math.max(peak, allocated);
+                return ByteBuffer.allocateDirect(size);
+            }
+            try {
+                if (deadline == 0) {
+                    wait();
+                } else {
+                    long left = (deadline - System.nanoTime()) / 1_000_000L;
+                    if (left <= 0) return null;
+                    wait(left);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for upload memory");
+            }
+        }
+    }
+
+    synchronized void release(ByteBuffer b) {
+        if (b == null) return;
+        idle.computeIfAbsent(b.capacity(), k -> new ArrayDeque<>()).add(b);
+        idleBytes += b.capacity();
+        notifyAll();
+    }
+
+    private void evictOne() {
+        Iterator<ArrayDeque<ByteBuffer>> it = idle.values().iterator();
+        while (it.hasNext()) {
+            ArrayDeque<ByteBuffer> q = it.next();
+            ByteBuffer b = q.poll();
+            if (q.isEmpty()) it.remove();
+            if (b != null) {
+                allocated -= b.capacity();
+                idleBytes -= b.capacity();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,750 @@
+package freesmelly.s3backup;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Deduplicating backend: files are split by {@link Chunker}, every chunk is identified by its
+ * SHA-256, and only chunks the bucket does not have yet are uploaded. New chunks are packed into
+ * pack objects of roughly {@code packSizeBytes} to keep the number of PUTs low.
+ *
+ * <p>Layout under {@code <prefix>/chunks/}:
+ * <ul>
+ *   <li>{@code packs/<id>.pack} – concatenated chunk payloads (raw or raw-deflate)</li>
+ *   <li>{@code packs/<id>.idx} – records of that pack, so the local index can be rebuilt</li>
+ *   <li>{@code snapshots/<name>.chunks.json.gz} – one per backup: files, their chunk lists and the
+ *       pack location of every chunk, so a restore needs nothing else ({@link #loadSnapshot})</li>
+ * </ul>
+ *
+ * The local index ({@code config/s3-backup-mod/chunks-<name>-<location>.idx}) answers "already
+ * stored?" without asking S3. Records are appended only after their pack upload succeeded. There is
+ * one per endpoint, bucket and prefix, so after any of them changes the index never claims chunks the
+ * new location does not have; a missing index is rebuilt from the {@code .idx} objects of the packs.
+ *
+ * <p>Snapshots are pruned with the other backups by {@link Retention}; {@link #sweep} then deletes
+ * the packs no snapshot uses any more. Every sweep that deletes something writes a new
+ * {@code chunks/swept} marker, and an index that has not seen the latest one is rebuilt before it
+ * is trusted, so no server sharing the store dedups against a pack that is gone.
+ */
+final class ChunkStore implements AutoCloseable {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final int RECORD_BYTES = 32 + 8 + 8 + 4 + 4 + 1;
+    /** Bytes of file data being chunked ahead of the pack writer. */
+    private static final long WINDOW_BYTES = 128L * 1024 * 1024;
+    /** Files above this are chunked on the writer thread as a stream instead of read whole. */
+    private static final long INLINE_BYTES = 64L * 1024 * 1024;
+    /** A chunk backup is its snapshot; the catalog lists it under this extension. */
+    static final String SNAPSHOT_EXTENSION = ".chunks.json.gz";
+    /** Packs younger than this are never swept: another server may be about to write the snapshot that uses them. */
+    private static final long SWEEP_GRACE_MILLIS = 24L * 60 * 60 * 1000;
+    /** DeleteObjects takes at most this many keys. */
+    private static final int DELETE_BATCH = 1000;
+    /** Held by an open store and by a sweep, so neither sees the other half done. */
+    private static final ReentrantLock LOCK = new ReentrantLock();
+
+    record ChunkId(long h0, long h1, long h2, long h3) {
+        static ChunkId of(byte[] sha256) {
+            ByteBuffer b = ByteBuffer.wrap(sha256);
+            return new ChunkId(b.getLong(), b.getLong(), b.getLong(), b.getLong());
+        }
+
+        String hex() {
+            return String.format("%016x%016x%016x%016x", h0, h1, h2, h3);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeLong(h0);
+            out.writeLong(h1);
+            out.writeLong(h2);
+            out.writeLong(h3);
+        }
+    }
+
+    record Location(long pack, long offset, int storedLength, int rawLength, boolean deflated) {}
+
+    /** A chunk as produced by a worker; {@code data} is null when the store already has it. */
+    private record Chunk(ChunkId id, byte[] data, int rawLength, boolean deflated) {
+        /** The same chunk without its payload, for the snapshot once the payload is in a pack. */
+        Chunk ref() {
+            return data == null ? this : new Chunk(id, null, rawLength, deflated);
+        }
+    }
+
+    private record FileChunks(ZipUtil.SourceFile file, List<Chunk> chunks) {}
+
+    /** One row of a snapshot's chunk table. */
+    record StoredChunk(ChunkId id, long pack, long offset, int storedLength, int rawLength, boolean deflated) {
+        long end() {
+            return offset + storedLength;
+        }
+    }
+
+    /** One file of a snapshot; {@code chunks} index the snapshot's chunk table, in file order. */
+    record SnapshotFile(String path, long size, long mtimeMillis, int[] chunks) {}
+
+    /**
+     * A snapshot as read back from the bucket.
+     *
+     * @param root       the store's {@code <prefix>chunks/}, where its packs are
+     * @param fetchedBytes size of the snapshot object
+     */
+    record Snapshot(String root, List<StoredChunk> chunks, List<SnapshotFile> files, long fetchedBytes) {
+        String packKey(long pack) {
+            return root + "packs/" + String.format("%016x", pack) + ".pack";
+        }
+    }
+
+    private final S3Client s3;
+    private final String bucket;
+    private final String prefix;
+    private final Path indexFile;
+    private final long packSizeBytes;
+    private final Map<ChunkId, Location> stored = new ConcurrentHashMap<>();
+    private final Map<ChunkId, Location> pending = new ConcurrentHashMap<>();
+    private final Workers.Scope uploads;
+    private final Semaphore packSlots;
+    private final List<Future<?>> uploadFutures = new ArrayList<>();
+    private final ThreadLocal<MessageDigest> sha = ThreadLocal.withInitial(ChunkStore::sha256);
+
+    private ByteArrayOutputStream pack;
+    private List<Map.Entry<ChunkId, Location>> packRecords;
+    private long packId;
+    private long newBytes;
+    private long newChunks;
+
+    /**
+     * @param prefix normalized key prefix ({@code ""} or ending in {@code /})
+     */
+    ChunkStore(S3Client s3, String bucket, String prefix, Path indexFile, long packSizeBytes, int uploadParallelism) throws IOException {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.prefix = prefix + "chunks/";
+        this.indexFile = indexFile;
+        this.packSizeBytes = Math.max(1024 * 1024, packSizeBytes);
+        int parallelism = Math.max(1, uploadParallelism);
+        try {
+            LOCK.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the chunk store sweep");
+        }
+        try {
+            loadIndex();
+        } catch (IOException | RuntimeException e) {
+            LOCK.unlock();
+            throw e;
+        }
+        this.uploads = Workers.io(parallelism);
+        this.packSlots = new Semaphore(parallelism);
+    }
+
+    /**
+     * The local index for the store at {@code endpoint}, {@code bucket} and {@code keyPrefix}. Their
+     * hash goes into the name: an index is only ever valid for the bucket its packs went to.
+     */
+    static Path indexPath(String zipBaseName, String endpoint, String bucket, String keyPrefix) {
+        byte[] where = sha256().digest((endpoint + "\n" + bucket + "\n" + keyPrefix).getBytes(StandardCharsets.UTF_8));
+        String location = String.format("%016x", ByteBuffer.wrap(where).getLong()).substring(0, 12);
+        return Paths.get("config", "s3-backup-mod", "chunks-" + zipBaseName + "-" + location + ".idx");
+    }
+
+    /** Where the snapshot {@code name} of the store under {@code keyPrefix} is kept. */
+    static String snapshotKey(String keyPrefix, String name) {
+        return snapshotDir(keyPrefix) + name + SNAPSHOT_EXTENSION;
+    }
+
+    static String snapshotDir(String keyPrefix) {
+        return keyPrefix + "chunks/snapshots/";
+    }
+
+    static boolean isSnapshotKey(String key) {
+        return key.endsWith(SNAPSHOT_EXTENSION);
+    }
+
+    int knownChunks() {
+        return stored.size();
+    }
+
+    boolean contains(ChunkId id) {
+        return stored.containsKey(id) || pending.containsKey(id);
+    }
+
+    record Result(String snapshotKey, int files, long rawBytes, long newChunks, long newBytes) {}
+
+    /**
+     * @param deadBytes bytes of chunks no snapshot uses that are left in packs some snapshot still needs
+     */
+    record SweepResult(int snapshots, int packsDeleted, long bytesDeleted, int failed, long deadBytes) {}
+
+    /**
+     * Chunks and stores {@code files}, then uploads the snapshot that describes them.
+     * Hashing and compression run on {@code threads} workers; packs upload in the background.
+     */
+    Result backup(List<ZipUtil.SourceFile> files, String snapshotName, int threads) throws IOException {
+        Workers.Scope pool = Workers.cpu(Math.max(1, threads));
+        List<FileChunks> done = new ArrayList<>(files.size());
+        long rawBytes = 0;
+        try {
+            ArrayDeque<Future<FileChunks>> inFlight = new ArrayDeque<>();
+            long inFlightBytes = 0;
+            int next = 0;
+            while (next < files.size() || !inFlight.isEmpty()) {
+                BackupJob.checkpoint();
+                TickHealth.yieldIfLagging();
+                while (next < files.size() && (inFlight.isEmpty() || inFlightBytes < WINDOW_BYTES)) {
+                    ZipUtil.SourceFile f = files.get(next);
+                    if (f.size() > INLINE_BYTES) break;
+                    inFlight.add(pool.fork(() -> chunkFile(f)));
+                    inFlightBytes += f.size();
+                    next++;
+                }
+                if (inFlight.isEmpty()) {
+                    // Large file: stream it through the chunker right here, nothing else is queued.
+                    FileChunks fc = chunkLarge(files.get(next++));
+                    if (fc != null) {
+                        done.add(fc);
+                        rawBytes += fc.file().size();
+                        BackupJob.archived(fc.file().size());
+                    }
+                    continue;
+                }
+                FileChunks fc;
+                try {
+                    fc = inFlight.poll().get();
+                } catch (ExecutionException e) {
+                    Throwable c = e.getCause();
+                    throw (c instanceof IOException io) ? io : new IOException(c);
+                }
+                inFlightBytes -= fc.file().size();
+                if (fc.chunks() == null) continue; // unreadable, skipped like in the zip path
+                // Payloads go into the pack now; the snapshot needs only the ids, so a first backup
+                // of a big world does not keep every new chunk in memory until the end.
+                List<Chunk> refs = new ArrayList<>(fc.chunks().size());
+                for (Chunk c : fc.chunks()) {
+                    add(c);
+                    refs.add(c.ref());
+                }
+                done.add(new FileChunks(fc.file(), refs));
+                rawBytes += fc.file().size();
+                BackupJob.archived(fc.file().size());
+            }
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while chunking");
+        } finally {
+            pool.close();
+        }
+
+        String snapshotKey = prefix + "snapshots/" + snapshotName + SNAPSHOT_EXTENSION;
+        s3.putObject(PutObjectRequest.builder().bucket(bucket).key(snapshotKey).contentType("application/json").contentEncoding("gzip").build(),
+                RequestBody.fromBytes(snapshotJson(done)));
+        return new Result(snapshotKey, done.size(), rawBytes, newChunks, newBytes);
+    }
+
+    private FileChunks chunkFile(ZipUtil.SourceFile f) {
+        List<Chunk> chunks = new ArrayList<>();
+        try {
+            Chunker.split(f.path(), f.name(), (buf, off, len) -> chunks.add(prepare(buf, off, len)));
+        } catch (IOException e) {
+            BackupJob.warn("Left out " + f.name() + ": " + ZipUtil.reason(e));
+            return new FileChunks(f, null);
+        }
+        return new FileChunks(f, chunks);
+    }
+
+    /**
+     * Same as {@link #chunkFile}, but each chunk goes into the pack as soon as it is cut. A file that
+     * cannot be read is left out with a warning; chunks already packed from it are just unreferenced.
+     */
+    private FileChunks chunkLarge(ZipUtil.SourceFile f) throws IOException {
+        List<Chunk> refs = new ArrayList<>();
+        try {
+            Chunker.split(f.path(), f.name(), (buf, off, len) -> {
+                Chunk c = prepare(buf, off, len);
+                try {
+                    add(c);
+                } catch (IOException e) {
+                    // A pack upload problem, not a read problem: that fails the backup.
+                    throw new UncheckedIOException(e);
+                }
+                refs.add(c.ref());
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (IOException e) {
+            BackupJob.warn("Left out " + f.name() + ": " + ZipUtil.reason(e));
+            return null;
+        }
+        return new FileChunks(f, refs);
+    }
+
+    /** Hashes a chunk and, if it is new, compresses it when that actually saves space. */
+    private Chunk prepare(byte[] buf, int off, int len) {
+        MessageDigest md = sha.get();
+        md.reset();
+        md.update(buf, off, len);
+        ChunkId id = ChunkId.of(md.digest());
+        if (contains(id)) return new Chunk(id, null, len, false);
+
+        Deflater d = ZipUtil.borrowDeflater(Deflater.DEFAULT_COMPRESSION);
+        byte[] out = new byte[len + (len >>> 3) + 64];
+        int n = 0;
+        boolean finished;
+        try {
+            d.setInput(buf, off, len);
+            d.finish();
+            while (!d.finished() && n < out.length) n += d.deflate(out, n, out.length - n);
+            finished = d.finished();
+        } finally {
+            ZipUtil.returnDeflater(d, Deflater.DEFAULT_COMPRESSION);
+        }
+        if (finished && n < len - (len >>> 3)) {
+            return new Chunk(id, Arrays.copyOf(out, n), len, true);
+        }
+        return new Chunk(id, Arrays.copyOfRange(buf, off, off + len), len, false);
+    }
+
+    /** Writer thread: appends a new chunk to the current pack. */
+    private void add(Chunk c) throws IOException {
+        if (c.data() == null || contains(c.id())) return;
+        if (pack == null) {
+            pack = new ByteArrayOutputStream((int) Math.min(packSizeBytes + Chunker.MAX_CHUNK, Integer.MAX_VALUE - 8));
+            packRecords = new ArrayList<>();
+            packId = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        }
+        Location loc = new Location(packId, pack.size(), c.data().length, c.rawLength(), c.deflated());
+        pack.write(c.data(), 0, c.data().length);
+        pending.put(c.id(), loc);
+        packRecords.add(Map.entry(c.id(), loc));
+        newChunks++;
+        newBytes += c.data().length;
+        if (pack.size() >= packSizeBytes) sealPack();
+    }
+
+    private void sealPack() throws IOException {
+        if (pack == null) return;
+        byte[] body = pack.toByteArray();
+        List<Map.Entry<ChunkId, Location>> records = packRecords;
+        long id = packId;
+        pack = null;
+        packRecords = null;
+        try {
+            packSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a pack upload slot");
+        }
+        uploadFutures.add(uploads.fork(() -> {
+            try {
+                uploadPack(id, body, records);
+            } finally {
+                packSlots.release();
+            }
+            return null;
+        }));
+    }
+
+    private void uploadPack(long id, byte[] body, List<Map.Entry<ChunkId, Location>> records) throws IOException {
+        String base = prefix + "packs/" + String.format("%016x", id);
+        ByteArrayOutputStream idx = new ByteArrayOutputStream(records.size() * RECORD_BYTES);
+        try (DataOutputStream out = new DataOutputStream(idx)) {
+            for (var r : records) writeRecord(out, r.getKey(), r.getValue());
+        }
+        s3.putObject(PutObjectRequest.builder().bucket(bucket).key(base + ".pack").build(), RequestBody.fromBytes(body));
+        BackupJob.uploaded(body.length);
+        s3.putObject(PutObjectRequest.builder().bucket(bucket).key(base + ".idx").build(), RequestBody.fromBytes(idx.toByteArray()));
+        System.out.println("[S3Backup] Uploaded pack " + base + ".pack (" + records.size() + " chunks, " + body.length + " bytes)");
+
+        synchronized (this) {
+            Files.createDirectories(indexFile.getParent());
+            try (OutputStream out = Files.newOutputStream(indexFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(idx.toByteArray());
+            }
+            for (var r : records) {
+                stored.put(r.getKey(), r.getValue());
+                pending.remove(r.getKey());
+            }
+        }
+    }
+
+    /** Uploads the last partial pack and waits until every pack is stored. */
+    void flush() throws IOException {
+        sealPack();
+        try {
+            for (Future<?> f : uploadFutures) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading packs");
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            throw (c instanceof IOException io) ? io : new IOException(c);
+        } finally {
+            uploadFutures.clear();
+        }
+    }
+
+    private Location locate(ChunkId id) {
+        Location l = stored.get(id);
+        return l != null ? l : pending.get(id);
+    }
+
+    private byte[] snapshotJson(List<FileChunks> files) throws IOException {
+        Map<ChunkId, Integer> chunkIds = new HashMap<>();
+        List<Object> chunkTable = new ArrayList<>();
+        List<Object> fileList = new ArrayList<>(files.size());
+        for (FileChunks fc : files) {
+            int[] refs = new int[fc.chunks().size()];
+            for (int i = 0; i < refs.length; i++) {
+                ChunkId id = fc.chunks().get(i).id();
+                refs[i] = chunkIds.computeIfAbsent(id, k -> {
+                    Location l = locate(k);
+                    chunkTable.add(List.of(k.hex(), String.format("%016x", l.pack()), l.offset(), l.storedLength(), l.rawLength(), l.deflated() ? 1 : 0));
+                    return chunkTable.size() - 1;
+                });
+            }
+            Map<String, Object> f = new LinkedHashMap<>();
+            f.put("path", fc.file().name());
+            f.put("size", fc.file().size());
+            f.put("mtime", fc.file().mtimeMillis());
+            f.put("chunks", refs);
+            fileList.add(f);
+        }
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("version", 1);
+        root.put("created", System.currentTimeMillis());
+        root.put("chunkFields", List.of("sha256", "pack", "offset", "storedLength", "rawLength", "deflated"));
+        root.put("chunks", chunkTable);
+        root.put("files", fileList);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer w = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+            GSON.toJson(root, w);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void loadIndex() throws IOException {
+        String swept = sweepMarker(s3, bucket, prefix);
+        Path seen = sweepSeenPath(indexFile);
+        if (!Files.exists(indexFile) || (swept != null && !(Files.exists(seen) && swept.equals(Files.readString(seen))))) {
+            if (Files.exists(indexFile)) System.out.println("[S3Backup] The chunk store was swept since the index was written, rebuilding it");
+            rebuildIndex();
+            if (swept != null) {
+                Files.createDirectories(seen.getParent());
+                Files.writeString(seen, swept);
+            }
+            return;
+        }
+        // A crash mid-append can leave a torn last record; it simply gets uploaded again.
+        readRecords(Files.readAllBytes(indexFile), stored);
+    }
+
+    /** The id of the last sweep of the store at {@code root} that deleted anything, or null if there was none. */
+    private static String sweepMarker(S3Client s3, String bucket, String root) {
+        try {
+            return s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(root + "swept").build()).asUtf8String();
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+    }
+
+    /** Next to the index: the sweep it has caught up with. */
+    private static Path sweepSeenPath(Path indexFile) {
+        return indexFile.resolveSibling(indexFile.getFileName() + ".swept");
+    }
+
+    /**
+     * Reads the records of every pack in the bucket into the index and saves it. A pack's
+     * {@code .idx} is uploaded after the pack and deleted before it, so every record found this way
+     * points at a pack that exists.
+     */
+    private void rebuildIndex() throws IOException {
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        int packs = 0;
+        String token = null;
+        do {
+            ListObjectsV2Response resp = s3.listObjectsV2(ListObjectsV2Request.builder().bucket(bucket).prefix(prefix + "packs/").continuationToken(token).build());
+            for (S3Object o : resp.contents()) {
+                if (!o.key().endsWith(".idx")) continue;
+                byte[] idx = s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(o.key()).build()).asByteArray();
+                all.write(idx, 0, idx.length - (idx.length % RECORD_BYTES));
+                packs++;
+            }
+            token = resp.isTruncated() ? resp.nextContinuationToken() : null;
+        } while (token != null);
+        if (packs == 0) {
+            Files.deleteIfExists(indexFile);
+            return;
+        }
+        readRecords(all.toByteArray(), stored);
+        Files.createDirectories(indexFile.getParent());
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        Files.write(tmp, all.toByteArray());
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("[S3Backup] Rebuilt the chunk index from " + packs + " packs in s3://" + bucket + "/" + prefix + ": " + stored.size() + " chunks");
+    }
+
+    /** Adds the whole records in {@code bytes} to {@code into}; a trailing partial record is ignored. */
+    private static void readRecords(byte[] bytes, Map<ChunkId, Location> into) throws IOException {
+        int usable = bytes.length - (bytes.length % RECORD_BYTES);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, usable))) {
+            while (true) {
+                ChunkId id = new ChunkId(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+                Location l = new Location(in.readLong(), in.readLong(), in.readInt(), in.readInt(), in.readBoolean());
+                into.put(id, l);
+            }
+        } catch (EOFException ignored) {
+        }
+    }
+
+    /** Reads the snapshot at {@code key}, as written by {@link #backup}. */
+    static Snapshot loadSnapshot(S3Client s3, String bucket, String key) throws IOException {
+        byte[] gz;
+        try {
+            gz = s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(key).build()).asByteArray();
+        } catch (NoSuchKeyException e) {
+            throw new IOException("No chunk snapshot " + key + " in the bucket");
+        }
+        JsonObject root;
+        try (Reader r = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(gz)), StandardCharsets.UTF_8)) {
+            root = JsonParser.parseReader(r).getAsJsonObject();
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable chunk snapshot " + key + ": " + e.getMessage(), e);
+        }
+        try {
+            if (root.get("version").getAsInt() != 1) throw new IOException("Chunk snapshot " + key + " has unknown version " + root.get("version"));
+            List<StoredChunk> chunks = new ArrayList<>();
+            for (JsonElement e : root.getAsJsonArray("chunks")) {
+                JsonArray c = e.getAsJsonArray();
+                chunks.add(new StoredChunk(ChunkId.of(HexFormat.of().parseHex(c.get(0).getAsString())), Long.parseUnsignedLong(c.get(1).getAsString(), 16),
+                        c.get(2).getAsLong(), c.get(3).getAsInt(), c.get(4).getAsInt(), c.get(5).getAsInt() != 0));
+            }
+            List<SnapshotFile> files = new ArrayList<>();
+            for (JsonElement e : root.getAsJsonArray("files")) {
+                JsonObject f = e.getAsJsonObject();
+                JsonArray refs = f.getAsJsonArray("chunks");
+                int[] ids = new int[refs.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = refs.get(i).getAsInt();
+                    if (ids[i] < 0 || ids[i] >= chunks.size()) throw new IOException("Chunk snapshot " + key + " refers to chunk " + ids[i] + " it does not have");
+                }
+                files.add(new SnapshotFile(f.get("path").getAsString(), f.get("size").getAsLong(), f.get("mtime").getAsLong(), ids));
+            }
+            String rootPrefix = key.substring(0, key.lastIndexOf("snapshots/"));
+            return new Snapshot(rootPrefix, chunks, files, gz.length);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed chunk snapshot " + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The raw bytes of chunk {@code c}, whose stored form is at {@code off} in {@code buf}, checked
+     * against its length and SHA-256.
+     */
+    static byte[] decode(StoredChunk c, byte[] buf, int off) throws IOException {
+        byte[] raw;
+        if (c.deflated()) {
+            raw = new byte[c.rawLength()];
+            Inflater inf = new Inflater(true);
+            try {
+                inf.setInput(buf, off, c.storedLength());
+                int n = 0;
+                while (n < raw.length && !inf.finished()) {
+                    int got = inf.inflate(raw, n, raw.length - n);
+                    if (got == 0 && (inf.needsInput() || inf.needsDictionary())) break;
+                    n += got;
+                }
+                if (n != raw.length || !inf.finished()) throw new IOException("Chunk " + c.id().hex() + " inflates to the wrong length");
+            } catch (DataFormatException e) {
+                throw new IOException("Chunk " + c.id().hex() + " does not inflate: " + e.getMessage(), e);
+            } finally {
+                inf.end();
+            }
+        } else {
+            if (c.storedLength() != c.rawLength()) throw new IOException("Chunk " + c.id().hex() + " has a stored length of " + c.storedLength() + " for " + c.rawLength() + " raw bytes");
+            raw = Arrays.copyOfRange(buf, off, off + c.storedLength());
+        }
+        if (!ChunkId.of(sha256().digest(raw)).equals(c.id())) {
+            throw new IOException("Chunk " + c.id().hex() + " in pack " + String.format("%016x", c.pack()) + " does not match its SHA-256");
+        }
+        return raw;
+    }
+
+    private static void writeRecord(DataOutputStream out, ChunkId id, Location l) throws IOException {
+        id.write(out);
+        out.writeLong(l.pack());
+        out.writeLong(l.offset());
+        out.writeInt(l.storedLength());
+        out.writeInt(l.rawLength());
+        out.writeBoolean(l.deflated());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Mark and sweep: every snapshot under {@code keyPrefix} marks the packs it uses, and packs no
+     * snapshot uses are deleted, {@code .idx} first, once they are older than a day. Packs that are
+     * still used keep their dead chunks; how many bytes that is gets logged. One unreadable snapshot
+     * stops the sweep before anything is deleted. Waits for nothing: while a store is open the sweep
+     * is skipped and null is returned.
+     *
+     * @param indexFile this server's index, rewritten without the deleted packs
+     */
+    static SweepResult sweep(S3Client s3, String bucket, String keyPrefix, Path indexFile) throws IOException {
+        if (!LOCK.tryLock()) return null;
+        try {
+            String root = keyPrefix + "chunks/";
+            Map<Long, Long> live = new HashMap<>();
+            Set<ChunkId> marked = new HashSet<>();
+            int snapshots = 0;
+            for (S3Object o : s3.listObjectsV2Paginator(ListObjectsV2Request.builder().bucket(bucket).prefix(root + "snapshots/").build()).contents()) {
+                if (!isSnapshotKey(o.key())) continue;
+                for (StoredChunk c : loadSnapshot(s3, bucket, o.key()).chunks()) {
+                    live.putIfAbsent(c.pack(), 0L);
+                    if (marked.add(c.id())) live.merge(c.pack(), (long) c.storedLength(), Long::sum);
+                }
+                snapshots++;
+            }
+
+            long cutoff = System.currentTimeMillis() - SWEEP_GRACE_MILLIS;
+            Set<Long> dead = new HashSet<>();
+            List<String> idxKeys = new ArrayList<>();
+            List<String> packKeys = new ArrayList<>();
+            long bytes = 0;
+            long deadBytes = 0;
+            for (S3Object o : s3.listObjectsV2Paginator(ListObjectsV2Request.builder().bucket(bucket).prefix(root + "packs/").build()).contents()) {
+                String name = o.key().substring(o.key().lastIndexOf('/') + 1);
+                int dot = name.indexOf('.');
+                long pack;
+                try {
+                    pack = Long.parseUnsignedLong(name.substring(0, dot < 0 ? name.length() : dot), 16);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (live.containsKey(pack)) {
+                    if (name.endsWith(".pack")) deadBytes += o.size() - live.get(pack);
+                } else if (o.lastModified().toEpochMilli() < cutoff) {
+                    dead.add(pack);
+                    if (name.endsWith(".pack")) {
+                        packKeys.add(o.key());
+                        bytes += o.size();
+                    } else {
+                        idxKeys.add(o.key());
+                    }
+                }
+            }
+            if (dead.isEmpty()) return new SweepResult(snapshots, 0, 0, 0, deadBytes);
+
+            // Other servers' indexes see the new marker and rebuild; ours is rewritten here.
+            String sweepId = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            s3.putObject(PutObjectRequest.builder().bucket(bucket).key(root + "swept").build(), RequestBody.fromString(sweepId, StandardCharsets.UTF_8));
+            if (Files.exists(indexFile)) {
+                Map<ChunkId, Location> records = new LinkedHashMap<>();
+                readRecords(Files.readAllBytes(indexFile), records);
+                ByteArrayOutputStream kept = new ByteArrayOutputStream();
+                try (DataOutputStream out = new DataOutputStream(kept)) {
+                    for (var r : records.entrySet()) {
+                        if (!dead.contains(r.getValue().pack())) writeRecord(out, r.getKey(), r.getValue());
+                    }
+                }
+                Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+                Files.write(tmp, kept.toByteArray());
+                Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+                Files.writeString(sweepSeenPath(indexFile), sweepId);
+            }
+
+            // An .idx goes before its pack, so a rebuild never finds a record whose pack is gone.
+            int failed = delete(s3, bucket, idxKeys);
+            if (failed == 0) failed = delete(s3, bucket, packKeys);
+            else bytes = 0;
+            int deleted = failed == 0 ? packKeys.size() : 0;
+            return new SweepResult(snapshots, deleted, bytes, failed, deadBytes);
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /** @return how many of {@code keys} could not be deleted */
+    private static int delete(S3Client s3, String bucket, List<String> keys) {
+        int failed = 0;
+        for (int from = 0; from < keys.size(); from += DELETE_BATCH) {
+            List<String> batch = keys.subList(from, Math.min(keys.size(), from + DELETE_BATCH));
+            try {
+                failed += s3.deleteObjects(DeleteObjectsRequest.builder().bucket(bucket)
+                        .delete(Delete.builder().objects(batch.stream().map(k -> ObjectIdentifier.builder().key(k).build()).toList()).quiet(true).build())
+                        .build()).errors().size();
+            } catch (RuntimeException e) {
+                System.err.println("[S3Backup] Could not delete " + batch.size() + " chunk store objects: " + e.getMessage());
+                failed += batch.size();
+            }
+        }
+        return failed;
+    }
+
+    @Override
+    public void close() {
+        try {
+            uploads.close();
+        } finally {
+            if (LOCK.isHeldByCurrentThread()) LOCK.unlock();
+        }
+    }
+}
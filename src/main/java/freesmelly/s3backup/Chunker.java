@@ -0,0 +1,171 @@
+package freesmelly.s3backup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Splits files into chunks for the deduplicating store.
+ *
+ * <p>Region files ({@code .mca}/{@code .mcc}) are cut along their own structure: the 8 KiB header
+ * (location + timestamp tables) is one chunk and every chunk's sector run is another, so a chunk
+ * that Minecraft did not rewrite hashes the same as last time even if its neighbours moved.
+ * Everything else uses content-defined chunking with a gear rolling hash (FastCDC style), which
+ * keeps boundaries stable when bytes are inserted or removed.
+ */
+final class Chunker {
+    private Chunker() {}
+
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int AVG_MASK = (1 << 16) - 1; // ~64 KiB average
+    static final int MAX_CHUNK = 256 * 1024;
+
+    /** Region files up to this size are read whole and split by their sector table. */
+    static final long MAX_REGION_BYTES = 256L * 1024 * 1024;
+
+    private static final int SECTOR = 4096;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed: chunk boundaries must not change between versions or every chunk re-uploads.
+        SplittableRandom rnd = new SplittableRandom(0x53334261636b7570L);
+        for (int i = 0; i < GEAR.length; i++) GEAR[i] = rnd.nextLong();
+    }
+
+    interface Sink {
+        void chunk(byte[] buf, int off, int len) throws IOException;
+    }
+
+    static boolean isRegionFile(String name) {
+        return name.endsWith(".mca") || name.endsWith(".mcc");
+    }
+
+    static void split(Path file, String name, Sink sink) throws IOException {
+        long size = Files.size(file);
+        if (isRegionFile(name) && size >= 2 * SECTOR && size <= MAX_REGION_BYTES) {
+            byte[] data = readFully(file, (int) size);
+            if (data.length >= 2 * SECTOR && splitRegion(data, sink)) return;
+            splitContentDefined(data, 0, data.length, sink);
+            return;
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            splitContentDefined(in, sink);
+        }
+    }
+
+    /**
+     * Cuts a region file at the header and at every chunk's sector run; unused sectors between runs
+     * become chunks of their own so the file still reassembles byte for byte.
+     *
+     * @return false if the location table is inconsistent (overlaps, out of range), in which case
+     * nothing was emitted
+     */
+    static boolean splitRegion(byte[] data, Sink sink) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(data, 0, SECTOR);
+        List<long[]> runs = new ArrayList<>();
+        for (int i = 0; i < 1024; i++) {
+            int loc = header.getInt(i * 4);
+            int offset = loc >>> 8;
+            int count = loc & 0xFF;
+            if (offset == 0 || count == 0) continue;
+            long start = (long) offset * SECTOR;
+            long end = Math.min(start + (long) count * SECTOR, data.length);
+            if (start < 2L * SECTOR || start >= data.length) return false;
+            runs.add(new long[]{start, end});
+        }
+        runs.sort((a, b) -> Long.compare(a[0], b[0]));
+        long prevEnd = 2L * SECTOR;
+        for (long[] r : runs) {
+            if (r[0] < prevEnd) return false;
+            prevEnd = r[1];
+        }
+
+        sink.chunk(data, 0, 2 * SECTOR);
+        long pos = 2L * SECTOR;
+        for (long[] r : runs) {
+            if (r[0] > pos) emitBounded(data, (int) pos, (int) (r[0] - pos), sink);
+            emitBounded(data, (int) r[0], (int) (r[1] - r[0]), sink);
+            pos = r[1];
+        }
+        if (pos < data.length) emitBounded(data, (int) pos, (int) (data.length - pos), sink);
+        return true;
+    }
+
+    /** Oversized chunks (up to 1 MiB in a region file) are cut into MAX_CHUNK pieces at fixed offsets. */
+    private static void emitBounded(byte[] data, int off, int len, Sink sink) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, MAX_CHUNK);
+            sink.chunk(data, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    static void splitContentDefined(byte[] data, int off, int len, Sink sink) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            int n = cut(data, off, end - off);
+            sink.chunk(data, off, n);
+            off += n;
+        }
+    }
+
+    /** Streaming variant for files that are too big to hold in memory. */
+    static void splitContentDefined(InputStream in, Sink sink) throws IOException {
+        byte[] buf = new byte[MAX_CHUNK * 4];
+        int start = 0;
+        int filled = 0;
+        boolean eof = false;
+        while (true) {
+            while (!eof && filled < buf.length) {
+                int r = in.read(buf, filled, buf.length - filled);
+                if (r < 0) eof = true;
+                else filled += r;
+            }
+            int avail = filled - start;
+            if (avail == 0) return;
+            if (!eof && avail < MAX_CHUNK) {
+                System.arraycopy(buf, start, buf, 0, avail);
+                start = 0;
+                filled = avail;
+                continue;
+            }
+            int n = cut(buf, start, avail);
+            sink.chunk(buf, start, n);
+            start += n;
+        }
+    }
+
+    /** Length of the next chunk starting at {@code off}. */
+    static int cut(byte[] data, int off, int len) {
+        if (len <= MIN_CHUNK) return len;
+        int limit = Math.min(len, MAX_CHUNK);
+        long h = 0;
+        for (int i = MIN_CHUNK; i < limit; i++) {
+            h = (h << 1) + GEAR[data[off + i] & 0xFF];
+            if ((h & AVG_MASK) == 0) return i + 1;
+        }
+        return limit;
+    }
+
+    private static byte[] readFully(Path file, int size) throws IOException {
+        byte[] data = new byte[size];
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                if (fc.read(buf) < 0) break;
+            }
+            // The file shrank since it was listed; chunk what is there.
+            if (buf.hasRemaining()) return Arrays.copyOf(data, buf.position());
+        }
+        return data;
+    }
+}
@@ -0,0 +1,149 @@
+package freesmelly.s3backup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-entry compression choice. Rules are {@code glob=mode} strings matched against the zip entry
+ * name, first match wins; unmatched entries use the default mode. {@link Mode#AUTO} samples the
+ * data and stores it uncompressed when deflate would not shrink it below {@code autoStoreRatio},
+ * which is what happens with region chunks (already zlib/LZ4) and gzipped NBT.
+ *
+ * <p>Also keeps per-outcome statistics for the backup log.
+ */
+final class CompressionPolicy {
+    enum Mode {
+        STORED(0), FAST(1), DEFAULT(6), BEST(9), AUTO(6);
+
+        final int level;
+
+        Mode(int level) {
+            this.level = level;
+        }
+
+        static Mode parse(String s) {
+            return Mode.valueOf(s.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /** What actually happened to an entry (or block); AUTO splits into two outcomes. */
+    enum Outcome { STORED, FAST, DEFAULT, BEST, AUTO_STORED, AUTO_DEFLATED }
+
+    /** Bytes of each block that AUTO deflates to decide. */
+    static final int SAMPLE_BYTES = 64 * 1024;
+
+    private record Rule(PathMatcher matcher, Mode mode) {}
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private final List<Rule> rules;
+    private final Mode defaultMode;
+    private final double autoStoreRatio;
+    private final Map<Outcome, LongAdder[]> stats = new EnumMap<>(Outcome.class);
+
+    private CompressionPolicy(List<Rule> rules, Mode defaultMode, double autoStoreRatio) {
+        this.rules = rules;
+        this.defaultMode = defaultMode;
+        this.autoStoreRatio = autoStoreRatio;
+        for (Outcome o : Outcome.values()) {
+            stats.put(o, new LongAdder[]{new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()});
+        }
+    }
+
+    /** Everything deflated at the default level, as before this policy existed. */
+    static CompressionPolicy defaults() {
+        return new CompressionPolicy(List.of(), Mode.DEFAULT, 1.0);
+    }
+
+    /** Invalid rules are reported and skipped rather than failing the backup. */
+    static CompressionPolicy parse(List<String> ruleStrings, String defaultMode, double autoStoreRatio) {
+        List<Rule> rules = new ArrayList<>();
+        if (ruleStrings != null) {
+            for (String r : ruleStrings) {
+                int eq = r.lastIndexOf('=');
+                try {
+                    if (eq <= 0) throw new IllegalArgumentException("expected glob=mode");
+                    PathMatcher m = FileSystems.getDefault().getPathMatcher("glob:" + r.substring(0, eq).trim());
+                    rules.add(new Rule(m, Mode.parse(r.substring(eq + 1))));
+                } catch (RuntimeException e) {
+                    System.err.println("[S3Backup] Ignoring compression rule '" + r + "': " + e.getMessage());
+                }
+            }
+        }
+        Mode def;
+        try {
+            def = Mode.parse(defaultMode == null ? "default" : defaultMode);
+        } catch (IllegalArgumentException e) {
+            System.err.println("[S3Backup] Unknown compression mode '" + defaultMode + "', using default");
+            def = Mode.DEFAULT;
+        }
+        return new CompressionPolicy(rules, def, autoStoreRatio <= 0 ? 0.9 : autoStoreRatio);
+    }
+
+    Mode modeFor(String entryName) {
+        Path p = Path.of(entryName);
+        for (Rule r : rules) {
+            if (r.matcher().matches(p)) return r.mode();
+        }
+        return defaultMode;
+    }
+
+    /** True if {@code compressed} bytes out of {@code raw} is not worth deflating for. */
+    boolean notWorthIt(long compressed, long raw) {
+        return raw > 0 && compressed >= raw * autoStoreRatio;
+    }
+
+    static long cpuNanos() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    private static final Metrics.Counter CPU_SECONDS = Metrics.counter("s3backup_compression_cpu_seconds_total", "CPU time spent deflating zip entries");
+    private static final Metrics.Counter IN_BYTES = Metrics.counter("s3backup_compression_input_bytes_total", "Bytes fed to zip compression");
+    private static final Metrics.Counter OUT_BYTES = Metrics.counter("s3backup_compression_output_bytes_total", "Bytes out of zip compression");
+
+    void record(Outcome o, long rawBytes, long outBytes, long cpuNanos) {
+        LongAdder[] s = stats.get(o);
+        s[0].increment();
+        s[1].add(rawBytes);
+        s[2].add(outBytes);
+        s[3].add(cpuNanos);
+        CPU_SECONDS.add(cpuNanos / 1e9);
+        IN_BYTES.add(rawBytes);
+        OUT_BYTES.add(outBytes);
+    }
+
+    /**
+     * One log line per outcome that occurred. The CPU saved by AUTO is estimated from the default
+     * level's measured cost per byte in this same run.
+     */
+    void logSummary() {
+        long defRaw = stats.get(Outcome.DEFAULT)[1].sum() + stats.get(Outcome.AUTO_DEFLATED)[1].sum();
+        long defCpu = stats.get(Outcome.DEFAULT)[3].sum() + stats.get(Outcome.AUTO_DEFLATED)[3].sum();
+        double nsPerByte = defRaw > 0 ? (double) defCpu / defRaw : 0.0;
+
+        for (Outcome o : Outcome.values()) {
+            LongAdder[] s = stats.get(o);
+            long n = s[0].sum();
+            if (n == 0) continue;
+            long raw = s[1].sum();
+            long out = s[2].sum();
+            long cpu = s[3].sum();
+            String line = String.format("[S3Backup] Compression %-13s %,d items, %,d -> %,d bytes (ratio %.3f), cpu %.2fs",
+                    o.name().toLowerCase(Locale.ROOT), n, raw, out, raw == 0 ? 1.0 : (double) out / raw, cpu / 1e9);
+            if (o == Outcome.AUTO_STORED && nsPerByte > 0) {
+                line += String.format(", saved ~%.2fs cpu", Math.max(0, nsPerByte * raw - cpu) / 1e9);
+            }
+            System.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package freesmelly.s3backup;
+
+import com.google.gson.Gson;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * What went into one archive, entry by entry, as the writer saw it: name, size, CRC and compressed
+ * size, plus the files that had to be left out and why. Stored gzipped next to the archive as
+ * {@code <archive>.entries.json.gz}, so {@link Verifier} can later tell whether the archive in the
+ * bucket still holds exactly that.
+ */
+final class EntryList implements ZipUtil.EntryListener {
+    private static final Gson GSON = new Gson();
+
+    /** {@code compressedSize} is -1 for tar entries, which have no size of their own once compressed. */
+    record Item(String name, long size, long crc, long compressedSize) {}
+
+    record Skipped(String name, String reason) {}
+
+    String archive;
+    long created;
+    List<Item> entries = new ArrayList<>();
+    List<Skipped> skipped = new ArrayList<>();
+
+    static String keyFor(String archiveKey) {
+        return ArchiveFormat.stripExtension(archiveKey) + ".entries.json.gz";
+    }
+
+    @Override
+    public void onEntry(ZipUtil.SourceFile file, long crc, long size, long compressedSize) {
+        entries.add(new Item(file.name(), size, crc, compressedSize));
+    }
+
+    @Override
+    public void onSkipped(ZipUtil.SourceFile file, IOException reason) {
+        skipped.add(new Skipped(file.name(), ZipUtil.reason(reason)));
+    }
+
+    void upload(S3Client s3, String bucket, String archiveKey) throws IOException {
+        s3.putObject(PutObjectRequest.builder().bucket(bucket).key(keyFor(archiveKey)).contentType("application/json").contentEncoding("gzip").build(),
+                RequestBody.fromBytes(gzipped(archiveKey)));
+    }
+
+    /** The list as stored next to {@code archiveKey}. */
+    byte[] gzipped(String archiveKey) throws IOException {
+        archive = archiveKey;
+        created = System.currentTimeMillis();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (Writer w = new OutputStreamWriter(new GZIPOutputStream(buf), StandardCharsets.UTF_8)) {
+            GSON.toJson(this, w);
+        }
+        return buf.toByteArray();
+    }
+
+    /** The list stored with {@code archiveKey}, or null if it has none (written before lists existed, or a resumed upload). */
+    static EntryList load(S3Client s3, String bucket, String archiveKey) throws IOException {
+        byte[] gz;
+        try {
+            gz = s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(keyFor(archiveKey)).build()).asByteArray();
+        } catch (NoSuchKeyException e) {
+            return null;
+        }
+        try (Reader r = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(gz)), StandardCharsets.UTF_8)) {
+            EntryList l = GSON.fromJson(r, EntryList.class);
+            if (l == null || l.entries == null) throw new IOException("Empty entry list for " + archiveKey);
+            if (l.skipped == null) l.skipped = new ArrayList<>();
+            return l;
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable entry list for " + archiveKey + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package freesmelly.s3backup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes a backup to the main target and copies it to the extra ones while it is being written.
+ * The archive is produced once. Each chunk of it goes to the main target and is then queued, as the
+ * same array, for every extra target, each of which reads its queue on a thread of its own. A
+ * queue holds at most {@code bufferBytes}. A target that falls that far behind holds up the
+ * writer, so memory stays bounded, and the backup runs at the pace of the slowest target.
+ *
+ * <p>The main target decides whether the backup succeeds. An extra target that fails is dropped for
+ * the rest of the backup with a warning, and what it got of the backup is deleted again in
+ * {@link #finish}. A backup that fails is removed from the extra targets by {@link #abort}.
+ */
+final class FanOut implements AutoCloseable {
+    private static final int CHUNK = 1 << 20;
+    private static final Metrics.Counter COPIES = Metrics.counter("s3backup_target_copies_total", "Backups copied in full to an extra target");
+    private static final Metrics.Counter FAILURES = Metrics.counter("s3backup_target_failures_total", "Backups an extra target did not get a full copy of");
+
+    private final BackupTarget main;
+    private final List<Copy> extras = new ArrayList<>();
+    private final long bufferBytes;
+
+    /** One extra target and what it has of this backup so far. */
+    private static final class Copy {
+        final BackupTarget target;
+        final List<String> written = Collections.synchronizedList(new ArrayList<>());
+        final AtomicLong bytes = new AtomicLong();
+        volatile String failure;
+
+        Copy(BackupTarget target) {
+            this.target = target;
+        }
+
+        synchronized void fail(String key, Throwable e) {
+            if (failure != null) return;
+            failure = key + ": " + (e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+            BackupJob.warn("Copy to " + target.describe() + " failed, it will not have this backup (" + failure + ")");
+        }
+    }
+
+    FanOut(BackupTarget main, List<BackupTarget> extras, long bufferBytes) {
+        this.main = main;
+        for (BackupTarget t : extras) this.extras.add(new Copy(t));
+        this.bufferBytes = Math.max(CHUNK, bufferBytes);
+    }
+
+    boolean hasExtras() {
+        return !extras.isEmpty();
+    }
+
+    int extraCount() {
+        return extras.size();
+    }
+
+    /** Uploads each archive turns into, the main one included. */
+    int width() {
+        return 1 + extras.size();
+    }
+
+    private List<Copy> live() {
+        return extras.stream().filter(c -> c.failure == null).toList();
+    }
+
+    /**
+     * Writes {@code body} once, to the main target and every extra target still in the running.
+     * Returns the size the main target stored. Throws only if the main target or the writer failed.
+     */
+    long write(String key, S3Multipart.StreamWriter body) throws IOException {
+        List<Copy> copies = live();
+        if (copies.isEmpty()) return main.write(key, body);
+
+        List<Pipe> pipes = new ArrayList<>();
+        List<Future<Long>> results = new ArrayList<>();
+        try (Workers.Scope pool = Workers.streams(copies.size())) {
+            for (Copy c : copies) {
+                Pipe pipe = new Pipe(bufferBytes);
+                pipes.add(pipe);
+                results.add(pool.fork(() -> {
+                    try {
+                        return c.target.write(key, pipe::drainTo);
+                    } finally {
+                        // Whatever happened, the writer must not wait for this target any more.
+                        pipe.abandon();
+                    }
+                }));
+            }
+            long size;
+            try {
+                size = main.write(key, out -> {
+                    Tee tee = new Tee(out, pipes);
+                    body.writeTo(tee);
+                    tee.finish();
+                });
+            } catch (IOException | RuntimeException e) {
+                for (Pipe p : pipes) p.end(e);
+                // The body may have been complete and only the main target failed; note any copy
+                // that made it, so abort() can find it.
+                for (int i = 0; i < copies.size(); i++) {
+                    try {
+                        results.get(i).get();
+                        copies.get(i).written.add(key);
+                    } catch (ExecutionException ignored) {
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                throw e;
+            }
+            for (int i = 0; i < copies.size(); i++) {
+                Copy c = copies.get(i);
+                try {
+                    long n = results.get(i).get();
+                    c.written.add(key);
+                    c.bytes.addAndGet(n);
+                } catch (ExecutionException e) {
+                    c.fail(key, e.getCause() == null ? e : e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while copying " + key + " to the extra targets");
+                }
+            }
+            return size;
+        }
+    }
+
+    /** Copies a finished local archive to the extra targets, side by side; the main target has it already. */
+    void copy(String key, Path file) throws IOException {
+        List<Copy> copies = live();
+        if (copies.isEmpty()) return;
+        try (Workers.Scope pool = Workers.streams(copies.size())) {
+            List<Future<Long>> results = new ArrayList<>();
+            for (Copy c : copies) results.add(pool.fork(() -> c.target.write(key, out -> Files.copy(file, out))));
+            for (int i = 0; i < copies.size(); i++) {
+                Copy c = copies.get(i);
+                try {
+                    c.bytes.addAndGet(results.get(i).get());
+                    c.written.add(key);
+                } catch (ExecutionException e) {
+                    c.fail(key, e.getCause() == null ? e : e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while copying " + key + " to the extra targets");
+                }
+            }
+        }
+    }
+
+    /** Stores a small object on the extra targets; the caller has stored it on the main target its own way. */
+    void put(String key, byte[] data, String contentType) {
+        for (Copy c : live()) {
+            try {
+                c.target.put(key, data, contentType);
+                c.written.add(key);
+                c.bytes.addAndGet(data.length);
+            } catch (IOException | RuntimeException e) {
+                c.fail(key, e);
+            }
+        }
+    }
+
+    /**
+     * Ends the backup on the extra targets: deletes the partial copies of those that failed, and
+     * reports on each. Returns the targets that have a full copy.
+     */
+    List<String> finish() {
+        List<String> complete = new ArrayList<>();
+        for (Copy c : extras) {
+            if (c.failure == null) {
+                COPIES.inc();
+                complete.add(c.target.describe());
+                System.out.println(String.format("[S3Backup] Copied to %s: %d object(s), %,d bytes", c.target.describe(), c.written.size(), c.bytes.get()));
+                // It is a finished backup now; abort() must leave it alone.
+                c.written.clear();
+            } else {
+                FAILURES.inc();
+                discard(c);
+            }
+        }
+        return complete;
+    }
+
+    /** The backup failed: nothing it wrote to the extra targets is of use. */
+    void abort() {
+        for (Copy c : extras) discard(c);
+    }
+
+    private static void discard(Copy c) {
+        List<String> keys = List.copyOf(c.written);
+        if (keys.isEmpty()) return;
+        try {
+            c.target.delete(keys);
+            c.written.clear();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[S3Backup] Could not remove the incomplete copy from " + c.target.describe() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Copy c : extras) {
+            try {
+                c.target.close();
+            } catch (RuntimeException e) {
+                System.err.println("[S3Backup] Closing " + c.target.describe() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /** Passes writes on to the main target and collects them into chunks for the extra ones. */
+    private static final class Tee extends OutputStream {
+        private final OutputStream main;
+        private final List<Pipe> pipes;
+        private byte[] chunk = new byte[CHUNK];
+        private int used;
+
+        Tee(OutputStream main, List<Pipe> pipes) {
+            this.main = main;
+            this.pipes = pipes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            main.write(b, off, len);
+            while (len > 0) {
+                int n = Math.min(len, CHUNK - used);
+                System.arraycopy(b, off, chunk, used, n);
+                used += n;
+                off += n;
+                len -= n;
+                if (used == CHUNK) publish();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            main.flush();
+        }
+
+        private void publish() throws InterruptedIOException {
+            byte[] full = used == chunk.length ? chunk : Arrays.copyOf(chunk, used);
+            for (Pipe p : pipes) p.put(full);
+            chunk = new byte[CHUNK];
+            used = 0;
+        }
+
+        /** The body is complete; the main stream is closed by its owner. */
+        void finish() throws InterruptedIOException {
+            if (used > 0) publish();
+            for (Pipe p : pipes) p.end(null);
+        }
+    }
+
+    /** The chunks one extra target has yet to store. */
+    private static final class Pipe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<>();
+        private final long capacity;
+        private long queued;
+        private boolean ended;
+        private boolean abandoned;
+        private Exception failure;
+
+        Pipe(long capacity) {
+            this.capacity = capacity;
+        }
+
+        /** Writer side: queues {@code chunk}, waiting while the queue is full. Dropped if the target gave up. */
+        void put(byte[] chunk) throws InterruptedIOException {
+            lock.lock();
+            try {
+                while (!abandoned && queued > 0 && queued + chunk.length > capacity) changed.await();
+                if (abandoned) return;
+                chunks.add(chunk);
+                queued += chunk.length;
+                changed.signalAll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an extra target");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Writer side: no more chunks; with {@code failure}, the body is incomplete and must not be kept. */
+        void end(Exception failure) {
+            lock.lock();
+            try {
+                ended = true;
+                this.failure = failure;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Target side: stops taking chunks, so the writer never waits for this target again. */
+        void abandon() {
+            lock.lock();
+            try {
+                abandoned = true;
+                chunks.clear();
+                queued = 0;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Target side: writes every chunk to {@code out} until the writer is done. */
+        void drainTo(OutputStream out) throws IOException {
+            while (true) {
+                byte[] next;
+                lock.lock();
+                try {
+                    while (chunks.isEmpty() && !ended) changed.await();
+                    if (chunks.isEmpty()) {
+                        if (failure != null) throw new IOException("The archive was not finished", failure);
+                        return;
+                    }
+                    next = chunks.poll();
+                    queued -= next.length;
+                    changed.signalAll();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while copying to an extra target");
+                } finally {
+                    lock.unlock();
+                }
+                out.write(next);
+            }
+        }
+    }
+}
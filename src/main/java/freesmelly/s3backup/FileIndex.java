@@ -0,0 +1,158 @@
+package freesmelly.s3backup;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of every file as of the last backup: size, mtime, content CRC and which archive holds the
+ * current copy. Stored as a compact binary file (mapped read-only on load) so that a world with
+ * hundreds of thousands of files still loads in a few milliseconds.
+ *
+ * <pre>
+ * int   magic "S3BI", int version, int runsSinceFull
+ * int   archiveCount, then per archive: short len + UTF-8 key
+ * int   entryCount,   then per entry:   short len + UTF-8 path, long size, long mtime, long crc, int archive
+ * </pre>
+ */
+final class FileIndex {
+    private static final int MAGIC = 0x53334249; // "S3BI"
+    private static final int VERSION = 1;
+
+    record Entry(long size, long mtimeMillis, long crc, String archiveKey) {}
+
+    private final Map<String, Entry> entries;
+    private int runsSinceFull;
+
+    private FileIndex(Map<String, Entry> entries, int runsSinceFull) {
+        this.entries = entries;
+        this.runsSinceFull = runsSinceFull;
+    }
+
+    static FileIndex empty() {
+        return new FileIndex(new HashMap<>(), 0);
+    }
+
+    static Path path(String zipBaseName) {
+        return Paths.get("config", "s3-backup-mod", "index-" + zipBaseName + ".bin");
+    }
+
+    /** Loads the index, or returns an empty one if it is missing or unreadable (which forces a full backup). */
+    static FileIndex load(Path file) {
+        if (!Files.exists(file)) return empty();
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            buf.order(ByteOrder.BIG_ENDIAN);
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                System.err.println("[S3Backup] Ignoring incompatible file index: " + file);
+                return empty();
+            }
+            int runsSinceFull = buf.getInt();
+            String[] archives = new String[buf.getInt()];
+            for (int i = 0; i < archives.length; i++) archives[i] = readString(buf);
+            int count = buf.getInt();
+            Map<String, Entry> entries = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+            for (int i = 0; i < count; i++) {
+                String name = readString(buf);
+                long size = buf.getLong();
+                long mtime = buf.getLong();
+                long crc = buf.getLong();
+                int archive = buf.getInt();
+                entries.put(name, new Entry(size, mtime, crc, archives[archive]));
+            }
+            return new FileIndex(entries, runsSinceFull);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[S3Backup] Failed to read file index " + file + ": " + e.getMessage());
+            return empty();
+        }
+    }
+
+    /** Writes to a temp file and moves it into place, so a crash never leaves a half-written index. */
+    void save(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Map<String, Integer> archiveIds = new HashMap<>();
+        List<String> archives = new ArrayList<>();
+        for (Entry e : entries.values()) {
+            archiveIds.computeIfAbsent(e.archiveKey(), k -> {
+                archives.add(k);
+                return archives.size() - 1;
+            });
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(runsSinceFull);
+            out.writeInt(archives.size());
+            for (String a : archives) writeString(out, a);
+            out.writeInt(entries.size());
+            for (var e : entries.entrySet()) {
+                writeString(out, e.getKey());
+                Entry v = e.getValue();
+                out.writeLong(v.size());
+                out.writeLong(v.mtimeMillis());
+                out.writeLong(v.crc());
+                out.writeInt(archiveIds.get(v.archiveKey()));
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int runsSinceFull() {
+        return runsSinceFull;
+    }
+
+    void setRunsSinceFull(int runs) {
+        this.runsSinceFull = runs;
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    void put(String name, Entry e) {
+        entries.put(name, e);
+    }
+
+    Map<String, Entry> entries() {
+        return entries;
+    }
+
+    /** True if the file is new or its size or mtime differ from the indexed state. */
+    boolean changed(ZipUtil.SourceFile f) {
+        Entry e = entries.get(f.name());
+        return e == null || e.size() != f.size() || e.mtimeMillis() != f.mtimeMillis();
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] b = new byte[buf.getShort() & 0xFFFF];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        if (b.length > 0xFFFF) throw new IOException("Path too long for index: " + s);
+        out.writeShort(b.length);
+        out.write(b);
+    }
+}
@@ -0,0 +1,148 @@
+package freesmelly.s3backup;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Decides what an incremental run has to archive, collects the CRCs of what was archived, and on
+ * success folds the result back into the {@link FileIndex}. Every run also gets a manifest that
+ * maps each file of the world to the archive key holding its current copy.
+ */
+final class IncrementalPlan implements ZipUtil.EntryListener {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private final FileIndex index;
+    private final List<ZipUtil.SourceFile> all;
+    private final List<ZipUtil.SourceFile> changed;
+    private final Set<String> removed;
+    private final boolean full;
+    private final Map<String, Long> archivedCrcs = new HashMap<>();
+
+    private IncrementalPlan(FileIndex index, List<ZipUtil.SourceFile> all, List<ZipUtil.SourceFile> changed, Set<String> removed, boolean full) {
+        this.index = index;
+        this.all = all;
+        this.changed = changed;
+        this.removed = removed;
+        this.full = full;
+    }
+
+    /**
+     * @param fullEvery force a full backup when this many incremental runs have happened since the
+     *                  last one ({@code <= 1} makes every run full)
+     */
+    static IncrementalPlan create(FileIndex index, List<ZipUtil.SourceFile> files, int fullEvery) {
+        List<ZipUtil.SourceFile> changed = new ArrayList<>();
+        Set<String> present = new HashSet<>();
+        for (ZipUtil.SourceFile f : files) {
+            present.add(f.name());
+            if (index.changed(f)) changed.add(f);
+        }
+        Set<String> removed = new HashSet<>();
+        for (String name : index.entries().keySet()) {
+            if (!present.contains(name)) removed.add(name);
+        }
+        boolean full = index.isEmpty() || index.runsSinceFull() + 1 >= fullEvery;
+        return new IncrementalPlan(index, files, full ? files : changed, removed, full);
+    }
+
+    boolean isFull() {
+        return full;
+    }
+
+    /** Nothing was added, modified or deleted since the last backup. */
+    boolean worldUnchanged() {
+        return !index.isEmpty() && removed.isEmpty() && (full ? countChanged() == 0 : changed.isEmpty());
+    }
+
+    private long countChanged() {
+        return all.stream().filter(index::changed).count();
+    }
+
+    /** Files that go into this run's archive. */
+    List<ZipUtil.SourceFile> filesToArchive() {
+        return changed;
+    }
+
+    /** Synchronized: the shards of a sharded backup are written at the same time. */
+    @Override
+    public synchronized void onEntry(ZipUtil.SourceFile file, long crc, long size, long compressedSize) {
+        archivedCrcs.put(file.name(), crc);
+    }
+
+    /**
+     * Records the archive as uploaded under {@code key}: archived files now point at it, files that
+     * failed to archive keep their previous entry (or are dropped if they had none).
+     *
+     * @return the manifest JSON for this run
+     */
+    String commit(String key) {
+        return commit(key, name -> key);
+    }
+
+    /** As {@link #commit(String)} for a backup spread over several archives; {@code archiveOf} names the one holding a file. */
+    synchronized String commit(String key, Function<String, String> archiveOf) {
+        for (String name : removed) index.entries().remove(name);
+        for (ZipUtil.SourceFile f : changed) {
+            Long crc = archivedCrcs.get(f.name());
+            if (crc != null) {
+                index.put(f.name(), new FileIndex.Entry(f.size(), f.mtimeMillis(), crc, archiveOf.apply(f.name())));
+            } else if (full) {
+                index.entries().remove(f.name());
+            }
+        }
+        index.setRunsSinceFull(full ? 0 : index.runsSinceFull() + 1);
+        return manifest(key);
+    }
+
+    void saveIndex(Path file) throws IOException {
+        index.save(file);
+    }
+
+    private String manifest(String key) {
+        List<String> archives = new ArrayList<>();
+        Map<String, Integer> archiveIds = new HashMap<>();
+        Map<String, Object> files = new LinkedHashMap<>();
+        index.entries().entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(e -> {
+            FileIndex.Entry v = e.getValue();
+            int id = archiveIds.computeIfAbsent(v.archiveKey(), k -> {
+                archives.add(k);
+                return archives.size() - 1;
+            });
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("archive", id);
+            m.put("size", v.size());
+            m.put("crc", Long.toHexString(v.crc()));
+            files.put(e.getKey(), m);
+        });
+
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("backup", key);
+        root.put("full", full);
+        root.put("created", System.currentTimeMillis());
+        root.put("archives", archives);
+        root.put("files", files);
+        return GSON.toJson(root);
+    }
+
+    /** Whether {@code archiveKey} is a full or incremental archive, which is only complete with its manifest. */
+    static boolean isChainKey(String archiveKey) {
+        String stem = ArchiveFormat.stripExtension(archiveKey);
+        return stem.endsWith("-full") || stem.endsWith("-incr");
+    }
+
+    /** Key of the manifest that belongs to an archive key. */
+    static String manifestKey(String archiveKey) {
+        return ArchiveFormat.stripExtension(archiveKey) + ".manifest.json";
+    }
+}
@@ -0,0 +1,227 @@
+package freesmelly.s3backup;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Runs backups one at a time. A trigger that comes in while a job is active joins it if that job
+ * has not started reading the world yet, and otherwise joins the single job queued behind it, so
+ * any number of triggers during a long backup cost at most one more run. Finished jobs are kept in
+ * {@code config/s3-backup-mod/history.json}.
+ */
+final class JobManager {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final int HISTORY_SIZE = 50;
+
+    /** What {@code history.json} keeps of a finished job. */
+    static final class Record {
+        int id;
+        List<String> triggers;
+        long started;
+        long durationMillis;
+        String outcome;
+        String key;
+        long uploadedBytes;
+        String error;
+        Map<String, Long> phaseMillis;
+        /** How many warnings the job had, and the first few of them. */
+        int warningCount;
+        List<String> warnings;
+    }
+
+    private static final Metrics.Gauge LAST_SUCCESS = Metrics.gauge("s3backup_last_success_timestamp_seconds", "Unix time the last backup finished successfully or found nothing to do");
+    private static final Metrics.Gauge LAST_DURATION = Metrics.gauge("s3backup_last_job_duration_seconds", "Duration of the last finished backup job");
+
+    private final Executor executor;
+    private final Runnable afterJob;
+    private final Path historyPath;
+    private final List<Record> history;
+    private int nextId;
+
+    private BackupJob active;
+    private BackupJob queued;
+    private Thread runner;
+
+    /**
+     * @param executor runs the jobs' work
+     * @param afterJob runs on the job's thread once it is recorded, e.g. to export metrics
+     */
+    JobManager(Executor executor, Path historyPath, Runnable afterJob) {
+        this.executor = executor;
+        this.afterJob = afterJob;
+        this.historyPath = historyPath;
+        this.history = load(historyPath);
+        this.nextId = history.stream().mapToInt(r -> r.id).max().orElse(0) + 1;
+    }
+
+    /**
+     * Starts a job for {@code trigger} or folds it into one already pending, in which case
+     * {@code work} is dropped in favour of that job's. Returns a line for the caller.
+     */
+    synchronized String submit(String trigger, Consumer<BackupJob> work) {
+        if (active == null) {
+            active = new BackupJob(nextId++, trigger, work);
+            start(active);
+            return "Backup job #" + active.id + " started.";
+        }
+        if (active.acceptsTriggers()) {
+            active.addTrigger(trigger);
+            return "Joined backup job #" + active.id + ", which has not read the world yet.";
+        }
+        if (queued == null) {
+            queued = new BackupJob(nextId++, trigger, work);
+            return "Backup job #" + active.id + " is running; job #" + queued.id + " queued after it.";
+        }
+        queued.addTrigger(trigger);
+        return "Backup job #" + active.id + " is running; merged into queued job #" + queued.id + ".";
+    }
+
+    /**
+     * Cancels the queued job if there is one, else the active job. The active job stops at its next
+     * checkpoint; its thread is interrupted as well so a blocked upload gives up right away.
+     *
+     * @return the cancelled job, or {@code null} if there was nothing to cancel
+     */
+    synchronized BackupJob cancel() {
+        if (queued != null) {
+            BackupJob j = queued;
+            queued = null;
+            j.cancel();
+            record(j, BackupJob.Outcome.CANCELLED, null);
+            return j;
+        }
+        if (active == null) return null;
+        active.cancel();
+        if (runner != null) runner.interrupt();
+        return active;
+    }
+
+    synchronized BackupJob active() {
+        return active;
+    }
+
+    synchronized BackupJob queued() {
+        return queued;
+    }
+
+    /** Newest first. */
+    synchronized List<Record> history(int max) {
+        List<Record> out = new ArrayList<>();
+        for (int i = history.size() - 1; i >= 0 && out.size() < max; i--) out.add(history.get(i));
+        return out;
+    }
+
+    private void start(BackupJob job) {
+        executor.execute(() -> run(job));
+    }
+
+    private void run(BackupJob job) {
+        synchronized (this) {
+            if (job.cancelled()) {
+                finished(job);
+                return;
+            }
+            runner = Thread.currentThread();
+        }
+        Workers.bind(job);
+        job.started();
+        BackupJob.Outcome outcome = BackupJob.Outcome.SUCCEEDED;
+        String error = null;
+        try {
+            job.work.accept(job);
+            if (job.skipReason() != null) outcome = BackupJob.Outcome.SKIPPED;
+        } catch (Throwable t) {
+            if (job.cancelled()) {
+                outcome = BackupJob.Outcome.CANCELLED;
+            } else {
+                outcome = BackupJob.Outcome.FAILED;
+                // Skip the wrappers that only repeat their cause in the message.
+                Throwable c = t;
+                while (c.getCause() != null && c.getMessage() != null && c.getMessage().equals(c.getCause().toString())) c = c.getCause();
+                error = c.getMessage() == null ? c.getClass().getSimpleName() : c.getMessage();
+            }
+        } finally {
+            job.phase(BackupJob.Phase.DONE, 0);
+            Workers.bind(null);
+            synchronized (this) {
+                runner = null;
+                // The job may have been cancelled after its last checkpoint; clear the interrupt
+                // so it does not hit whatever the executor runs next.
+                Thread.interrupted();
+            }
+        }
+        Record r = record(job, outcome, error);
+        System.out.println(String.format("[S3Backup] Backup job #%d %s in %.1fs%s%s", job.id, outcome.name().toLowerCase(),
+                r.durationMillis / 1000.0, r.warningCount == 0 ? "" : " with " + r.warningCount + " warning(s)", error == null ? "" : ": " + error));
+        Metrics.counter("s3backup_jobs_total", "outcome=\"" + outcome.name().toLowerCase() + "\"", "Finished backup jobs by outcome").inc();
+        for (Map.Entry<String, Long> e : r.phaseMillis.entrySet()) {
+            Metrics.histogram("s3backup_phase_seconds", "phase=\"" + e.getKey() + "\"", "Time backup jobs spent in each phase").observe(e.getValue() / 1000.0);
+        }
+        LAST_DURATION.set(r.durationMillis / 1000.0);
+        if (outcome == BackupJob.Outcome.SUCCEEDED || outcome == BackupJob.Outcome.SKIPPED) LAST_SUCCESS.set(System.currentTimeMillis() / 1000.0);
+        try {
+            afterJob.run();
+        } catch (RuntimeException e) {
+            System.err.println("[S3Backup] After-job hook failed: " + e.getMessage());
+        }
+        finished(job);
+    }
+
+    /** Makes way for the queued job, if any. */
+    private synchronized void finished(BackupJob job) {
+        if (active != job) return;
+        active = queued;
+        queued = null;
+        if (active != null) start(active);
+    }
+
+    private synchronized Record record(BackupJob job, BackupJob.Outcome outcome, String error) {
+        Record r = new Record();
+        r.id = job.id;
+        r.triggers = job.triggers();
+        r.started = job.startedAt() == 0 ? job.queuedAt : job.startedAt();
+        r.durationMillis = job.startedAt() == 0 ? 0 : System.currentTimeMillis() - job.startedAt();
+        r.outcome = outcome.name();
+        r.key = job.key();
+        r.uploadedBytes = job.uploadedBytes();
+        r.error = error != null ? error : job.skipReason();
+        r.phaseMillis = job.phaseMillis();
+        r.warningCount = job.warningCount();
+        r.warnings = r.warningCount == 0 ? null : job.warnings();
+        history.add(r);
+        while (history.size() > HISTORY_SIZE) history.remove(0);
+        save();
+        return r;
+    }
+
+    private static List<Record> load(Path path) {
+        if (!Files.isRegularFile(path)) return new ArrayList<>();
+        try {
+            List<Record> l = GSON.fromJson(Files.readString(path), new TypeToken<List<Record>>() {}.getType());
+            return l == null ? new ArrayList<>() : new ArrayList<>(l);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[S3Backup] Ignoring unreadable job history " + path + ": " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    private void save() {
+        try {
+            Files.createDirectories(historyPath.getParent());
+            Path tmp = historyPath.resolveSibling(historyPath.getFileName() + ".tmp");
+            Files.writeString(tmp, GSON.toJson(history));
+            Files.move(tmp, historyPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("[S3Backup] Failed to save job history: " + e.getMessage());
+        }
+    }
+}
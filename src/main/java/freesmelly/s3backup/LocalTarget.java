@@ -0,0 +1,103 @@
+package freesmelly.s3backup;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A folder as a {@link BackupTarget}, typically a NAS mount. A key is a path below the folder,
+ * so {@code mc-backups/world-backup-...zip} lands in {@code <folder>/mc-backups/}. Each file is
+ * written as {@code <name>.part}, synced to disk and then renamed, so a file that has its final
+ * name is complete.
+ */
+final class LocalTarget implements BackupTarget {
+    private static final String PARTIAL = ".part";
+
+    private final Path root;
+
+    LocalTarget(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public String describe() {
+        return root.toString();
+    }
+
+    private Path pathOf(String key) throws IOException {
+        Path p = root.resolve(key).normalize();
+        if (!p.startsWith(root) || p.equals(root)) throw new IOException("Key " + key + " is outside " + root);
+        return p;
+    }
+
+    @Override
+    public long write(String key, S3Multipart.StreamWriter body) throws IOException {
+        Path path = pathOf(key);
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + PARTIAL);
+        boolean done = false;
+        try {
+            long size;
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                 OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 20)) {
+                body.writeTo(out);
+                out.flush();
+                // A NAS may hold writes back; the rename must not get ahead of the data.
+                ch.force(true);
+                size = ch.size();
+            }
+            move(tmp, path);
+            done = true;
+            return size;
+        } finally {
+            if (!done) Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] data, String contentType) throws IOException {
+        write(key, out -> out.write(data));
+    }
+
+    private static void move(Path from, Path to) throws IOException {
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** Files directly in the folder {@code keyPrefix} names; the catalog keeps no archives deeper than that. */
+    @Override
+    public List<Listed> list(String keyPrefix) throws IOException {
+        List<Listed> out = new ArrayList<>();
+        Path dir = keyPrefix.isEmpty() ? root : pathOf(keyPrefix);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                BasicFileAttributes attrs = Files.readAttributes(f, BasicFileAttributes.class);
+                if (!attrs.isRegularFile() || f.getFileName().toString().endsWith(PARTIAL)) continue;
+                out.add(new Listed(keyPrefix + f.getFileName(), attrs.size(), attrs.lastModifiedTime().toMillis(), null));
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing written there yet.
+        }
+        return out;
+    }
+
+    @Override
+    public void delete(List<String> keys) throws IOException {
+        for (String key : keys) Files.deleteIfExists(pathOf(key));
+    }
+}
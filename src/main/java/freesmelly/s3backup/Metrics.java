@@ -0,0 +1,340 @@
+package freesmelly.s3backup;
+
+import javax.management.*;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters, gauges and histograms, named and labelled the Prometheus way. Each one is
+ * also an MBean under {@code freesmelly.s3backup:type=Metrics} while JMX export is on, and the whole
+ * set can be written to a text file for node_exporter's textfile collector.
+ */
+final class Metrics {
+    private Metrics() {}
+
+    static final String DOMAIN = "freesmelly.s3backup";
+
+    /** Seconds, from a fast flush to an hours-long upload. */
+    static final double[] SECONDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800, 3600};
+
+    private static final Map<String, Metric> ALL = new ConcurrentHashMap<>();
+    private static volatile boolean jmx;
+
+    abstract static sealed class Metric permits Counter, Gauge, Histogram {
+        final String name;
+        final String labels;
+        final String help;
+
+        Metric(String name, String labels, String help) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+        }
+
+        abstract String type();
+
+        abstract void writeSamples(StringBuilder out);
+
+        /** Attribute name to current value, for JMX. */
+        abstract Map<String, Object> attributes();
+
+        String sample(String suffix, String extraLabel, double value) {
+            String l = labels;
+            if (extraLabel != null) l = l.isEmpty() ? extraLabel : l + "," + extraLabel;
+            return name + suffix + (l.isEmpty() ? "" : "{" + l + "}") + " " + format(value) + "\n";
+        }
+    }
+
+    static final class Counter extends Metric {
+        private final DoubleAdder value = new DoubleAdder();
+
+        Counter(String name, String labels, String help) {
+            super(name, labels, help);
+        }
+
+        void inc() {
+            value.add(1);
+        }
+
+        void add(double n) {
+            value.add(n);
+        }
+
+        double value() {
+            return value.sum();
+        }
+
+        @Override
+        String type() {
+            return "counter";
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            out.append(sample("", null, value()));
+        }
+
+        @Override
+        Map<String, Object> attributes() {
+            return Map.of("Value", value());
+        }
+    }
+
+    static final class Gauge extends Metric {
+        private volatile double value;
+
+        Gauge(String name, String labels, String help) {
+            super(name, labels, help);
+        }
+
+        void set(double v) {
+            value = v;
+        }
+
+        double value() {
+            return value;
+        }
+
+        @Override
+        String type() {
+            return "gauge";
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            out.append(sample("", null, value));
+        }
+
+        @Override
+        Map<String, Object> attributes() {
+            return Map.of("Value", value);
+        }
+    }
+
+    /** Fixed-bucket histogram; buckets are upper bounds, counted non-cumulatively and summed on export. */
+    static final class Histogram extends Metric {
+        private final double[] bounds;
+        private final AtomicLongArray counts;
+        private final DoubleAdder sum = new DoubleAdder();
+        private final LongAdder count = new LongAdder();
+        private volatile double max;
+
+        Histogram(String name, String labels, String help, double[] bounds) {
+            super(name, labels, help);
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        void observe(double v) {
+            int i = 0;
+            while (i < bounds.length && v > bounds[i]) i++;
+            counts.incrementAndGet(i);
+            sum.add(v);
+            count.increment();
+            if (v > max) max = v;
+        }
+
+        void observeNanos(long nanos) {
+            observe(nanos / 1e9);
+        }
+
+        /** Upper bound of the bucket holding quantile {@code q}; the largest value seen if that is the overflow bucket. */
+        double quantile(double q) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(q * n);
+            long seen = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return bounds[i];
+            }
+            return max;
+        }
+
+        @Override
+        String type() {
+            return "histogram";
+        }
+
+        @Override
+        void writeSamples(StringBuilder out) {
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts.get(i);
+                out.append(sample("_bucket", "le=\"" + format(bounds[i]) + "\"", cumulative));
+            }
+            cumulative += counts.get(bounds.length);
+            out.append(sample("_bucket", "le=\"+Inf\"", cumulative));
+            out.append(sample("_sum", null, sum.sum()));
+            out.append(sample("_count", null, cumulative));
+        }
+
+        @Override
+        Map<String, Object> attributes() {
+            long n = count.sum();
+            return Map.of("Count", n, "Sum", sum.sum(), "Mean", n == 0 ? 0.0 : sum.sum() / n, "Max", max,
+                    "P50", quantile(0.5), "P95", quantile(0.95), "P99", quantile(0.99));
+        }
+    }
+
+    static Counter counter(String name, String help) {
+        return counter(name, "", help);
+    }
+
+    /** @param labels Prometheus label pairs, e.g. {@code outcome="failed"}, or empty */
+    static Counter counter(String name, String labels, String help) {
+        return (Counter) ALL.computeIfAbsent(key(name, labels), k -> register(new Counter(name, labels, help)));
+    }
+
+    static Gauge gauge(String name, String help) {
+        return (Gauge) ALL.computeIfAbsent(key(name, ""), k -> register(new Gauge(name, "", help)));
+    }
+
+    static Histogram histogram(String name, String help) {
+        return histogram(name, "", help);
+    }
+
+    static Histogram histogram(String name, String labels, String help) {
+        return (Histogram) ALL.computeIfAbsent(key(name, labels), k -> register(new Histogram(name, labels, help, SECONDS)));
+    }
+
+    private static String key(String name, String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    /** Turns JMX export on or off; metrics created later follow the setting. */
+    static synchronized void configureJmx(boolean on) {
+        if (on == jmx) return;
+        jmx = on;
+        for (Metric m : ALL.values()) {
+            if (on) register(m);
+            else unregister(m);
+        }
+    }
+
+    private static <M extends Metric> M register(M m) {
+        if (!jmx) return m;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = objectName(m);
+            if (!server.isRegistered(on)) server.registerMBean(new Bean(m), on);
+        } catch (JMException | RuntimeException e) {
+            System.err.println("[S3Backup] Could not register MBean for " + m.name + ": " + e.getMessage());
+        }
+        return m;
+    }
+
+    private static void unregister(Metric m) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = objectName(m);
+            if (server.isRegistered(on)) server.unregisterMBean(on);
+        } catch (JMException | RuntimeException ignored) {}
+    }
+
+    private static ObjectName objectName(Metric m) throws MalformedObjectNameException {
+        StringBuilder sb = new StringBuilder(DOMAIN + ":type=Metrics,name=" + m.name);
+        // outcome="failed" -> outcome=failed; label values here never need quoting for JMX.
+        for (String pair : m.labels.isEmpty() ? new String[0] : m.labels.split(",")) {
+            sb.append(',').append(pair.replace("\"", ""));
+        }
+        return new ObjectName(sb.toString());
+    }
+
+    /** All metrics in the Prometheus text exposition format. */
+    static String exposition() {
+        List<Metric> sorted = new ArrayList<>(ALL.values());
+        sorted.sort((a, b) -> a.name.equals(b.name) ? a.labels.compareTo(b.labels) : a.name.compareTo(b.name));
+        StringBuilder out = new StringBuilder();
+        String last = null;
+        for (Metric m : sorted) {
+            if (!m.name.equals(last)) {
+                out.append("# HELP ").append(m.name).append(' ').append(m.help).append('\n');
+                out.append("# TYPE ").append(m.name).append(' ').append(m.type()).append('\n');
+                last = m.name;
+            }
+            m.writeSamples(out);
+        }
+        return out.toString();
+    }
+
+    /** Writes {@link #exposition} to {@code path} through a temp file, so the collector never reads half a file. */
+    static void writeTextfile(Path path) {
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.writeString(tmp, exposition());
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("[S3Backup] Failed to write metrics to " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static String format(double v) {
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) return Long.toString((long) v);
+        return Double.toString(v);
+    }
+
+    /** Read-only view of one metric; attributes are looked up each time so JConsole sees live values. */
+    private static final class Bean implements DynamicMBean {
+        private final Metric metric;
+
+        Bean(Metric metric) {
+            this.metric = metric;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object v = metric.attributes().get(attribute);
+            if (v == null) throw new AttributeNotFoundException(attribute);
+            return v;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            Map<String, Object> all = metric.attributes();
+            for (String a : attributes) {
+                if (all.containsKey(a)) list.add(new Attribute(a, all.get(a)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attrs = new ArrayList<>();
+            for (Map.Entry<String, Object> e : metric.attributes().entrySet()) {
+                attrs.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Bean.class.getName(), metric.help, attrs.toArray(MBeanAttributeInfo[]::new), null, null, null);
+        }
+    }
+}
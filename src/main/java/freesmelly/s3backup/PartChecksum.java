@@ -0,0 +1,157 @@
+package freesmelly.s3backup;
+
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.Part;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksum sent with every uploaded part. Streamed parts are hashed while the part buffer fills and
+ * the value goes in a header; S3 echoes it back and that is compared as well. File parts are hashed
+ * by the SDK while it reads the body and the value goes in a trailer, so the file is read once.
+ * Either way the SDK never buffers a body to compute it, and S3 rejects a part whose body does not
+ * match.
+ */
+enum PartChecksum {
+    NONE, CRC32C, SHA256;
+
+    static PartChecksum parse(String s) {
+        if (s == null || s.isBlank()) return NONE;
+        return valueOf(s.trim().toUpperCase(Locale.ROOT).replace("-", ""));
+    }
+
+    /** Algorithm to declare on CreateMultipartUpload, or null for none. */
+    ChecksumAlgorithm algorithm() {
+        return switch (this) {
+            case NONE -> null;
+            case CRC32C -> ChecksumAlgorithm.CRC32_C;
+            case SHA256 -> ChecksumAlgorithm.SHA256;
+        };
+    }
+
+    /** Incremental hasher; {@link Hasher#value()} is the base64 string S3 expects. */
+    Hasher hasher() {
+        return switch (this) {
+            case NONE -> null;
+            case CRC32C -> new Hasher() {
+                private final CRC32C crc = new CRC32C();
+
+                @Override
+                public void update(byte[] b, int off, int len) {
+                    crc.update(b, off, len);
+                }
+
+                @Override
+                public void update(ByteBuffer b) {
+                    crc.update(b);
+                }
+
+                @Override
+                public String value() {
+                    return Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+                }
+            };
+            case SHA256 -> new Hasher() {
+                private final MessageDigest md = sha256();
+
+                @Override
+                public void update(byte[] b, int off, int len) {
+                    md.update(b, off, len);
+                }
+
+                @Override
+                public void update(ByteBuffer b) {
+                    md.update(b);
+                }
+
+                @Override
+                public String value() {
+                    return Base64.getEncoder().encodeToString(md.digest());
+                }
+            };
+        };
+    }
+
+    interface Hasher {
+        void update(byte[] b, int off, int len);
+
+        /** Consumes the buffer's remaining bytes; works on direct buffers without copying to the heap. */
+        void update(ByteBuffer b);
+
+        String value();
+    }
+
+    UploadPartRequest.Builder apply(UploadPartRequest.Builder b, String value) {
+        return switch (this) {
+            case NONE -> b;
+            case CRC32C -> b.checksumCRC32C(value);
+            case SHA256 -> b.checksumSHA256(value);
+        };
+    }
+
+    /** Has the SDK compute the checksum while it sends the body and send it as a trailer. */
+    UploadPartRequest.Builder trailing(UploadPartRequest.Builder b) {
+        return this == NONE ? b : b.checksumAlgorithm(algorithm());
+    }
+
+    CompletedPart.Builder apply(CompletedPart.Builder b, String value) {
+        return switch (this) {
+            case NONE -> b;
+            case CRC32C -> b.checksumCRC32C(value);
+            case SHA256 -> b.checksumSHA256(value);
+        };
+    }
+
+    String from(Part p) {
+        return switch (this) {
+            case NONE -> null;
+            case CRC32C -> p.checksumCRC32C();
+            case SHA256 -> p.checksumSHA256();
+        };
+    }
+
+    /** The checksum S3 has for an uploaded part, or null if it did not say. */
+    String from(UploadPartResponse resp) {
+        return switch (this) {
+            case NONE -> null;
+            case CRC32C -> resp.checksumCRC32C();
+            case SHA256 -> resp.checksumSHA256();
+        };
+    }
+
+    /**
+     * Throws if S3 echoed a checksum that differs from what was sent. A missing echo (some
+     * S3-compatible stores do not return one) is accepted.
+     */
+    void verify(UploadPartResponse resp, String sent, int partNumber) throws MismatchException {
+        String got = from(resp);
+        if (got != null && sent != null && !got.equals(sent)) {
+            throw new MismatchException("Part " + partNumber + " checksum mismatch: sent " + sent + ", S3 has " + got);
+        }
+    }
+
+    static final class MismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        MismatchException(String message) {
+            super(message);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package freesmelly.s3backup;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retries single part uploads with exponential backoff and full jitter. One instance is shared by
+ * every part of a backup: each retry draws from a common budget, so a link that is down for good
+ * fails the backup after a bounded number of attempts instead of retrying every part to its limit.
+ */
+final class PartRetry {
+    private static final Metrics.Counter RETRIES = Metrics.counter("s3backup_part_retries_total", "Part upload attempts that were retried");
+
+    private static final long BASE_DELAY_MS = 500;
+    private static final long MAX_DELAY_MS = 30_000;
+
+    private final int maxAttempts;
+    private final AtomicInteger budget;
+    private final AtomicInteger used = new AtomicInteger();
+    /** The job this backup belongs to, so async callbacks on other threads still see it cancelled. */
+    private final BackupJob job = BackupJob.current();
+
+    /**
+     * @param maxAttempts attempts per part, including the first
+     * @param budget      retries allowed across all parts of this backup
+     */
+    PartRetry(int maxAttempts, int budget) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.budget = new AtomicInteger(Math.max(0, budget));
+    }
+
+    /** No retries at all; used where nothing was configured. */
+    static PartRetry none() {
+        return new PartRetry(1, 0);
+    }
+
+    <T> T call(String what, Callable<T> action) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return action.call();
+            } catch (Exception e) {
+                long delay = backoff(what, attempt, e);
+                if (delay < 0) throw e;
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry " + what);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decides whether attempt {@code attempt} of {@code what}, which failed with {@code e}, gets
+     * another try, and takes it from the budget if so. For callers that cannot sleep on their own
+     * thread, such as async uploads.
+     *
+     * @return the delay before the next attempt in milliseconds, or -1 to give up with {@code e}
+     * @throws IOException if {@code e} was retryable but the budget is used up
+     */
+    long backoff(String what, int attempt, Throwable e) throws IOException {
+        if (attempt >= maxAttempts || !retryable(e) || (job != null && job.cancelled()) || BackupJob.cancelling()) return -1;
+        if (budget.getAndDecrement() <= 0) {
+            budget.incrementAndGet();
+            throw new IOException("Retry budget exhausted (" + used.get() + " retries) at " + what, e);
+        }
+        used.incrementAndGet();
+        RETRIES.inc();
+        long cap = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt - 1, 16));
+        long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+        System.err.println("[S3Backup] " + what + " failed (attempt " + attempt + "/" + maxAttempts + "): " + e.getMessage() + "; retrying in " + delay + " ms");
+        return delay;
+    }
+
+    int retriesUsed() {
+        return used.get();
+    }
+
+    /** Network trouble, throttling, server errors and bad checksums are worth another try; the rest are not. */
+    static boolean retryable(Throwable t) {
+        if (t instanceof PartChecksum.MismatchException) return true;
+        if (t instanceof S3Exception s3) {
+            int status = s3.statusCode();
+            if (status >= 500 || status == 429 || status == 408) return true;
+            String code = s3.awsErrorDetails() == null ? null : s3.awsErrorDetails().errorCode();
+            return "BadDigest".equals(code) || "RequestTimeout".equals(code) || "XAmzContentSHA256Mismatch".equals(code);
+        }
+        if (t instanceof SdkClientException) return true;
+        return t instanceof IOException && !(t instanceof InterruptedIOException);
+    }
+}
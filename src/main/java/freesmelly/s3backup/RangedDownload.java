@@ -0,0 +1,178 @@
+package freesmelly.s3backup;
+
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads one object front to back through parallel ranged GETs. Up to {@code window} chunks are in
+ * flight ahead of the reader, each in a {@link BufferPool} buffer, so memory stays at
+ * {@code (window + 1) * chunkSize} however big the object is and nothing touches the disk.
+ * Every range is pinned to the ETag seen when the download started; an object replaced halfway
+ * fails the read instead of yielding a mix of two uploads.
+ */
+final class RangedDownload extends InputStream {
+    private record Chunk(long offset, int length, ByteBuffer buf, Future<?> done) {}
+
+    private final S3Client s3;
+    private final String bucket;
+    private final String key;
+    private final String etag;
+    private final long size;
+    private final int chunkSize;
+    private final int window;
+    private final PartRetry retry;
+    private final BufferPool pool = BufferPool.shared();
+    private final Workers.Scope fetchers;
+    private final ArrayDeque<Chunk> ahead = new ArrayDeque<>();
+    private long nextOffset;
+    private Chunk current;
+    private long delivered;
+    private boolean closed;
+
+    /**
+     * @param size      object length, from a HEAD
+     * @param etag      the ETag from that HEAD
+     * @param window    ranges fetched concurrently; lowered if the buffer pool cannot hold them
+     */
+    RangedDownload(S3Client s3, String bucket, String key, long size, String etag, int chunkSize, int window, PartRetry retry) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.size = size;
+        this.etag = etag;
+        this.chunkSize = Math.max(64 * 1024, chunkSize);
+        // The reader holds one buffer while the window fills; more than the pool can hold would wait forever.
+        long fits = pool.capBytes() / this.chunkSize - 1;
+        this.window = (int) Math.max(1, Math.min(Math.max(1, window), fits));
+        this.retry = retry;
+        this.fetchers = Workers.io(this.window);
+    }
+
+    int window() {
+        return window;
+    }
+
+    /** Bytes handed to the reader so far. */
+    long position() {
+        return delivered;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Download of " + key + " is closed");
+        if (len == 0) return 0;
+        if (current == null || !current.buf.hasRemaining()) {
+            if (!advance()) return -1;
+        }
+        int n = Math.min(len, current.buf.remaining());
+        current.buf.get(b, off, n);
+        delivered += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        byte[] scratch = new byte[(int) Math.min(64 * 1024, Math.max(1, n))];
+        while (skipped < n) {
+            int r = read(scratch, 0, (int) Math.min(scratch.length, n - skipped));
+            if (r < 0) break;
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.buf.remaining();
+    }
+
+    /** Moves to the next chunk, topping the window up first so the fetchers never idle while we wait. */
+    private boolean advance() throws IOException {
+        if (current != null) {
+            pool.release(current.buf);
+            current = null;
+        }
+        while (ahead.size() < window && nextOffset < size) {
+            int len = (int) Math.min(chunkSize, size - nextOffset);
+            ByteBuffer buf = pool.acquire(len);
+            long offset = nextOffset;
+            ahead.add(new Chunk(offset, len, buf, fetchers.fork(() -> {
+                fetch(offset, len, buf);
+                return null;
+            })));
+            nextOffset += len;
+        }
+        Chunk next = ahead.poll();
+        if (next == null) return false;
+        try {
+            next.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.release(next.buf);
+            throw new InterruptedIOException("Interrupted while downloading " + key);
+        } catch (ExecutionException e) {
+            pool.release(next.buf);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            throw new IOException("Download of bytes " + next.offset + "-" + (next.offset + next.length - 1) + " of " + key + " failed: " + cause.getMessage(), cause);
+        }
+        next.buf.flip();
+        current = next;
+        return true;
+    }
+
+    private void fetch(long offset, int len, ByteBuffer buf) throws Exception {
+        String range = "bytes=" + offset + "-" + (offset + len - 1);
+        retry.call(range + " of " + key, () -> {
+            buf.clear();
+            GetObjectRequest req = GetObjectRequest.builder().bucket(bucket).key(key).range(range).ifMatch(etag).build();
+            try (ResponseInputStream<GetObjectResponse> in = s3.getObject(req)) {
+                ReadableByteChannel ch = Channels.newChannel(in);
+                while (buf.position() < len) {
+                    if (ch.read(buf) < 0) break;
+                }
+                // A server that ignores Range sends the whole object; anything but the exact range is an error.
+                if (buf.position() != len || in.read() >= 0) {
+                    in.abort();
+                    throw new IOException("Expected " + len + " bytes for " + range + " of " + key + ", got " + buf.position() + (buf.position() == len ? "+" : ""));
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        // A cancelled fetch may still be writing into its buffer; only give buffers back once it stopped.
+        boolean stopped = fetchers.cancelAndAwait(30, TimeUnit.SECONDS);
+        fetchers.close();
+        if (stopped) {
+            for (Chunk c : ahead) pool.release(c.buf);
+            if (current != null) pool.release(current.buf);
+        }
+        ahead.clear();
+        current = null;
+    }
+}
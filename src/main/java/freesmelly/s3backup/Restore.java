@@ -0,0 +1,778 @@
+package freesmelly.s3backup;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ChecksumMode;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Downloads a backup with parallel ranged GETs and unpacks it while it arrives into a staging
+ * folder next to the world, so a restore needs no temp file and no second pass. Zip entries are
+ * checked against their CRCs as they are inflated, tar.zst against the zstd frame checksums, every
+ * file against the incremental manifest when the backup has one, and the whole object against the
+ * full-object checksum S3 keeps for it. A {@link ChunkStore} snapshot is put together from ranged
+ * GETs of its packs instead, every chunk checked against its SHA-256.
+ *
+ * <p>A finished staging folder carries a marker file. The live world is only replaced on the next
+ * start, before it is loaded, by {@link #applyPending}; the old one is kept next to it. A
+ * {@linkplain #selective selective} restore is merged into the world instead of replacing it.
+ */
+final class Restore {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+    /** Written into the staging folder last; a folder without it is an interrupted restore. */
+    static final String MARKER = ".s3backup-restore.json";
+    private static final Metrics.Counter DOWNLOADED = Metrics.counter("s3backup_restore_downloaded_bytes_total", "Archive bytes downloaded by restores");
+    private static final Metrics.Histogram DURATION = Metrics.histogram("s3backup_restore_seconds", "Downloading and unpacking a backup into the staging folder");
+
+    /** {@code downloaded} counts every byte fetched: whole archives, or index and entry ranges for a selective restore. */
+    record Result(String key, int files, long bytes, long downloaded, int archives, boolean objectChecksummed, long millis) {}
+
+    /** Matching entries closer together than this are fetched with one GET, gap included. */
+    private static final long MAX_GAP = 256 * 1024;
+
+    /** What the manifest says a file must look like. */
+    private record Expected(long size, long crc) {}
+
+    private final S3Client s3;
+    private final String bucket;
+    private final int chunkSize;
+    private final int parallelism;
+    private final PartRetry retry;
+    private final Consumer<String> log;
+
+    /**
+     * @param chunkSize   bytes per ranged GET
+     * @param parallelism ranged GETs in flight at once
+     * @param log         progress lines, e.g. to the console or a command source
+     */
+    Restore(S3Client s3, String bucket, int chunkSize, int parallelism, PartRetry retry, Consumer<String> log) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.retry = retry;
+        this.log = log;
+    }
+
+    /** {@code <world>.restore}, on the same file system so the swap is a rename. */
+    static Path stagingDir(Path world) {
+        return world.resolveSibling(world.getFileName() + ".restore");
+    }
+
+    static Path pendingFile() {
+        return Paths.get("config", "s3-backup-mod", "pending-restore.json");
+    }
+
+    /**
+     * Resolves a backup id ({@code world-backup-2025-06-01T03-00-00.1}) to its key by trying each
+     * archive extension under {@code keyPrefix}; a full key is returned as is. For callers without
+     * a catalog, like the offline tool.
+     */
+    static String resolveKey(S3Client s3, String bucket, String keyPrefix, String idOrKey) throws IOException {
+        if (ArchiveFormat.isArchiveKey(idOrKey)) return idOrKey;
+        for (String ext : ArchiveFormat.EXTENSIONS) {
+            String key = ChunkStore.SNAPSHOT_EXTENSION.equals(ext) ? ChunkStore.snapshotKey(keyPrefix, idOrKey) : keyPrefix + idOrKey + ext;
+            try {
+                s3.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+                return key;
+            } catch (NoSuchKeyException e) {
+                // try the next extension
+            } catch (S3Exception e) {
+                if (e.statusCode() != 404) throw e;
+            }
+        }
+        throw new IOException("No backup " + idOrKey + " in s3://" + bucket + "/" + keyPrefix);
+    }
+
+    /**
+     * Restores {@code key} into {@code target}, replacing whatever is there. An incremental backup
+     * pulls each file from the archive the manifest names for it, back to the last full backup; a
+     * sharded one unpacks its shards side by side.
+     */
+    Result toStaging(String key, Path target) throws IOException {
+        long start = System.nanoTime();
+        Path staging = target.toAbsolutePath().normalize();
+        deleteTree(staging);
+        Files.createDirectories(staging);
+        if (ChunkStore.isSnapshotKey(key)) return fromChunks(key, staging, null, start);
+
+        JsonObject manifest = manifest(key);
+        Map<String, Map<String, Expected>> byArchive = new LinkedHashMap<>();
+        if (manifest == null) {
+            for (String a : archivesOf(key)) byArchive.put(a, null);
+        } else {
+            byArchive = wanted(manifest);
+        }
+        int total = byArchive.values().stream().mapToInt(w -> w == null ? 0 : w.size()).sum();
+        int files = 0;
+        long bytes = 0;
+        long archiveBytes = 0;
+        boolean checksummed = true;
+        for (Extracted x : eachArchive(byArchive, (r, a, want) -> {
+            Extracted got = r.extract(a, staging, want, null);
+            if (want != null && !want.isEmpty()) {
+                String first = want.keySet().iterator().next();
+                throw new IOException(want.size() + " file(s) listed in the manifest are missing from " + a + ", e.g. " + first);
+            }
+            return got;
+        })) {
+            files += x.files;
+            bytes += x.bytes;
+            archiveBytes += x.archiveBytes;
+            checksummed &= x.checksummed;
+        }
+        List<String> archives = List.copyOf(byArchive.keySet());
+        if (manifest != null) log.accept("Restored all " + total + " files listed in the manifest from " + archives.size() + " archive(s)");
+
+        Map<String, Object> marker = new LinkedHashMap<>();
+        marker.put("backup", key);
+        marker.put("archives", archives);
+        marker.put("files", files);
+        marker.put("bytes", bytes);
+        marker.put("restoredAt", System.currentTimeMillis());
+        Files.writeString(staging.resolve(MARKER), GSON.toJson(marker));
+        long nanos = System.nanoTime() - start;
+        DURATION.observeNanos(nanos);
+        return new Result(key, files, bytes, archiveBytes, archives.size(), checksummed, nanos / 1_000_000L);
+    }
+
+    /**
+     * Restores only what {@code selection} matches into {@code target}. A zip archive is read
+     * through its central directory ({@link ZipIndex}) and only the matching entries are fetched,
+     * nearby ones with a shared ranged GET. tar.zst has no directory, so such an archive is
+     * streamed whole and only the matches are kept. Shards whose entry list has no match are not
+     * touched, so {@code dim:nether} on a sharded backup only reads the nether shard.
+     */
+    Result selective(String key, Selection selection, Path target) throws IOException {
+        long start = System.nanoTime();
+        Path staging = target.toAbsolutePath().normalize();
+        deleteTree(staging);
+        Files.createDirectories(staging);
+        if (ChunkStore.isSnapshotKey(key)) return fromChunks(key, staging, selection, start);
+
+        JsonObject manifest = manifest(key);
+        Map<String, Map<String, Expected>> byArchive = new LinkedHashMap<>();
+        if (manifest == null) {
+            for (String a : archivesOf(key)) {
+                if (a.equals(key) || mayMatch(a, selection)) byArchive.put(a, null);
+            }
+        } else {
+            for (Map.Entry<String, Map<String, Expected>> a : wanted(manifest).entrySet()) {
+                a.getValue().keySet().removeIf(n -> !selection.matches(n));
+                if (!a.getValue().isEmpty()) byArchive.put(a.getKey(), a.getValue());
+            }
+        }
+        int files = 0;
+        long bytes = 0;
+        long downloaded = 0;
+        for (Extracted x : eachArchive(byArchive, (r, a, want) -> {
+            Extracted got = a.endsWith(".zip")
+                    ? r.fromIndex(a, staging, want, selection)
+                    : r.extract(a, staging, want, want == null ? selection::matches : null);
+            if (want != null && !want.isEmpty()) {
+                throw new IOException(want.size() + " selected file(s) are missing from " + a + ", e.g. " + want.keySet().iterator().next());
+            }
+            return got;
+        })) {
+            files += x.files;
+            bytes += x.bytes;
+            downloaded += x.archiveBytes;
+        }
+        if (files == 0) throw new IOException("Nothing in " + key + " matches " + selection);
+
+        Map<String, Object> marker = new LinkedHashMap<>();
+        marker.put("backup", key);
+        marker.put("archives", List.copyOf(byArchive.keySet()));
+        marker.put("selection", selection.toString());
+        marker.put("files", files);
+        marker.put("bytes", bytes);
+        marker.put("restoredAt", System.currentTimeMillis());
+        Files.writeString(staging.resolve(MARKER), GSON.toJson(marker));
+        long nanos = System.nanoTime() - start;
+        DURATION.observeNanos(nanos);
+        return new Result(key, files, bytes, downloaded, byArchive.size(), false, nanos / 1_000_000L);
+    }
+
+    /** The archives of a backup: its shards if it is sharded, else just {@code key}. */
+    private List<String> archivesOf(String key) throws IOException {
+        return Shards.isManifestKey(key) ? Shards.load(s3, bucket, key).keys() : List.of(key);
+    }
+
+    /** False if the entry list stored with a shard shows nothing in it matches; true when in doubt. */
+    private boolean mayMatch(String archive, Selection selection) throws IOException {
+        EntryList list = EntryList.load(s3, bucket, archive);
+        return list == null || list.entries.stream().anyMatch(i -> selection.matches(i.name()));
+    }
+
+    private interface ArchiveTask {
+        Extracted run(Restore restore, String archive, Map<String, Expected> want) throws IOException;
+    }
+
+    /**
+     * Runs {@code task} for each archive, several archives at once when there is more than one. The
+     * {@code parallelism} GETs are split between the archives in flight. There are never more of
+     * them than the buffer pool can give a full read-ahead window each, because a download that
+     * waits for a buffer while holding chunks it has not handed out yet would wait forever.
+     */
+    private List<Extracted> eachArchive(Map<String, Map<String, Expected>> byArchive, ArchiveTask task) throws IOException {
+        if (byArchive.size() <= 1) {
+            List<Extracted> out = new ArrayList<>();
+            for (Map.Entry<String, Map<String, Expected>> a : byArchive.entrySet()) out.add(task.run(this, a.getKey(), a.getValue()));
+            return out;
+        }
+        long cap = BufferPool.shared().capBytes();
+        int at = Math.min(byArchive.size(), Math.max(1, parallelism / 2));
+        while (at > 1 && (long) at * (parallelism / at + 1) * chunkSize > cap) at--;
+        int per = Math.max(1, parallelism / at);
+        log.accept("Restoring " + byArchive.size() + " archives, " + at + " at a time");
+
+        Workers.Scope pool = Workers.streams(at);
+        try {
+            List<Future<Extracted>> done = new ArrayList<>();
+            for (Map.Entry<String, Map<String, Expected>> a : byArchive.entrySet()) {
+                Restore sub = new Restore(s3, bucket, chunkSize, per, retry, log);
+                done.add(pool.fork(() -> task.run(sub, a.getKey(), a.getValue())));
+            }
+            List<Extracted> out = new ArrayList<>();
+            for (Future<Extracted> f : done) out.add(f.get());
+            return out;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while restoring");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            throw new IOException(cause.getMessage(), cause);
+        } finally {
+            pool.close();
+        }
+    }
+
+    /** Fetches the selected entries of one zip archive with ranged GETs, {@code parallelism} at a time. */
+    private Extracted fromIndex(String key, Path staging, Map<String, Expected> want, Selection selection) throws IOException {
+        ZipIndex idx = ZipIndex.load(s3, bucket, key);
+        Map<String, Expected> expect = new ConcurrentHashMap<>();
+        List<ZipIndex.Entry> picks = new ArrayList<>();
+        for (ZipIndex.Entry e : idx.entries) {
+            if (want != null ? !want.containsKey(e.name()) : !selection.matches(e.name())) continue;
+            Expected m = want == null ? null : want.get(e.name());
+            if (m != null && (m.size != e.size() || m.crc != e.crc())) {
+                throw new IOException(e.name() + " in " + key + " is not the copy the manifest lists");
+            }
+            picks.add(e);
+            expect.put(e.name(), new Expected(e.size(), e.crc()));
+        }
+        // The index is sorted by offset; neighbours share a GET unless the gap or the span gets too big.
+        List<List<ZipIndex.Entry>> spans = new ArrayList<>();
+        List<ZipIndex.Entry> span = null;
+        for (ZipIndex.Entry e : picks) {
+            if (span == null || e.offset() - span.get(span.size() - 1).end() > MAX_GAP || e.end() - span.get(0).offset() > chunkSize) {
+                span = new ArrayList<>();
+                spans.add(span);
+            }
+            span.add(e);
+        }
+        log.accept("Fetching " + picks.size() + " of " + idx.entries.size() + " entries of " + key + " with " + spans.size() + " ranged GET(s)");
+
+        int files = 0;
+        long bytes = 0;
+        long downloaded = idx.fetchedBytes;
+        Workers.Scope pool = Workers.io(parallelism);
+        try {
+            List<Future<long[]>> done = new ArrayList<>();
+            for (List<ZipIndex.Entry> s : spans) {
+                done.add(pool.fork(() -> retry.call("entries at " + s.get(0).offset() + " of " + key, () -> fetchSpan(key, idx.etag, s, staging, expect))));
+            }
+            for (Future<long[]> f : done) {
+                long[] r = f.get();
+                files += (int) r[0];
+                bytes += r[1];
+                downloaded += r[2];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while restoring from " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            throw new IOException(cause.getMessage(), cause);
+        } finally {
+            pool.close();
+        }
+        DOWNLOADED.add(downloaded);
+        if (want != null) want.keySet().removeIf(n -> !expect.containsKey(n));
+        if (!expect.isEmpty()) throw new IOException(expect.size() + " selected entries of " + key + " were not restored, e.g. " + expect.keySet().iterator().next());
+        log.accept("Unpacked " + files + " files (" + (bytes >> 10) + " KB) from " + key + ", " + (downloaded >> 10) + " KB downloaded");
+        return new Extracted(files, bytes, downloaded, false);
+    }
+
+    /** @return files written, their bytes, and the bytes fetched */
+    private long[] fetchSpan(String key, String etag, List<ZipIndex.Entry> span, Path staging, Map<String, Expected> expect) throws IOException {
+        long from = span.get(0).offset();
+        long to = span.get(span.size() - 1).end();
+        GetObjectRequest req = GetObjectRequest.builder().bucket(bucket).key(key).ifMatch(etag).range("bytes=" + from + "-" + (to - 1)).build();
+        long files = 0;
+        long bytes = 0;
+        try (InputStream in = new BufferedInputStream(s3.getObject(req), 1 << 16)) {
+            long pos = from;
+            for (ZipIndex.Entry e : span) {
+                in.skipNBytes(e.offset() - pos);
+                try (ZipIndex.EntryStream body = ZipIndex.openEntry(in, e, key)) {
+                    long n = unpack(e.name(), body, staging, e.mtimeMillis(), expect);
+                    if (n >= 0) {
+                        files++;
+                        bytes += n;
+                    }
+                    pos = body.end();
+                }
+            }
+        }
+        return new long[]{files, bytes, to - from};
+    }
+
+    private record Extracted(int files, long bytes, long archiveBytes, boolean checksummed) {}
+
+    /**
+     * Restores the files of a chunk snapshot, or those {@code selection} matches, {@code parallelism}
+     * files at a time. A file's chunks that sit close together in one pack are fetched with one
+     * ranged GET, up to {@code chunkSize} bytes; every chunk must match its SHA-256 and every file
+     * the size the snapshot lists.
+     */
+    private Result fromChunks(String key, Path staging, Selection selection, long start) throws IOException {
+        ChunkStore.Snapshot snap = ChunkStore.loadSnapshot(s3, bucket, key);
+        List<ChunkStore.SnapshotFile> picks = snap.files().stream().filter(f -> selection == null || selection.matches(f.path())).toList();
+        if (picks.isEmpty()) throw new IOException(selection == null ? key + " lists no files" : "Nothing in " + key + " matches " + selection);
+        Set<Long> packs = ConcurrentHashMap.newKeySet();
+        log.accept("Restoring " + picks.size() + " of " + snap.files().size() + " files of " + key + " from its chunks");
+
+        long bytes = 0;
+        long downloaded = snap.fetchedBytes();
+        Workers.Scope pool = Workers.io(parallelism);
+        try {
+            List<Future<long[]>> done = new ArrayList<>();
+            for (ChunkStore.SnapshotFile f : picks) done.add(pool.fork(() -> assemble(snap, f, staging, packs)));
+            for (Future<long[]> f : done) {
+                long[] r = f.get();
+                bytes += r[0];
+                downloaded += r[1];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while restoring " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) throw io;
+            throw new IOException(cause.getMessage(), cause);
+        } finally {
+            pool.close();
+        }
+        DOWNLOADED.add(downloaded);
+        log.accept("Put together " + picks.size() + " files (" + (bytes >> 20) + " MB) from " + packs.size() + " pack(s), " + (downloaded >> 20) + " MB downloaded");
+
+        Map<String, Object> marker = new LinkedHashMap<>();
+        marker.put("backup", key);
+        marker.put("packs", packs.size());
+        if (selection != null) marker.put("selection", selection.toString());
+        marker.put("files", picks.size());
+        marker.put("bytes", bytes);
+        marker.put("restoredAt", System.currentTimeMillis());
+        Files.writeString(staging.resolve(MARKER), GSON.toJson(marker));
+        long nanos = System.nanoTime() - start;
+        DURATION.observeNanos(nanos);
+        return new Result(key, picks.size(), bytes, downloaded, packs.size(), true, nanos / 1_000_000L);
+    }
+
+    /** @return the file's size and the bytes fetched for it */
+    private long[] assemble(ChunkStore.Snapshot snap, ChunkStore.SnapshotFile f, Path staging, Set<Long> packs) throws Exception {
+        Path target = inside(staging, f.path());
+        Files.createDirectories(target.getParent());
+        int[] refs = f.chunks();
+        long size = 0;
+        long fetched = 0;
+        try (OutputStream out = Files.newOutputStream(target)) {
+            int i = 0;
+            while (i < refs.length) {
+                // Following chunks of the same pack join the span while the gap and the span stay small.
+                ChunkStore.StoredChunk first = snap.chunks().get(refs[i]);
+                int end = i + 1;
+                while (end < refs.length) {
+                    ChunkStore.StoredChunk prev = snap.chunks().get(refs[end - 1]);
+                    ChunkStore.StoredChunk c = snap.chunks().get(refs[end]);
+                    if (c.pack() != first.pack() || c.offset() < prev.end() || c.offset() - prev.end() > MAX_GAP || c.end() - first.offset() > chunkSize) break;
+                    end++;
+                }
+                long from = first.offset();
+                long to = snap.chunks().get(refs[end - 1]).end();
+                String packKey = snap.packKey(first.pack());
+                byte[] span = retry.call("chunks at " + from + " of " + packKey, () -> s3.getObjectAsBytes(GetObjectRequest.builder()
+                        .bucket(bucket).key(packKey).range("bytes=" + from + "-" + (to - 1)).build()).asByteArray());
+                if (span.length != to - from) throw new IOException("Got " + span.length + " of " + (to - from) + " bytes at " + from + " of " + packKey);
+                for (int k = i; k < end; k++) {
+                    ChunkStore.StoredChunk c = snap.chunks().get(refs[k]);
+                    byte[] raw = ChunkStore.decode(c, span, (int) (c.offset() - from));
+                    out.write(raw);
+                    size += raw.length;
+                }
+                packs.add(first.pack());
+                fetched += span.length;
+                i = end;
+            }
+        }
+        if (size != f.size()) throw new IOException(f.path() + " came out as " + size + " bytes, the snapshot lists " + f.size());
+        if (f.mtimeMillis() > 0) Files.setLastModifiedTime(target, FileTime.fromMillis(f.mtimeMillis()));
+        return new long[]{size, fetched};
+    }
+
+    /**
+     * Streams one archive into {@code staging}. With {@code wanted}, only those files are written and
+     * each one is removed from the map once it checked out.
+     */
+    private Extracted extract(String key, Path staging, Map<String, Expected> wanted, Predicate<String> only) throws IOException {
+        HeadObjectResponse head = s3.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).checksumMode(ChecksumMode.ENABLED).build());
+        long size = head.contentLength();
+        ObjectDigest digest = ObjectDigest.of(head);
+        log.accept("Downloading " + key + " (" + (size >> 20) + " MB" + (digest == null ? "" : ", " + digest.algorithm) + ")");
+
+        int files = 0;
+        long bytes = 0;
+        try (RangedDownload dl = new RangedDownload(s3, bucket, key, size, head.eTag(), chunkSize, parallelism, retry)) {
+            HashingStream raw = new HashingStream(dl, digest);
+            if (key.endsWith(".zip")) {
+                ZipInputStream zip = new ZipInputStream(new BufferedInputStream(raw, 1 << 16));
+                ZipEntry ze;
+                while ((ze = zip.getNextEntry()) != null) {
+                    // ZipInputStream compares each entry's CRC with the archive's when the entry ends.
+                    if (ze.isDirectory() || (only != null && !only.test(ze.getName()))) continue;
+                    long mtime = ze.getLastModifiedTime() == null ? -1 : ze.getLastModifiedTime().toMillis();
+                    long n = unpack(ze.getName(), zip, staging, mtime, wanted);
+                    if (n >= 0) {
+                        files++;
+                        bytes += n;
+                    }
+                }
+            } else {
+                // Reads across independent frames and skips the seek table of the seekable format.
+                ZstdInputStream zstd = new ZstdInputStream(new BufferedInputStream(raw, 1 << 16));
+                TarReader tar = new TarReader(zstd);
+                TarReader.Entry te;
+                while ((te = tar.next()) != null) {
+                    if (!te.file() || (only != null && !only.test(te.name()))) continue;
+                    long n = unpack(te.name(), tar.body(), staging, te.mtimeMillis(), wanted);
+                    if (n >= 0) {
+                        files++;
+                        bytes += n;
+                    }
+                }
+                // The rest of the frame, so its content checksum is checked too.
+                zstd.transferTo(OutputStream.nullOutputStream());
+            }
+            // The zip central directory, or whatever else follows the last entry.
+            raw.transferTo(OutputStream.nullOutputStream());
+            DOWNLOADED.add(dl.position());
+            if (dl.position() != size) throw new IOException("Downloaded " + dl.position() + " of " + size + " bytes of " + key);
+            if (digest != null) {
+                String got = digest.hasher.value();
+                if (!got.equals(digest.expected)) {
+                    throw new IOException(digest.algorithm + " of " + key + " is " + got + ", S3 has " + digest.expected);
+                }
+            }
+        }
+        log.accept("Unpacked " + files + " files (" + (bytes >> 20) + " MB) from " + key);
+        return new Extracted(files, bytes, size, digest != null);
+    }
+
+    /**
+     * Writes one archive member below {@code staging}.
+     *
+     * @return its size, or -1 if {@code wanted} does not ask for it
+     */
+    private static long unpack(String name, InputStream in, Path staging, long mtimeMillis, Map<String, Expected> wanted) throws IOException {
+        Expected exp = null;
+        if (wanted != null) {
+            exp = wanted.get(name);
+            if (exp == null) return -1;
+        }
+        Path target = inside(staging, name);
+        Files.createDirectories(target.getParent());
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] buf = new byte[1 << 16];
+        try (OutputStream out = Files.newOutputStream(target)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                crc.update(buf, 0, n);
+                out.write(buf, 0, n);
+                size += n;
+            }
+        }
+        if (mtimeMillis > 0) Files.setLastModifiedTime(target, FileTime.fromMillis(mtimeMillis));
+        if (exp != null) {
+            if (exp.size != size || exp.crc != crc.getValue()) {
+                throw new IOException(name + " does not match the manifest: " + size + " bytes, CRC " + Long.toHexString(crc.getValue())
+                        + " instead of " + exp.size + " bytes, CRC " + Long.toHexString(exp.crc));
+            }
+            wanted.remove(name);
+        }
+        return size;
+    }
+
+    /** Where {@code name} goes below {@code staging}; a name that leads anywhere else is refused. */
+    private static Path inside(Path staging, String name) throws IOException {
+        Path target = staging.resolve(name).normalize();
+        if (!target.startsWith(staging) || target.equals(staging)) {
+            throw new IOException("Archive entry " + name + " points outside the restore folder");
+        }
+        return target;
+    }
+
+    /** The manifest stored with a full or incremental backup, or null for a plain one. */
+    private JsonObject manifest(String key) throws IOException {
+        String stem = ArchiveFormat.stripExtension(key);
+        if (!stem.endsWith("-full") && !stem.endsWith("-incr")) return null;
+        String manifestKey = IncrementalPlan.manifestKey(key);
+        try {
+            String json = s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(manifestKey).build()).asUtf8String();
+            return JsonParser.parseString(json).getAsJsonObject();
+        } catch (NoSuchKeyException e) {
+            if (stem.endsWith("-incr")) throw new IOException("Incremental backup " + key + " has no manifest (" + manifestKey + "), cannot tell which archives it needs");
+            log.accept("No manifest for " + key + ", restoring the archive as is");
+            return null;
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable manifest " + manifestKey + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** Manifest files grouped by the archive holding their current copy. */
+    private static Map<String, Map<String, Expected>> wanted(JsonObject manifest) {
+        List<String> archives = new ArrayList<>();
+        for (JsonElement a : manifest.getAsJsonArray("archives")) archives.add(a.getAsString());
+        Map<Integer, Map<String, Expected>> byId = new HashMap<>();
+        for (Map.Entry<String, JsonElement> f : manifest.getAsJsonObject("files").entrySet()) {
+            JsonObject o = f.getValue().getAsJsonObject();
+            byId.computeIfAbsent(o.get("archive").getAsInt(), k -> new HashMap<>())
+                    .put(f.getKey(), new Expected(o.get("size").getAsLong(), Long.parseUnsignedLong(o.get("crc").getAsString(), 16)));
+        }
+        Map<String, Map<String, Expected>> out = new LinkedHashMap<>();
+        for (int i = 0; i < archives.size(); i++) {
+            if (byId.containsKey(i)) out.put(archives.get(i), byId.get(i));
+        }
+        return out;
+    }
+
+    /**
+     * Remembers a finished staging folder for the next start, which swaps it in for the world, or
+     * with {@code merge} copies its files over the world's.
+     */
+    static void schedule(Path world, Path staging, String key, boolean merge) throws IOException {
+        Map<String, Object> pending = new LinkedHashMap<>();
+        pending.put("world", world.toAbsolutePath().normalize().toString());
+        pending.put("staging", staging.toAbsolutePath().normalize().toString());
+        pending.put("backup", key);
+        pending.put("merge", merge);
+        Path p = pendingFile();
+        Files.createDirectories(p.getParent());
+        Files.writeString(p, GSON.toJson(pending));
+    }
+
+    /**
+     * Swaps a staged restore in, if one is pending. Runs at startup before the world is loaded; an
+     * unfinished staging folder is left alone and reported.
+     */
+    static void applyPending() {
+        Path p = pendingFile();
+        if (!Files.isRegularFile(p)) return;
+        try {
+            JsonObject pending = JsonParser.parseString(Files.readString(p)).getAsJsonObject();
+            Path world = Paths.get(pending.get("world").getAsString());
+            Path staging = Paths.get(pending.get("staging").getAsString());
+            if (!Files.isRegularFile(staging.resolve(MARKER))) {
+                System.err.println("[S3Backup] Pending restore in " + staging + " is incomplete, not applying it. Run the restore again.");
+                Files.delete(p);
+                return;
+            }
+            boolean merge = pending.has("merge") && pending.get("merge").getAsBoolean();
+            Path old = merge ? merge(world, staging) : swap(world, staging);
+            Files.delete(p);
+            System.out.println("[S3Backup] Restored " + pending.get("backup").getAsString() + " into " + world
+                    + (old == null ? "" : "; the previous world is in " + old));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[S3Backup] Could not apply the pending restore (" + p + "): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves {@code world} aside to {@code <world>.pre-restore-<time>} and {@code staging} into its
+     * place. Both are renames within one folder.
+     *
+     * @return where the old world went, or null if there was none
+     */
+    static Path swap(Path world, Path staging) throws IOException {
+        Path old = null;
+        if (Files.exists(world)) {
+            old = world.resolveSibling(world.getFileName() + ".pre-restore-" + LocalDateTime.now().toString().replace(':', '-'));
+            Files.move(world, old, StandardCopyOption.ATOMIC_MOVE);
+        }
+        try {
+            Files.move(staging, world, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (old != null) Files.move(old, world, StandardCopyOption.ATOMIC_MOVE);
+            throw e;
+        }
+        Files.deleteIfExists(world.resolve(MARKER));
+        return old;
+    }
+
+    /**
+     * Moves every file of {@code staging} into {@code world}. Files they replace are kept under
+     * {@code <world>.pre-restore-<time>} with the same relative paths.
+     *
+     * @return that folder, or null if nothing was replaced
+     */
+    static Path merge(Path world, Path staging) throws IOException {
+        Path old = world.resolveSibling(world.getFileName() + ".pre-restore-" + LocalDateTime.now().toString().replace(':', '-'));
+        List<Path> files;
+        try (var walk = Files.walk(staging)) {
+            files = walk.filter(Files::isRegularFile).map(staging::relativize).filter(r -> !r.toString().equals(MARKER)).toList();
+        }
+        for (Path rel : files) {
+            Path target = world.resolve(rel);
+            if (Files.exists(target)) {
+                Files.createDirectories(old.resolve(rel).getParent());
+                Files.move(target, old.resolve(rel));
+            }
+            Files.createDirectories(target.getParent());
+            Files.move(staging.resolve(rel), target);
+        }
+        deleteTree(staging);
+        return Files.exists(old) ? old : null;
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                if (e != null) throw e;
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /** The full-object checksum S3 has for an object; composite multipart checksums cannot be recomputed from the bytes alone. */
+    private record ObjectDigest(String algorithm, String expected, PartChecksum.Hasher hasher) {
+        static ObjectDigest of(HeadObjectResponse head) {
+            if (usable(head.checksumCRC32C())) return new ObjectDigest("CRC32C", head.checksumCRC32C(), PartChecksum.CRC32C.hasher());
+            if (usable(head.checksumSHA256())) return new ObjectDigest("SHA256", head.checksumSHA256(), PartChecksum.SHA256.hasher());
+            if (usable(head.checksumCRC32())) return new ObjectDigest("CRC32", head.checksumCRC32(), crc32());
+            return null;
+        }
+
+        private static boolean usable(String value) {
+            return value != null && !value.contains("-");
+        }
+
+        private static PartChecksum.Hasher crc32() {
+            return new PartChecksum.Hasher() {
+                private final CRC32 crc = new CRC32();
+
+                @Override
+                public void update(byte[] b, int off, int len) {
+                    crc.update(b, off, len);
+                }
+
+                @Override
+                public void update(ByteBuffer b) {
+                    crc.update(b);
+                }
+
+                @Override
+                public String value() {
+                    return Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array());
+                }
+            };
+        }
+    }
+
+    /** Feeds everything read through it to the object digest, if there is one. */
+    private static final class HashingStream extends FilterInputStream {
+        private final ObjectDigest digest;
+
+        HashingStream(InputStream in, ObjectDigest digest) {
+            super(in);
+            this.digest = digest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0 && digest != null) digest.hasher.update(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] scratch = new byte[(int) Math.min(64 * 1024, Math.max(1, n))];
+            long skipped = 0;
+            while (skipped < n) {
+                int r = read(scratch, 0, (int) Math.min(scratch.length, n - skipped));
+                if (r < 0) break;
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() {
+            // The download is closed by its owner.
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package freesmelly.s3backup;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Offline restore, for a server that is down or a machine without one:
+ *
+ * <pre>
+ * java -cp s3-backup-mod.jar:gson.jar freesmelly.s3backup.RestoreCli [options] &lt;backup id or key&gt; &lt;world folder&gt;
+ * </pre>
+ *
+ * Run from the server folder it takes bucket, prefix, region and endpoint from the mod's config
+ * and the credentials the mod uses; options override them. The world folder is replaced right
+ * away, the old one moved to {@code <world>.pre-restore-<time>}. With {@code --only}, just the
+ * matching files are fetched and replace the world's copies.
+ */
+public final class RestoreCli {
+    private RestoreCli() {}
+
+    private static final String USAGE = """
+            Usage: RestoreCli [options] <backup id or key> <world folder>
+              --bucket NAME        bucket (default: from config/s3-backup-mod.json)
+              --prefix PREFIX      key prefix of the backups
+              --region REGION      AWS region
+              --endpoint URL       S3-compatible endpoint
+              --path-style         path-style addressing
+              --parallelism N      ranged GETs in flight (default 8)
+              --chunk-mb N         size of each ranged GET in MB (default 8)
+              --only SELECTORS     restore only matching files, merged into the world; e.g.
+                                   "region:overworld:3,-2 player:<uuid> data/**" (see README)
+              --stage-only         unpack into <world>.restore and let the next server start swap it in
+            """;
+
+    /**
+     * The mod's settings, where BackupService keeps them. MOD_ID is a compile-time constant, so this
+     * does not load the mod class and its Fabric dependencies.
+     */
+    static Path configFile() {
+        return Paths.get("config", S3BackupMod.MOD_ID + ".json");
+    }
+
+    public static void main(String[] args) {
+        try {
+            System.exit(run(args));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("[S3Backup] Restore failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    static int run(String[] args) throws IOException {
+        JsonObject cfg = new JsonObject();
+        Path cfgFile = configFile();
+        if (Files.isRegularFile(cfgFile)) cfg = JsonParser.parseString(Files.readString(cfgFile)).getAsJsonObject();
+
+        String bucket = str(cfg, "s3Bucket", "");
+        String prefix = str(cfg, "s3Prefix", "");
+        String region = str(cfg, "awsRegion", System.getenv().getOrDefault("AWS_REGION", "us-east-1"));
+        String endpoint = str(cfg, "s3Endpoint", "");
+        boolean pathStyle = cfg.has("s3PathStyle") && cfg.get("s3PathStyle").getAsBoolean();
+        int parallelism = cfg.has("restoreParallelism") ? cfg.get("restoreParallelism").getAsInt() : 8;
+        int chunkMB = cfg.has("restoreChunkMB") ? cfg.get("restoreChunkMB").getAsInt() : 8;
+        boolean stageOnly = false;
+        Selection only = null;
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--bucket" -> bucket = value(args, ++i);
+                case "--prefix" -> prefix = value(args, ++i);
+                case "--region" -> region = value(args, ++i);
+                case "--endpoint" -> endpoint = value(args, ++i);
+                case "--path-style" -> pathStyle = true;
+                case "--parallelism" -> parallelism = Integer.parseInt(value(args, ++i));
+                case "--chunk-mb" -> chunkMB = Integer.parseInt(value(args, ++i));
+                case "--stage-only" -> stageOnly = true;
+                case "--only" -> only = Selection.parse(value(args, ++i));
+                case "-h", "--help" -> {
+                    System.out.print(USAGE);
+                    return 0;
+                }
+                default -> {
+                    if (args[i].startsWith("--")) throw new IllegalArgumentException("Unknown option " + args[i] + "\n" + USAGE);
+                    positional.add(args[i]);
+                }
+            }
+        }
+        if (positional.size() != 2 || bucket.isBlank()) {
+            System.err.print(USAGE);
+            return 2;
+        }
+        prefix = prefix.replaceAll("^/+", "").replaceAll("/+$", "");
+        String keyPrefix = prefix.isBlank() ? "" : prefix + "/";
+        Path world = Paths.get(positional.get(1)).toAbsolutePath().normalize();
+
+        S3ClientHolder.init(new S3ClientHolder.Settings(region, endpoint, pathStyle, "apache", Math.max(16, parallelism), 60, 0));
+        String key = Restore.resolveKey(S3ClientHolder.client(), bucket, keyPrefix, positional.get(0));
+        Restore restore = new Restore(S3ClientHolder.client(), bucket, Math.max(1, chunkMB) * 1024 * 1024, parallelism,
+                new PartRetry(5, 20), line -> System.out.println("[S3Backup] " + line));
+        Path staging = Restore.stagingDir(world);
+        Restore.Result r = only == null ? restore.toStaging(key, staging) : restore.selective(key, only, staging);
+        System.out.println("[S3Backup] " + r.files() + " files, " + (r.bytes() >> 20) + " MB, " + (r.downloaded() >> 20) + " MB downloaded in "
+                + r.millis() / 1000 + " s" + (r.objectChecksummed() ? ", object checksums verified" : ""));
+        if (stageOnly) {
+            Restore.schedule(world, staging, key, only != null);
+            System.out.println("[S3Backup] Staged in " + staging + "; the next server start " + (only == null ? "swaps it in." : "copies it into the world."));
+        } else {
+            Path old = only == null ? Restore.swap(world, staging) : Restore.merge(world, staging);
+            System.out.println("[S3Backup] World restored to " + world + (old == null ? "" : "; the previous world is in " + old));
+        }
+        return 0;
+    }
+
+    private static String str(JsonObject o, String name, String fallback) {
+        return o.has(name) && !o.get(name).isJsonNull() ? o.get(name).getAsString() : fallback;
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        return args[i];
+    }
+}
@@ -0,0 +1,170 @@
+package freesmelly.s3backup;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Grandfather-father-son retention: the last {@code last} backups, plus the newest backup of each
+ * of the last {@code hourly} hours, {@code daily} days, {@code weekly} ISO weeks and
+ * {@code monthly} months that have one. A tier set to {@code 0} keeps nothing on its own; all
+ * zero keeps everything. A {@link ChunkStore} snapshot is a backup like any other here; the packs
+ * it leaves unused are for {@link ChunkStore#sweep}.
+ */
+record Retention(int last, int hourly, int daily, int weekly, int monthly) {
+    /** DeleteObjects takes at most this many keys. */
+    private static final int DELETE_BATCH = 1000;
+
+    record Result(int deleted, int failed, String firstError) {}
+
+    boolean keepsEverything() {
+        return last <= 0 && hourly <= 0 && daily <= 0 && weekly <= 0 && monthly <= 0;
+    }
+
+    /** Keys of the archives to keep out of {@code newestFirst}. */
+    Set<String> keep(List<BackupCatalog.Entry> newestFirst, ZoneId zone) {
+        Set<String> keep = new HashSet<>();
+        if (keepsEverything()) {
+            for (BackupCatalog.Entry e : newestFirst) keep.add(e.key);
+            return keep;
+        }
+        for (int i = 0; i < Math.min(last, newestFirst.size()); i++) keep.add(newestFirst.get(i).key);
+        tier(newestFirst, hourly, zone, t -> t.truncatedTo(ChronoUnit.HOURS), keep);
+        tier(newestFirst, daily, zone, LocalDateTime::toLocalDate, keep);
+        tier(newestFirst, weekly, zone, t -> t.get(IsoFields.WEEK_BASED_YEAR) * 100 + t.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR), keep);
+        tier(newestFirst, monthly, zone, t -> t.getYear() * 100 + t.getMonthValue(), keep);
+
+        // A kept incremental is useless without everything back to its full backup.
+        for (int i = 0; i < newestFirst.size(); i++) {
+            if (!keep.contains(newestFirst.get(i).key) || !newestFirst.get(i).incremental()) continue;
+            for (int j = i + 1; j < newestFirst.size(); j++) {
+                keep.add(newestFirst.get(j).key);
+                if (!newestFirst.get(j).incremental()) break;
+            }
+        }
+        return keep;
+    }
+
+    /** Keeps the newest backup in each of the {@code count} most recent periods that have one. */
+    private static void tier(List<BackupCatalog.Entry> newestFirst, int count, ZoneId zone,
+                             Function<LocalDateTime, Object> period, Set<String> keep) {
+        if (count <= 0) return;
+        Set<Object> seen = new HashSet<>();
+        for (BackupCatalog.Entry e : newestFirst) {
+            if (seen.add(period.apply(LocalDateTime.ofInstant(Instant.ofEpochMilli(e.createdAt), zone)))) {
+                keep.add(e.key);
+                if (seen.size() >= count) return;
+            }
+        }
+    }
+
+    /**
+     * Deletes every catalogued backup this policy does not keep, up to 1000 keys per DeleteObjects
+     * request, and drops the ones that went from the catalog. A backup with any key that could not
+     * be deleted stays catalogued and is tried again next time.
+     */
+    Result prune(S3Client s3, BackupCatalog catalog) {
+        List<BackupCatalog.Entry> all = catalog.entries();
+        Set<String> keep = keep(all, ZoneId.systemDefault());
+        // Archive key -> every key that belongs to it.
+        Map<String, List<String>> doomed = new LinkedHashMap<>();
+        for (BackupCatalog.Entry e : all) {
+            if (!keep.contains(e.key)) doomed.put(e.key, e.keys());
+        }
+        if (doomed.isEmpty()) return new Result(0, 0, null);
+
+        List<String> keys = new ArrayList<>();
+        doomed.values().forEach(keys::addAll);
+        Map<String, String> errors = new HashMap<>();
+        for (int from = 0; from < keys.size(); from += DELETE_BATCH) {
+            List<String> batch = keys.subList(from, Math.min(keys.size(), from + DELETE_BATCH));
+            try {
+                DeleteObjectsResponse resp = s3.deleteObjects(DeleteObjectsRequest.builder()
+                        .bucket(catalog.bucket)
+                        .delete(Delete.builder()
+                                .objects(batch.stream().map(k -> ObjectIdentifier.builder().key(k).build()).toList())
+                                .quiet(true)
+                                .build())
+                        .build());
+                for (S3Error err : resp.errors()) errors.put(err.key(), err.code() + ": " + err.message());
+            } catch (RuntimeException e) {
+                for (String k : batch) errors.put(k, e.getMessage());
+            }
+        }
+
+        List<String> deleted = new ArrayList<>();
+        String firstError = null;
+        for (Map.Entry<String, List<String>> d : doomed.entrySet()) {
+            String err = null;
+            for (String k : d.getValue()) {
+                if (errors.containsKey(k)) {
+                    err = errors.get(k);
+                    break;
+                }
+            }
+            if (err == null) {
+                deleted.add(d.getKey());
+                for (String k : d.getValue()) {
+                    if (ArchiveFormat.isArchiveKey(k)) ZipIndex.forget(k);
+                }
+                System.out.println("[S3Backup] Deleted old S3 backup: " + d.getKey());
+            } else {
+                if (firstError == null) firstError = d.getKey() + " (" + err + ")";
+                System.err.println("[S3Backup] Could not delete old backup " + d.getKey() + ": " + err);
+            }
+        }
+        // Deleting a key that is already gone succeeds, so a retry of a half-deleted backup is safe.
+        catalog.remove(deleted);
+        return new Result(deleted.size(), doomed.size() - deleted.size(), firstError);
+    }
+
+    /**
+     * Applies this policy to the copies on an extra target. A target has no catalog, so its backups
+     * come from a listing and are dated by when they were written there.
+     */
+    Result prune(BackupTarget target, String keyPrefix, String zipBaseName) {
+        List<BackupCatalog.Entry> all;
+        try {
+            all = new ArrayList<>(BackupCatalog.fromListed(target.list(keyPrefix), keyPrefix, zipBaseName));
+        } catch (IOException e) {
+            return new Result(0, 1, target.describe() + " (" + e.getMessage() + ")");
+        }
+        all.sort(Comparator.comparingLong((BackupCatalog.Entry e) -> e.createdAt).reversed());
+        Set<String> keep = keep(all, ZoneId.systemDefault());
+        int deleted = 0;
+        int failed = 0;
+        String firstError = null;
+        for (BackupCatalog.Entry e : all) {
+            if (keep.contains(e.key)) continue;
+            try {
+                target.delete(e.keys());
+                deleted++;
+                System.out.println("[S3Backup] Deleted old backup " + e.key + " from " + target.describe());
+            } catch (IOException | RuntimeException ex) {
+                failed++;
+                if (firstError == null) firstError = e.key + " on " + target.describe() + " (" + ex.getMessage() + ")";
+                System.err.println("[S3Backup] Could not delete old backup " + e.key + " from " + target.describe() + ": " + ex.getMessage());
+            }
+        }
+        return new Result(deleted, failed, firstError);
+    }
+}
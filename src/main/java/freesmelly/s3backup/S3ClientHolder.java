@@ -1,49 +1,151 @@
 package freesmelly.s3backup;
 
+import io.netty.channel.ChannelOption;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3ClientBuilder;
 
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.time.Duration;
+
 public final class S3ClientHolder {
     private S3ClientHolder() {}
 
     private static volatile S3Client S3;
+    private static volatile S3AsyncClient ASYNC;
+    private static volatile Settings settings;
+
+    /**
+     * How to reach S3.
+     *
+     * @param endpoint        custom endpoint (MinIO, a local stand-in, ...); blank for AWS
+     * @param httpClient      {@code apache} (pooled, keep-alive) or {@code urlconnection}
+     * @param maxConnections  connection pool size, shared by all parallel parts
+     * @param idleSeconds     pooled connections idle this long are closed
+     * @param socketBufferKB  TCP send/receive buffer size (HTTPS only on the Apache client);
+     *                        0 leaves the OS default
+     */
+    public record Settings(String region, String endpoint, boolean pathStyle, String httpClient,
+                           int maxConnections, int idleSeconds, int socketBufferKB) {}
 
-    public static synchronized void rebuild(String region) {
+    public static synchronized void rebuild(Settings s) {
         if (S3 != null) {
             try { S3.close(); } catch (Throwable ignored) {}
             S3 = null;
         }
-        init(region);
+        if (ASYNC != null) {
+            try { ASYNC.close(); } catch (Throwable ignored) {}
+            ASYNC = null;
+        }
+        init(s);
     }
 
-    public static void init(String region) {
+    public static void init(Settings s) {
         if (S3 != null) return;
         synchronized (S3ClientHolder.class) {
             if (S3 == null) {
-                S3ClientBuilder builder = S3Client.builder()
-                        .region(Region.of(region))
-                        .httpClient(UrlConnectionHttpClient.create());
-
-                var inline = CredentialsStore.load();
-                if (inline != null && inline.accessKeyId != null && inline.secretAccessKey != null) {
-                    var creds = (inline.sessionToken == null || inline.sessionToken.isBlank())
-                            ? AwsBasicCredentials.create(inline.accessKeyId, inline.secretAccessKey)
-                            : AwsSessionCredentials.create(inline.accessKeyId, inline.secretAccessKey, inline.sessionToken);
-                    builder.credentialsProvider(StaticCredentialsProvider.create(creds));
-                } else {
-                    builder.credentialsProvider(DefaultCredentialsProvider.create());
+                settings = s;
+                S3 = build(s);
+            }
+        }
+    }
+
+    /**
+     * A client of its own, for a second bucket in another region or on another endpoint; same
+     * credentials and upload limit as the main one. The caller closes it.
+     */
+    public static S3Client build(Settings s) {
+        S3ClientBuilder builder = S3Client.builder()
+                .region(Region.of(s.region()))
+                .httpClient(httpClient(s))
+                .overrideConfiguration(o -> o.addExecutionInterceptor(new Bandwidth.UploadThrottle()))
+                .credentialsProvider(credentials());
+        if (s.endpoint() != null && !s.endpoint().isBlank()) builder.endpointOverride(URI.create(s.endpoint().trim()));
+        if (s.pathStyle()) builder.forcePathStyle(true);
+        return builder.build();
+    }
+
+    public static S3Client client() { return S3; }
+
+    /**
+     * Non-blocking client on a Netty event loop, built on first use so servers that never enable
+     * {@code asyncUpload} do not start its threads.
+     */
+    public static S3AsyncClient asyncClient() {
+        if (ASYNC != null) return ASYNC;
+        synchronized (S3ClientHolder.class) {
+            if (ASYNC == null) {
+                Settings s = settings;
+                if (s == null) throw new IllegalStateException("S3ClientHolder not initialised");
+                NettyNioAsyncHttpClient.Builder http = NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(Math.max(1, s.maxConnections()))
+                        .connectionMaxIdleTime(Duration.ofSeconds(Math.max(1, s.idleSeconds())))
+                        .tcpKeepAlive(true);
+                if (s.socketBufferKB() > 0) {
+                    http.putChannelOption(ChannelOption.SO_SNDBUF, s.socketBufferKB() * 1024);
+                    http.putChannelOption(ChannelOption.SO_RCVBUF, s.socketBufferKB() * 1024);
                 }
+                S3AsyncClientBuilder builder = S3AsyncClient.builder()
+                        .region(Region.of(s.region()))
+                        .httpClientBuilder(http)
+                        .credentialsProvider(credentials());
+                if (s.endpoint() != null && !s.endpoint().isBlank()) builder.endpointOverride(URI.create(s.endpoint().trim()));
+                if (s.pathStyle()) builder.forcePathStyle(true);
 
-                S3 = builder.build();
+                ASYNC = builder.build();
             }
         }
+        return ASYNC;
     }
 
-    public static S3Client client() { return S3; }
+    private static SdkHttpClient httpClient(Settings s) {
+        if ("urlconnection".equalsIgnoreCase(s.httpClient())) return UrlConnectionHttpClient.create();
+
+        ApacheHttpClient.Builder b = ApacheHttpClient.builder()
+                .maxConnections(Math.max(1, s.maxConnections()))
+                .connectionMaxIdleTime(Duration.ofSeconds(Math.max(1, s.idleSeconds())))
+                .useIdleConnectionReaper(true)
+                .tcpKeepAlive(true);
+        if (s.socketBufferKB() > 0) {
+            // Buffer sizes have to be set before connect for TCP window scaling to pick them up.
+            int bytes = s.socketBufferKB() * 1024;
+            b.socketFactory(new SSLConnectionSocketFactory(SSLContexts.createDefault(), SSLConnectionSocketFactory.getDefaultHostnameVerifier()) {
+                @Override
+                public Socket createSocket(HttpContext context) throws IOException {
+                    Socket socket = super.createSocket(context);
+                    socket.setSendBufferSize(bytes);
+                    socket.setReceiveBufferSize(bytes);
+                    return socket;
+                }
+            });
+        }
+        return b.build();
+    }
+
+    private static AwsCredentialsProvider credentials() {
+        var inline = CredentialsStore.load();
+        if (inline != null && inline.accessKeyId != null && inline.secretAccessKey != null) {
+            var creds = (inline.sessionToken == null || inline.sessionToken.isBlank())
+                    ? AwsBasicCredentials.create(inline.accessKeyId, inline.secretAccessKey)
+                    : AwsSessionCredentials.create(inline.accessKeyId, inline.secretAccessKey, inline.sessionToken);
+            return StaticCredentialsProvider.create(creds);
+        }
+        return DefaultCredentialsProvider.create();
+    }
 }
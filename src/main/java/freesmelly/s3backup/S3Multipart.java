@@ -1,42 +1,65 @@
 package freesmelly.s3backup;
 
+import software.amazon.awssdk.core.FileRequestBodyConfiguration;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
 import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.ContentStreamProvider;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
 import software.amazon.awssdk.services.s3.model.CompletedPart;
 import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsRequest;
+import software.amazon.awssdk.services.s3.model.ListMultipartUploadsResponse;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.ListPartsResponse;
+import software.amazon.awssdk.services.s3.model.MultipartUpload;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
+import software.amazon.awssdk.services.s3.model.Part;
 import software.amazon.awssdk.services.s3.model.UploadPartRequest;
 import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 final class S3Multipart {
     private S3Multipart() {}
 
+    private static final Metrics.Histogram PART_SECONDS = Metrics.histogram("s3backup_part_upload_seconds", "Time to send one part, without bandwidth-limit waits where known");
+    private static final Metrics.Counter PART_FAILURES = Metrics.counter("s3backup_part_failures_total", "Part upload attempts that failed");
+
     static boolean needsMultipart(Path file, long thresholdBytes) throws IOException {
         return Files.size(file) >= thresholdBytes;
     }
 
-    static void upload(S3Client s3, Path file, String bucket, String key, long partSizeBytes) throws IOException {
+    static void upload(S3Client s3, Path file, String bucket, String key, long partSizeBytes, PartRetry retry, PartChecksum checksum) throws IOException {
         final long min = 5L * 1024 * 1024;
         final long max = 5L * 1024 * 1024 * 1024;
         if (partSizeBytes < min) partSizeBytes = min;
         if (partSizeBytes > max) partSizeBytes = max;
-        if (partSizeBytes > Integer.MAX_VALUE) partSizeBytes = Integer.MAX_VALUE;
 
         String uploadId = null;
+        UploadJournal journal = null;
         long startNs = System.nanoTime();
 
         try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
@@ -46,37 +69,22 @@ final class S3Multipart {
             System.out.println("[S3Backup] Multipart upload (sequential) starting: " + key + " size=" + size + " bytes parts=" + partCount + " partSize=" + partSizeBytes);
 
             uploadId = s3.createMultipartUpload(
-                    CreateMultipartUploadRequest.builder().bucket(bucket).key(key).build()
+                    CreateMultipartUploadRequest.builder().bucket(bucket).key(key).checksumAlgorithm(checksum.algorithm()).build()
             ).uploadId();
+            journal = UploadJournal.begin(bucket, key, uploadId, file, size, partSizeBytes, checksum);
 
             List<CompletedPart> completed = new ArrayList<>();
             long position = 0L;
             int partNumber = 1;
             AtomicLong uploaded = new AtomicLong(0L);
+            AdaptiveConcurrency limit = new AdaptiveConcurrency(1);
 
             while (position < size) {
                 long thisPart = Math.min(partSizeBytes, size - position);
-                byte[] bytes = new byte[(int) thisPart];
-                ByteBuffer buf = ByteBuffer.wrap(bytes);
-                long remaining = thisPart;
-                while (remaining > 0) {
-                    int n = fc.read(buf, position + (thisPart - remaining));
-                    if (n < 0) break;
-                    remaining -= n;
-                }
-
                 System.out.println("[S3Backup] Uploading part " + partNumber + "/" + partCount + " (" + thisPart + " bytes)");
-                UploadPartResponse resp = s3.uploadPart(
-                        UploadPartRequest.builder()
-                                .bucket(bucket).key(key)
-                                .uploadId(uploadId)
-                                .partNumber(partNumber)
-                                .contentLength(thisPart)
-                                .build(),
-                        RequestBody.fromBytes(bytes)
-                );
-
-                completed.add(CompletedPart.builder().partNumber(partNumber).eTag(resp.eTag()).build());
+                CompletedPart part = sendPart(s3, bucket, key, uploadId, partNumber, fileRange(fc, position, thisPart), thisPart, null, checksum, retry, limit);
+                completed.add(part);
+                journal.partDone(partNumber, part.eTag());
                 long done = uploaded.addAndGet(thisPart);
                 double pct = (done * 100.0) / size;
                 System.out.println(String.format("[S3Backup] Progress %.2f%% (%d/%d bytes)", pct, done, size));
@@ -90,33 +98,28 @@ final class S3Multipart {
                     .uploadId(uploadId)
                     .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
                     .build());
+            journal.delete();
 
             double secs = (System.nanoTime() - startNs) / 1_000_000_000.0;
             double mbps = (size / (1024.0 * 1024.0)) / Math.max(0.001, secs);
             System.out.println(String.format("[S3Backup] Multipart complete: %s in %.2fs (%.2f MiB/s)", key, secs, mbps));
 
-        } catch (RuntimeException | IOException e) {
-            if (uploadId != null) {
-                try { s3.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(uploadId).build()); } catch (Exception ignored) {}
-            }
-            throw e;
+        } catch (Exception e) {
+            abortUnlessJournaled(s3, bucket, key, uploadId, journal);
+            throw (e instanceof IOException) ? (IOException) e : new IOException(e);
         }
     }
 
-    static void uploadParallel(S3Client s3, Path file, String bucket, String key, long partSizeBytes, int parallelism) throws IOException {
+    static void uploadParallel(S3Client s3, Path file, String bucket, String key, long partSizeBytes, int parallelism, PartRetry retry, PartChecksum checksum) throws IOException {
         final long min = 5L * 1024 * 1024;
         final long max = 5L * 1024 * 1024 * 1024;
         if (partSizeBytes < min) partSizeBytes = min;
         if (partSizeBytes > max) partSizeBytes = max;
-        if (partSizeBytes > Integer.MAX_VALUE) partSizeBytes = Integer.MAX_VALUE;
         if (parallelism < 1) parallelism = 1;
 
         String uploadId = null;
-        ExecutorService pool = Executors.newFixedThreadPool(parallelism, r -> {
-            Thread t = new Thread(r, "S3Multipart-Worker");
-            t.setDaemon(true);
-            return t;
-        });
+        UploadJournal journal = null;
+        Workers.Scope pool = Workers.io(parallelism);
 
         long startNs = System.nanoTime();
 
@@ -128,68 +131,735 @@ final class S3Multipart {
 
             System.out.println("[S3Backup] Multipart upload (parallel) starting: " + key + " size=" + size + " bytes parts=" + partCount + " partSize=" + partSizeBytes + " threads=" + parallelism);
 
-            uploadId = s3.createMultipartUpload(CreateMultipartUploadRequest.builder().bucket(bucket).key(key).build()).uploadId();
+            uploadId = s3.createMultipartUpload(CreateMultipartUploadRequest.builder().bucket(bucket).key(key).checksumAlgorithm(checksum.algorithm()).build()).uploadId();
+            journal = UploadJournal.begin(bucket, key, uploadId, file, size, partSizeBytes, checksum);
+
+            List<Integer> all = new ArrayList<>(partCount);
+            for (int i = 1; i <= partCount; i++) all.add(i);
+            AdaptiveConcurrency limit = new AdaptiveConcurrency(parallelism);
+            List<CompletedPart> completed = sendFileParts(s3, pool, journal, file, size, partSizeBytes, all, retry, limit);
+
+            s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket).key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                    .build());
+            journal.delete();
+
+            double secs = (System.nanoTime() - startNs) / 1_000_000_000.0;
+            double mbps = (size / (1024.0 * 1024.0)) / Math.max(0.001, secs);
+            System.out.println(String.format("[S3Backup] Multipart complete: %s in %.2fs (%.2f MiB/s), concurrency %s", key, secs, mbps, limit.summary()));
 
+        } catch (Exception e) {
+            abortUnlessJournaled(s3, bucket, key, uploadId, journal);
+            Throwable cause = (e instanceof ExecutionException && e.getCause() != null) ? e.getCause() : e;
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * Like {@link #uploadParallel} but on the async client: each part is a non-blocking request
+     * that streams its file range, and an {@link AdaptiveConcurrency} of up to {@code maxInFlight}
+     * bounds how many are outstanding instead of a thread per part. Retries wait on a timer rather
+     * than a sleeping thread.
+     */
+    static void uploadAsync(S3AsyncClient s3, Path file, String bucket, String key, long partSizeBytes, int maxInFlight, PartRetry retry, PartChecksum checksum) throws IOException {
+        final long min = 5L * 1024 * 1024;
+        final long max = 5L * 1024 * 1024 * 1024;
+        if (partSizeBytes < min) partSizeBytes = min;
+        if (partSizeBytes > max) partSizeBytes = max;
+        if (maxInFlight < 1) maxInFlight = 1;
+
+        String uploadId = null;
+        UploadJournal journal = null;
+        List<CompletableFuture<CompletedPart>> futures = new ArrayList<>();
+        long startNs = System.nanoTime();
+
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = fc.size();
+            long partCountL = (size + partSizeBytes - 1) / partSizeBytes;
+            if (partCountL > 10_000) throw new IOException("Too many parts for S3 multipart upload");
+            int partCount = (int) Math.max(1, partCountL);
+
+            System.out.println("[S3Backup] Multipart upload (async) starting: " + key + " size=" + size + " bytes parts=" + partCount + " partSize=" + partSizeBytes + " inFlight=" + maxInFlight);
+
+            uploadId = s3.createMultipartUpload(CreateMultipartUploadRequest.builder().bucket(bucket).key(key).checksumAlgorithm(checksum.algorithm()).build()).join().uploadId();
+            journal = UploadJournal.begin(bucket, key, uploadId, file, size, partSizeBytes, checksum);
+
+            AdaptiveConcurrency limit = new AdaptiveConcurrency(maxInFlight);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
             AtomicLong uploaded = new AtomicLong(0L);
-            List<Future<CompletedPart>> futures = new ArrayList<>(partCount);
+            final UploadJournal j = journal;
+            // The callbacks run on the client's threads, which belong to no job.
+            final BackupJob job = BackupJob.current();
 
-            for (int i = 0; i < partCount; i++) {
-                final int partNumber = i + 1;
-                final long start = i * partSizeBytes;
+            for (int n = 1; n <= partCount && failure.get() == null; n++) {
+                final int partNumber = n;
+                final long start = (partNumber - 1) * partSizeBytes;
                 final long thisPart = Math.min(partSizeBytes, size - start);
+                BackupJob.checkpoint();
+                long started = limit.acquire();
+                System.out.println("[S3Backup] Uploading part " + partNumber + "/" + partCount + " (" + thisPart + " bytes)");
+                futures.add(sendPartAsync(s3, j, partNumber, file, start, thisPart, checksum, retry, limit, started, 1)
+                        .whenComplete((part, e) -> {
+                            if (e != null) {
+                                limit.failed(started, e);
+                                failure.compareAndSet(null, e);
+                                return;
+                            }
+                            // Time spent in the bandwidth limiter cannot be told apart here.
+                            limit.done(started, Bandwidth.shared().currentBytesPerSec() > 0 ? -1 : System.nanoTime() - started, thisPart);
+                            PART_SECONDS.observeNanos(System.nanoTime() - started);
+                            try {
+                                j.partDone(partNumber, part.eTag());
+                            } catch (IOException io) {
+                                failure.compareAndSet(null, io);
+                            }
+                            BackupJob.uploaded(job, thisPart);
+                            long done = uploaded.addAndGet(thisPart);
+                            System.out.println(String.format("[S3Backup] Progress %.2f%% (%d/%d bytes)", (done * 100.0) / Math.max(1, size), done, size));
+                        }));
+            }
 
-                String finalUploadId = uploadId;
-                futures.add(pool.submit(() -> {
-                    try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
-                        byte[] bytes = new byte[(int) thisPart];
-                        ByteBuffer buf = ByteBuffer.wrap(bytes);
-                        long remaining = thisPart;
-                        while (remaining > 0) {
-                            int n = fc.read(buf, start + (thisPart - remaining));
-                            if (n < 0) break;
-                            remaining -= n;
-                        }
-                        System.out.println("[S3Backup] Uploading part " + partNumber + "/" + partCount + " (" + thisPart + " bytes)");
-                        UploadPartResponse resp = s3.uploadPart(
-                                UploadPartRequest.builder()
-                                        .bucket(bucket).key(key)
-                                        .uploadId(finalUploadId)
-                                        .partNumber(partNumber)
-                                        .contentLength(thisPart)
-                                        .build(),
-                                RequestBody.fromBytes(bytes)
-                        );
-                        long done = uploaded.addAndGet(thisPart);
-                        double pct = (done * 100.0) / size;
-                        System.out.println(String.format("[S3Backup] Progress %.2f%% (%d/%d bytes)", pct, done, size));
-                        return CompletedPart.builder().partNumber(partNumber).eTag(resp.eTag()).build();
+            // get() rather than join(), so a cancelled job's interrupt gets us out of here.
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).exceptionally(e -> null).get();
+            if (failure.get() != null) throw new CompletionException(failure.get());
+            List<CompletedPart> completed = new ArrayList<>(partCount);
+            for (CompletableFuture<CompletedPart> f : futures) completed.add(f.join());
+
+            s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket).key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                    .build()).join();
+            journal.delete();
+
+            double secs = (System.nanoTime() - startNs) / 1_000_000_000.0;
+            double mbps = (size / (1024.0 * 1024.0)) / Math.max(0.001, secs);
+            System.out.println(String.format("[S3Backup] Multipart complete: %s in %.2fs (%.2f MiB/s), concurrency %s", key, secs, mbps, limit.summary()));
+
+        } catch (Exception e) {
+            if (uploadId != null && (journal == null || BackupJob.cancelling())) {
+                String id = uploadId;
+                // The client refuses new requests on an interrupted thread.
+                boolean interrupted = Thread.interrupted();
+                if (journal != null) {
+                    System.err.println("[S3Backup] Upload of " + key + " cancelled; aborting it");
+                    // Parts still on the wire could otherwise land after the abort and be billed.
+                    try {
+                        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(60, TimeUnit.SECONDS);
+                    } catch (Exception ignored) {}
+                    journal.delete();
+                }
+                try { s3.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(id).build()).join(); } catch (Exception ignored) {}
+                if (interrupted) Thread.currentThread().interrupt();
+            } else if (journal != null) {
+                System.err.println("[S3Backup] Upload of " + key + " interrupted; kept for resume (" + journal.parts.size() + " parts done)");
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while uploading " + key);
+            }
+            Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * One part on the async client, its checksum sent as a trailer; a failed attempt is reported to
+     * {@code limit} and retried after the backoff delay, keeping the part's slot.
+     */
+    private static CompletableFuture<CompletedPart> sendPartAsync(S3AsyncClient s3, UploadJournal journal, int partNumber, Path file, long start, long length,
+                                                                  PartChecksum checksum, PartRetry retry, AdaptiveConcurrency limit, long started, int attempt) {
+        UploadPartRequest.Builder req = UploadPartRequest.builder()
+                .bucket(journal.bucket).key(journal.key)
+                .uploadId(journal.uploadId)
+                .partNumber(partNumber)
+                .contentLength(length);
+        AsyncRequestBody body = Bandwidth.throttle(AsyncRequestBody.fromFile(FileRequestBodyConfiguration.builder()
+                .path(file).position(start).numBytesToRead(length).build()));
+        return s3.uploadPart(checksum.trailing(req).build(), body)
+                .thenApply(resp -> checksum.apply(CompletedPart.builder().partNumber(partNumber).eTag(resp.eTag()), checksum.from(resp)).build())
+                .exceptionallyCompose(e -> {
+                    Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+                    limit.signal(started, cause);
+                    PART_FAILURES.inc();
+                    long delay;
+                    try {
+                        delay = retry.backoff("part " + partNumber + " of " + journal.key, attempt, cause);
+                    } catch (IOException budgetGone) {
+                        return CompletableFuture.failedFuture(budgetGone);
                     }
+                    if (delay < 0) return CompletableFuture.failedFuture(cause);
+                    Executor later = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+                    return CompletableFuture.supplyAsync(() -> null, later)
+                            .thenCompose(x -> sendPartAsync(s3, journal, partNumber, file, start, length, checksum, retry, limit, started, attempt + 1));
+                });
+    }
+
+    /**
+     * Uploads the given parts of {@code file} in {@code pool}, recording each one in the journal as
+     * it completes.
+     *
+     * @return the completed parts, sorted by part number
+     */
+    private static List<CompletedPart> sendFileParts(S3Client s3, Workers.Scope pool, UploadJournal journal, Path file, long size, long partSizeBytes, List<Integer> partNumbers,
+                                                     PartRetry retry, AdaptiveConcurrency limit) throws Exception {
+        PartChecksum checksum = journal.checksum();
+        int partCount = (int) ((size + partSizeBytes - 1) / partSizeBytes);
+        long toSend = 0;
+        for (int n : partNumbers) toSend += Math.min(partSizeBytes, size - (n - 1) * partSizeBytes);
+        final long total = toSend;
+        AtomicLong uploaded = new AtomicLong(0L);
+        List<Future<CompletedPart>> futures = new ArrayList<>(partNumbers.size());
+        // Positional reads on one channel are safe from several threads.
+        FileChannel fc = FileChannel.open(file, StandardOpenOption.READ);
+
+        try {
+            for (int n : partNumbers) {
+                final int partNumber = n;
+                final long start = (partNumber - 1) * partSizeBytes;
+                final long thisPart = Math.min(partSizeBytes, size - start);
+
+                futures.add(pool.fork(() -> {
+                    System.out.println("[S3Backup] Uploading part " + partNumber + "/" + partCount + " (" + thisPart + " bytes)");
+                    CompletedPart part = sendPart(s3, journal.bucket, journal.key, journal.uploadId, partNumber, fileRange(fc, start, thisPart), thisPart, null, checksum, retry, limit);
+                    journal.partDone(partNumber, part.eTag());
+                    long done = uploaded.addAndGet(thisPart);
+                    double pct = (done * 100.0) / total;
+                    System.out.println(String.format("[S3Backup] Progress %.2f%% (%d/%d bytes)", pct, done, total));
+                    return part;
                 }));
             }
 
-            List<CompletedPart> completed = new ArrayList<>(partCount);
+            List<CompletedPart> completed = new ArrayList<>(partNumbers.size());
             for (Future<CompletedPart> f : futures) {
                 completed.add(f.get());
             }
             completed.sort(Comparator.comparingInt(CompletedPart::partNumber));
+            return completed;
+        } finally {
+            for (Future<CompletedPart> f : futures) f.cancel(true);
+            fc.close();
+        }
+    }
+
+    /** Replayable body that streams a file range; nothing of part size is ever allocated. */
+    private static ContentStreamProvider fileRange(FileChannel fc, long position, long length) {
+        return () -> new FileRangeInputStream(fc, position, length);
+    }
+
+    /** Replayable body over the first {@code length} bytes of a pooled buffer. */
+    private static ContentStreamProvider bufferRange(ByteBuffer data, int length) {
+        return () -> new ByteBufferInputStream(data.duplicate().position(0).limit(length));
+    }
+
+    /**
+     * Uploads one part with retries. The body must be replayable. A checksum computed by the caller
+     * goes with every attempt and must match S3's echo; with {@code sum} null the SDK hashes the body
+     * as it sends it, as a trailer, and the part takes the checksum S3 reports. Each attempt holds a
+     * slot of {@code limit} only while it is sending, not while it backs off.
+     */
+    private static CompletedPart sendPart(S3Client s3, String bucket, String key, String uploadId, int partNumber, ContentStreamProvider body, long length,
+                                          String sum, PartChecksum checksum, PartRetry retry, AdaptiveConcurrency limit) throws Exception {
+        return retry.call("part " + partNumber + " of " + key, () -> {
+            BackupJob.checkpoint();
+            UploadPartRequest.Builder req = UploadPartRequest.builder()
+                    .bucket(bucket).key(key)
+                    .uploadId(uploadId)
+                    .partNumber(partNumber)
+                    .contentLength(length);
+            long started = limit.acquire();
+            long throttled = Bandwidth.waitedNanos();
+            UploadPartResponse resp;
+            try {
+                resp = s3.uploadPart((sum == null ? checksum.trailing(req) : checksum.apply(req, sum)).build(),
+                        RequestBody.fromContentProvider(body, length, "application/octet-stream"));
+            } catch (Exception e) {
+                limit.failed(started, e);
+                PART_FAILURES.inc();
+                throw e;
+            }
+            long networkNs = System.nanoTime() - started - (Bandwidth.waitedNanos() - throttled);
+            limit.done(started, networkNs, length);
+            PART_SECONDS.observeNanos(networkNs);
+            checksum.verify(resp, sum, partNumber);
+            BackupJob.uploaded(length);
+            return checksum.apply(CompletedPart.builder().partNumber(partNumber).eTag(resp.eTag()), sum == null ? checksum.from(resp) : sum).build();
+        });
+    }
+
+    /**
+     * A file-backed upload that failed stays open with its journal so it can be resumed later; the
+     * stale-upload sweep cleans it up if that never happens. Anything else, and anything the user
+     * cancelled, is aborted right away.
+     */
+    private static void abortUnlessJournaled(S3Client s3, String bucket, String key, String uploadId, UploadJournal journal) {
+        if (uploadId == null) return;
+        if (BackupJob.cancelling()) {
+            System.err.println("[S3Backup] Upload of " + key + " cancelled; aborting it");
+        } else if (journal != null && !journal.isStreaming()) {
+            System.err.println("[S3Backup] Upload of " + key + " interrupted; kept for resume (" + journal.parts.size() + " parts done)");
+            return;
+        }
+        // A cancelled job's thread may still carry the interrupt, which would fail the abort call too.
+        boolean interrupted = Thread.interrupted();
+        try { s3.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(uploadId).build()); } catch (Exception ignored) {}
+        if (interrupted) Thread.currentThread().interrupt();
+        if (journal != null) journal.delete();
+    }
+
+    /** Aborts the upload recorded in {@code journal} and removes the journal; {@code why} goes in the log. */
+    static void abandon(S3Client s3, UploadJournal journal, String why) {
+        System.out.println("[S3Backup] Aborting unresumable upload of " + journal.key + " (" + why + ")");
+        try { s3.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(journal.bucket).key(journal.key).uploadId(journal.uploadId).build()); } catch (Exception ignored) {}
+        journal.delete();
+    }
+
+    /**
+     * Finishes an upload recorded in {@code journal}: asks S3 which parts it already has, sends the
+     * rest from the local file and completes it. Uploads that cannot be resumed (streaming, local
+     * file gone or changed, upload no longer known to S3) are aborted and their journal removed.
+     *
+     * @return true if the object was completed
+     */
+    static boolean resume(S3Client s3, UploadJournal journal, int parallelism, PartRetry retry) throws IOException {
+        Path file = journal.isStreaming() ? null : Path.of(journal.file);
+        if (file == null || !Files.isRegularFile(file) || Files.size(file) != journal.fileSize) {
+            abandon(s3, journal, file == null ? "streamed" : "local file missing or changed");
+            return false;
+        }
+
+        PartChecksum checksum = journal.checksum();
+        Map<Integer, CompletedPart> have = new HashMap<>();
+        try {
+            Integer marker = null;
+            ListPartsResponse resp;
+            do {
+                resp = s3.listParts(ListPartsRequest.builder().bucket(journal.bucket).key(journal.key).uploadId(journal.uploadId).partNumberMarker(marker).build());
+                long partSize = journal.partSize;
+                for (Part p : resp.parts()) {
+                    long expected = Math.min(partSize, journal.fileSize - (p.partNumber() - 1) * partSize);
+                    if (p.size() != null && p.size() == expected) {
+                        have.put(p.partNumber(), checksum.apply(CompletedPart.builder().partNumber(p.partNumber()).eTag(p.eTag()), checksum.from(p)).build());
+                    }
+                }
+                marker = resp.nextPartNumberMarker();
+            } while (Boolean.TRUE.equals(resp.isTruncated()));
+        } catch (NoSuchUploadException e) {
+            System.out.println("[S3Backup] Upload of " + journal.key + " no longer exists in S3; dropping its journal");
+            journal.delete();
+            return false;
+        }
+
+        int partCount = (int) ((journal.fileSize + journal.partSize - 1) / journal.partSize);
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 1; i <= Math.max(1, partCount); i++) {
+            if (!have.containsKey(i)) missing.add(i);
+        }
+        System.out.println("[S3Backup] Resuming upload of " + journal.key + ": " + have.size() + "/" + partCount + " parts already in S3, sending " + missing.size());
+
+        Workers.Scope pool = Workers.io(Math.max(1, parallelism));
+        try {
+            List<CompletedPart> completed = new ArrayList<>(sendFileParts(s3, pool, journal, file, journal.fileSize, journal.partSize, missing, retry,
+                    new AdaptiveConcurrency(parallelism)));
+            completed.addAll(have.values());
+            completed.sort(Comparator.comparingInt(CompletedPart::partNumber));
+            s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(journal.bucket).key(journal.key)
+                    .uploadId(journal.uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                    .build());
+            journal.delete();
+            System.out.println("[S3Backup] Resumed upload complete: " + journal.key);
+            return true;
+        } catch (Exception e) {
+            Throwable cause = (e instanceof ExecutionException && e.getCause() != null) ? e.getCause() : e;
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        } finally {
+            pool.close();
+        }
+    }
+
+    /**
+     * Aborts multipart uploads under {@code keyPrefix} that were started more than {@code maxAge}
+     * ago and are not in {@code keepUploadIds}. Parts of abandoned uploads are billed but invisible
+     * in normal listings, so without this they pile up forever.
+     *
+     * @return number of uploads aborted
+     */
+    static int abortStale(S3Client s3, String bucket, String keyPrefix, Duration maxAge, Set<String> keepUploadIds) {
+        Instant cutoff = Instant.now().minus(maxAge);
+        int aborted = 0;
+        String keyMarker = null;
+        String uploadIdMarker = null;
+        ListMultipartUploadsResponse resp;
+        do {
+            resp = s3.listMultipartUploads(ListMultipartUploadsRequest.builder().bucket(bucket).prefix(keyPrefix)
+                    .keyMarker(keyMarker).uploadIdMarker(uploadIdMarker).build());
+            for (MultipartUpload u : resp.uploads()) {
+                if (keepUploadIds.contains(u.uploadId())) continue;
+                if (u.initiated() != null && u.initiated().isAfter(cutoff)) continue;
+                try {
+                    s3.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucket).key(u.key()).uploadId(u.uploadId()).build());
+                    aborted++;
+                    System.out.println("[S3Backup] Aborted stale multipart upload: " + u.key() + " (started " + u.initiated() + ")");
+                } catch (Exception e) {
+                    System.err.println("[S3Backup] Failed to abort stale upload " + u.key() + ": " + e.getMessage());
+                }
+            }
+            keyMarker = resp.nextKeyMarker();
+            uploadIdMarker = resp.nextUploadIdMarker();
+        } while (Boolean.TRUE.equals(resp.isTruncated()));
+        return aborted;
+    }
+
+    /** Produces the object body; bytes written to {@code out} are uploaded while writing continues. */
+    interface StreamWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Multipart upload of a body that is generated on the fly (e.g. a zip being built), so no local
+     * file is needed. The writer fills part-sized buffers on the calling thread and the workers upload
+     * them as they fill up. At most {@code parallelism + bufferedParts + 1} buffers exist at once; when
+     * they are all in use the writer blocks until a part finishes uploading.
+     *
+     * @return total number of bytes uploaded
+     */
+    static long uploadStream(S3Client s3, String bucket, String key, long partSizeBytes, int parallelism, int bufferedParts,
+                             PartRetry retry, PartChecksum checksum, StreamWriter writer) throws IOException {
+        final long min = 5L * 1024 * 1024;
+        final long max = 5L * 1024 * 1024 * 1024;
+        if (partSizeBytes < min) partSizeBytes = min;
+        if (partSizeBytes > max) partSizeBytes = max;
+        if (partSizeBytes > Integer.MAX_VALUE - 8) partSizeBytes = Integer.MAX_VALUE - 8;
+        if (parallelism < 1) parallelism = 1;
+        if (bufferedParts < 0) bufferedParts = 0;
+
+        String uploadId = null;
+        UploadJournal journal = null;
+        PartPipeline pipeline = null;
+        Workers.Scope pool = Workers.io(parallelism);
+
+        long startNs = System.nanoTime();
+
+        try {
+            System.out.println("[S3Backup] Multipart upload (streaming) starting: " + key + " partSize=" + partSizeBytes + " threads=" + parallelism + " bufferedParts=" + bufferedParts);
+
+            uploadId = s3.createMultipartUpload(CreateMultipartUploadRequest.builder().bucket(bucket).key(key).checksumAlgorithm(checksum.algorithm()).build()).uploadId();
+            journal = UploadJournal.begin(bucket, key, uploadId, null, -1, partSizeBytes, checksum);
+
+            pipeline = new PartPipeline(BufferPool.shared(), (int) partSizeBytes, parallelism + bufferedParts + 1, parallelism, checksum);
+            final PartPipeline pipe = pipeline;
+            AdaptiveConcurrency limit = new AdaptiveConcurrency(parallelism);
+            List<Future<List<CompletedPart>>> workers = new ArrayList<>(parallelism);
+            AtomicLong uploaded = new AtomicLong(0L);
+            String finalUploadId = uploadId;
+            for (int i = 0; i < parallelism; i++) {
+                workers.add(pool.fork(() -> {
+                    List<CompletedPart> parts = new ArrayList<>();
+                    try {
+                        PendingPart next;
+                        while ((next = pipe.takeFilled()) != null) {
+                            final PendingPart part = next;
+                            System.out.println("[S3Backup] Uploading part " + part.number + " (" + part.length + " bytes)");
+                            try {
+                                parts.add(sendPart(s3, bucket, key, finalUploadId, part.number, bufferRange(part.data, part.length), part.length, part.checksum, checksum, retry, limit));
+                            } finally {
+                                pipe.release(part.data);
+                            }
+                            long done = uploaded.addAndGet(part.length);
+                            System.out.println(String.format("[S3Backup] Progress %d bytes uploaded", done));
+                        }
+                    } catch (Exception e) {
+                        pipe.fail(e);
+                        throw e;
+                    }
+                    return parts;
+                }));
+            }
+
+            try (PartOutputStream out = new PartOutputStream(pipe)) {
+                writer.writeTo(out);
+            } catch (IOException | RuntimeException e) {
+                pipe.fail(e);
+                throw e;
+            }
+
+            List<CompletedPart> completed = new ArrayList<>();
+            for (Future<List<CompletedPart>> f : workers) {
+                completed.addAll(f.get());
+            }
+            pipe.rethrowFailure();
+            completed.sort(Comparator.comparingInt(CompletedPart::partNumber));
 
             s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
                     .bucket(bucket).key(key)
                     .uploadId(uploadId)
                     .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
                     .build());
+            journal.delete();
 
+            long size = pipeline.totalBytes();
             double secs = (System.nanoTime() - startNs) / 1_000_000_000.0;
             double mbps = (size / (1024.0 * 1024.0)) / Math.max(0.001, secs);
-            System.out.println(String.format("[S3Backup] Multipart complete: %s in %.2fs (%.2f MiB/s)", key, secs, mbps));
+            System.out.println(String.format("[S3Backup] Multipart complete: %s %d bytes in %d parts, %.2fs (%.2f MiB/s), concurrency %s", key, size, completed.size(), secs, mbps, limit.summary()));
+            return size;
 
         } catch (Exception e) {
-            if (uploadId != null) {
-                try { s3.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(uploadId).build()); } catch (Exception ignored) {}
-            }
-            throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+            abortUnlessJournaled(s3, bucket, key, uploadId, journal);
+            Throwable cause = (e instanceof ExecutionException && e.getCause() != null) ? e.getCause() : e;
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
         } finally {
-            pool.shutdownNow();
+            pool.close();
+            if (pipeline != null) pipeline.close();
+        }
+    }
+
+    private static final class PendingPart {
+        final int number;
+        final ByteBuffer data;
+        final int length;
+        final String checksum;
+
+        PendingPart(int number, ByteBuffer data, int length, String checksum) {
+            this.number = number;
+            this.data = data;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * Hands filled part buffers from the writer to the upload workers. Buffers come from the shared
+     * {@link BufferPool}, at most {@code maxBuffers} of them, and are recycled through a local
+     * free queue; {@link #close} gives every one of them back to the pool.
+     */
+    private static final class PartPipeline {
+        private static final PendingPart END = new PendingPart(-1, null, 0, null);
+
+        private final BufferPool bufferPool;
+        private final int partSize;
+        private final int maxBuffers;
+        private final int workers;
+        private final PartChecksum checksum;
+        private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+        private final BlockingQueue<PendingPart> filled = new LinkedBlockingQueue<>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private int allocated;
+        private int nextPart = 1;
+        private long total;
+        private boolean closed;
+
+        PartPipeline(BufferPool bufferPool, int partSize, int maxBuffers, int workers, PartChecksum checksum) {
+            this.bufferPool = bufferPool;
+            this.partSize = partSize;
+            this.maxBuffers = maxBuffers;
+            this.workers = workers;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Writer side: returns an empty buffer, blocking while every buffer is in flight or the
+         * pool's memory cap is reached.
+         */
+        ByteBuffer acquire() throws IOException {
+            try {
+                while (true) {
+                    rethrowFailure();
+                    ByteBuffer b = free.poll();
+                    if (b != null) return b.clear();
+                    // At the memory cap a worker may hand a buffer back before the pool has one, so
+                    // wait on both in short turns.
+                    if (allocated < maxBuffers) {
+                        b = bufferPool.acquire(partSize, 50);
+                        if (b != null) {
+                            allocated++;
+                            return b;
+                        }
+                    }
+                    b = free.poll(allocated < maxBuffers ? 50 : 200, TimeUnit.MILLISECONDS);
+                    if (b != null) return b.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an upload buffer");
+            }
+        }
+
+        /** Writer side: queues a filled buffer as the next part. */
+        void submit(ByteBuffer data, int length, String sum) throws IOException {
+            rethrowFailure();
+            if (nextPart > 10_000) throw new IOException("Too many parts for S3 multipart upload; increase streamPartSizeMB");
+            filled.add(new PendingPart(nextPart++, data, length, sum));
+            total += length;
+        }
+
+        /** Writer side: no more parts; wakes up every worker. */
+        void finish() {
+            for (int i = 0; i < workers; i++) filled.add(END);
+        }
+
+        /** Worker side: next part to upload, or {@code null} once the writer is done or failed. */
+        PendingPart takeFilled() throws InterruptedException {
+            while (failure.get() == null) {
+                PendingPart p = filled.poll(200, TimeUnit.MILLISECONDS);
+                if (p == END) return null;
+                if (p != null) return p;
+            }
+            return null;
+        }
+
+        /** Buffers released after {@link #close} (by a worker that was still running) go straight back to the pool. */
+        synchronized void release(ByteBuffer data) {
+            if (closed) bufferPool.release(data);
+            else free.add(data);
+        }
+
+        synchronized void close() {
+            closed = true;
+            ByteBuffer b;
+            while ((b = free.poll()) != null) bufferPool.release(b);
+            PendingPart p;
+            while ((p = filled.poll()) != null) {
+                if (p != END) bufferPool.release(p.data);
+            }
+        }
+
+        void fail(Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+
+        void rethrowFailure() throws IOException {
+            Throwable t = failure.get();
+            if (t == null) return;
+            if (t instanceof IOException io) throw io;
+            throw new IOException(t);
+        }
+
+        long totalBytes() {
+            return total;
+        }
+    }
+
+    /** OutputStream that slices everything written to it into part-sized buffers of a {@link PartPipeline}. */
+    private static final class PartOutputStream extends OutputStream {
+        private final PartPipeline pipeline;
+        private ByteBuffer current;
+        private PartChecksum.Hasher hasher;
+        private int pos;
+        private boolean closed;
+
+        PartOutputStream(PartPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (current == null) acquire();
+                int n = Math.min(len, current.remaining());
+                current.put(b, off, n);
+                if (hasher != null) hasher.update(b, off, n);
+                pos += n;
+                off += n;
+                len -= n;
+                if (!current.hasRemaining()) flushPart();
+            }
+        }
+
+        private void acquire() throws IOException {
+            current = pipeline.acquire();
+            hasher = pipeline.checksum.hasher();
+        }
+
+        private void flushPart() throws IOException {
+            pipeline.submit(current, pos, hasher == null ? null : hasher.value());
+            current = null;
+            hasher = null;
+            pos = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            // S3 needs at least one part, even for an empty body.
+            if (current != null || pipeline.totalBytes() == 0) {
+                if (current == null) acquire();
+                flushPart();
+            }
+            pipeline.finish();
+        }
+    }
+
+    /** Reads a range of a file with positional reads straight into the caller's array. */
+    private static final class FileRangeInputStream extends InputStream {
+        private final FileChannel fc;
+        private long position;
+        private long remaining;
+
+        FileRangeInputStream(FileChannel fc, long position, long length) {
+            this.fc = fc;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (remaining <= 0) return -1;
+            int n = fc.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (n < 0) throw new IOException("File shrank while uploading at offset " + position);
+            position += n;
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
         }
     }
 }
@@ -0,0 +1,155 @@
+package freesmelly.s3backup;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A bucket as a {@link BackupTarget}. Archives go up as streaming multipart uploads, with the same
+ * part size, parallelism, retries and checksums as the main bucket.
+ */
+final class S3Target implements BackupTarget {
+    /** DeleteObjects takes at most this many keys. */
+    private static final int DELETE_BATCH = 1000;
+
+    /** How archives are streamed up; see {@link S3Multipart#uploadStream}. */
+    record Streaming(long partBytes, int parallelism, int bufferedParts, PartRetry retry, PartChecksum checksum) {}
+
+    private final S3Client s3;
+    private final String bucket;
+    private final String describe;
+    private final Streaming streaming;
+    private final boolean ownsClient;
+
+    S3Target(S3Client s3, String bucket, Streaming streaming) {
+        this(s3, bucket, "s3://" + bucket, streaming, false);
+    }
+
+    private S3Target(S3Client s3, String bucket, String describe, Streaming streaming, boolean ownsClient) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.describe = describe;
+        this.streaming = streaming;
+        this.ownsClient = ownsClient;
+    }
+
+    /**
+     * A target for {@code s3://bucket[?region=..&endpoint=..&pathStyle=true]}. Without options it
+     * shares the main client; with any, it gets a client of its own, with the main settings for
+     * whatever the options leave out.
+     */
+    static S3Target parse(String spec, S3ClientHolder.Settings main, Streaming streaming) {
+        String rest = spec.substring("s3://".length());
+        String query = "";
+        int q = rest.indexOf('?');
+        if (q >= 0) {
+            query = rest.substring(q + 1);
+            rest = rest.substring(0, q);
+        }
+        String bucket = rest.replaceAll("/+$", "");
+        if (bucket.isEmpty()) throw new IllegalArgumentException("no bucket in " + spec);
+        if (bucket.contains("/")) throw new IllegalArgumentException(spec + " has a path; copies use the main bucket's keys, so give just s3://<bucket>");
+        if (query.isEmpty()) return new S3Target(S3ClientHolder.client(), bucket, streaming);
+
+        String region = main.region();
+        String endpoint = main.endpoint();
+        boolean pathStyle = main.pathStyle();
+        for (String kv : query.split("&")) {
+            int eq = kv.indexOf('=');
+            String k = eq < 0 ? kv : kv.substring(0, eq);
+            String v = eq < 0 ? "" : kv.substring(eq + 1);
+            switch (k) {
+                case "region" -> region = v;
+                case "endpoint" -> endpoint = v;
+                case "pathStyle" -> pathStyle = Boolean.parseBoolean(v);
+                default -> throw new IllegalArgumentException("unknown option '" + k + "' in " + spec + ", use region|endpoint|pathStyle");
+            }
+        }
+        S3ClientHolder.Settings own = new S3ClientHolder.Settings(region, endpoint, pathStyle, main.httpClient(),
+                main.maxConnections(), main.idleSeconds(), main.socketBufferKB());
+        String where = "s3://" + bucket + " (" + region + (endpoint == null || endpoint.isBlank() ? "" : ", " + endpoint) + ")";
+        return new S3Target(S3ClientHolder.build(own), bucket, where, streaming, true);
+    }
+
+    @Override
+    public String describe() {
+        return describe;
+    }
+
+    @Override
+    public long write(String key, S3Multipart.StreamWriter body) throws IOException {
+        return S3Multipart.uploadStream(s3, bucket, key, streaming.partBytes(), streaming.parallelism(), streaming.bufferedParts(),
+                streaming.retry(), streaming.checksum(), body);
+    }
+
+    @Override
+    public void put(String key, byte[] data, String contentType) throws IOException {
+        try {
+            s3.putObject(PutObjectRequest.builder().bucket(bucket).key(key).contentType(contentType).build(), RequestBody.fromBytes(data));
+        } catch (RuntimeException e) {
+            throw new IOException("Could not store " + key + " in " + describe + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<Listed> list(String keyPrefix) throws IOException {
+        List<Listed> out = new ArrayList<>();
+        try {
+            String token = null;
+            do {
+                ListObjectsV2Response resp = s3.listObjectsV2(ListObjectsV2Request.builder().bucket(bucket).prefix(keyPrefix).continuationToken(token).build());
+                for (S3Object o : resp.contents()) out.add(new Listed(o.key(), o.size(), o.lastModified().toEpochMilli(), o.eTag()));
+                token = resp.isTruncated() ? resp.nextContinuationToken() : null;
+            } while (token != null);
+        } catch (RuntimeException e) {
+            throw new IOException("Could not list " + describe + ": " + e.getMessage(), e);
+        }
+        return out;
+    }
+
+    @Override
+    public void delete(List<String> keys) throws IOException {
+        for (int from = 0; from < keys.size(); from += DELETE_BATCH) {
+            List<String> batch = keys.subList(from, Math.min(keys.size(), from + DELETE_BATCH));
+            DeleteObjectsResponse resp;
+            try {
+                resp = s3.deleteObjects(DeleteObjectsRequest.builder()
+                        .bucket(bucket)
+                        .delete(Delete.builder()
+                                .objects(batch.stream().map(k -> ObjectIdentifier.builder().key(k).build()).toList())
+                                .quiet(true)
+                                .build())
+                        .build());
+            } catch (RuntimeException e) {
+                throw new IOException("Could not delete from " + describe + ": " + e.getMessage(), e);
+            }
+            if (!resp.errors().isEmpty()) {
+                var err = resp.errors().get(0);
+                throw new IOException("Could not delete " + err.key() + " from " + describe + ": " + err.code() + ": " + err.message());
+            }
+        }
+    }
+
+    @Override
+    public int abortStale(String keyPrefix, Duration maxAge, Set<String> keepUploadIds) {
+        return S3Multipart.abortStale(s3, bucket, keyPrefix, maxAge, keepUploadIds);
+    }
+
+    @Override
+    public void close() {
+        if (ownsClient) s3.close();
+    }
+}
@@ -0,0 +1,130 @@
+package freesmelly.s3backup;
+
+import com.github.luben.zstd.Zstd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the zstd seekable format: the input is cut into fixed-size pieces, each compressed as an
+ * independent frame, followed by a skippable frame holding the seek table. Plain zstd decoders
+ * ignore the table and read the whole stream; a restore that knows the format can fetch the table
+ * from the end of the object and range-GET only the frames it needs.
+ *
+ * <p>Frames are compressed on a pool and written in order, at most {@code workers * 2} in flight.
+ */
+final class SeekableZstdOutputStream extends OutputStream {
+    static final int SKIPPABLE_MAGIC = 0x184D2A5E;
+    static final int SEEKABLE_MAGIC = 0x8F92EAB1;
+    /** Frame count (4), descriptor (1), magic (4). */
+    static final int FOOTER_SIZE = 9;
+
+    private record Frame(byte[] raw, int rawLength, Future<byte[]> compressed) {}
+
+    private final OutputStream out;
+    private final int frameSize;
+    private final int level;
+    private final int window;
+    private final Workers.Scope pool;
+    private final ArrayDeque<Frame> inFlight = new ArrayDeque<>();
+    private final ArrayDeque<byte[]> free = new ArrayDeque<>();
+    private final List<int[]> seekTable = new ArrayList<>();
+    private byte[] current;
+    private int pos;
+    private boolean finished;
+
+    SeekableZstdOutputStream(OutputStream out, int frameSize, int level, int workers) {
+        this.out = out;
+        this.frameSize = frameSize;
+        this.level = level;
+        int n = Math.max(1, workers);
+        this.window = n * 2;
+        this.pool = Workers.cpu(n);
+        this.current = new byte[frameSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, frameSize - pos);
+            System.arraycopy(b, off, current, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+            if (pos == frameSize) submit();
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] raw = current;
+        final int len = pos;
+        inFlight.add(new Frame(raw, len, pool.fork(() -> compress(raw, len, level))));
+        while (inFlight.size() >= window) drainOne();
+        current = free.isEmpty() ? new byte[frameSize] : free.poll();
+        pos = 0;
+    }
+
+    private static byte[] compress(byte[] raw, int len, int level) throws IOException {
+        byte[] dst = new byte[(int) Zstd.compressBound(len)];
+        long n = Zstd.compressByteArray(dst, 0, dst.length, raw, 0, len, level);
+        if (Zstd.isError(n)) throw new IOException("zstd: " + Zstd.getErrorName(n));
+        return Arrays.copyOf(dst, (int) n);
+    }
+
+    private void drainOne() throws IOException {
+        Frame f = inFlight.poll();
+        byte[] c;
+        try {
+            c = f.compressed().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException io) ? io : new IOException(cause);
+        }
+        out.write(c);
+        seekTable.add(new int[]{c.length, f.rawLength()});
+        free.add(f.raw());
+    }
+
+    /** Writes the last frame and the seek table. The underlying stream is flushed but not closed. */
+    void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        if (pos > 0) submit();
+        while (!inFlight.isEmpty()) drainOne();
+
+        int tableSize = seekTable.size() * 8 + FOOTER_SIZE;
+        ByteBuffer t = ByteBuffer.allocate(8 + tableSize).order(ByteOrder.LITTLE_ENDIAN);
+        t.putInt(SKIPPABLE_MAGIC).putInt(tableSize);
+        for (int[] e : seekTable) t.putInt(e[0]).putInt(e[1]);
+        t.putInt(seekTable.size()).put((byte) 0).putInt(SEEKABLE_MAGIC);
+        out.write(t.array());
+        out.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Stops the workers. Does not finish the stream, so a failed archive is never given a seek table. */
+    @Override
+    public void close() {
+        pool.close();
+    }
+}
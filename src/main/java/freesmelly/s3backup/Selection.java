@@ -0,0 +1,112 @@
+package freesmelly.s3backup;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Which files of a world a selective restore brings back. A spec is a space-separated list of
+ * selectors, and a file is restored if any of them matches:
+ * <ul>
+ *   <li>{@code region:<dim>:<x>,<z>} the region file {@code r.<x>.<z>.mca} with its entities and POI files</li>
+ *   <li>{@code block:<dim>:<x>,<z>} the same, for the region holding that block</li>
+ *   <li>{@code dim:<dim>} everything of one dimension</li>
+ *   <li>{@code player:<uuid>} a player's data, stats and advancements</li>
+ *   <li>anything else: a glob on the path inside the world, e.g. {@code data/**}</li>
+ * </ul>
+ * A dimension is {@code overworld}, {@code nether}, {@code end}, or {@code namespace:path} for one
+ * added by a datapack.
+ */
+final class Selection {
+    private final List<Predicate<String>> selectors;
+    private final String spec;
+
+    private Selection(List<Predicate<String>> selectors, String spec) {
+        this.selectors = selectors;
+        this.spec = spec;
+    }
+
+    /** @throws IllegalArgumentException naming the selector that could not be parsed */
+    static Selection parse(String spec) {
+        List<Predicate<String>> out = new ArrayList<>();
+        for (String s : spec.trim().split("\\s+")) {
+            if (s.isEmpty()) continue;
+            try {
+                out.add(selector(s));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Bad selector '" + s + "': " + e.getMessage(), e);
+            }
+        }
+        if (out.isEmpty()) throw new IllegalArgumentException("Nothing selected");
+        return new Selection(out, spec.trim());
+    }
+
+    boolean matches(String name) {
+        for (Predicate<String> p : selectors) {
+            if (p.test(name)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    private static Predicate<String> selector(String s) {
+        String lower = s.toLowerCase(Locale.ROOT);
+        if (lower.startsWith("region:") || lower.startsWith("block:")) {
+            boolean block = lower.startsWith("block:");
+            String rest = s.substring(s.indexOf(':') + 1);
+            int comma = rest.lastIndexOf(',');
+            int colon = rest.lastIndexOf(':', comma);
+            if (comma < 0 || colon < 0) throw new IllegalArgumentException("expected " + (block ? "block" : "region") + ":<dimension>:<x>,<z>");
+            String dir = dimensionDir(rest.substring(0, colon));
+            int x = Integer.parseInt(rest.substring(colon + 1, comma).trim());
+            int z = Integer.parseInt(rest.substring(comma + 1).trim());
+            if (block) {
+                x >>= 9;
+                z >>= 9;
+            }
+            String file = "r." + x + "." + z + ".mca";
+            Set<String> names = Set.of(dir + "region/" + file, dir + "entities/" + file, dir + "poi/" + file);
+            return names::contains;
+        }
+        if (lower.startsWith("dim:")) {
+            String dir = dimensionDir(s.substring(4));
+            if (!dir.isEmpty()) return n -> n.startsWith(dir);
+            // The overworld keeps its chunks in the world root, next to everything shared.
+            return n -> n.startsWith("region/") || n.startsWith("entities/") || n.startsWith("poi/");
+        }
+        if (lower.startsWith("player:")) {
+            String uuid = UUID.fromString(s.substring(7).trim()).toString();
+            Set<String> names = Set.of("playerdata/" + uuid + ".dat", "playerdata/" + uuid + ".dat_old",
+                    "stats/" + uuid + ".json", "advancements/" + uuid + ".json");
+            return names::contains;
+        }
+        String glob = lower.startsWith("glob:") ? s.substring(5) : s;
+        PathMatcher m = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        return n -> m.matches(Path.of(n));
+    }
+
+    /** Folder of a dimension inside the world, with a trailing slash; empty for the overworld. */
+    static String dimensionDir(String dim) {
+        String d = dim.trim().toLowerCase(Locale.ROOT);
+        return switch (d) {
+            case "overworld", "minecraft:overworld" -> "";
+            case "nether", "the_nether", "minecraft:the_nether" -> "DIM-1/";
+            case "end", "the_end", "minecraft:the_end" -> "DIM1/";
+            default -> {
+                int colon = d.indexOf(':');
+                if (colon <= 0 || colon == d.length() - 1) throw new IllegalArgumentException("unknown dimension " + dim + ", use overworld|nether|end|namespace:path");
+                yield "dimensions/" + d.substring(0, colon) + "/" + d.substring(colon + 1) + "/";
+            }
+        };
+    }
+}
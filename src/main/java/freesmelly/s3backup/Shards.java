@@ -0,0 +1,131 @@
+package freesmelly.s3backup;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A backup split into independent archives: one per dimension, one for player data and one for
+ * everything else (level.dat, data/, datapacks). The shards are built and uploaded side by side as
+ * {@code <backup>.<shard><ext>}, and {@code <backup>.shards.json}, written last, names them. The
+ * catalog lists that manifest as the backup, and a restore starts from it.
+ */
+final class Shards {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+    static final String EXTENSION = ".shards.json";
+
+    record Shard(String name, String key, int files, long sourceBytes, long sizeBytes, String etag) {}
+
+    /** The backup id, as in the catalog. */
+    String backup;
+    String format;
+    long created;
+    List<Shard> shards = new ArrayList<>();
+
+    Shards(String backup, String format) {
+        this.backup = backup;
+        this.format = format;
+        this.created = System.currentTimeMillis();
+    }
+
+    static boolean isManifestKey(String key) {
+        return key.endsWith(EXTENSION);
+    }
+
+    static String manifestKey(String stem) {
+        return stem + EXTENSION;
+    }
+
+    /** Key of one shard's archive, next to the manifest. */
+    static String archiveKey(String manifestKey, String shard, String extension) {
+        return manifestKey.substring(0, manifestKey.length() - EXTENSION.length()) + "." + shard + extension;
+    }
+
+    /**
+     * Which shard a world file belongs to: {@code overworld}, {@code nether}, {@code end},
+     * {@code dim-<namespace>-<path>} for a datapack dimension, {@code players}, or {@code level}.
+     */
+    static String shardOf(String name) {
+        if (name.startsWith("DIM-1/")) return "nether";
+        if (name.startsWith("DIM1/")) return "end";
+        if (name.startsWith("region/") || name.startsWith("entities/") || name.startsWith("poi/")) return "overworld";
+        if (name.startsWith("playerdata/") || name.startsWith("stats/") || name.startsWith("advancements/")) return "players";
+        if (name.startsWith("dimensions/")) {
+            String[] p = name.split("/", 4);
+            if (p.length == 4) return "dim-" + safe(p[1]) + "-" + safe(p[2]);
+        }
+        return "level";
+    }
+
+    private static String safe(String s) {
+        return s.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9_-]", "_");
+    }
+
+    /** {@code files} by shard, biggest shard first so it starts first; each keeps the order it was given. */
+    static Map<String, List<ZipUtil.SourceFile>> split(List<ZipUtil.SourceFile> files) {
+        Map<String, List<ZipUtil.SourceFile>> by = new LinkedHashMap<>();
+        Map<String, Long> bytes = new LinkedHashMap<>();
+        for (ZipUtil.SourceFile f : files) {
+            String s = shardOf(f.name());
+            by.computeIfAbsent(s, k -> new ArrayList<>()).add(f);
+            bytes.merge(s, f.size(), Long::sum);
+        }
+        Map<String, List<ZipUtil.SourceFile>> out = new LinkedHashMap<>();
+        by.keySet().stream().sorted(Comparator.comparingLong((String s) -> bytes.get(s)).reversed().thenComparing(s -> s))
+                .forEach(s -> out.put(s, by.get(s)));
+        return out;
+    }
+
+    /** Archive keys of every shard. */
+    List<String> keys() {
+        return shards.stream().map(Shard::key).toList();
+    }
+
+    /** The shard archive a world file went into, or null if its shard is not part of this backup. */
+    String keyOf(String fileName) {
+        String s = shardOf(fileName);
+        for (Shard shard : shards) {
+            if (shard.name().equals(s)) return shard.key();
+        }
+        return null;
+    }
+
+    void upload(S3Client s3, String bucket, String key) {
+        s3.putObject(PutObjectRequest.builder().bucket(bucket).key(key).contentType("application/json").build(),
+                RequestBody.fromString(json(), StandardCharsets.UTF_8));
+    }
+
+    String json() {
+        return GSON.toJson(this);
+    }
+
+    static Shards load(S3Client s3, String bucket, String key) throws IOException {
+        String json;
+        try {
+            json = s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(key).build()).asUtf8String();
+        } catch (NoSuchKeyException e) {
+            throw new IOException("Sharded backup " + key + " is missing from the bucket");
+        }
+        try {
+            Shards s = GSON.fromJson(json, Shards.class);
+            if (s == null || s.shards == null || s.shards.isEmpty()) throw new IOException("Shard manifest " + key + " lists no shards");
+            return s;
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable shard manifest " + key + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package freesmelly.s3backup;
+
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.world.ServerWorld;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Frozen copy of the world to archive from. In one short main-thread task saving is switched off
+ * and everything flushed; every file is then hard-linked into the staging tree and saving is
+ * switched straight back on. Archiving and upload run from the staged tree for as long as they
+ * take.
+ *
+ * <p>Files the game replaces through a temp file and rename (level.dat, player data) are done at
+ * that point: the link keeps the old inode when the game later swaps in a new file. Region and
+ * entity files are rewritten in place, so their links would change under the archiver. Once saving
+ * is back on, each is copied out of its link in parallel, and the copy is kept only if the file was
+ * not written to since it was linked. A file the game has written to by then is copied from the
+ * world instead, and kept once a copy finds it unchanged from start to end. Files that keep
+ * changing are copied in one more brief saving-off window.
+ *
+ * <p>Trade-offs: region files still need a copy, so staging needs disk space about the size of the
+ * world, but the copying happens with saving on. A region file saved to after saving came back on is
+ * staged as it was after that save, complete in itself but slightly newer than the rest of the
+ * snapshot; the log counts such files. Where links are not supported at all (another file system,
+ * FAT), level.dat and player data are copied in the window and everything else afterwards, as above.
+ */
+final class Snapshot implements AutoCloseable {
+    private static final Metrics.Histogram SAVING_OFF = Metrics.histogram("s3backup_snapshot_saving_off_seconds", "Time world saving stayed off while staging a snapshot");
+    /** Copies of a changing file to try with saving on before leaving it to a saving-off window. */
+    private static final int STABLE_COPY_ATTEMPTS = 3;
+
+    private final Path root;
+    private final List<ZipUtil.SourceFile> files;
+
+    private Snapshot(Path root, List<ZipUtil.SourceFile> files) {
+        this.root = root;
+        this.files = files;
+    }
+
+    /** The staged files, with the same names as the originals. */
+    List<ZipUtil.SourceFile> files() {
+        return files;
+    }
+
+    static Path stagingDir(Path outDir) {
+        return outDir.resolve("staging");
+    }
+
+    /**
+     * A file in the staging tree. {@code linked} is true if {@code target} is a hard link to the
+     * world file, and {@code frozen} is its size and modification time at the moment it was linked.
+     */
+    private record Staged(ZipUtil.SourceFile source, Path target, boolean linked, boolean done, FileTime frozen, long frozenSize) {}
+
+    private static final class Counts {
+        final AtomicInteger linked = new AtomicInteger();
+        final AtomicInteger copied = new AtomicInteger();
+        final AtomicInteger changed = new AtomicInteger();
+        final AtomicLong copiedBytes = new AtomicLong();
+        final AtomicLong mainThreadNs = new AtomicLong();
+        final AtomicLong savingOffNs = new AtomicLong();
+    }
+
+    /**
+     * Stages {@code files} (listed from the live world) under {@code stagingDir}.
+     *
+     * @param threads copy threads
+     */
+    static Snapshot take(MinecraftServer server, List<ZipUtil.SourceFile> files, Path stagingDir, int threads) throws IOException {
+        deleteTree(stagingDir);
+        Files.createDirectories(stagingDir);
+
+        linksUnsupported = false;
+        Counts counts = new Counts();
+        List<Staged> linked = withSavingOff(server, counts, () -> link(files, stagingDir, counts));
+
+        // Saving is back on. In-place files are copied out of their links while the game runs.
+        Map<Staged, ZipUtil.SourceFile> settled = new ConcurrentHashMap<>();
+        List<Staged> unsettled = settle(linked, threads, counts, settled);
+        if (!unsettled.isEmpty()) {
+            System.out.println("[S3Backup] Snapshot: " + unsettled.size() + " file(s) kept changing, copying them with saving off");
+            withSavingOff(server, counts, () -> copyAll(unsettled, threads, counts, settled));
+        }
+        // Back in plan order.
+        List<ZipUtil.SourceFile> staged = new ArrayList<>(linked.size());
+        for (Staged s : linked) {
+            ZipUtil.SourceFile f = settled.get(s);
+            if (f != null) staged.add(f);
+        }
+
+        double savingOffMs = counts.savingOffNs.get() / 1e6;
+        SAVING_OFF.observe(savingOffMs / 1000);
+        System.out.println(String.format("[S3Backup] Snapshot: %d files (%d linked, %d copied, %,d bytes, %d changed after saving resumed), main thread paused %.1f ms, saving off for %.0f ms",
+                staged.size(), counts.linked.get(), counts.copied.get(), counts.copiedBytes.get(), counts.changed.get(), counts.mainThreadNs.get() / 1e6, savingOffMs));
+        return new Snapshot(stagingDir, staged);
+    }
+
+    private interface Step<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Switches saving off and flushes on the server thread, runs {@code step} here, and switches saving
+     * back on whatever happens. Adds how long saving was off and the server thread busy to {@code counts}.
+     */
+    private static <T> T withSavingOff(MinecraftServer server, Counts counts, Step<T> step) throws IOException {
+        List<Boolean> wasDisabled = new ArrayList<>();
+        long start = System.nanoTime();
+        long flushNs = 0;
+        long resumeNs = 0;
+        try {
+            flushNs = onServerThread(server, () -> {
+                for (ServerWorld w : server.getWorlds()) {
+                    wasDisabled.add(w.savingDisabled);
+                    w.savingDisabled = true;
+                }
+                server.getPlayerManager().saveAllPlayerData();
+                server.saveAll(true, true, true);
+            });
+            return step.run();
+        } finally {
+            // A cancelled job arrives here interrupted; saving must come back on regardless.
+            boolean interrupted = Thread.interrupted();
+            try {
+                resumeNs = onServerThread(server, () -> {
+                    int i = 0;
+                    for (ServerWorld w : server.getWorlds()) {
+                        w.savingDisabled = i < wasDisabled.size() && wasDisabled.get(i);
+                        i++;
+                    }
+                });
+            } finally {
+                counts.savingOffNs.addAndGet(System.nanoTime() - start);
+                if (interrupted) Thread.currentThread().interrupt();
+                BackupService.SAVE_FLUSH.observeNanos(flushNs);
+                BackupService.MAIN_THREAD_STALL.observeNanos(flushNs + resumeNs);
+                counts.mainThreadNs.addAndGet(flushNs + resumeNs);
+            }
+        }
+    }
+
+    /**
+     * Saving-off step: links every file and notes its size and time. Files the game replaces by
+     * rename are copied here if they cannot be linked; they are small. Everything else is left to
+     * {@link #settle}.
+     */
+    private static List<Staged> link(List<ZipUtil.SourceFile> files, Path stagingDir, Counts counts) throws IOException {
+        List<Staged> out = new ArrayList<>(files.size());
+        for (ZipUtil.SourceFile f : files) {
+            BackupJob.checkpoint();
+            Path target = stagingDir.resolve(f.name());
+            Files.createDirectories(target.getParent());
+            boolean replacedByRename = linkSafe(f.name());
+            try {
+                if (tryLink(target, f.path())) {
+                    BasicFileAttributes a = Files.readAttributes(target, BasicFileAttributes.class);
+                    counts.linked.incrementAndGet();
+                    out.add(new Staged(f, target, true, replacedByRename, a.lastModifiedTime(), a.size()));
+                } else if (replacedByRename) {
+                    Files.copy(f.path(), target, StandardCopyOption.COPY_ATTRIBUTES);
+                    counts.copied.incrementAndGet();
+                    counts.copiedBytes.addAndGet(Files.size(target));
+                    out.add(new Staged(f, target, false, true, null, -1));
+                } else {
+                    out.add(new Staged(f, target, false, false, null, -1));
+                }
+            } catch (IOException e) {
+                // Same as archiving: a file that cannot be read is left out.
+                BackupJob.warn("Snapshot skipped " + f.name() + ": " + ZipUtil.reason(e));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Saving-on step: replaces the links of in-place files by copies that match what was linked, or
+     * failing that, by copies of the world file taken while it did not change. Returns the files
+     * that changed during every attempt.
+     */
+    private static List<Staged> settle(List<Staged> staged, int threads, Counts counts, Map<Staged, ZipUtil.SourceFile> settled) throws IOException {
+        List<Staged> unsettled = Collections.synchronizedList(new ArrayList<>());
+        forEach(staged, threads, settled, s -> {
+            if (s.done()) return sourceFile(s);
+            if (s.linked()) {
+                // Read through the link: same inode as the world file, so it shows any write since linking.
+                Path tmp = copyToTemp(s.target(), s.target());
+                BasicFileAttributes now = Files.readAttributes(s.target(), BasicFileAttributes.class);
+                if (now.lastModifiedTime().equals(s.frozen()) && now.size() == s.frozenSize()) {
+                    keep(tmp, s.target(), counts);
+                    return sourceFile(s);
+                }
+                Files.delete(tmp);
+                counts.changed.incrementAndGet();
+            }
+            for (int attempt = 0; attempt < STABLE_COPY_ATTEMPTS; attempt++) {
+                if (stableCopy(s, counts)) return sourceFile(s);
+            }
+            unsettled.add(s);
+            return null;
+        });
+        return unsettled;
+    }
+
+    /** Saving-off step for the files {@link #settle} could not pin down. */
+    private static Void copyAll(List<Staged> staged, int threads, Counts counts, Map<Staged, ZipUtil.SourceFile> settled) throws IOException {
+        forEach(staged, threads, settled, s -> {
+            Path tmp = copyToTemp(s.source().path(), s.target());
+            keep(tmp, s.target(), counts);
+            return sourceFile(s);
+        });
+        return null;
+    }
+
+    /** Copies the world file and keeps the copy if its size and time were the same before and after. */
+    private static boolean stableCopy(Staged s, Counts counts) throws IOException {
+        BasicFileAttributes before = Files.readAttributes(s.source().path(), BasicFileAttributes.class);
+        Path tmp = copyToTemp(s.source().path(), s.target());
+        BasicFileAttributes after = Files.readAttributes(s.source().path(), BasicFileAttributes.class);
+        if (after.lastModifiedTime().equals(before.lastModifiedTime()) && after.size() == before.size()) {
+            keep(tmp, s.target(), counts);
+            return true;
+        }
+        Files.delete(tmp);
+        return false;
+    }
+
+    private static Path copyToTemp(Path from, Path target) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.copy(from, tmp, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+        return tmp;
+    }
+
+    /** Puts a finished copy in place of the staged file (or link). */
+    private static void keep(Path tmp, Path target, Counts counts) throws IOException {
+        counts.copied.incrementAndGet();
+        counts.copiedBytes.addAndGet(Files.size(tmp));
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private interface StageTask {
+        ZipUtil.SourceFile run(Staged s) throws IOException;
+    }
+
+    /**
+     * Runs {@code task} for every file on {@code threads} workers and puts what it returns into
+     * {@code settled}. A file it returns null for is not settled yet; one that fails is left out.
+     */
+    private static void forEach(List<Staged> staged, int threads, Map<Staged, ZipUtil.SourceFile> settled, StageTask task) throws IOException {
+        Workers.Scope pool = Workers.cpu(Math.max(1, threads));
+        try {
+            List<Future<?>> futures = new ArrayList<>(staged.size());
+            for (Staged s : staged) {
+                futures.add(pool.fork(() -> {
+                    try {
+                        ZipUtil.SourceFile f = task.run(s);
+                        if (f != null) settled.put(s, f);
+                    } catch (IOException e) {
+                        // Same as archiving: a file that cannot be read is left out.
+                        BackupJob.warn("Snapshot skipped " + s.source().name() + ": " + ZipUtil.reason(e));
+                        Files.deleteIfExists(s.target());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> fut : futures) fut.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while staging snapshot");
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            throw (c instanceof IOException io) ? io : new IOException(c);
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static ZipUtil.SourceFile sourceFile(Staged s) throws IOException {
+        BasicFileAttributes a = Files.readAttributes(s.target(), BasicFileAttributes.class);
+        return new ZipUtil.SourceFile(s.target(), s.source().name(), a.size(), a.lastModifiedTime().toMillis());
+    }
+
+    /** Files the game only ever replaces by rename, so a hard link stays frozen. */
+    private static boolean linkSafe(String name) {
+        String base = name.substring(name.lastIndexOf('/') + 1);
+        if (base.equals("level.dat") || base.equals("level.dat_old")) return true;
+        return (name.startsWith("playerdata/") || name.contains("/playerdata/")) && base.endsWith(".dat");
+    }
+
+    private static volatile boolean linksUnsupported;
+
+    private static boolean tryLink(Path link, Path existing) throws NoSuchFileException {
+        if (linksUnsupported) return false;
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (NoSuchFileException e) {
+            // The file is gone, which says nothing about links.
+            throw e;
+        } catch (UnsupportedOperationException | IOException e) {
+            // Cross-device or no link support: stop trying for the rest of this snapshot.
+            linksUnsupported = true;
+            return false;
+        }
+    }
+
+    /** Runs {@code task} on the server thread and waits; returns how long it held the thread. */
+    private static long onServerThread(MinecraftServer server, Runnable task) throws IOException {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        server.execute(() -> {
+            long t = System.nanoTime();
+            try {
+                task.run();
+                done.complete(System.nanoTime() - t);
+            } catch (Throwable e) {
+                done.completeExceptionally(e);
+            }
+        });
+        try {
+            return done.get(120, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the server thread");
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IOException("Server thread task failed", e instanceof ExecutionException ? e.getCause() : e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            deleteTree(root);
+        } catch (IOException e) {
+            System.err.println("[S3Backup] Failed to remove snapshot staging " + root + ": " + e.getMessage());
+        }
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+}
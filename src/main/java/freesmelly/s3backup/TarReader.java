@@ -0,0 +1,197 @@
+package freesmelly.s3backup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming reader for what {@link TarWriter} writes, plus the ustar name prefix and GNU long
+ * names other tools use. Header checksums are checked; anything that is not a regular file is
+ * returned with {@code file == false} and can simply be skipped.
+ */
+final class TarReader {
+    private static final int BLOCK = 512;
+
+    record Entry(String name, long size, long mtimeMillis, boolean file) {}
+
+    private final InputStream in;
+    private final byte[] block = new byte[BLOCK];
+    /** Body bytes of the current entry not read yet, and the padding after them. */
+    private long remaining;
+    private int padding;
+
+    TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    /** The next entry, with the rest of the current one skipped; null at the end of the archive. */
+    Entry next() throws IOException {
+        skipRest();
+        String paxPath = null;
+        long paxSize = -1;
+        String longName = null;
+        while (true) {
+            if (!readBlock()) return null;
+            if (isZero(block)) return null;
+            verifyChecksum();
+            byte type = block[156];
+            long size = parseNumber(124, 12);
+            if (type == 'x' || type == 'L') {
+                byte[] body = readBody(size);
+                if (type == 'L') {
+                    longName = cString(body, 0, body.length);
+                } else {
+                    String[] pax = parsePax(body);
+                    if (pax[0] != null) paxPath = pax[0];
+                    if (pax[1] != null) paxSize = Long.parseLong(pax[1]);
+                }
+                continue;
+            }
+            if (type == 'g') {
+                readBody(size);
+                continue;
+            }
+            String name = paxPath != null ? paxPath : longName != null ? longName : ustarName();
+            if (paxSize >= 0) size = paxSize;
+            long mtime = parseNumber(136, 12) * 1000L;
+            boolean file = type == '0' || type == 0 || type == '7';
+            // Links and devices carry no body of their own; directories may, in theory.
+            remaining = (type == '1' || type == '2' || type == '3' || type == '4' || type == '6') ? 0 : size;
+            padding = (int) ((BLOCK - remaining % BLOCK) % BLOCK);
+            return new Entry(name, size, mtime, file);
+        }
+    }
+
+    /** The current entry's body; valid until the next call to {@link #next}. Closing it does nothing. */
+    InputStream body() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) return -1;
+                int n = in.read(b, off, (int) Math.min(len, remaining));
+                if (n < 0) throw new EOFException("Tar archive ends inside an entry");
+                remaining -= n;
+                return n;
+            }
+        };
+    }
+
+    private void skipRest() throws IOException {
+        skipFully(remaining + padding);
+        remaining = 0;
+        padding = 0;
+    }
+
+    private void skipFully(long n) throws IOException {
+        byte[] scratch = new byte[8192];
+        while (n > 0) {
+            int r = in.read(scratch, 0, (int) Math.min(scratch.length, n));
+            if (r < 0) throw new EOFException("Tar archive ends inside an entry");
+            n -= r;
+        }
+    }
+
+    private boolean readBlock() throws IOException {
+        int off = 0;
+        while (off < BLOCK) {
+            int n = in.read(block, off, BLOCK - off);
+            if (n < 0) {
+                if (off == 0) return false; // no end blocks; tolerated like GNU tar does
+                throw new EOFException("Tar archive ends inside a header");
+            }
+            off += n;
+        }
+        return true;
+    }
+
+    private byte[] readBody(long size) throws IOException {
+        if (size > 1 << 20) throw new IOException("Tar extended header of " + size + " bytes");
+        byte[] body = new byte[(int) size];
+        int off = 0;
+        while (off < body.length) {
+            int n = in.read(body, off, body.length - off);
+            if (n < 0) throw new EOFException("Tar archive ends inside an extended header");
+            off += n;
+        }
+        skipFully((BLOCK - size % BLOCK) % BLOCK);
+        return body;
+    }
+
+    private static boolean isZero(byte[] b) {
+        for (byte x : b) if (x != 0) return false;
+        return true;
+    }
+
+    private void verifyChecksum() throws IOException {
+        long expected = parseNumber(148, 8);
+        long sum = 0;
+        for (int i = 0; i < BLOCK; i++) sum += (i >= 148 && i < 156) ? ' ' : block[i] & 0xFF;
+        if (sum != expected) throw new IOException("Corrupt tar header (checksum " + sum + ", header says " + expected + ")");
+    }
+
+    private String ustarName() {
+        String name = cString(block, 0, 100);
+        boolean ustar = block[257] == 'u' && block[258] == 's' && block[259] == 't' && block[260] == 'a' && block[261] == 'r';
+        String prefix = ustar ? cString(block, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    /** Octal, or big-endian binary when the first byte has its high bit set (GNU extension for large values). */
+    private long parseNumber(int off, int len) {
+        if ((block[off] & 0x80) != 0) {
+            long v = block[off] & 0x7F;
+            for (int i = 1; i < len; i++) v = (v << 8) | (block[off + i] & 0xFF);
+            return v;
+        }
+        long v = 0;
+        boolean digits = false;
+        for (int i = off; i < off + len; i++) {
+            byte c = block[i];
+            if (c == ' ' && !digits) continue;
+            if (c < '0' || c > '7') break;
+            v = (v << 3) + (c - '0');
+            digits = true;
+        }
+        return v;
+    }
+
+    private static String cString(byte[] b, int off, int len) {
+        int end = off;
+        while (end < off + len && b[end] != 0) end++;
+        return new String(b, off, end - off, StandardCharsets.UTF_8);
+    }
+
+    /** {@code path} and {@code size} out of pax records, either may be null. */
+    private static String[] parsePax(byte[] body) throws IOException {
+        String[] out = new String[2];
+        int i = 0;
+        while (i < body.length) {
+            int space = i;
+            while (space < body.length && body[space] != ' ') space++;
+            if (space >= body.length) break;
+            int len;
+            try {
+                len = Integer.parseInt(new String(body, i, space - i, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IOException("Corrupt pax header");
+            }
+            if (len <= 0 || i + len > body.length) throw new IOException("Corrupt pax header");
+            String record = new String(body, space + 1, i + len - space - 2, StandardCharsets.UTF_8);
+            int eq = record.indexOf('=');
+            if (eq > 0) {
+                String k = record.substring(0, eq);
+                if (k.equals("path")) out[0] = record.substring(eq + 1);
+                else if (k.equals("size")) out[1] = record.substring(eq + 1);
+            }
+            i += len;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,162 @@
+package freesmelly.s3backup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Streaming POSIX (pax) tar writer. Long names and sizes over 8 GiB get a pax extended header,
+ * so GNU tar, bsdtar and libarchive all read the result.
+ */
+final class TarWriter implements AutoCloseable {
+    private static final int BLOCK = 512;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    /** Size of the ustar name field. */
+    private static final int NAME_BYTES = 100;
+    private static final byte[] PAX_DIR = "PaxHeaders/".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[1 << 16];
+    private boolean finished;
+
+    TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Copies one file into the archive. The header carries {@code size}, normally taken right after
+     * opening; if the file shrinks while being read the rest is zero-filled, if it grows the tail is
+     * cut, so the archive stays well-formed either way.
+     *
+     * @return CRC32 of the bytes written for the file
+     * @throws ShortFileException after the zero-fill, when the file ended early; the archive can
+     *                            still be continued, but the entry does not hold the file
+     */
+    long writeFile(ZipUtil.SourceFile f, InputStream in, long size) throws IOException {
+        writeHeader(f.name(), size, f.mtimeMillis());
+        CRC32 crc = new CRC32();
+        long remaining = size;
+        while (remaining > 0) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (n < 0) break;
+            crc.update(buf, 0, n);
+            out.write(buf, 0, n);
+            remaining -= n;
+        }
+        if (remaining > 0) {
+            long read = size - remaining;
+            Arrays.fill(buf, (byte) 0);
+            while (remaining > 0) {
+                int n = (int) Math.min(buf.length, remaining);
+                out.write(buf, 0, n);
+                remaining -= n;
+            }
+            pad(size);
+            throw new ShortFileException("shrank while being archived, only " + read + " of " + size + " bytes were read");
+        }
+        pad(size);
+        return crc.getValue();
+    }
+
+    /** A file ended before the size in its header; its entry was zero-filled to keep the archive readable. */
+    static final class ShortFileException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ShortFileException(String message) {
+            super(message);
+        }
+    }
+
+    private void writeHeader(String name, long size, long mtimeMillis) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean longName = nameBytes.length > NAME_BYTES;
+        boolean bigSize = size > MAX_OCTAL_SIZE;
+        if (longName || bigSize) {
+            StringBuilder pax = new StringBuilder();
+            if (longName) pax.append(paxRecord("path", name));
+            if (bigSize) pax.append(paxRecord("size", Long.toString(size)));
+            byte[] body = pax.toString().getBytes(StandardCharsets.UTF_8);
+            out.write(header(concat(PAX_DIR, truncate(nameBytes, NAME_BYTES - PAX_DIR.length)), body.length, mtimeMillis, (byte) 'x'));
+            out.write(body);
+            pad(body.length);
+        }
+        out.write(header(truncate(nameBytes, NAME_BYTES), bigSize ? 0 : size, mtimeMillis, (byte) '0'));
+    }
+
+    /**
+     * The first {@code max} bytes of a UTF-8 name, cut back to a character boundary so the header
+     * never ends in half a character. Readers take the full name from the pax record anyway.
+     */
+    private static byte[] truncate(byte[] utf8, int max) {
+        if (utf8.length <= max) return utf8;
+        int end = max;
+        while (end > 0 && (utf8[end] & 0xC0) == 0x80) end--;
+        return Arrays.copyOf(utf8, end);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] r = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+        return r;
+    }
+
+    /** A pax record is "<len> <key>=<value>\n" where len counts itself. */
+    private static String paxRecord(String key, String value) {
+        int base = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int len = base + Integer.toString(base).length();
+        if (Integer.toString(len).length() != Integer.toString(base).length()) len++;
+        return len + " " + key + "=" + value + "\n";
+    }
+
+    /** A ustar header; {@code name} is UTF-8 and at most {@value #NAME_BYTES} bytes. */
+    private static byte[] header(byte[] name, long size, long mtimeMillis, byte type) {
+        byte[] h = new byte[BLOCK];
+        System.arraycopy(name, 0, h, 0, name.length);
+        octal(h, 100, 8, 0644);
+        octal(h, 108, 8, 0);
+        octal(h, 116, 8, 0);
+        octal(h, 124, 12, size);
+        octal(h, 136, 12, Math.max(0, mtimeMillis / 1000));
+        Arrays.fill(h, 148, 156, (byte) ' ');
+        h[156] = type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, h, 257, 6);
+        h[263] = '0';
+        h[264] = '0';
+        long sum = 0;
+        for (byte b : h) sum += b & 0xFF;
+        octal(h, 148, 7, sum);
+        return h;
+    }
+
+    /** Zero-padded octal, NUL terminated, in a field of {@code len} bytes. */
+    private static void octal(byte[] h, int off, int len, long v) {
+        String s = Long.toOctalString(v);
+        int digits = len - 1;
+        for (int i = 0; i < digits; i++) {
+            int idx = s.length() - digits + i;
+            h[off + i] = (byte) (idx >= 0 ? s.charAt(idx) : '0');
+        }
+        h[off + digits] = 0;
+    }
+
+    private void pad(long written) throws IOException {
+        int rem = (int) (written % BLOCK);
+        if (rem != 0) out.write(new byte[BLOCK - rem]);
+    }
+
+    /** Writes the two zero end-of-archive blocks. The underlying stream is flushed but not closed. */
+    void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        out.write(new byte[2 * BLOCK]);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+}
@@ -0,0 +1,117 @@
+package freesmelly.s3backup;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Milliseconds per tick as measured from the server tick events. The scheduler uses the long
+ * average to decide whether a backup may start; archiving calls {@link #yieldIfLagging} between
+ * files and blocks, which pauses the disk-heavy work while the short average is over budget.
+ */
+final class TickHealth {
+    private TickHealth() {}
+
+    /** Ticks in the long average, five seconds' worth. */
+    private static final int WINDOW = 100;
+    /** Weight of the newest tick in the short average; reacts within a few ticks. */
+    private static final double FAST_ALPHA = 0.2;
+    /** No tick for this long means the server is not ticking at all, which we do not wait for. */
+    private static final long STALE_NS = 5_000_000_000L;
+
+    private static final long[] samples = new long[WINDOW];
+    private static int next;
+    private static int count;
+    private static long sum;
+    private static long tickStartNs;
+
+    private static volatile double averageMspt;
+    private static volatile double fastMspt;
+    private static volatile long lastTickNs;
+
+    private static volatile double pauseAboveMspt = 50;
+    private static volatile long maxPauseMillis = 60_000;
+    // A lock rather than synchronized: the thread that pauses may be virtual, and sleeping inside a monitor would pin its carrier.
+    private static final ReentrantLock pauseLock = new ReentrantLock();
+    private static long pausedNs;
+
+    static void configure(double pauseAbove, int maxPauseSeconds) {
+        pauseAboveMspt = pauseAbove;
+        maxPauseMillis = Math.max(0, maxPauseSeconds) * 1000L;
+    }
+
+    /** Server thread, START_SERVER_TICK. */
+    static void tickStarted() {
+        tickStartNs = System.nanoTime();
+    }
+
+    /** Server thread, END_SERVER_TICK. */
+    static void tickEnded() {
+        long now = System.nanoTime();
+        if (tickStartNs == 0) return;
+        long took = now - tickStartNs;
+        sum += took - samples[next];
+        samples[next] = took;
+        next = (next + 1) % WINDOW;
+        if (count < WINDOW) count++;
+        averageMspt = sum / 1e6 / count;
+        fastMspt = fastMspt == 0 ? took / 1e6 : fastMspt + FAST_ALPHA * (took / 1e6 - fastMspt);
+        lastTickNs = now;
+    }
+
+    /** Average over the last five seconds of ticks, in milliseconds. */
+    static double mspt() {
+        return averageMspt;
+    }
+
+    static double tps() {
+        double mspt = averageMspt;
+        return mspt <= 50 ? 20.0 : 1000.0 / mspt;
+    }
+
+    /**
+     * Blocks while ticks run over {@code pauseAboveMspt}, until they are back under 80% of it. A
+     * single pause is capped at {@code maxPauseSeconds} so a server that lags for good still gets
+     * its backup, just slowly.
+     */
+    static void yieldIfLagging() throws InterruptedIOException {
+        double limit = pauseAboveMspt;
+        if (limit <= 0 || fastMspt <= limit || System.nanoTime() - lastTickNs > STALE_NS) return;
+        long start = System.nanoTime();
+        long deadline = start + maxPauseMillis * 1_000_000L;
+        try {
+            pauseLock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while paused for server lag");
+        }
+        try {
+            // Only one thread reports and waits; the others queue up behind it.
+            if (fastMspt <= limit) return;
+            System.out.println(String.format("[S3Backup] Server lagging (%.1f mspt), pausing backup I/O", fastMspt));
+            try {
+                while (fastMspt > limit * 0.8 && System.nanoTime() < deadline && System.nanoTime() - lastTickNs <= STALE_NS) {
+                    Thread.sleep(100);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while paused for server lag");
+            } finally {
+                pausedNs += System.nanoTime() - start;
+            }
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    /** Total time {@link #yieldIfLagging} has held backups back since the last call. */
+    static long takePausedMillis() {
+        pauseLock.lock();
+        try {
+            long ms = pausedNs / 1_000_000;
+            pausedNs = 0;
+            return ms;
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+}
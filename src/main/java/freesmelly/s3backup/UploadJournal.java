@@ -0,0 +1,114 @@
+package freesmelly.s3backup;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Durable record of one multipart upload in progress, one JSON file per upload under
+ * {@code config/s3-backup-mod/uploads}. Rewritten after every finished part, so after a crash the
+ * upload can be picked up where it stopped instead of starting over.
+ *
+ * <p>Streaming uploads have no {@code file}: their body cannot be regenerated, so the journal only
+ * exists to make sure the upload gets aborted rather than orphaned.
+ */
+final class UploadJournal {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    String bucket;
+    String key;
+    String uploadId;
+    String file;
+    long fileSize;
+    long partSize;
+    String checksum;
+    long created;
+    Map<Integer, String> parts = new TreeMap<>();
+
+    private transient Path path;
+    private transient boolean deleted;
+
+    static Path dir() {
+        return Paths.get("config", "s3-backup-mod", "uploads");
+    }
+
+    static UploadJournal begin(String bucket, String key, String uploadId, Path file, long fileSize, long partSize, PartChecksum checksum) throws IOException {
+        UploadJournal j = new UploadJournal();
+        j.bucket = bucket;
+        j.key = key;
+        j.uploadId = uploadId;
+        j.file = file == null ? null : file.toAbsolutePath().toString();
+        j.fileSize = fileSize;
+        j.partSize = partSize;
+        j.checksum = checksum.name();
+        j.created = System.currentTimeMillis();
+        j.path = dir().resolve(Integer.toHexString(uploadId.hashCode()) + "-" + key.replaceAll("[^A-Za-z0-9._-]", "_") + ".json");
+        j.save();
+        return j;
+    }
+
+    /** Every journal on disk; unreadable ones are reported and skipped. */
+    static List<UploadJournal> loadAll() {
+        List<UploadJournal> out = new ArrayList<>();
+        if (!Files.isDirectory(dir())) return out;
+        try (Stream<Path> s = Files.list(dir())) {
+            for (Path p : (Iterable<Path>) s.filter(p -> p.toString().endsWith(".json"))::iterator) {
+                try {
+                    UploadJournal j = GSON.fromJson(Files.readString(p), UploadJournal.class);
+                    if (j == null || j.uploadId == null || j.key == null) throw new IOException("missing fields");
+                    if (j.parts == null) j.parts = new TreeMap<>();
+                    j.path = p;
+                    out.add(j);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("[S3Backup] Ignoring unreadable upload journal " + p + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[S3Backup] Failed to list upload journals: " + e.getMessage());
+        }
+        return out;
+    }
+
+    /** Algorithm the upload was created with; parts sent on resume must use the same one. */
+    PartChecksum checksum() {
+        return PartChecksum.parse(checksum);
+    }
+
+    boolean isStreaming() {
+        return file == null;
+    }
+
+    /** A part that finishes after the upload was aborted is not recorded, so the journal stays gone. */
+    synchronized void partDone(int partNumber, String eTag) throws IOException {
+        parts.put(partNumber, eTag);
+        if (!deleted) save();
+    }
+
+    synchronized void delete() {
+        deleted = true;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("[S3Backup] Failed to delete upload journal " + path + ": " + e.getMessage());
+        }
+    }
+
+    /** Temp file plus atomic move, so a crash mid-write leaves the previous version intact. */
+    private synchronized void save() throws IOException {
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.writeString(tmp, GSON.toJson(this));
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
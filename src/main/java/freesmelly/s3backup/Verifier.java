@@ -0,0 +1,245 @@
+package freesmelly.s3backup;
+
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Spot-checks a backup in the bucket without downloading it. The object must still be the one the
+ * catalog recorded; a zip's central directory must list exactly the entries the {@link EntryList}
+ * says were written, with the same sizes and CRCs; and a random sample of entries, fetched with
+ * one ranged GET each, must inflate to those CRCs. A tar.zst has no directory to read, so it only
+ * gets the object check. A sharded backup is checked shard by shard against its {@link Shards}
+ * manifest, with the samples spread across them. A {@link ChunkStore} snapshot must have every pack
+ * it uses in the bucket, long enough for its chunks, and a random sample of chunks must decode to
+ * their SHA-256.
+ */
+final class Verifier {
+    private static final Metrics.Counter PASSED = Metrics.counter("s3backup_verify_runs_total", "result=\"ok\"", "Backups spot-checked in the bucket, by result");
+    private static final Metrics.Counter FAILED = Metrics.counter("s3backup_verify_runs_total", "result=\"failed\"", "Backups spot-checked in the bucket, by result");
+    private static final Metrics.Counter DOWNLOADED = Metrics.counter("s3backup_verify_downloaded_bytes_total", "Bytes fetched to verify backups");
+    private static final Metrics.Gauge LAST = Metrics.gauge("s3backup_last_verify_timestamp_seconds", "Unix time the last backup verification finished");
+    /** Problems listed one by one; past this they are only counted. */
+    private static final int MAX_LISTED = 10;
+
+    /**
+     * @param problems what is wrong with the backup; empty if it checked out
+     * @param notes    things worth knowing that are not wrong with the archive, e.g. files left out when it was written
+     */
+    record Result(String key, int entries, int sampled, long downloaded, List<String> problems, List<String> notes, long millis) {
+        boolean ok() {
+            return problems.isEmpty();
+        }
+    }
+
+    private final S3Client s3;
+    private final String bucket;
+    private final int samples;
+    private final PartRetry retry;
+    private final Random random;
+
+    Verifier(S3Client s3, String bucket, int samples, PartRetry retry, Random random) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.samples = Math.max(0, samples);
+        this.retry = retry;
+        this.random = random;
+    }
+
+    Result verify(BackupCatalog.Entry backup) {
+        long start = System.nanoTime();
+        Tally t = new Tally();
+        try {
+            if (Shards.isManifestKey(backup.key)) {
+                Shards shards = Shards.load(s3, bucket, backup.key);
+                // Spread the samples over the shards rather than spending them all on the first.
+                int each = (samples + shards.shards.size() - 1) / shards.shards.size();
+                for (Shards.Shard shard : shards.shards) check(shard.key(), shard.sizeBytes(), shard.etag(), each, shard.name() + ": ", t);
+            } else if (ChunkStore.isSnapshotKey(backup.key)) {
+                checkChunks(backup.key, t);
+            } else {
+                check(backup.key, backup.sizeBytes, backup.etag, samples, "", t);
+            }
+        } catch (IOException | RuntimeException e) {
+            t.problems.add(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+        }
+        DOWNLOADED.add(t.downloaded);
+        (t.problems.isEmpty() ? PASSED : FAILED).inc();
+        LAST.set(System.currentTimeMillis() / 1000.0);
+        return new Result(backup.key, t.entries, t.sampled, t.downloaded, t.problems, t.notes, (System.nanoTime() - start) / 1_000_000L);
+    }
+
+    /** What the checks of one backup have found so far, across its archives. */
+    private static final class Tally {
+        final List<String> problems = new ArrayList<>();
+        final List<String> notes = new ArrayList<>();
+        int entries;
+        int sampled;
+        long downloaded;
+    }
+
+    /** Checks one archive against what was recorded for it; {@code label} prefixes what it finds. */
+    private void check(String key, long expectedSize, String expectedEtag, int samples, String label, Tally t) throws IOException {
+        HeadObjectResponse head;
+        try {
+            head = s3.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+        } catch (NoSuchKeyException e) {
+            t.problems.add(label + "the archive is missing from the bucket");
+            return;
+        }
+        long size = head.contentLength();
+        if (expectedSize > 0 && size != expectedSize) t.problems.add(label + "the archive is " + size + " bytes, the catalog says " + expectedSize);
+        if (expectedEtag != null && head.eTag() != null && !expectedEtag.equals(head.eTag())) t.problems.add(label + "the archive was replaced since it was uploaded (ETag " + head.eTag() + ")");
+
+        EntryList list = EntryList.load(s3, bucket, key);
+        if (list == null) {
+            t.notes.add(label + "no entry list stored with it, only the archive itself was checked");
+        } else {
+            t.entries += list.entries.size();
+            if (!list.skipped.isEmpty()) {
+                t.notes.add(label + list.skipped.size() + " file(s) were left out when it was written, e.g. " + list.skipped.get(0).name()
+                        + " (" + list.skipped.get(0).reason() + ")");
+            }
+        }
+        if (!key.endsWith(".zip")) return;
+
+        ZipIndex idx = ZipIndex.read(s3, bucket, key, size, head.eTag());
+        t.downloaded += idx.fetchedBytes;
+        if (list != null) compare(list, idx, label, t.problems);
+        else t.entries += idx.entries.size();
+
+        List<ZipIndex.Entry> pick = new ArrayList<>(idx.entries);
+        Collections.shuffle(pick, random);
+        for (ZipIndex.Entry e : pick.subList(0, Math.min(samples, pick.size()))) {
+            long[] got;
+            try {
+                got = retry.call("verifying " + e.name() + " of " + key, () -> read(key, idx.etag, e));
+            } catch (Exception ex) {
+                t.problems.add(label + e.name() + " could not be read back: " + ex.getMessage());
+                continue;
+            }
+            t.sampled++;
+            t.downloaded += e.end() - e.offset();
+            if (got[0] != e.size() || got[1] != e.crc()) {
+                t.problems.add(label + e.name() + " reads back as " + got[0] + " bytes, CRC " + Long.toHexString(got[1])
+                        + " instead of " + e.size() + " bytes, CRC " + Long.toHexString(e.crc()));
+            }
+        }
+    }
+
+    /** Checks a chunk snapshot: one listing of its packs, then one ranged GET per sampled chunk. */
+    private void checkChunks(String key, Tally t) throws IOException {
+        ChunkStore.Snapshot snap = ChunkStore.loadSnapshot(s3, bucket, key);
+        t.downloaded += snap.fetchedBytes();
+        t.entries += snap.files().size();
+        Map<String, Long> packSizes = new HashMap<>();
+        for (S3Object o : s3.listObjectsV2Paginator(ListObjectsV2Request.builder().bucket(bucket).prefix(snap.root() + "packs/").build()).contents()) {
+            packSizes.put(o.key(), o.size());
+        }
+        Map<Long, Long> needed = new HashMap<>();
+        for (ChunkStore.StoredChunk c : snap.chunks()) needed.merge(c.pack(), c.end(), Math::max);
+        int bad = 0;
+        for (Map.Entry<Long, Long> p : needed.entrySet()) {
+            String pack = snap.packKey(p.getKey());
+            Long size = packSizes.get(pack);
+            String problem = null;
+            if (size == null) problem = "pack " + pack + " is missing from the bucket";
+            else if (size < p.getValue()) problem = "pack " + pack + " is " + size + " bytes, its chunks need " + p.getValue();
+            if (problem != null && bad++ < MAX_LISTED) t.problems.add(problem);
+        }
+        if (bad > MAX_LISTED) t.problems.add((bad - MAX_LISTED) + " more packs are missing or short");
+        if (bad > 0) return;
+
+        List<ChunkStore.StoredChunk> pick = new ArrayList<>(snap.chunks());
+        Collections.shuffle(pick, random);
+        for (ChunkStore.StoredChunk c : pick.subList(0, Math.min(samples, pick.size()))) {
+            String pack = snap.packKey(c.pack());
+            try {
+                retry.call("verifying a chunk of " + pack, () -> ChunkStore.decode(c, s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(pack)
+                        .range("bytes=" + c.offset() + "-" + (c.end() - 1)).build()).asByteArray(), 0));
+            } catch (Exception ex) {
+                t.problems.add("the chunk at " + c.offset() + " of " + pack + " does not read back: " + ex.getMessage());
+                continue;
+            }
+            t.sampled++;
+            t.downloaded += c.storedLength();
+        }
+    }
+
+    /** Every listed entry must be in the directory as written, and nothing else may be. */
+    private static void compare(EntryList list, ZipIndex idx, String label, List<String> problems) {
+        Map<String, ZipIndex.Entry> dir = new HashMap<>();
+        for (ZipIndex.Entry e : idx.entries) dir.put(e.name(), e);
+        int bad = 0;
+        for (EntryList.Item item : list.entries) {
+            ZipIndex.Entry e = dir.remove(item.name());
+            String problem = null;
+            if (e == null) {
+                problem = item.name() + " is missing from the archive";
+            } else if (e.size() != item.size() || e.crc() != item.crc()
+                    || (item.compressedSize() >= 0 && e.compressedSize() != item.compressedSize())) {
+                problem = item.name() + " is listed as " + e.size() + " bytes, CRC " + Long.toHexString(e.crc())
+                        + " but was written as " + item.size() + " bytes, CRC " + Long.toHexString(item.crc());
+            }
+            if (problem != null && bad++ < MAX_LISTED) problems.add(label + problem);
+        }
+        for (String extra : dir.keySet()) {
+            if (bad++ < MAX_LISTED) problems.add(label + extra + " is in the archive but was never written to it");
+        }
+        if (bad > MAX_LISTED) problems.add(label + (bad - MAX_LISTED) + " more entries differ from the entry list");
+    }
+
+    /** Fetches one entry and returns its inflated size and CRC. */
+    private long[] read(String key, String etag, ZipIndex.Entry e) throws IOException {
+        GetObjectRequest req = GetObjectRequest.builder().bucket(bucket).key(key).ifMatch(etag)
+                .range("bytes=" + e.offset() + "-" + (e.end() - 1)).build();
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] buf = new byte[1 << 16];
+        try (InputStream in = new BufferedInputStream(s3.getObject(req), 1 << 16);
+             ZipIndex.EntryStream body = ZipIndex.openEntry(in, e, key)) {
+            int n;
+            while ((n = body.read(buf)) > 0) {
+                crc.update(buf, 0, n);
+                size += n;
+            }
+        }
+        return new long[]{size, crc.getValue()};
+    }
+
+    /**
+     * The backup most in need of a check: one never verified (newest first), else the one verified
+     * longest ago. Null if the catalog is empty.
+     */
+    static BackupCatalog.Entry next(List<BackupCatalog.Entry> newestFirst) {
+        BackupCatalog.Entry best = null;
+        for (BackupCatalog.Entry e : newestFirst) {
+            if (best == null || e.verifiedAt < best.verifiedAt) best = e;
+        }
+        return best;
+    }
+
+    /** One line for the log or a chat message. */
+    static String describe(Result r) {
+        String what = BackupCatalog.idOf(r.key()) + ": " + (r.entries() > 0 ? r.entries() + " entries, " : "") + r.sampled() + " sampled, "
+                + (r.downloaded() >> 10) + " KB fetched in " + r.millis() + " ms";
+        if (!r.ok()) what += "; " + String.join("; ", r.problems());
+        if (!r.notes().isEmpty()) what += " (" + String.join("; ", r.notes()) + ")";
+        return what;
+    }
+}
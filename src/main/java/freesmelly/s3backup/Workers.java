@@ -0,0 +1,216 @@
+package freesmelly.s3backup;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that backups, restores and verification run on. They are created once and live as
+ * long as the server.
+ *
+ * <ul>
+ *   <li><b>io</b>: network work such as part uploads, ranged GETs and deletes. It runs on virtual
+ *   threads, one per task. A task parks without holding a platform thread while S3 answers, so
+ *   raising a parallelism setting adds no OS threads.</li>
+ *   <li><b>cpu</b>: deflate, zstd frames, chunk hashing, and bulk copies on local disk. It runs on
+ *   one pool of platform threads sized to the machine and shared by every job. File-system calls
+ *   would pin a virtual thread anyway, and only a platform thread can report the CPU time that
+ *   {@link CompressionPolicy} measures.</li>
+ *   <li><b>streams</b>: jobs, and the tasks that write or read one whole archive (a shard, an
+ *   archive of a restore). They run on platform threads, one per task, and spend most of their time
+ *   waiting on io and cpu tasks. zstd-jni's streams are synchronized, and a virtual thread that
+ *   waits inside one keeps its carrier, so with few cores the io tasks it waits for would never get
+ *   to run.</li>
+ * </ul>
+ *
+ * <p>Work is forked inside a {@link Scope}. A scope runs at most its limit of tasks at once, and
+ * queues the rest without blocking the caller. Closing a scope cancels whatever has not finished
+ * and waits for it to stop, so no task outlives the code that started it. A scope opened by a
+ * backup job, or by one of that job's tasks, belongs to the job, and {@link BackupJob#cancel()}
+ * cancels it. Cancelling a job therefore interrupts every upload, download and compression task it
+ * has running, not only the job's own thread.
+ */
+final class Workers {
+    private Workers() {}
+
+    private static final AtomicInteger CPU_IDS = new AtomicInteger();
+    private static final int CPU_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService VIRTUAL = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("S3Backup-IO-", 0).factory());
+    private static final ExecutorService STREAMS = Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name("S3Backup-Stream-", 0).daemon().inheritInheritableThreadLocals(false).factory());
+    private static final ExecutorService CPU = Executors.newFixedThreadPool(CPU_THREADS, r -> {
+        // Pool threads are shared by every job, so they must not inherit anything from the one that started them.
+        Thread t = new Thread(null, r, "S3Backup-CPU-" + CPU_IDS.incrementAndGet(), 0, false);
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Metrics.Gauge CPU_POOL = Metrics.gauge("s3backup_cpu_threads", "Platform threads in the shared compression pool");
+    private static final Metrics.Gauge TASKS = Metrics.gauge("s3backup_worker_tasks", "Backup, restore and verify tasks running right now");
+    private static final AtomicInteger running = new AtomicInteger();
+
+    /** The job whose work the current thread is doing; null outside a backup job. */
+    private static final ThreadLocal<BackupJob> OWNER = new ThreadLocal<>();
+
+    static {
+        CPU_POOL.set(CPU_THREADS);
+    }
+
+    /** Runs each task on a new platform thread; for a whole job. */
+    static Executor jobs() {
+        return STREAMS;
+    }
+
+    static int cpuThreads() {
+        return CPU_THREADS;
+    }
+
+    /** The job the current thread works for, or {@code null}; see {@link BackupJob#current()}. */
+    static BackupJob owner() {
+        return OWNER.get();
+    }
+
+    /** Makes the current thread's scopes belong to {@code job} ({@code null} to stop). */
+    static void bind(BackupJob job) {
+        if (job == null) OWNER.remove();
+        else OWNER.set(job);
+    }
+
+    /** A scope for network-bound tasks, at most {@code limit} running at once. */
+    static Scope io(int limit) {
+        return new Scope(VIRTUAL, limit);
+    }
+
+    /** A scope for tasks that each drive one archive stream, at most {@code limit} running at once. */
+    static Scope streams(int limit) {
+        return new Scope(STREAMS, limit);
+    }
+
+    /** A scope on the shared CPU pool, at most {@code limit} running at once (and never more than the pool has threads). */
+    static Scope cpu(int limit) {
+        return new Scope(CPU, Math.min(limit, CPU_THREADS));
+    }
+
+    static final class Scope implements AutoCloseable {
+        private final Executor executor;
+        private final int limit;
+        private final BackupJob owner = OWNER.get();
+        private final Queue<FutureTask<?>> waiting = new ConcurrentLinkedQueue<>();
+        /** Tasks not yet done, for {@link #cancel()}; each removes itself when it completes, so a long-lived scope does not pile them up. */
+        private final Set<Future<?>> forked = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger active = new AtomicInteger();
+        private volatile boolean cancelled;
+
+        private Scope(Executor executor, int limit) {
+            this.executor = executor;
+            this.limit = Math.max(1, limit);
+            if (owner != null) owner.adopt(this);
+        }
+
+        /** Starts {@code task} as soon as fewer than the limit are running; never blocks. */
+        <T> Future<T> fork(Callable<T> task) {
+            FutureTask<T> f = new FutureTask<>(() -> {
+                BackupJob before = OWNER.get();
+                bind(owner);
+                try {
+                    return task.call();
+                } finally {
+                    bind(before);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    forked.remove(this);
+                }
+            };
+            forked.add(f);
+            if (cancelled) {
+                f.cancel(false);
+                return f;
+            }
+            waiting.add(f);
+            dispatch();
+            return f;
+        }
+
+        /** Hands queued tasks to the executor while there are free slots. */
+        private void dispatch() {
+            while (!waiting.isEmpty()) {
+                int n = active.get();
+                if (n >= limit) return;
+                if (!active.compareAndSet(n, n + 1)) continue;
+                FutureTask<?> next = waiting.poll();
+                if (next == null) {
+                    // Another thread took it; give the slot back and look again.
+                    finished();
+                    continue;
+                }
+                running.incrementAndGet();
+                TASKS.set(running.get());
+                executor.execute(() -> {
+                    try {
+                        next.run();
+                    } finally {
+                        TASKS.set(running.decrementAndGet());
+                        finished();
+                        dispatch();
+                    }
+                });
+            }
+        }
+
+        private void finished() {
+            if (active.decrementAndGet() == 0) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /** Cancels everything not yet finished and interrupts what is running. Further forks are cancelled at once. */
+        void cancel() {
+            cancelled = true;
+            for (Future<?> f : forked) f.cancel(true);
+        }
+
+        /**
+         * Cancels what is left and waits up to {@code timeout} for running tasks to stop.
+         *
+         * @return true if nothing of this scope is running any more
+         */
+        boolean cancelAndAwait(long timeout, TimeUnit unit) {
+            cancel();
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            boolean interrupted = false;
+            synchronized (this) {
+                while (active.get() > 0) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) break;
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            return active.get() == 0;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (!cancelAndAwait(30, TimeUnit.SECONDS)) System.err.println("[S3Backup] " + active.get() + " task(s) still running 30s after being cancelled");
+            } finally {
+                if (owner != null) owner.release(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package freesmelly.s3backup;
+
+import com.google.gson.Gson;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * The central directory of a zip backup in S3, read from the end of the object with one ranged
+ * GET (two when the directory is bigger than the tail) and cached gzipped under
+ * {@code config/s3-backup-mod/zip-index/}. The cache is tied to the object's ETag, so a replaced
+ * object is read again. With the index, any single entry can be fetched with one ranged GET.
+ */
+final class ZipIndex {
+    private static final Gson GSON = new Gson();
+    /** Enough for the end records, a full-length comment, and the whole directory of most small worlds. */
+    private static final int TAIL = 256 * 1024;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    /**
+     * One entry. {@code end} is where the next entry (or the central directory) starts, so
+     * {@code [offset, end)} covers the local header, the data and any data descriptor.
+     */
+    record Entry(String name, int method, long crc, long compressedSize, long size, long offset, long end, long mtimeMillis) {}
+
+    String key;
+    String etag;
+    long objectSize;
+    List<Entry> entries;
+    /** Bytes fetched to build this index; 0 when it came from the cache. */
+    transient long fetchedBytes;
+
+    static Path cacheFile(String key) {
+        return Paths.get("config", "s3-backup-mod", "zip-index", BackupCatalog.idOf(key) + ".json.gz");
+    }
+
+    /** Drops the cached index of a backup that no longer exists. */
+    static void forget(String key) {
+        try {
+            Files.deleteIfExists(cacheFile(key));
+        } catch (IOException ignored) {}
+    }
+
+    /** The index of {@code key}: the cached one if its ETag still matches, else freshly read and cached. */
+    static ZipIndex load(S3Client s3, String bucket, String key) throws IOException {
+        HeadObjectResponse head = s3.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+        Path cache = cacheFile(key);
+        if (Files.isRegularFile(cache)) {
+            try (Reader r = new InputStreamReader(new GZIPInputStream(Files.newInputStream(cache)), StandardCharsets.UTF_8)) {
+                ZipIndex idx = GSON.fromJson(r, ZipIndex.class);
+                if (idx != null && key.equals(idx.key) && Objects.equals(head.eTag(), idx.etag)
+                        && head.contentLength() == idx.objectSize && idx.entries != null) return idx;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[S3Backup] Ignoring unreadable zip index " + cache + ": " + e.getMessage());
+            }
+        }
+        ZipIndex idx = read(s3, bucket, key, head.contentLength(), head.eTag());
+        try {
+            Files.createDirectories(cache.getParent());
+            Path tmp = cache.resolveSibling(cache.getFileName() + ".tmp");
+            try (Writer w = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(tmp)), StandardCharsets.UTF_8)) {
+                GSON.toJson(idx, w);
+            }
+            Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("[S3Backup] Could not cache zip index of " + key + ": " + e.getMessage());
+        }
+        return idx;
+    }
+
+    /** Reads the index from the object itself, ignoring the cache; {@code size} and {@code etag} come from a HEAD. */
+    static ZipIndex read(S3Client s3, String bucket, String key, long size, String etag) throws IOException {
+        long tailStart = Math.max(0, size - TAIL);
+        byte[] tail = range(s3, bucket, key, etag, tailStart, size - tailStart);
+        long fetched = tail.length;
+        ByteBuffer t = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+
+        int eocd = -1;
+        for (int i = tail.length - 22; i >= 0; i--) {
+            if (t.getInt(i) == 0x06054b50 && i + 22 + (t.getShort(i + 20) & 0xFFFF) == tail.length) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) throw new IOException(key + " has no zip end record; is it a complete zip?");
+        long count = t.getShort(eocd + 10) & 0xFFFF;
+        long cdSize = t.getInt(eocd + 12) & ZIP64_MAGIC;
+        long cdOffset = t.getInt(eocd + 16) & ZIP64_MAGIC;
+        if ((count == 0xFFFF || cdSize == ZIP64_MAGIC || cdOffset == ZIP64_MAGIC) && eocd >= 20 && t.getInt(eocd - 20) == 0x07064b50) {
+            long z64 = t.getLong(eocd - 20 + 8);
+            ByteBuffer z;
+            if (z64 >= tailStart) {
+                z = ByteBuffer.wrap(tail, (int) (z64 - tailStart), 56).slice().order(ByteOrder.LITTLE_ENDIAN);
+            } else {
+                byte[] rec = range(s3, bucket, key, etag, z64, 56);
+                fetched += rec.length;
+                z = ByteBuffer.wrap(rec).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            if (z.getInt(0) != 0x06064b50) throw new IOException(key + " has a broken ZIP64 end record");
+            count = z.getLong(32);
+            cdSize = z.getLong(40);
+            cdOffset = z.getLong(48);
+        }
+
+        byte[] cd;
+        if (cdOffset >= tailStart) {
+            cd = new byte[(int) cdSize];
+            System.arraycopy(tail, (int) (cdOffset - tailStart), cd, 0, cd.length);
+        } else {
+            if (cdSize > Integer.MAX_VALUE - 8) throw new IOException("Central directory of " + key + " is too large (" + cdSize + " bytes)");
+            cd = range(s3, bucket, key, etag, cdOffset, cdSize);
+            fetched += cd.length;
+        }
+
+        List<Entry> raw = parse(cd, count, key);
+        raw.sort(Comparator.comparingLong(Entry::offset));
+        List<Entry> entries = new ArrayList<>(raw.size());
+        for (int i = 0; i < raw.size(); i++) {
+            Entry e = raw.get(i);
+            long end = i + 1 < raw.size() ? raw.get(i + 1).offset() : cdOffset;
+            entries.add(new Entry(e.name(), e.method(), e.crc(), e.compressedSize(), e.size(), e.offset(), end, e.mtimeMillis()));
+        }
+        ZipIndex idx = new ZipIndex();
+        idx.key = key;
+        idx.etag = etag;
+        idx.objectSize = size;
+        idx.entries = entries;
+        idx.fetchedBytes = fetched;
+        return idx;
+    }
+
+    private static List<Entry> parse(byte[] cd, long count, String key) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(cd).order(ByteOrder.LITTLE_ENDIAN);
+        List<Entry> out = new ArrayList<>((int) Math.min(count, 1 << 20));
+        int p = 0;
+        while (p + 46 <= cd.length && b.getInt(p) == 0x02014b50) {
+            int method = b.getShort(p + 10) & 0xFFFF;
+            int dosTime = b.getShort(p + 12) & 0xFFFF;
+            int dosDate = b.getShort(p + 14) & 0xFFFF;
+            long crc = b.getInt(p + 16) & ZIP64_MAGIC;
+            long csize = b.getInt(p + 20) & ZIP64_MAGIC;
+            long usize = b.getInt(p + 24) & ZIP64_MAGIC;
+            int nameLen = b.getShort(p + 28) & 0xFFFF;
+            int extraLen = b.getShort(p + 30) & 0xFFFF;
+            int commentLen = b.getShort(p + 32) & 0xFFFF;
+            long offset = b.getInt(p + 42) & ZIP64_MAGIC;
+            String name = new String(cd, p + 46, nameLen, StandardCharsets.UTF_8);
+            // ZIP64 extra: only the fields that overflowed are present, in this order.
+            int x = p + 46 + nameLen;
+            int xEnd = x + extraLen;
+            while (x + 4 <= xEnd) {
+                int id = b.getShort(x) & 0xFFFF;
+                int len = b.getShort(x + 2) & 0xFFFF;
+                if (id == 0x0001) {
+                    int q = x + 4;
+                    if (usize == ZIP64_MAGIC) { usize = b.getLong(q); q += 8; }
+                    if (csize == ZIP64_MAGIC) { csize = b.getLong(q); q += 8; }
+                    if (offset == ZIP64_MAGIC) offset = b.getLong(q);
+                }
+                x += 4 + len;
+            }
+            if (!name.endsWith("/")) out.add(new Entry(name, method, crc, csize, usize, offset, 0, dosToMillis(dosDate, dosTime)));
+            p += 46 + nameLen + extraLen + commentLen;
+        }
+        if (out.isEmpty() && count > 0) throw new IOException("Central directory of " + key + " could not be read");
+        return out;
+    }
+
+    /**
+     * The data of {@code e}, inflated, from a stream positioned at its local header. Closing it
+     * skips what is left of the entry and leaves {@code in} open, positioned at {@link EntryStream#end()}.
+     */
+    static EntryStream openEntry(InputStream in, Entry e, String key) throws IOException {
+        byte[] loc = in.readNBytes(30);
+        ByteBuffer h = ByteBuffer.wrap(loc).order(ByteOrder.LITTLE_ENDIAN);
+        if (loc.length < 30 || h.getInt(0) != 0x04034b50) throw new IOException("No local header for " + e.name() + " at " + e.offset() + " of " + key);
+        if (e.method() != ZipEntry.DEFLATED && e.method() != ZipEntry.STORED) throw new IOException(e.name() + " uses unsupported compression method " + e.method());
+        int skip = (h.getShort(26) & 0xFFFF) + (h.getShort(28) & 0xFFFF);
+        in.skipNBytes(skip);
+        return new EntryStream(new BoundedStream(in, e.compressedSize()), e.method() == ZipEntry.DEFLATED ? new Inflater(true) : null,
+                e.offset() + 30 + skip + e.compressedSize());
+    }
+
+    static final class EntryStream extends FilterInputStream {
+        private final BoundedStream raw;
+        private final Inflater inflater;
+        private final long end;
+
+        private EntryStream(BoundedStream raw, Inflater inflater, long end) {
+            super(inflater == null ? raw : new InflaterInputStream(raw, inflater, 1 << 16));
+            this.raw = raw;
+            this.inflater = inflater;
+            this.end = end;
+        }
+
+        /** Offset in the object just past the entry's compressed data. */
+        long end() {
+            return end;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                raw.transferTo(OutputStream.nullOutputStream());
+            } finally {
+                if (inflater != null) inflater.end();
+            }
+        }
+    }
+
+    /** Reads at most {@code limit} bytes of the stream underneath, which stays open. */
+    private static final class BoundedStream extends FilterInputStream {
+        private long left;
+
+        BoundedStream(InputStream in, long limit) {
+            super(in);
+            this.left = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, left));
+            if (n < 0) throw new EOFException("Ranged GET ended inside an entry");
+            left -= n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static long dosToMillis(int date, int time) {
+        try {
+            return LocalDateTime.of(1980 + (date >> 9), (date >> 5) & 0xF, date & 0x1F, time >> 11, (time >> 5) & 0x3F, (time & 0x1F) * 2)
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] range(S3Client s3, String bucket, String key, String etag, long from, long len) {
+        return s3.getObjectAsBytes(GetObjectRequest.builder().bucket(bucket).key(key).ifMatch(etag)
+                .range("bytes=" + from + "-" + (from + len - 1)).build()).asByteArray();
+    }
+}
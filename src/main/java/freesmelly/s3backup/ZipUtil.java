@@ -1,33 +1,380 @@
 package freesmelly.s3backup;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public final class ZipUtil {
     private ZipUtil() {}
 
+    /** Files up to this size are deflated as one unit; bigger ones are split into blocks of this size. */
+    static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
     public static void zipDirectory(Path sourceDir, Path zipFile, List<String> excludeGlobs) throws IOException {
-        var matchers = (excludeGlobs == null) ? List.<PathMatcher>of()
-                : excludeGlobs.stream().map(g -> FileSystems.getDefault().getPathMatcher("glob:" + g)).toList();
-
-        try (var zos = new ZipOutputStream(Files.newOutputStream(zipFile))) {
-            byte[] buf = new byte[8192];
-            Files.walk(sourceDir).filter(Files::isRegularFile).forEach(p -> {
-                Path rel = sourceDir.relativize(p);
-                if (matchers.stream().anyMatch(m -> m.matches(rel))) return;
-                try (InputStream in = Files.newInputStream(p)) {
-                    zos.putNextEntry(new ZipEntry(rel.toString().replace('\\', '/')));
-                    int r;
-                    while ((r = in.read(buf)) != -1) {
-                        zos.write(buf, 0, r);
+        zipDirectory(sourceDir, zipFile, excludeGlobs, 0);
+    }
+
+    public static void zipDirectory(Path sourceDir, Path zipFile, List<String> excludeGlobs, int threads) throws IOException {
+        try (OutputStream out = Files.newOutputStream(zipFile)) {
+            zipDirectory(sourceDir, out, excludeGlobs, threads);
+        }
+    }
+
+    /** Writes the zip to {@code out} and finishes it; {@code out} itself is left open. */
+    public static void zipDirectory(Path sourceDir, OutputStream out, List<String> excludeGlobs) throws IOException {
+        zipDirectory(sourceDir, out, excludeGlobs, 0);
+    }
+
+    /**
+     * Deflates files on {@code threads} workers ({@code <= 0} means one per core) and writes the
+     * finished entries in plan order (see {@link BackupPlanner}), so the output does not depend on timing.
+     * Files larger than {@link #BLOCK_SIZE} are deflated as independent blocks that are joined
+     * with sync flushes, the same trick pigz uses; their CRCs are combined without re-reading.
+     */
+    public static void zipDirectory(Path sourceDir, OutputStream out, List<String> excludeGlobs, int threads) throws IOException {
+        zipFiles(listFiles(sourceDir, excludeGlobs), out, threads, null, null);
+    }
+
+    /** Regular files under {@code sourceDir} that no exclude glob matches, in {@link BackupPlanner} order. */
+    static List<SourceFile> listFiles(Path sourceDir, List<String> excludeGlobs) throws IOException {
+        return BackupPlanner.plan(sourceDir, excludeGlobs).files();
+    }
+
+    static void zipFiles(List<SourceFile> files, Path zipFile, int threads, CompressionPolicy policy, EntryListener listener) throws IOException {
+        try (OutputStream out = Files.newOutputStream(zipFile)) {
+            zipFiles(files, out, threads, policy, listener);
+        }
+    }
+
+    /** Zips exactly {@code files}, in list order. {@code policy} and {@code listener} may be null. */
+    static void zipFiles(List<SourceFile> files, OutputStream out, int threads, CompressionPolicy policy, EntryListener listener) throws IOException {
+        if (threads <= 0) threads = Workers.cpuThreads();
+        try (Workers.Scope pool = Workers.cpu(threads)) {
+            writeParallel(files, new ZipWriter(out), pool, threads * 4, policy == null ? CompressionPolicy.defaults() : policy, listener == null ? EntryListener.WARN : listener);
+        }
+    }
+
+    /** Told about every entry once it has been written, in archive order, on the writing thread. */
+    interface EntryListener {
+        void onEntry(SourceFile file, long crc, long size, long compressedSize);
+
+        /**
+         * {@code file} could not be read and is not in the archive, or, in a tar, its entry was
+         * zero-filled because the file ended early.
+         */
+        default void onSkipped(SourceFile file, IOException reason) {}
+
+        /** Used when the caller passes none: files left out still become job warnings. */
+        EntryListener WARN = new EntryListener() {
+            @Override
+            public void onEntry(SourceFile file, long crc, long size, long compressedSize) {}
+
+            @Override
+            public void onSkipped(SourceFile file, IOException reason) {
+                BackupJob.warn("Left out " + file.name() + ": " + reason(reason));
+            }
+        };
+    }
+
+    record SourceFile(Path path, String name, long size, long mtimeMillis) {}
+
+    /** Why a file could not be read; NIO's file exceptions carry only the path as their message. */
+    static String reason(IOException e) {
+        return e instanceof FileSystemException ? e.getClass().getSimpleName() + ": " + e.getMessage() : String.valueOf(e.getMessage());
+    }
+
+    /** One deflated unit: a whole small file, or one block of a large one. */
+    private record Block(SourceFile file, int index, boolean last, int method, byte[] data, int length, long crc, long rawLength) {}
+
+    private record Pending(SourceFile file, int index, Future<Block> result) {}
+
+    private static void writeParallel(List<SourceFile> files, ZipWriter zip, Workers.Scope pool, int window, CompressionPolicy policy, EntryListener listener) throws IOException {
+        ArrayDeque<Pending> inFlight = new ArrayDeque<>();
+        SourceFile skipping = null;
+        int fileIdx = 0;
+        int blockIdx = 0;
+
+        long entryCrc = 0;
+        long entrySize = 0;
+        long entryCsize = 0;
+        try {
+            while (true) {
+                // Keep a bounded window of blocks queued ahead of the writer; this caps memory use.
+                while (inFlight.size() < window && fileIdx < files.size()) {
+                    BackupJob.checkpoint();
+                    TickHealth.yieldIfLagging();
+                    SourceFile f = files.get(fileIdx);
+                    int blocks = f.size() <= BLOCK_SIZE ? 1 : (int) ((f.size() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+                    final int idx = blockIdx;
+                    final boolean last = idx == blocks - 1;
+                    inFlight.add(new Pending(f, idx, pool.fork(() -> blocks == 1 ? deflateWhole(f, policy) : deflateBlock(f, idx, last, policy))));
+                    if (last) {
+                        fileIdx++;
+                        blockIdx = 0;
+                    } else {
+                        blockIdx++;
+                    }
+                }
+                if (inFlight.isEmpty()) break;
+
+                Pending next = inFlight.poll();
+                if (next.file() == skipping) {
+                    next.result().cancel(true);
+                    continue;
+                }
+                Block b;
+                try {
+                    b = next.result().get();
+                } catch (ExecutionException e) {
+                    // Same policy as before: a file that cannot be read is left out, and the listener
+                    // hears about it. Once part of a large entry has been written there is no way
+                    // back, so that fails the backup.
+                    if (e.getCause() instanceof SkippedFileException s && next.index() == 0) {
+                        skipping = next.file();
+                        listener.onSkipped(next.file(), (IOException) s.getCause());
+                        continue;
                     }
-                    zos.closeEntry();
-                } catch (IOException ignored) {}
-            });
+                    throw e;
+                }
+
+                if (b.index() == 0 && b.last()) {
+                    zip.writeEntry(b.file().name(), b.method(), b.file().mtimeMillis(), b.crc(), b.rawLength(), b.data(), 0, b.length());
+                    listener.onEntry(b.file(), b.crc(), b.rawLength(), b.length());
+                    continue;
+                }
+                if (b.index() == 0) {
+                    zip.beginEntry(b.file().name(), b.file().mtimeMillis());
+                    entryCrc = 0;
+                    entrySize = 0;
+                    entryCsize = 0;
+                }
+                zip.writeData(b.data(), 0, b.length());
+                entryCrc = crc32Combine(entryCrc, b.crc(), b.rawLength());
+                entrySize += b.rawLength();
+                entryCsize += b.length();
+                if (b.last()) {
+                    zip.endEntry(entryCrc, entrySize);
+                    listener.onEntry(b.file(), entryCrc, entrySize, entryCsize);
+                }
+            }
+            zip.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while zipping");
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            if (c instanceof SkippedFileException s) throw new IOException("Failed to read " + s.getMessage(), s.getCause());
+            throw (c instanceof IOException io) ? io : new IOException(c);
+        } finally {
+            for (Pending p : inFlight) p.result().cancel(true);
+        }
+    }
+
+    /** Thrown by a worker when a file cannot be read at all; the writer skips the entry. */
+    private static final class SkippedFileException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        SkippedFileException(String name, IOException cause) {
+            super(name, cause);
+        }
+    }
+
+    /**
+     * Idle raw deflaters by level (0-9). A deflater holds native zlib memory until {@link Deflater#end()},
+     * so at most one per pool thread and level is kept, and any beyond that are ended when returned.
+     */
+    private static final List<BlockingQueue<Deflater>> DEFLATERS = IntStream.rangeClosed(0, 9)
+            .<BlockingQueue<Deflater>>mapToObj(level -> new ArrayBlockingQueue<>(Workers.cpuThreads()))
+            .toList();
+
+    /** A reset raw deflater for {@code level} (0-9, or {@link Deflater#DEFAULT_COMPRESSION}); give it back with {@link #returnDeflater}. */
+    static Deflater borrowDeflater(int level) {
+        if (level < 0) level = 6;
+        Deflater d = DEFLATERS.get(level).poll();
+        return d != null ? d : new Deflater(level, true);
+    }
+
+    static void returnDeflater(Deflater d, int level) {
+        if (level < 0) level = 6;
+        d.reset();
+        if (!DEFLATERS.get(level).offer(d)) d.end();
+    }
+
+    private static Block deflateWhole(SourceFile f, CompressionPolicy policy) throws SkippedFileException {
+        byte[] raw;
+        try {
+            raw = Files.readAllBytes(f.path());
+        } catch (IOException e) {
+            throw new SkippedFileException(f.name(), e);
         }
+        long cpu = CompressionPolicy.cpuNanos();
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, raw.length);
+        CompressionPolicy.Mode mode = policy.modeFor(f.name());
+        if (mode == CompressionPolicy.Mode.STORED) {
+            policy.record(CompressionPolicy.Outcome.STORED, raw.length, raw.length, CompressionPolicy.cpuNanos() - cpu);
+            return new Block(f, 0, true, ZipWriter.STORED, raw, raw.length, crc.getValue(), raw.length);
+        }
+        if (mode == CompressionPolicy.Mode.AUTO && !worthDeflating(raw, raw.length, policy)) {
+            policy.record(CompressionPolicy.Outcome.AUTO_STORED, raw.length, raw.length, CompressionPolicy.cpuNanos() - cpu);
+            return new Block(f, 0, true, ZipWriter.STORED, raw, raw.length, crc.getValue(), raw.length);
+        }
+        Deflater d = borrowDeflater(mode.level);
+        Block b;
+        try {
+            d.setInput(raw);
+            d.finish();
+            b = deflated(f, 0, true, d, raw.length, crc.getValue());
+        } finally {
+            returnDeflater(d, mode.level);
+        }
+        // The sample can flatter the whole file; never keep a deflated entry that grew.
+        if (mode == CompressionPolicy.Mode.AUTO && b.length() >= raw.length) {
+            policy.record(CompressionPolicy.Outcome.AUTO_STORED, raw.length, raw.length, CompressionPolicy.cpuNanos() - cpu);
+            return new Block(f, 0, true, ZipWriter.STORED, raw, raw.length, crc.getValue(), raw.length);
+        }
+        policy.record(outcome(mode, false), raw.length, b.length(), CompressionPolicy.cpuNanos() - cpu);
+        return b;
+    }
+
+    /**
+     * Deflates the first {@link CompressionPolicy#SAMPLE_BYTES} of {@code raw} at the fastest level
+     * and asks the policy whether the rest is worth deflating, so data that will be stored anyway,
+     * such as region files, costs a sample rather than a full deflate.
+     */
+    private static boolean worthDeflating(byte[] raw, int len, CompressionPolicy policy) {
+        int sample = Math.min(len, CompressionPolicy.SAMPLE_BYTES);
+        Deflater probe = borrowDeflater(Deflater.BEST_SPEED);
+        try {
+            probe.setInput(raw, 0, sample);
+            probe.finish();
+            byte[] scratch = new byte[sample + (sample >>> 3) + 64];
+            int out = 0;
+            while (!probe.finished() && out < scratch.length) out += probe.deflate(scratch, out, scratch.length - out);
+            return probe.finished() && !policy.notWorthIt(out, sample);
+        } finally {
+            returnDeflater(probe, Deflater.BEST_SPEED);
+        }
+    }
+
+    private static Block deflateBlock(SourceFile f, int index, boolean last, CompressionPolicy policy) throws IOException, SkippedFileException {
+        long start = (long) index * BLOCK_SIZE;
+        int want = (int) Math.min(BLOCK_SIZE, f.size() - start);
+        byte[] raw = new byte[want];
+        int len = 0;
+        try (FileChannel fc = FileChannel.open(f.path(), StandardOpenOption.READ)) {
+            ByteBuffer buf = ByteBuffer.wrap(raw);
+            while (buf.hasRemaining()) {
+                int n = fc.read(buf, start + buf.position());
+                if (n < 0) break;
+            }
+            len = buf.position();
+        } catch (IOException e) {
+            if (index == 0) throw new SkippedFileException(f.name(), e);
+            throw e;
+        }
+        long cpu = CompressionPolicy.cpuNanos();
+        CRC32 crc = new CRC32();
+        crc.update(raw, 0, len);
+
+        // Blocks of one entry are independent deflate segments, so each may use its own level;
+        // "stored" here is deflate level 0, which streaming readers handle unlike a STORED entry
+        // with a data descriptor.
+        CompressionPolicy.Mode mode = policy.modeFor(f.name());
+        int level = mode.level;
+        boolean autoStored = false;
+        if (mode == CompressionPolicy.Mode.AUTO) {
+            autoStored = !worthDeflating(raw, len, policy);
+            if (autoStored) level = Deflater.NO_COMPRESSION;
+        }
+        Deflater d = borrowDeflater(level);
+        Block b;
+        try {
+            d.setInput(raw, 0, len);
+            if (last) d.finish();
+            b = deflated(f, index, last, d, len, crc.getValue());
+        } finally {
+            returnDeflater(d, level);
+        }
+        policy.record(outcome(mode, autoStored), len, b.length(), CompressionPolicy.cpuNanos() - cpu);
+        return b;
+    }
+
+    private static CompressionPolicy.Outcome outcome(CompressionPolicy.Mode mode, boolean autoStored) {
+        return switch (mode) {
+            case STORED -> CompressionPolicy.Outcome.STORED;
+            case FAST -> CompressionPolicy.Outcome.FAST;
+            case DEFAULT -> CompressionPolicy.Outcome.DEFAULT;
+            case BEST -> CompressionPolicy.Outcome.BEST;
+            case AUTO -> autoStored ? CompressionPolicy.Outcome.AUTO_STORED : CompressionPolicy.Outcome.AUTO_DEFLATED;
+        };
+    }
+
+    /** Drains the deflater. Non-final blocks end on a sync flush so the next block's stream can follow directly. */
+    private static Block deflated(SourceFile f, int index, boolean last, Deflater d, int rawLen, long crc) {
+        byte[] out = new byte[Math.max(64, rawLen + (rawLen >>> 4) + 64)];
+        int len = 0;
+        while (true) {
+            if (len == out.length) out = Arrays.copyOf(out, out.length * 2);
+            if (last) {
+                len += d.deflate(out, len, out.length - len);
+                if (d.finished()) break;
+            } else {
+                // A sync flush is complete once deflate() stops filling the whole output buffer.
+                len += d.deflate(out, len, out.length - len, Deflater.SYNC_FLUSH);
+                if (len < out.length) break;
+            }
+        }
+        return new Block(f, index, last, ZipWriter.DEFLATED, out, len, crc, rawLen);
+    }
+
+    /** zlib's crc32_combine: CRC of A||B from crc(A), crc(B) and len(B). */
+    static long crc32Combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) return crc1;
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) crc1 = gf2MatrixTimes(even, crc1);
+            len2 >>= 1;
+            if (len2 == 0) break;
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) crc1 = gf2MatrixTimes(odd, crc1);
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0) sum ^= mat[i];
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) square[n] = gf2MatrixTimes(mat, mat[n]);
     }
 }
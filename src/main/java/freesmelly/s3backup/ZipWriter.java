@@ -0,0 +1,263 @@
+package freesmelly.s3backup;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Minimal streaming zip writer for entries whose data has already been compressed elsewhere
+ * (which {@link java.util.zip.ZipOutputStream} cannot do). Never seeks, so it can write into an
+ * upload stream. ZIP64 records are added only where sizes, offsets or the entry count need them.
+ */
+final class ZipWriter implements AutoCloseable {
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private static final class Entry {
+        byte[] name;
+        int method;
+        int flags;
+        long dosTime;
+        long crc;
+        long size;
+        long compressedSize;
+        long offset;
+        long dataStart;
+    }
+
+    private final OutputStream out;
+    private final List<Entry> entries = new ArrayList<>();
+    private final byte[] scratch = new byte[8];
+    private long written;
+    private Entry open;
+    private boolean finished;
+
+    ZipWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out, 1 << 16);
+    }
+
+    /** Bytes written so far, i.e. the offset of the next record. */
+    long position() {
+        return written;
+    }
+
+    /** Writes a complete entry whose CRC and sizes are already known. */
+    void writeEntry(String name, int method, long mtimeMillis, long crc, long size, byte[] data, int off, int len) throws IOException {
+        Entry e = newEntry(name, method, mtimeMillis, 0);
+        e.crc = crc;
+        e.size = size;
+        e.compressedSize = len;
+        boolean zip64 = size >= ZIP64_MAGIC || len >= ZIP64_MAGIC;
+        writeLocalHeader(e, zip64);
+        writeBytes(data, off, len);
+        entries.add(e);
+    }
+
+    /**
+     * Starts an entry whose CRC and sizes are only known once all of its data has been written;
+     * they follow the data in a data descriptor. Only valid for {@link #DEFLATED} entries, because
+     * streaming readers cannot find the end of a stored entry without its size.
+     */
+    void beginEntry(String name, long mtimeMillis) throws IOException {
+        if (open != null) throw new IllegalStateException("Entry still open: " + new String(open.name, StandardCharsets.UTF_8));
+        Entry e = newEntry(name, DEFLATED, mtimeMillis, FLAG_DATA_DESCRIPTOR);
+        writeLocalHeader(e, false);
+        open = e;
+    }
+
+    /** Writes a stored entry of known CRC and size whose data is copied in by the caller via {@link #writeData}. */
+    void beginStoredEntry(String name, long mtimeMillis, long crc, long size) throws IOException {
+        if (open != null) throw new IllegalStateException("Entry still open: " + new String(open.name, StandardCharsets.UTF_8));
+        Entry e = newEntry(name, STORED, mtimeMillis, 0);
+        e.crc = crc;
+        e.size = size;
+        e.compressedSize = size;
+        writeLocalHeader(e, size >= ZIP64_MAGIC);
+        open = e;
+    }
+
+    void writeData(byte[] data, int off, int len) throws IOException {
+        if (open == null) throw new IllegalStateException("No open entry");
+        writeBytes(data, off, len);
+    }
+
+    void endEntry(long crc, long size) throws IOException {
+        Entry e = open;
+        if (e == null) throw new IllegalStateException("No open entry");
+        open = null;
+        long dataLen = written - e.dataStart;
+        if (e.method == STORED) {
+            if (dataLen != e.size) throw new IOException("Stored entry size mismatch: " + new String(e.name, StandardCharsets.UTF_8));
+        } else {
+            e.crc = crc;
+            e.size = size;
+            e.compressedSize = dataLen;
+            // Readers pick the descriptor width from the actual sizes, so only go wide when needed.
+            boolean zip64 = size >= ZIP64_MAGIC || dataLen >= ZIP64_MAGIC;
+            writeInt(0x08074b50L);
+            writeInt(crc);
+            if (zip64) {
+                writeLong(dataLen);
+                writeLong(size);
+            } else {
+                writeInt(dataLen);
+                writeInt(size);
+            }
+        }
+        entries.add(e);
+    }
+
+    int entryCount() {
+        return entries.size();
+    }
+
+    /** Writes the central directory and end records. The underlying stream is flushed but not closed. */
+    void finish() throws IOException {
+        if (finished) return;
+        if (open != null) throw new IllegalStateException("Entry still open: " + new String(open.name, StandardCharsets.UTF_8));
+        finished = true;
+        long cdStart = written;
+        for (Entry e : entries) writeCentralHeader(e);
+        long cdSize = written - cdStart;
+        long count = entries.size();
+
+        if (count >= 0xFFFF || cdStart >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC) {
+            long zip64End = written;
+            writeInt(0x06064b50L);
+            writeLong(44);
+            writeShort(45);
+            writeShort(45);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(cdSize);
+            writeLong(cdStart);
+
+            writeInt(0x07064b50L);
+            writeInt(0);
+            writeLong(zip64End);
+            writeInt(1);
+        }
+
+        writeInt(0x06054b50L);
+        writeShort(0);
+        writeShort(0);
+        writeShort((int) Math.min(count, 0xFFFF));
+        writeShort((int) Math.min(count, 0xFFFF));
+        writeInt(Math.min(cdSize, ZIP64_MAGIC));
+        writeInt(Math.min(cdStart, ZIP64_MAGIC));
+        writeShort(0);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private Entry newEntry(String name, int method, long mtimeMillis, int extraFlags) {
+        Entry e = new Entry();
+        e.name = name.getBytes(StandardCharsets.UTF_8);
+        e.method = method;
+        e.flags = FLAG_UTF8 | extraFlags;
+        e.dosTime = dosTime(mtimeMillis);
+        e.offset = written;
+        return e;
+    }
+
+    private void writeLocalHeader(Entry e, boolean zip64) throws IOException {
+        boolean descriptor = (e.flags & FLAG_DATA_DESCRIPTOR) != 0;
+        writeInt(0x04034b50L);
+        writeShort(zip64 ? 45 : 20);
+        writeShort(e.flags);
+        writeShort(e.method);
+        writeInt(e.dosTime);
+        writeInt(descriptor ? 0 : e.crc);
+        writeInt(descriptor ? 0 : (zip64 ? ZIP64_MAGIC : e.compressedSize));
+        writeInt(descriptor ? 0 : (zip64 ? ZIP64_MAGIC : e.size));
+        writeShort(e.name.length);
+        writeShort(zip64 ? 20 : 0);
+        writeBytes(e.name, 0, e.name.length);
+        if (zip64) {
+            writeShort(0x0001);
+            writeShort(16);
+            writeLong(e.size);
+            writeLong(e.compressedSize);
+        }
+        e.dataStart = written;
+    }
+
+    private void writeCentralHeader(Entry e) throws IOException {
+        boolean bigSize = e.size >= ZIP64_MAGIC;
+        boolean bigCsize = e.compressedSize >= ZIP64_MAGIC;
+        boolean bigOffset = e.offset >= ZIP64_MAGIC;
+        int extraLen = (bigSize || bigCsize || bigOffset) ? 4 + (bigSize ? 8 : 0) + (bigCsize ? 8 : 0) + (bigOffset ? 8 : 0) : 0;
+
+        writeInt(0x02014b50L);
+        writeShort(extraLen > 0 ? 45 : 20);
+        writeShort(extraLen > 0 ? 45 : 20);
+        writeShort(e.flags);
+        writeShort(e.method);
+        writeInt(e.dosTime);
+        writeInt(e.crc);
+        writeInt(bigCsize ? ZIP64_MAGIC : e.compressedSize);
+        writeInt(bigSize ? ZIP64_MAGIC : e.size);
+        writeShort(e.name.length);
+        writeShort(extraLen);
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt(bigOffset ? ZIP64_MAGIC : e.offset);
+        writeBytes(e.name, 0, e.name.length);
+        if (extraLen > 0) {
+            writeShort(0x0001);
+            writeShort(extraLen - 4);
+            if (bigSize) writeLong(e.size);
+            if (bigCsize) writeLong(e.compressedSize);
+            if (bigOffset) writeLong(e.offset);
+        }
+    }
+
+    private static long dosTime(long millis) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (t.getYear() < 1980) return (1 << 21) | (1 << 16);
+        return ((long) (t.getYear() - 1980) << 25) | ((long) t.getMonthValue() << 21) | ((long) t.getDayOfMonth() << 16)
+                | ((long) t.getHour() << 11) | ((long) t.getMinute() << 5) | (t.getSecond() >> 1);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private void writeShort(int v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        writeBytes(scratch, 0, 2);
+    }
+
+    private void writeInt(long v) throws IOException {
+        scratch[0] = (byte) v;
+        scratch[1] = (byte) (v >>> 8);
+        scratch[2] = (byte) (v >>> 16);
+        scratch[3] = (byte) (v >>> 24);
+        writeBytes(scratch, 0, 4);
+    }
+
+    private void writeLong(long v) throws IOException {
+        for (int i = 0; i < 8; i++) scratch[i] = (byte) (v >>> (8 * i));
+        writeBytes(scratch, 0, 8);
+    }
+}